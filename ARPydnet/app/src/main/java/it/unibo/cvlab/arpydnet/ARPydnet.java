@@ -168,6 +168,9 @@ public class ARPydnet extends AppCompatActivity implements GLSurfaceView.Rendere
     //Usato per calibrare le maschere degli oggetti.
     private Calibrator calibrator = null;
 
+    //Filtra scale e shift tra un point cloud e il successivo
+    private final TemporalEstimator temporalEstimator = new ScaleShiftKalmanFilter();
+
     //Prova per usare il calibratore solo all'aggiornamento della stima:
     //Non funziona bene
     //private boolean thisFrameIsCalibrated  = false;
@@ -442,6 +445,7 @@ public class ARPydnet extends AppCompatActivity implements GLSurfaceView.Rendere
         //if(currentModel == null) prepareModel();
 
         calibrator = new Calibrator(MAPPER_SCALE_FACTOR, RESOLUTION, NUMBER_THREADS);
+        temporalEstimator.reset();
 
         colorMapper = new ColorMapper(generalModel.getColorFactor(), NUMBER_THREADS);
         colorMapper.prepare(RESOLUTION);
@@ -805,10 +809,29 @@ public class ARPydnet extends AppCompatActivity implements GLSurfaceView.Rendere
                     if(calibrator.isLastTimestampDifferent(pointCloud)){
 //                        calibrator.calculateMaxEstimationDistance(inference);
 
-                        if(!calibrator.calibrateScaleFactorQuadratiMinimi(inference, pointCloud, cameraPose)){
-                            if(calibrator.calibrateScaleFactorRANSAC(inference, pointCloud, cameraPose, 6, 0.2f)){
-                                calibrator.calibrateScaleFactor(inference, pointCloud, cameraPose);
+                        //Proiezione e campionamento una sola volta per point cloud
+                        calibrator.prepare(inference, pointCloud, cameraPose);
+
+                        //Con la stima stabile verifico solo che sia coerente con il nuovo point cloud
+                        if(temporalEstimator.isConverged() &&
+                                calibrator.validateScaleFactor(temporalEstimator.getScaleFactor(),
+                                        temporalEstimator.getShiftFactor(), 0.2f) >= 0.5f){
+                            temporalEstimator.predict();
+                            calibrator.setScaleFactor(temporalEstimator.getScaleFactor());
+                            calibrator.setShiftFactor(temporalEstimator.getShiftFactor());
+                            //Inlier aggiornati anche senza ricalibrare: la prossima calibrazione incrementale parte da qui
+                            calibrator.cacheInliers();
+                        }else{
+                            //Prima riuso gli inlier del point cloud precedente, poi ricalibro da capo
+                            if(!calibrator.calibrateScaleFactorIncremental() &&
+                                    !calibrator.calibrateScaleFactorQuadratiMinimi()){
+                                //Al più 30 iterazioni: RANSAC si ferma prima se trova abbastanza inlier
+                                if(!calibrator.calibrateScaleFactorRANSAC(30, 0.2f)){
+                                    calibrator.calibrateScaleFactor();
+                                }
                             }
+
+                            calibrator.filterScaleFactor(temporalEstimator);
                         }
 
                         backgroundRenderer.setScaleFactor((float) calibrator.getScaleFactor());
@@ -8,11 +8,9 @@ import com.google.ar.core.PointCloud;
 import com.google.ar.core.Pose;
 
 import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
 import java.util.Arrays;
-import java.util.Comparator;
 import java.util.Random;
-import java.util.SortedSet;
-import java.util.TreeSet;
 
 import it.unibo.cvlab.Runner;
 import it.unibo.cvlab.pydnet.Utils;
@@ -30,6 +28,13 @@ public class Calibrator {
     private static final int MAX_QUANTIZER_LEVELS = 256;
     private static final int MAX_QUANTIZER_MASK = 0xFF;
 
+    //Soglia sull'errore relativo per ricordare un punto come inlier tra un frame e il successivo
+    private static final float INLIER_CACHE_THRESHOLD = 0.2f;
+    //Minimo di inlier precedenti ancora visibili per la calibrazione incrementale
+    private static final int MIN_REUSED_INLIERS = 8;
+    //Frazione minima di punti visibili coerenti con la stima incrementale
+    private static final float MIN_INCREMENTAL_INLIER_RATIO = 0.5f;
+
     private static int getNumPoints(PointCloud pointCloud){
         FloatBuffer pointsBuffer = pointCloud.getPoints();
         return pointsBuffer.remaining() / FLOATS_PER_POINT;
@@ -58,6 +63,9 @@ public class Calibrator {
 
     private Random rnd = new Random();
 
+    //Stima RANSAC di scale e shift, con i buffer riutilizzati tra i frame
+    private final ScaleShiftRansac ransac = new ScaleShiftRansac(rnd);
+
     public void setCameraView(float[] cameraView) {
         this.cameraView = cameraView;
     }
@@ -92,6 +100,10 @@ public class Calibrator {
         return shiftFactor;
     }
 
+    public void setShiftFactor(double shiftFactor) {
+        this.shiftFactor = shiftFactor;
+    }
+
     private float maxPredictedDistance;
 
     private int numVisiblePoints;
@@ -137,7 +149,7 @@ public class Calibrator {
         }
     }
 
-    private float[] transformCoordBottomLeft(float xFloat, float yFloat){
+    private void transformCoordBottomLeft(float xFloat, float yFloat, float[] out){
         float tmp;
         switch (displayRotation){
             case 0:
@@ -163,7 +175,8 @@ public class Calibrator {
                 break;
         }
 
-        return new float[]{xFloat, yFloat};
+        out[0] = xFloat;
+        out[1] = yFloat;
     }
 
     private float[] transformCoordTopLeft(float xFloat, float yFloat){
@@ -195,45 +208,39 @@ public class Calibrator {
         return new float[]{xFloat, yFloat};
     }
 
+    //Matrice world->clip e vettori di appoggio della proiezione: la matrice viene calcolata una volta per prepare
+    private final float[] viewProjectionMatrix = new float[16];
+    private final float[] pointCoords = new float[4];
+    private final float[] projCoords = new float[4];
+    private final float[] screenCoords = new float[2];
+    private final int[] pointXY = new int[2];
+
     /**
      * Effettua le trasformazioni OpenGL per ricavare le coordinate XY di un punto nelle coordinate
-     * world-space.
+     * world-space, con la viewProjectionMatrix calcolata da prepare. Non alloca nulla.
      * @param x coordinata world-space X del punto
      * @param y coordinata world-space Y del punto
      * @param z coordinata world-space Z del punto
-     * @return int[] array con le coordinate XY (X:0, Y:1), NULL nel caso di punto fuori schermo
+     * @param xy coordinate XY del punto (X:0, Y:1)
+     * @return falso nel caso di punto fuori schermo
      */
-    private int[] getXYFromPoint(float x, float y, float z){
-        //Matrice usata per la trasformazione delle coordinate: world->view
-        float[] viewProjectionMatrix = new float[16];
-        Matrix.multiplyMM(viewProjectionMatrix, 0, cameraPerspective, 0, cameraView, 0);
-
-        float[] coords = new float[4];
-        float[] projCoords = new float[4];
-
+    private boolean projectPoint(float x, float y, float z, int[] xy){
         //Estrazione coordinate dal punto
-        coords[0] = x;
-        coords[1] = y;
-        coords[2] = z;
-        coords[3] = 1.0f;
+        pointCoords[0] = x;
+        pointCoords[1] = y;
+        pointCoords[2] = z;
+        pointCoords[3] = 1.0f;
 
         //Passaggio fondamentale: trasformazione delle coordinate.
-        Matrix.multiplyMV(projCoords, 0, viewProjectionMatrix,0, coords,0);
+        Matrix.multiplyMV(projCoords, 0, viewProjectionMatrix,0, pointCoords,0);
 
         //Passaggio alle cordinate normali
         projCoords[0] /= projCoords[3];
         projCoords[1] /= projCoords[3];
 
         //Clipping: se il punto è fuori dallo schermo non lo considero.
-        if(projCoords[0] > 1.0f || projCoords[0] < -1.0f){
-            //Log.log(Level.WARNING, "Il punto di calibrazione è fuori schermo: "+projCoords[0]);
-            return null;
-        }
-
-        if(projCoords[1] > 1.0f || projCoords[1] < -1.0f){
-            //Log.log(Level.WARNING, "Il punto di calibrazione è fuori schermo: "+projCoords[1]);
-            return null;
-        }
+        if(projCoords[0] > 1.0f || projCoords[0] < -1.0f) return false;
+        if(projCoords[1] > 1.0f || projCoords[1] < -1.0f) return false;
 
         //Viewport Transform
         //Coordinate iniziali: [-1.0,1.0], [-1.0,1.0]
@@ -245,13 +252,13 @@ public class Calibrator {
 
         //Trasformo le coordinate da origine bottom-left,
         //  in modo che seguano la rotazione dello schermo
-        float[] finalCoords = transformCoordBottomLeft(xFloat, yFloat);
+        transformCoordBottomLeft(xFloat, yFloat, screenCoords);
 
         //Trasformo le coordinate normalizate in [0,width[, [0.height[
-        int xReturn = Math.round(finalCoords[0] * (resolution.getWidth()-1));
-        int yReturn = Math.round(finalCoords[1] * (resolution.getHeight()-1));
+        xy[0] = Math.round(screenCoords[0] * (resolution.getWidth()-1));
+        xy[1] = Math.round(screenCoords[1] * (resolution.getHeight()-1));
 
-        return new int[]{xReturn, yReturn};
+        return true;
     }
 
     /**
@@ -299,92 +306,92 @@ public class Calibrator {
 
     //https://learnopengl.com/Getting-started/Coordinate-Systems
 
-    private static class MinimumSquareObject {
-        double distance;
-        double disparityDistance;
-        double predictedDistance;
-        double predictedDistanceSquare;
-        double arConfidence;
+    //Punti visibili: distanza predetta, distanza ARCore e confidenza, riutilizzati tra i frame
+    private float[] visiblePredicted = new float[0];
+    private float[] visibleDistance = new float[0];
+    private float[] visibleConfidence = new float[0];
+    private int[] visibleIds = new int[0];
 
-        private void calculate(){
-            this.predictedDistanceSquare = predictedDistance * predictedDistance;
-            this.disparityDistance = 1.0 / distance;
-        }
-    }
-
-    //https://gist.github.com/ranftlr/a1c7a24ebb24ce0e2f2ace5bce917022
+    //Id ARCore degli inlier dell'ultima calibrazione, ordinati per la ricerca binaria
+    private int[] inlierIds = new int[0];
+    private int numInlierIds;
 
     /**
-     * Calcola il fattore di scala tramite algoritmo quadrati minimi.
+     * Raccoglie i punti affidabili e visibili nella stima di profondità, una volta per point cloud.
+     * Validazione e calibrazioni successive lavorano su questi punti finché non si prepara
+     * un altro point cloud. Va chiamato dopo aver impostato camera e rotazione dello schermo.
      *
      * @param inference stima di profondità
      * @param cloud point cloud da cui calcolare il fattore di scala
      * @param cameraPose posa della camera per il calcolo della distanza
-     *
-     * @return fattore di scala trovato tramite quadrati minimi
+     * @return numero di punti visibili
      */
-    public boolean calibrateScaleFactorQuadratiMinimi(FloatBuffer inference, PointCloud cloud,
-                                                      Pose cameraPose){
+    public int prepare(FloatBuffer inference, PointCloud cloud, Pose cameraPose){
+        lastTimestamp = cloud.getTimestamp();
+
         FloatBuffer points = cloud.getPoints();
+        IntBuffer ids = cloud.getIds();
         int numPoints = getNumPoints(cloud);
 
-        //Check sul numero minimo di punti
-        if(numPoints < 1) return false;
-
-        MinimumSquareObject[] minimumSquareObjects = new MinimumSquareObject[numPoints];
+        numVisiblePoints = 0;
 
-        //Vettore con le World-Coords
-        //X,Y,Z,Confidence
-        float[] coords = new float[4];
+        if(numPoints < 1) return 0;
 
-        //Calcolo di ogni singolo scaleFactor O(N)
-        for (numVisiblePoints = 0; numVisiblePoints < numPoints && points.remaining() >= FLOATS_PER_POINT; numVisiblePoints++){
-            points.get(coords,0,4);
-            float arConfidence = coords[3];
+        if(visiblePredicted.length < numPoints){
+            visiblePredicted = new float[numPoints];
+            visibleDistance = new float[numPoints];
+            visibleConfidence = new float[numPoints];
+            visibleIds = new int[numPoints];
+        }
 
-            if(arConfidence < 0.3f){
-                numVisiblePoints--;    //Il punto non è affidabile: non lo conto e prendo il successivo
-                continue;
-            }
+        //Stessa matrice world->clip per tutti i punti
+        Matrix.multiplyMM(viewProjectionMatrix, 0, cameraPerspective, 0, cameraView, 0);
 
-            int[] xy = getXYFromPoint(coords[0], coords[1], coords[2]);
+        //Calcolo di ogni singola coppia distanza, distanza predetta O(N)
+        for (int i = 0; i < numPoints; i++){
+            int offset = points.position() + i * FLOATS_PER_POINT;
 
-            if(xy == null){
-                numVisiblePoints--;    //Il punto non è valido: non lo conto e prendo il successivo
-                continue;
-            }
+            float x = points.get(offset);
+            float y = points.get(offset + 1);
+            float z = points.get(offset + 2);
+            float arConfidence = points.get(offset + 3);
 
-            int position = (resolution.getWidth() * xy[1]) + xy[0];
+            //Il punto non è affidabile
+            if(arConfidence < 0.3f) continue;
 
-            inference.rewind();
+            //Il punto non è valido
+            if(!projectPoint(x, y, z, pointXY)) continue;
 
-            if(inference.remaining() >= position){
-                //Ricavo la distanza.
-                double distance = getDistance(coords[0], coords[1], coords[2], cameraPose);
+            int position = (resolution.getWidth() * pointXY[1]) + pointXY[0];
 
+            if(position < inference.limit()){
                 //Ricavo la distanza pydnet.
-                double predictedDistance = inference.get(position);
-//                predictedDistance = predictedDistance / maxPredictedDistance;
-//                predictedDistance = (float) (1.0 / predictedDistance);
-                predictedDistance = 255.0f - predictedDistance;
-
-                minimumSquareObjects[numVisiblePoints] = new MinimumSquareObject();
-                minimumSquareObjects[numVisiblePoints].distance = distance;
-                minimumSquareObjects[numVisiblePoints].predictedDistance = predictedDistance;
-                minimumSquareObjects[numVisiblePoints].arConfidence = arConfidence;
-                minimumSquareObjects[numVisiblePoints].calculate();
+                visiblePredicted[numVisiblePoints] = 255.0f - inference.get(position);
+                visibleDistance[numVisiblePoints] = (float) getDistance(x, y, z, cameraPose);
+                visibleConfidence[numVisiblePoints] = arConfidence;
+                visibleIds[numVisiblePoints] = ids.get(ids.position() + i);
+                numVisiblePoints++;
             }else{
                 //Stranamente non riesco a trovare la predizione.
                 Log.d(TAG, "Impossibile trovare corrispondeza punto-depth");
-                //Il punto è perso: ripeto con il prossimo.
-                numVisiblePoints--;
             }
         }
 
-        points.rewind();
+        return numVisiblePoints;
+    }
+
+    //https://gist.github.com/ranftlr/a1c7a24ebb24ce0e2f2ace5bce917022
+
+    /**
+     * Calcola il fattore di scala tramite algoritmo quadrati minimi, sui punti preparati con prepare.
+     *
+     * @return fattore di scala trovato tramite quadrati minimi
+     */
+    public boolean calibrateScaleFactorQuadratiMinimi(){
+        int count = numVisiblePoints;
 
         //Check sul numero minimo di punti
-        if(numVisiblePoints < 1) return false;
+        if(count < 1) return false;
 
         //Algoritmo quadrati minimi
         //compute_scale_and_shift()
@@ -395,18 +402,21 @@ public class Calibrator {
 
         double a00 = 0.0;
         double a01 = 0.0;
-        double a11 = numVisiblePoints;
+        double a11 = count;
 
         //IL fattore a10 è uguale a a01
 
         double b0 = 0.0;
         double b1 = 0.0;
 
-        for(int i = 0; i<numVisiblePoints;i++){
-            a00 += minimumSquareObjects[i].predictedDistanceSquare;
-            a01 += minimumSquareObjects[i].predictedDistance;
-            b0 += minimumSquareObjects[i].predictedDistance * minimumSquareObjects[i].distance;
-            b1 += minimumSquareObjects[i].distance;
+        for(int i = 0; i < count; i++){
+            double predictedDistance = visiblePredicted[i];
+            double distance = visibleDistance[i];
+
+            a00 += predictedDistance * predictedDistance;
+            a01 += predictedDistance;
+            b0 += predictedDistance * distance;
+            b1 += distance;
         }
 
         //Calcolo il determinante di A
@@ -425,7 +435,8 @@ public class Calibrator {
             }else{
                 this.scaleFactor = scaleFactor;
                 this.shiftFactor = shift;
-                this.numUsedPoints = numVisiblePoints;
+                this.numUsedPoints = count;
+                cacheInliers();
                 return true;
             }
         }
@@ -437,280 +448,177 @@ public class Calibrator {
     }
 
     /**
-     * Classe wrapper per un punto RANSAC.
+     * Calcola scale e shift tramite RANSAC/MSAC (vedi ScaleShiftRansac) sui punti preparati con prepare:
+     * ogni ipotesi viene stimata da 2 punti e il numero di iterazioni si adatta alla percentuale di inlier.
+     * Dovrebbe essere più robusto rispetto al calcolo tramite media
+     *
+     * @param numberOfIterations numero massimo di iterazioni dell'algoritmo RANSAC
+     * @param threshold soglia sull'errore relativo per considerare un punto inlier (es. 0.2 = 20%)
+     * @return vero se la calibrazione è riuscita
      */
-    private static class RansacObject {
-        double distance;
-        double predictedDistance;
-        double scaleFactor;
-        float arConfidence;
-        double mse;
-
-        static Comparator<RansacObject> getComparatorByConfidence(){
-            return (a, b) -> {
-                //Null check : https://stackoverflow.com/questions/14514467/sorting-array-with-null-values
-                if (a == null && b == null) {
-                    return 0;
-                }
-                if (a == null) {
-                    return 1;
-                }
-                if (b == null) {
-                    return -1;
-                }
-
-                return Float.compare(a.arConfidence, b.arConfidence);
-            };
-        }
-
-        static Comparator<RansacObject> getComparatorByError(){
-            return (a, b) -> {
-                //Null check : https://stackoverflow.com/questions/14514467/sorting-array-with-null-values
-                if (a == null && b == null) {
-                    return 0;
-                }
-                if (a == null) {
-                    return 1;
-                }
-                if (b == null) {
-                    return -1;
-                }
+    public boolean calibrateScaleFactorRANSAC(int numberOfIterations, float threshold){
+        int count = numVisiblePoints;
 
-                return Double.compare(a.mse, b.mse);
-            };
-        }
-
-        static Comparator<RansacObject> getComparatorByConfidenceInverse(){
-            return (a, b) -> {
-                //Null check : https://stackoverflow.com/questions/14514467/sorting-array-with-null-values
-                if (a == null && b == null) {
-                    return 0;
-                }
-                if (a == null) {
-                    return 1;
-                }
-                if (b == null) {
-                    return -1;
-                }
-
-                return Float.compare(b.arConfidence, a.arConfidence);
-            };
+        if(!ransac.estimate(visiblePredicted, visibleDistance, visibleConfidence, count, numberOfIterations, threshold)){
+            Log.d(TAG, "RANSAC calibrator failed");
+            return false;
         }
 
-        static Comparator<RansacObject> getComparatorByErrorInverse(){
-            return (a, b) -> {
-                //Null check : https://stackoverflow.com/questions/14514467/sorting-array-with-null-values
-                if (a == null && b == null) {
-                    return 0;
-                }
-                if (a == null) {
-                    return 1;
-                }
-                if (b == null) {
-                    return -1;
-                }
-
-                return Double.compare(b.mse, a.mse);
-            };
-        }
+        this.scaleFactor = ransac.getScaleFactor();
+        this.shiftFactor = ransac.getShiftFactor();
+        this.numUsedPoints = ransac.getNumInliers();
+        cacheInliers();
+        return true;
     }
 
     /**
-     * Calcola il fattore di scala tramite algoritmo RANSAC.
-     * Dovrebbe essere più robusto rispetto al calcolo tramite media
+     * Calibrazione incrementale: riusa gli inlier della calibrazione precedente, riconosciuti
+     * tramite gli id ARCore dei punti. Scale e shift vengono stimati con i minimi quadrati pesati
+     * sugli inlier ancora visibili, verificati su tutti i punti e raffinati sugli inlier correnti,
+     * compresi i punti nuovi. Niente campionamento: in tracking stabile costa due passaggi sui punti.
+     * Fallisce se sono rimasti pochi inlier o se la stima non spiega più il point cloud:
+     * in quel caso serve una calibrazione completa. Lavora sui punti preparati con prepare.
      *
-     * @param inference stima di profondità
-     * @param cloud point cloud da cui calcolare il fattore di scala
-     * @param cameraPose posa della camera per il calcolo della distanza
-     * @param numberOfIterations numero di iterazioni dell'algoritmo RANSAC
-     * @param normalizedThreshold valore di soglia per accettare nuovi dati nel consensusSet
-     * @return fattore di scala trovato tramite RANSAC
+     * @return vero se la calibrazione è riuscita
      */
-    public boolean calibrateScaleFactorRANSAC(FloatBuffer inference, PointCloud cloud,
-                                             Pose cameraPose, int numberOfIterations,
-                                             float normalizedThreshold){
-        lastTimestamp = cloud.getTimestamp();
+    public boolean calibrateScaleFactorIncremental(){
+        if(numInlierIds < MIN_REUSED_INLIERS) return false;
 
-        FloatBuffer points = cloud.getPoints();
-        int numPoints = getNumPoints(cloud);
+        int count = numVisiblePoints;
 
-        //Check sul numero minimo di punti
-        if(numPoints < 1) return false;
+        if(count < MIN_REUSED_INLIERS) return false;
 
-        RansacObject[] ransacObjects = new RansacObject[numPoints];
+        double a00 = 0.0, a01 = 0.0, a11 = 0.0;
+        double b0 = 0.0, b1 = 0.0;
+        int reused = 0;
 
-        //Vettore con le World-Coords
-        //X,Y,Z,Confidence
-        float[] coords = new float[4];
+        for (int i = 0; i < count; i++) {
+            if(Arrays.binarySearch(inlierIds, 0, numInlierIds, visibleIds[i]) < 0) continue;
 
-        //Calcolo di ogni singolo scaleFactor O(N)
-        for (numVisiblePoints = 0; numVisiblePoints < numPoints && points.remaining() >= FLOATS_PER_POINT; numVisiblePoints++){
-            points.get(coords,0,4);
-            float arConfidence = coords[3];
+            double w = visibleConfidence[i];
+            double p = visiblePredicted[i];
+            double d = visibleDistance[i];
 
-            if(arConfidence < 0.3f){
-                numVisiblePoints--;    //Il punto non è affidabile: non lo conto e prendo il successivo
-                continue;
-            }
+            a00 += w * p * p;
+            a01 += w * p;
+            a11 += w;
+            b0 += w * p * d;
+            b1 += w * d;
+            reused++;
+        }
 
-            int[] xy = getXYFromPoint(coords[0], coords[1], coords[2]);
+        if(reused < MIN_REUSED_INLIERS) return false;
 
-            if(xy == null){
-                numVisiblePoints--;    //Il punto non è valido: non lo conto e prendo il successivo
-                continue;
-            }
+        double detA = a00 * a11 - a01 * a01;
 
-            int position = (resolution.getWidth() * xy[1]) + xy[0];
+        if(!(detA > 0.0)) return false;
 
-            inference.rewind();
+        double scale = (a11 * b0 - a01 * b1) / detA;
+        double shift = (-a01 * b0 + a00 * b1) / detA;
 
-            if(inference.remaining() >= position){
-                //Ricavo la distanza.
-                double distance = getDistance(coords[0], coords[1], coords[2], cameraPose);
+        if(!(scale > 0.0) || !Double.isFinite(shift)) return false;
 
-                //Ricavo la distanza pydnet.
-                double predictedDistance = inference.get(position);
-//                predictedDistance = predictedDistance / maxPredictedDistance;
-//                predictedDistance = (float) (1.0 / predictedDistance);
-                predictedDistance = 255.0f - predictedDistance;
-
-                ransacObjects[numVisiblePoints] = new RansacObject();
-                ransacObjects[numVisiblePoints].distance = distance;
-                ransacObjects[numVisiblePoints].predictedDistance = predictedDistance;
-                ransacObjects[numVisiblePoints].scaleFactor = (distance / predictedDistance );
-                ransacObjects[numVisiblePoints].arConfidence = arConfidence;
-            }else{
-                //Stranamente non riesco a trovare la predizione.
-                Log.d(TAG, "Impossibile trovare corrispondeza punto-depth");
-                //Il punto è perso: ripeto con il prossimo.
-                numVisiblePoints--;
-            }
-        }
+        //Verifica su tutti i punti e raffinamento sugli inlier correnti
+        a00 = a01 = a11 = b0 = b1 = 0.0;
+        int inliers = 0;
 
-        points.rewind();
+        for (int i = 0; i < count; i++) {
+            double p = visiblePredicted[i];
+            double d = visibleDistance[i];
+            double error = (scale * p + shift - d) / d;
 
-        //Check sul numero minimo di punti
-        if(numVisiblePoints < 1) return false;
-
-        //Sorting per confidenza, decrescente: O(N*log2(N))
-        //Non ho scelto parallel perché la lista degli elementi è limitata
-        Arrays.sort(ransacObjects, RansacObject.getComparatorByConfidenceInverse());
-
-        //Sorting usato solo per applicare lo sbarramento
-        //Applico sbarramento numero passimo punti
-        if(numVisiblePoints > MAX_POINTS) numVisiblePoints = MAX_POINTS;
-
-        //Algoritmo RANSAC
-        //Basato sullo pseudo-codice di https://it.wikipedia.org/wiki/RANSAC
-        double migliorScaleFactor = Double.NaN;         //ScaleFactor stimato da punto iniziale
-        double migliorScaleFactorAverage = Double.NaN;  //ScaleFactor stimato da migliorConsensusSet
-        Integer[] migliorConsensusSet = new Integer[0]; //Dati che rappresentano i migliori punti
-
-        //Inizializzazione
-
-        //Punti contenuti in possibiliInlier
-        int puntiPerPossibiliInlier = 1;
-
-        //Punti per consensusSet: range [puntiPerPossibiliInlier, numVisiblePoints]
-        int puntiConensusSet;
-
-        for (int i = 0; i < numberOfIterations; i++){
-            //possibiliInlier: Punti scelti a caso dal dataset
-            Integer[] possibiliInlier = new Integer[puntiPerPossibiliInlier];
-            //Ordino possibiliInlier: mi servirà dopo per scorrere i punti non presenti più velocemente
-            //Uso un set perché il rnd potrebbe darmi indici uguali
-            SortedSet<Integer> possibiliInlierSet = new TreeSet<>();
-            while(possibiliInlierSet.size() < puntiPerPossibiliInlier){
-                possibiliInlierSet.add(rnd.nextInt(numVisiblePoints));
-            }
-            possibiliInlier = possibiliInlierSet.toArray(possibiliInlier);
-
-            //Possibile scale factor stimato da possibiliInlier
-            double possibileScaleFactor;    //Candidato a diventare migliorScaleFactor
-            double sumScaleFactors = 0.0;   //Somma degli scale factor già pesati
-            double sumConfidence = 0.0;     //Somma dei pesi
-            for (int k = 0; k < puntiPerPossibiliInlier; k++){
-                RansacObject nextObj = ransacObjects[possibiliInlier[k]];
-                sumScaleFactors += nextObj.scaleFactor * nextObj.arConfidence;
-                sumConfidence += nextObj.arConfidence;
-            }
-            possibileScaleFactor = sumScaleFactors / sumConfidence;
+            if(Math.abs(error) > INLIER_CACHE_THRESHOLD) continue;
 
-            //Calcolo minimo e massimo per normalizzare
+            double w = visibleConfidence[i];
 
-            double minError = Double.MAX_VALUE;
-            double maxError = Double.MIN_VALUE;
+            a00 += w * p * p;
+            a01 += w * p;
+            a11 += w;
+            b0 += w * p * d;
+            b1 += w * d;
+            inliers++;
+        }
 
-            for (int k = 0, j=0; k < numVisiblePoints; k++){
-                //Qui serve il sorting di possibiliInlier
-                if(j < puntiPerPossibiliInlier && k == possibiliInlier[j]){
-                    //Punto presente in possibiliInlier: skip
-                    j++;
-                    continue;
-                }
+        if(inliers < MIN_INCREMENTAL_INLIER_RATIO * count){
+            Log.d(TAG, "Incremental calibrator failed: "+inliers+" inliers of "+count);
+            return false;
+        }
 
-                //Punto non presente: calcolo l'errore quadratico minimo
-                RansacObject foreignObj = ransacObjects[k];
+        detA = a00 * a11 - a01 * a01;
 
-                double thisError = Math.pow(foreignObj.predictedDistance * possibileScaleFactor - foreignObj.distance, 2);
+        if(detA > 0.0){
+            double refinedScale = (a11 * b0 - a01 * b1) / detA;
+            double refinedShift = (-a01 * b0 + a00 * b1) / detA;
 
-                if(thisError > maxError) maxError = thisError;
-                if(thisError < minError) minError = thisError;
+            if(refinedScale > 0.0 && Double.isFinite(refinedShift)){
+                scale = refinedScale;
+                shift = refinedShift;
             }
+        }
 
-            //consensusSet: Candidato a diventare migliorConsensusSet
-            //ConsensusSet inizializzato a possibiliInlier
-            Integer[] consensusSet = Arrays.copyOf(possibiliInlier, numVisiblePoints);
-            puntiConensusSet = puntiPerPossibiliInlier;
-
-            //Ricerca dei punti non assegnati ai possibili inlier che posso aggiungere al consensusSet
-            for (int k = 0, j = 0; k < numVisiblePoints; k++){
-                //Qui serve il sorting di possibiliInlier
-                if(j < puntiPerPossibiliInlier && k == possibiliInlier[j]){
-                    //Punto presente in possibiliInlier: skip
-                    j++;
-                    continue;
-                }
+        this.scaleFactor = scale;
+        this.shiftFactor = shift;
+        this.numUsedPoints = inliers;
+        cacheInliers();
+        return true;
+    }
 
-                //Punto non presente: calcolo l'errore quadratico
-                RansacObject foreignObj = ransacObjects[k];
+    /**
+     * Ricorda gli id dei punti visibili coerenti con scale e shift correnti: la calibrazione
+     * incrementale li riusa sul prossimo point cloud.
+     */
+    public void cacheInliers(){
+        if(inlierIds.length < numVisiblePoints){
+            inlierIds = new int[visibleIds.length];
+        }
 
-                //Differenze tra scale factor
-                //double squareError = Math.pow(possibileScaleFactor - foreignObj.scaleFactor, 2);
-                //Differenze tra distanza predetta scalata e distanza arcore
-                double thisError = Math.pow(foreignObj.predictedDistance * possibileScaleFactor - foreignObj.distance, 2);
+        numInlierIds = 0;
 
-                double normalizedError = (thisError - minError) / (maxError-minError);
+        for (int i = 0; i < numVisiblePoints; i++) {
+            double error = (scaleFactor * visiblePredicted[i] + shiftFactor - visibleDistance[i]) / visibleDistance[i];
 
-                //Se l'errore è minore del threshold aggiungo il punto
-                if(normalizedError < normalizedThreshold){
-                    consensusSet[puntiConensusSet++] = k;
+            if(Math.abs(error) <= INLIER_CACHE_THRESHOLD) inlierIds[numInlierIds++] = visibleIds[i];
+        }
 
-                    //Aggiorno le somme, MA NON maxSquareError:
-                    sumScaleFactors += foreignObj.scaleFactor * foreignObj.arConfidence;
-                    sumConfidence += foreignObj.arConfidence;
-                }
-            }
+        Arrays.sort(inlierIds, 0, numInlierIds);
+    }
 
-            //Se ho un numero sufficiente di punti allora il modello è buono
-            if(puntiConensusSet >= migliorConsensusSet.length){
-                //Ricalcolo possibleScaleFactor
-                migliorScaleFactorAverage = sumScaleFactors / sumConfidence;
-                migliorScaleFactor = possibileScaleFactor;
-                migliorConsensusSet = Arrays.copyOfRange(consensusSet, 0, puntiConensusSet);
-            }
+    /**
+     * Passa l'ultima calibrazione alla stima temporale e ne adotta il risultato.
+     * Il rumore della misura è ricavato dai punti visibili dell'ultima calibrazione.
+     *
+     * @return falso se la stima ha scartato la misura
+     */
+    public boolean filterScaleFactor(TemporalEstimator estimator){
+        boolean accepted = estimator.update(scaleFactor, shiftFactor, visiblePredicted, visibleDistance, visibleConfidence, numVisiblePoints);
+
+        if(Double.isFinite(estimator.getScaleFactor()) && Double.isFinite(estimator.getShiftFactor())){
+            this.scaleFactor = estimator.getScaleFactor();
+            this.shiftFactor = estimator.getShiftFactor();
         }
 
-        //Salvo il nuovo valore.
-        if(Double.isNaN(migliorScaleFactorAverage)){
-            Log.d(TAG, "RANSAC calibrator failed");
-            return false;
-        }else{
-            this.scaleFactor = migliorScaleFactorAverage;
-            this.shiftFactor = 0.0;
-            this.numUsedPoints = migliorConsensusSet.length;
-            return true;
+        return accepted;
+    }
+
+    /**
+     * Verifica scale e shift sui punti preparati con prepare, senza ricalibrare.
+     *
+     * @param threshold soglia sull'errore relativo per considerare un punto inlier
+     * @return frazione dei punti visibili entro la soglia, 0 se non ci sono punti visibili
+     */
+    public float validateScaleFactor(double scale, double shift, float threshold){
+        int count = numVisiblePoints;
+        int inliers = 0;
+
+        for (int i = 0; i < count; i++) {
+            double error = (scale * visiblePredicted[i] + shift - visibleDistance[i]) / visibleDistance[i];
+
+            if(Math.abs(error) <= threshold) inliers++;
         }
+
+        numUsedPoints = inliers;
+
+        return count > 0 ? (float) inliers / count : 0.0f;
     }
 
     //https://www.learnopengles.com/tag/perspective-divide/
@@ -718,70 +626,26 @@ public class Calibrator {
 
     /**
      * Cerca di trovare lo scale factor tra pydnet e arcore, tramite point cloud.
-     * Uso una media ponderata per il calcolo.
+     * Uso una media ponderata per il calcolo, sui primi MAX_POINTS punti preparati con prepare.
      * Dipende dall'affidabilità della stima.
-     *
-     * @param inference risultato della pydnet
-     * @param cloud nuovola di punti di arcore
-     * @param cameraPose Punto della camera in riferimento alla nuvola di punti
      */
-    public boolean calibrateScaleFactor(FloatBuffer inference, PointCloud cloud, Pose cameraPose){
-        //Vettore con le World-Coords
-        //X,Y,Z,Confidence
-        float[] coords = new float[4];
-
-        lastTimestamp = cloud.getTimestamp();
-
-        FloatBuffer points = cloud.getPoints();
-
-        int numPoints = getNumPoints(cloud);
-        numVisiblePoints = numPoints;
+    public boolean calibrateScaleFactor(){
+        int count = Math.min(numVisiblePoints, MAX_POINTS);
 
         //Ho un range di valori per cui accetto la nuvola.
-        if(numPoints < MIN_POINTS) return false;
-
-        numPoints = Math.min(numPoints, MAX_POINTS);
+        if(count < MIN_POINTS) return false;
 
         float sumScaleFactor = 0;
         float sumWeight = 0;
 
-        for (numVisiblePoints = 0; numVisiblePoints < numPoints && points.remaining() >= FLOATS_PER_POINT; numVisiblePoints++){
-            points.get(coords,0,4);
-            float weight = coords[3];
-
-            int[] xy = getXYFromPoint(coords[0], coords[1], coords[2]);
-
-            if(xy == null){
-                numVisiblePoints--;    //Il punto non è valido: non lo conto e prendo il successivo
-                continue;
-            }
-
-            int position = (resolution.getWidth() * xy[1]) + xy[0];
+        for (int i = 0; i < count; i++){
+            float weight = visibleConfidence[i];
 
-            inference.rewind();
-
-            if(inference.remaining() >= position){
-                //Ricavo la distanza.
-                double distance = getDistance(coords[0], coords[1], coords[2], cameraPose);
-
-                //Ricavo la distanza pydnet.
-                float predictedDistance = inference.get(position);
-//                predictedDistance = predictedDistance / maxPredictedDistance;
-//                predictedDistance = (float) (1.0 / predictedDistance);
-                predictedDistance = 255.0f - predictedDistance;
-
-                //Faccio la somma: prendo una media PONDERATA dei punti.
-                sumScaleFactor += (distance / predictedDistance ) * weight;
-                sumWeight += weight;
-            }else{
-                //Stranamente non riesco a trovare la predizione.
-                Log.d(TAG, "Impossibile trovare corrispondeza punto-depth");
-                numVisiblePoints--;//Il punto è perso: ripeto con il prossimo.
-            }
+            //Faccio la somma: prendo una media PONDERATA dei punti.
+            sumScaleFactor += (visibleDistance[i] / visiblePredicted[i]) * weight;
+            sumWeight += weight;
         }
 
-        points.rewind();
-
         //Devo verificare che ci sia il minimo di punti per la somma.
         if(sumWeight > 0){
             float tmpScaleFactor = sumScaleFactor / sumWeight;
@@ -792,7 +656,7 @@ public class Calibrator {
             }else{
                 this.scaleFactor = tmpScaleFactor;
                 this.shiftFactor = 0.0;
-                this.numUsedPoints = numVisiblePoints;
+                this.numUsedPoints = count;
                 return true;
             }
         }
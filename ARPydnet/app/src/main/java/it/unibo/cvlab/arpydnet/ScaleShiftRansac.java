@@ -0,0 +1,197 @@
+package it.unibo.cvlab.arpydnet;
+
+import java.util.Random;
+
+/**
+ * Stima RANSAC/MSAC di scale e shift tra distanza predetta e distanza ARCore: d = scale * p + shift.
+ * Ogni ipotesi viene ricavata da un campione minimo di 2 punti e valutata con il costo MSAC
+ * (errore relativo al quadrato, troncato alla soglia e pesato con la confidenza ARCore).
+ * La migliore ipotesi viene raffinata con i minimi quadrati pesati sui suoi inlier.
+ *
+ * Il numero di iterazioni si adatta alla percentuale di inlier osservata: la ricerca si ferma
+ * appena la probabilità di aver estratto almeno un campione di soli inlier supera la confidenza.
+ * Lavora su array primitivi e non alloca nulla: non è thread safe.
+ */
+public class ScaleShiftRansac {
+
+    public static final double DEFAULT_CONFIDENCE = 0.99;
+
+    //Sotto questa differenza tra le distanze predette il campione è degenere
+    private static final double MIN_SAMPLE_SPAN = 1e-6;
+
+    private final Random rnd;
+    private double confidence = DEFAULT_CONFIDENCE;
+
+    private double scaleFactor;
+    private double shiftFactor;
+    private int numInliers;
+    private int numIterations;
+
+    public ScaleShiftRansac() {
+        this(new Random());
+    }
+
+    public ScaleShiftRansac(Random rnd) {
+        this.rnd = rnd;
+    }
+
+    /**
+     * @param confidence probabilità, tra 0 e 1, di estrarre almeno un campione senza outlier
+     */
+    public void setConfidence(double confidence) {
+        if(!(confidence > 0.0 && confidence < 1.0))
+            throw new IllegalArgumentException("Confidenza non valida: "+confidence);
+
+        this.confidence = confidence;
+    }
+
+    public double getScaleFactor() {
+        return scaleFactor;
+    }
+
+    public double getShiftFactor() {
+        return shiftFactor;
+    }
+
+    public int getNumInliers() {
+        return numInliers;
+    }
+
+    public int getNumIterations() {
+        return numIterations;
+    }
+
+    /**
+     * Stima scale e shift.
+     *
+     * @param predicted distanze predette
+     * @param distance distanze ARCore
+     * @param weight confidenza di ogni punto
+     * @param count numero di punti da usare
+     * @param maxIterations numero massimo di iterazioni
+     * @param threshold soglia sull'errore relativo |scale * p + shift - d| / d per considerare un punto inlier
+     * @return vero se è stata trovata una stima valida
+     */
+    public boolean estimate(float[] predicted, float[] distance, float[] weight, int count, int maxIterations, double threshold){
+        numInliers = 0;
+        numIterations = 0;
+
+        if(count < 2 || maxIterations < 1) return false;
+
+        double thresholdSquare = threshold * threshold;
+
+        double bestCost = Double.POSITIVE_INFINITY;
+        double bestScale = Double.NaN;
+        double bestShift = Double.NaN;
+        int bestInliers = 0;
+
+        int iterations = maxIterations;
+
+        for (int i = 0; i < iterations; i++){
+            numIterations++;
+
+            //Campione minimo: due punti distinti
+            int first = rnd.nextInt(count);
+            int second = rnd.nextInt(count - 1);
+            if(second >= first) second++;
+
+            double span = predicted[first] - predicted[second];
+
+            if(Math.abs(span) < MIN_SAMPLE_SPAN) continue;
+
+            double scale = (distance[first] - distance[second]) / span;
+            double shift = distance[first] - scale * predicted[first];
+
+            //La distanza cresce con la distanza predetta
+            if(!(scale > 0.0) || !Double.isFinite(shift)) continue;
+
+            //Costo MSAC: interrompo appena supera quello della migliore ipotesi
+            double cost = 0.0;
+            int inliers = 0;
+
+            for (int k = 0; k < count && cost < bestCost; k++){
+                double error = (scale * predicted[k] + shift - distance[k]) / distance[k];
+                double errorSquare = error * error;
+
+                if(errorSquare < thresholdSquare){
+                    cost += weight[k] * errorSquare;
+                    inliers++;
+                }else{
+                    cost += weight[k] * thresholdSquare;
+                }
+            }
+
+            if(cost < bestCost){
+                bestCost = cost;
+                bestScale = scale;
+                bestShift = shift;
+                bestInliers = inliers;
+
+                iterations = adaptIterations(inliers, count, maxIterations);
+            }
+        }
+
+        if(bestInliers < 2) return false;
+
+        refine(predicted, distance, weight, count, bestScale, bestShift, thresholdSquare);
+
+        return Double.isFinite(scaleFactor) && Double.isFinite(shiftFactor);
+    }
+
+    //Iterazioni necessarie per estrarre almeno un campione di soli inlier con la confidenza richiesta
+    private int adaptIterations(int inliers, int count, int maxIterations){
+        double inlierRatio = (double) inliers / count;
+        double sampleInlierProbability = inlierRatio * inlierRatio;
+
+        if(sampleInlierProbability >= 1.0) return 1;
+        if(sampleInlierProbability <= 0.0) return maxIterations;
+
+        double needed = Math.ceil(Math.log(1.0 - confidence) / Math.log(1.0 - sampleInlierProbability));
+
+        return (int) Math.max(1, Math.min(maxIterations, needed));
+    }
+
+    //Minimi quadrati pesati sugli inlier dell'ipotesi migliore
+    private void refine(float[] predicted, float[] distance, float[] weight, int count,
+                        double scale, double shift, double thresholdSquare){
+        double a00 = 0.0, a01 = 0.0, a11 = 0.0;
+        double b0 = 0.0, b1 = 0.0;
+        int inliers = 0;
+
+        for (int k = 0; k < count; k++){
+            double error = (scale * predicted[k] + shift - distance[k]) / distance[k];
+
+            if(error * error >= thresholdSquare) continue;
+
+            double w = weight[k];
+            double p = predicted[k];
+            double d = distance[k];
+
+            a00 += w * p * p;
+            a01 += w * p;
+            a11 += w;
+            b0 += w * p * d;
+            b1 += w * d;
+            inliers++;
+        }
+
+        double detA = a00 * a11 - a01 * a01;
+
+        numInliers = inliers;
+
+        if(detA > 0.0){
+            double refinedScale = (a11 * b0 - a01 * b1) / detA;
+            double refinedShift = (-a01 * b0 + a00 * b1) / detA;
+
+            if(refinedScale > 0.0 && Double.isFinite(refinedShift)){
+                scaleFactor = refinedScale;
+                shiftFactor = refinedShift;
+                return;
+            }
+        }
+
+        //Inlier degeneri (es. tutti alla stessa distanza predetta): tengo l'ipotesi
+        scaleFactor = scale;
+        shiftFactor = shift;
+    }
+}
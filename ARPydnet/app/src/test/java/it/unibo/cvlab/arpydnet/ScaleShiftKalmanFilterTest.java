@@ -0,0 +1,157 @@
+package it.unibo.cvlab.arpydnet;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ScaleShiftKalmanFilterTest {
+
+    private static final double SCALE = 2.5;
+    private static final double SHIFT = 0.3;
+
+    private static final int NUM_POINTS = 200;
+
+    //Restart dopo MAX_REJECTED scarti consecutivi
+    private static final int MAX_REJECTED = 3;
+
+    private final Random random = new Random(5);
+
+    private final float[] predicted = new float[NUM_POINTS];
+    private final float[] distance = new float[NUM_POINTS];
+    private final float[] weight = new float[NUM_POINTS];
+
+    //Punti sulla retta d = scale * p + shift con errore relativo dell'1%
+    private void generatePoints(double scale, double shift){
+        for (int i = 0; i < NUM_POINTS; i++) {
+            predicted[i] = 0.2f + random.nextFloat() * 4f;
+            distance[i] = (float) ((scale * predicted[i] + shift) * (1.0 + random.nextGaussian() * 0.01));
+            weight[i] = 0.5f + random.nextFloat() * 0.5f;
+        }
+    }
+
+    //Misura del frame: la calibrazione sbaglia di poco rispetto alla retta vera
+    private boolean update(ScaleShiftKalmanFilter filter, double scale, double shift, int count){
+        generatePoints(scale, shift);
+
+        double measuredScale = scale * (1.0 + random.nextGaussian() * 0.002);
+        double measuredShift = shift + random.nextGaussian() * 0.002;
+
+        return filter.update(measuredScale, measuredShift, predicted, distance, weight, count);
+    }
+
+    private ScaleShiftKalmanFilter convergedFilter(){
+        ScaleShiftKalmanFilter filter = new ScaleShiftKalmanFilter();
+
+        for (int i = 0; i < 20; i++) {
+            assertTrue(update(filter, SCALE, SHIFT, NUM_POINTS));
+        }
+
+        assertTrue(filter.isConverged());
+
+        return filter;
+    }
+
+    @Test
+    public void convergesOnSteadyStream(){
+        ScaleShiftKalmanFilter filter = new ScaleShiftKalmanFilter();
+
+        assertFalse(filter.isConverged());
+        assertTrue(Double.isNaN(filter.getScaleFactor()));
+
+        int updates = 0;
+
+        while (!filter.isConverged() && updates < 20){
+            assertTrue(update(filter, SCALE, SHIFT, NUM_POINTS));
+            updates++;
+        }
+
+        assertTrue(filter.isConverged());
+        assertEquals(SCALE, filter.getScaleFactor(), 0.01);
+        assertEquals(SHIFT, filter.getShiftFactor(), 0.01);
+
+        //Senza misure la stima resta la stessa ma perde affidabilità
+        double scale = filter.getScaleFactor();
+
+        for (int i = 0; i < 50; i++) {
+            filter.predict();
+        }
+
+        assertEquals(scale, filter.getScaleFactor(), 0.0);
+        assertFalse(filter.isConverged());
+    }
+
+    @Test
+    public void rejectsSingleOutlier(){
+        ScaleShiftKalmanFilter filter = convergedFilter();
+
+        double scale = filter.getScaleFactor();
+        double shift = filter.getShiftFactor();
+
+        //Misura precisa ma lontana dalla stima: scartata
+        assertFalse(update(filter, SCALE * 1.5, SHIFT + 0.5, NUM_POINTS));
+        assertEquals(scale, filter.getScaleFactor(), 0.0);
+        assertEquals(shift, filter.getShiftFactor(), 0.0);
+
+        //Le misure successive coerenti vengono accettate di nuovo
+        assertTrue(update(filter, SCALE, SHIFT, NUM_POINTS));
+        assertTrue(filter.isConverged());
+        assertEquals(SCALE, filter.getScaleFactor(), 0.01);
+    }
+
+    @Test
+    public void restartsAfterConsecutiveRejections(){
+        ScaleShiftKalmanFilter filter = convergedFilter();
+
+        double newScale = SCALE * 1.5;
+        double newShift = SHIFT + 0.5;
+
+        for (int i = 0; i < MAX_REJECTED; i++) {
+            assertFalse(update(filter, newScale, newShift, NUM_POINTS));
+            assertEquals(SCALE, filter.getScaleFactor(), 0.01);
+        }
+
+        //Cambio di scena: il filtro riparte dalla misura
+        generatePoints(newScale, newShift);
+        assertTrue(filter.update(newScale, newShift, predicted, distance, weight, NUM_POINTS));
+        assertEquals(newScale, filter.getScaleFactor(), 0.0);
+        assertEquals(newShift, filter.getShiftFactor(), 0.0);
+        assertFalse(filter.isConverged());
+
+        while (!filter.isConverged()){
+            assertTrue(update(filter, newScale, newShift, NUM_POINTS));
+        }
+
+        assertEquals(newScale, filter.getScaleFactor(), 0.01);
+    }
+
+    @Test
+    public void fallbackNoiseWithFewPoints(){
+        ScaleShiftKalmanFilter filter = convergedFilter();
+
+        double scale = filter.getScaleFactor();
+
+        //Con due punti il rumore di misura non si può stimare: la misura pesa pochissimo e non viene scartata
+        for (int count = 0; count <= 2; count++) {
+            assertTrue(update(filter, SCALE * 1.5, SHIFT + 0.5, count));
+            assertEquals(scale, filter.getScaleFactor(), 0.02);
+        }
+
+        //Da sola, una misura con pochi punti non basta per la convergenza
+        ScaleShiftKalmanFilter fresh = new ScaleShiftKalmanFilter();
+
+        for (int i = 0; i < 10; i++) {
+            assertTrue(update(fresh, SCALE, SHIFT, 2));
+        }
+
+        assertFalse(fresh.isConverged());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvalidParameters(){
+        new ScaleShiftKalmanFilter(0.0, ScaleShiftKalmanFilter.DEFAULT_MIN_MEASUREMENT_NOISE, ScaleShiftKalmanFilter.DEFAULT_CONVERGED_STD);
+    }
+}
@@ -0,0 +1,25 @@
+#ifdef GL_ES
+precision highp float;
+#endif
+
+//Visualizzazione della stima con la palette plasma, senza sfondo: stesso indice colore
+//della mappatura su CPU, int(stima * plasmaFactor) limitato alla palette.
+
+varying vec2 v_backgroundTextCoord;
+
+uniform sampler2D u_inferenceTexture;
+uniform sampler2D u_plasmaTexture;
+uniform float u_plasmaFactor;
+uniform float u_plasmaSize;
+
+void main() {
+    vec2 textureCoord = vec2(v_backgroundTextCoord.x, 1.0 - v_backgroundTextCoord.y);
+
+    float prediction = texture2D(u_inferenceTexture, textureCoord).r;
+    float colorIndex = clamp(floor(prediction * u_plasmaFactor), 0.0, u_plasmaSize - 1.0);
+
+    //Centro del texel: la palette non viene interpolata
+    vec3 plasmaColor = texture2D(u_plasmaTexture, vec2((colorIndex + 0.5) / u_plasmaSize, 0.5)).rgb;
+
+    gl_FragColor = vec4(plasmaColor, 1.0);
+}
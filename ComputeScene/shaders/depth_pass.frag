@@ -0,0 +1,23 @@
+#ifdef GL_ES
+precision highp float;
+#endif
+
+//Pass di profondità: depth metrica scalata nella prima uscita, maschera di occlusione azzerata nella seconda.
+//La maschera viene poi scritta da object.frag (u_maskOutput): 1.0 oggetto visibile, 0.5 oggetto occluso.
+
+varying vec2 v_backgroundTextCoord;
+
+uniform sampler2D u_inferenceTexture;
+uniform float u_scaleFactor;
+uniform float u_shiftFactor;
+uniform float u_maxDepth;
+
+void main() {
+    vec2 textureCoord = vec2(v_backgroundTextCoord.x, 1.0 - v_backgroundTextCoord.y);
+
+    float predictedDistance = texture2D(u_inferenceTexture, textureCoord).r * u_scaleFactor + u_shiftFactor;
+    predictedDistance = clamp(predictedDistance, 0.0, u_maxDepth);
+
+    gl_FragData[0] = vec4(predictedDistance, 0.0, 0.0, 1.0);
+    gl_FragData[1] = vec4(0.0, 0.0, 0.0, 1.0);
+}
@@ -21,6 +21,8 @@ uniform sampler2D u_texture;
 uniform sampler2D u_inferenceTexture;
 
 uniform float u_maskEnabled;
+//Pass della maschera di occlusione: i frammenti occlusi non vengono scartati ma marcati
+uniform float u_maskOutput;
 
 uniform float u_lowerDelta;
 
@@ -40,6 +42,8 @@ uniform float u_plasmaEnabled;
 uniform sampler2D u_plasmaTexture;
 
 void main() {
+    float occluded = 0.0;
+
     if(u_maskEnabled > 0.5){
         //https://community.khronos.org/t/confused-about-gl-fragcoord-use-with-textures/67832/3
         //https://community.khronos.org/t/gl-fragcoord-z-gl-fragcoord-w-for-quick-depth-calculation-camera-to-fragment/68919/2
@@ -70,7 +74,8 @@ void main() {
         float distance = sqrt(dx*dx+dy*dy+dz*dz);
 
         if(distance > predictedDistance + u_lowerDelta){
-            discard;
+            if(u_maskOutput < 0.5) discard;
+            occluded = 1.0;
         }
     }
 
@@ -114,5 +119,7 @@ void main() {
         objectColor.rgb = objectColor.rgb * 0.3 + plasmaVector.rgb * 0.7;
     }
 
-    gl_FragColor = objectColor;
+    gl_FragData[0] = objectColor;
+    //Maschera: 1.0 visibile, 0.5 occluso. Ignorata se il framebuffer ha una sola uscita
+    gl_FragData[1] = vec4(1.0 - 0.5 * occluded, 0.0, 0.0, 1.0);
 }
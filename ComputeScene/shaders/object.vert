@@ -13,11 +13,12 @@
  * limitations under the License.
  */
 
-uniform mat4 u_model;
-uniform mat4 u_modelViewProjection;
+uniform mat4 u_viewProjection;
 
 attribute vec4 a_position;
 attribute vec2 a_texCoord;
+//Matrice model dell'istanza (ancora), già scalata
+attribute mat4 a_model;
 
 varying vec2 v_texCoord;
 varying vec3 v_worldPos;
@@ -25,7 +26,8 @@ varying vec3 v_worldPos;
 void main() {
     //Ricavo le coordinate spaziali.
     //La matrice del model viene ricavata dall'ancora. Quindi teoricamente dovrebbe essere in scala con il resto delle distanze.
-    v_worldPos = (u_model * a_position).xyz;
+    vec4 worldPos = a_model * a_position;
+    v_worldPos = worldPos.xyz;
     v_texCoord = a_texCoord;
-    gl_Position = u_modelViewProjection * a_position;
+    gl_Position = u_viewProjection * worldPos;
 }
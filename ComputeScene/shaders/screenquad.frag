@@ -26,8 +26,7 @@ uniform float u_maxDepth;
 
 void main() {
     vec2 textureCoord = vec2(v_backgroundTextCoord.x, 1.0 - v_backgroundTextCoord.y);
-    vec4 tmp = texture2D(u_backgroundTexture, textureCoord);
-    vec4 backgroundColor = vec4(tmp.b, tmp.g, tmp.r, 1.0);
+    vec4 backgroundColor = vec4(texture2D(u_backgroundTexture, textureCoord).rgb, 1.0);
 
     //Modalità visione depth: plasma color.
     if(u_plasmaEnabled > 0.5){
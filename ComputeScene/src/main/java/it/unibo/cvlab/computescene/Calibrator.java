@@ -8,7 +8,7 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import it.unibo.cvlab.computescene.dataset.ITraslation;
-import it.unibo.cvlab.computescene.dataset.Point;
+import it.unibo.cvlab.computescene.dataset.PointCloudBuffer;
 import it.unibo.cvlab.computescene.dataset.Pose;
 
 public class Calibrator {
@@ -20,6 +20,9 @@ public class Calibrator {
 
     Random rnd = new Random();
 
+    //Stima RANSAC di scale e shift, con i buffer riutilizzati tra i frame
+    private final ScaleShiftRansac ransac = new ScaleShiftRansac(rnd);
+
     private int width, height;
     private Pose cameraPose;
     private float[] cameraView;
@@ -28,10 +31,12 @@ public class Calibrator {
 
     public void setWidth(int width) {
         this.width = width;
+        pixelMatrixValid = false;
     }
 
     public void setHeight(int height) {
         this.height = height;
+        pixelMatrixValid = false;
     }
 
     public void setCameraPose(Pose cameraPose) {
@@ -40,18 +45,46 @@ public class Calibrator {
 
     public void setCameraView(float[] cameraView) {
         this.cameraView = cameraView;
+        pixelMatrixValid = false;
     }
 
     public void setCameraPerspective(float[] cameraPerspective) {
         this.cameraPerspective = cameraPerspective;
+        pixelMatrixValid = false;
     }
 
     public void setDisplayRotation(int displayRotation) {
         this.displayRotation = displayRotation;
+        pixelMatrixValid = false;
     }
 
+    //Matrice view-projection seguita da viewport e rotazione dello schermo.
+    //Righe (column-major, 3 per colonna): x in pixel, y in pixel, w
+    private final float[] viewProjectionMatrix = new float[16];
+    private final float[] pixelMatrix = new float[12];
+    private boolean pixelMatrixValid;
+
+    //Proiezione sub-pixel della point cloud del frame corrente, riutilizzata tra i frame
+    private float[] pointX = new float[0];
+    private float[] pointY = new float[0];
+
+    //Campionamento della stima di profondità nei punti proiettati
+    public static final DepthSampler.Mode DEFAULT_SAMPLING_MODE = DepthSampler.Mode.MEDIAN;
+    public static final int DEFAULT_SAMPLING_KERNEL = 3;
+
+    private DepthSampler.Mode samplingMode = DEFAULT_SAMPLING_MODE;
+    private int samplingKernel = DEFAULT_SAMPLING_KERNEL;
+
+    //Punti visibili: distanza ARCore, distanza predetta e confidenza
+    private float[] visibleDistance = new float[0];
+    private float[] visiblePredicted = new float[0];
+    private float[] visibleConfidence = new float[0];
+
     private int numVisiblePoints;
 
+    //Campionatore della stima preparata con prepare
+    private DepthSampler sampler;
+
     public int getNumVisiblePoints() {
         return numVisiblePoints;
     }
@@ -82,6 +115,19 @@ public class Calibrator {
         this.shiftFactor = shiftFactor;
     }
 
+    /**
+     * Modalità di campionamento della stima di profondità nei punti della point cloud.
+     *
+     * @param kernel lato della finestra per MEDIAN e MIN (dispari)
+     */
+    public void setSampling(DepthSampler.Mode samplingMode, int kernel) {
+        if(samplingMode == null || kernel < 1 || kernel > DepthSampler.MAX_KERNEL || kernel % 2 == 0)
+            throw new IllegalArgumentException("Campionamento non valido: "+samplingMode+", finestra "+kernel);
+
+        this.samplingMode = samplingMode;
+        this.samplingKernel = kernel;
+    }
+
     private float maxDepth = 10.0f;
 
     public void setMaxDepth(float maxDepth) {
@@ -97,70 +143,175 @@ public class Calibrator {
         this.scaleFactor = defaultScaleFactor;
     }
 
-    private float[] transformCoordBottomLeft(float xFloat, float yFloat){
-        float tmp;
-        switch (displayRotation){
-            case 0:
-                //Dritto: origine top-right: inverto xy e scambio
-                xFloat = 1.0f - xFloat;
-                yFloat = 1.0f - yFloat;
+    /**
+     * Reimposta il generatore di RANSAC: con lo stesso seed la calibrazione di un frame è riproducibile.
+     */
+    public void setRandomSeed(long seed){
+        ransac.setSeed(seed);
+    }
 
-                //Scambio
-                tmp = yFloat; yFloat = xFloat; xFloat = tmp;
-                break;
-            case 90:
-                //Landscape con parte a destra sopra: origine top-left:  inverto y
-                yFloat = 1.0f - yFloat;
-                break;
-            case 180:
-                //Sottosopra: origine botton-left: scambio
-                //Scambio....
-                tmp = yFloat; yFloat = xFloat; xFloat = tmp;
-                break;
-            case 270:
-                //Landscape con parte a sinistra sopra: origine bottom-right: inverto x
-                xFloat = 1.0f - xFloat;
-                break;
+    /**
+     * Riporta scale e shift ai valori iniziali, da usare quando si passa ad un nuovo dataset.
+     */
+    public void reset(){
+        this.scaleFactor = defaultScaleFactor;
+        this.shiftFactor = 0.0;
+    }
+
+    /**
+     * Passa l'ultima calibrazione alla stima temporale e ne adotta il risultato.
+     * Il rumore della misura è ricavato dai punti visibili usati per la calibrazione.
+     *
+     * @return falso se la stima ha scartato la misura
+     */
+    public boolean filterScaleFactor(TemporalEstimator estimator){
+        boolean accepted = estimator.update(scaleFactor, shiftFactor, visiblePredicted, visibleDistance, visibleConfidence, numVisiblePoints);
+
+        if(Double.isFinite(estimator.getScaleFactor()) && Double.isFinite(estimator.getShiftFactor())){
+            this.scaleFactor = estimator.getScaleFactor();
+            this.shiftFactor = estimator.getShiftFactor();
         }
 
-        return new float[]{xFloat, yFloat};
+        return accepted;
+    }
+
+    /**
+     * Verifica scale e shift sui punti preparati con prepare, senza ricalibrare.
+     *
+     * @param threshold soglia sull'errore relativo per considerare un punto inlier
+     * @return frazione dei punti visibili entro la soglia, 0 se non ci sono punti visibili
+     */
+    public float validateScaleFactor(double scale, double shift, float threshold){
+        int count = numVisiblePoints;
+        int inliers = 0;
+
+        for (int i = 0; i < count; i++) {
+            double error = (scale * visiblePredicted[i] + shift - visibleDistance[i]) / visibleDistance[i];
+
+            if(Math.abs(error) <= threshold) inliers++;
+        }
+
+        numUsedPoints = inliers;
+
+        return count > 0 ? (float) inliers / count : 0.0f;
     }
 
-    private float[] transformCoordTopLeft(float xFloat, float yFloat){
-        float tmp;
+    public float getDistance(ITraslation point){
+        float dx = cameraPose.getTx() - point.getTx();
+        float dy = cameraPose.getTy() - point.getTy();
+        float dz = cameraPose.getTz() - point.getTz();
+
+        return (float) Math.sqrt(dx*dx + dy*dy + dz*dz);
+    }
+
+    /**
+     * Calcola la matrice che porta un punto world-space direttamente in pixel:
+     * view-projection, viewport transform e rotazione dello schermo
+     * sono tutte lineari in coordinate omogenee, quindi si possono comporre una volta per frame.
+     */
+    private void updatePixelMatrix(){
+        if(pixelMatrixValid) return;
+
+        //Matrice usata per la trasformazione delle coordinate: world->clip
+        Matrix.multiplyMM(viewProjectionMatrix, 0, cameraPerspective, 0, cameraView, 0);
+
+        //Per ogni asse dello schermo: riga della matrice da cui proviene e verso
+        int xRow = 0, yRow = 1;
+        float xSign = 1.0f, ySign = 1.0f;
 
         switch (displayRotation){
             case 0:
-                //Dritto: origine top-right: inverto x
-                xFloat = 1.0f - xFloat;
-                //Ho bisogno anche di uno scambio xy
-                tmp = xFloat; xFloat = yFloat; yFloat = tmp;
+                //Inverto xy e scambio
+                xRow = 1; xSign = -1.0f;
+                yRow = 0; ySign = -1.0f;
                 break;
             case 90:
-                //Landscape con parte a destra sopra: origine top-left:  nulla
+                //Inverto y
+                ySign = -1.0f;
                 break;
             case 180:
-                //Sottosopra: origine botton-left: inverto y
-                yFloat = 1.0f - yFloat;
-                //Ho bisogno anche di uno scambio xy
-                tmp = xFloat; xFloat = yFloat; yFloat = tmp;
+                //Scambio
+                xRow = 1;
+                yRow = 0;
                 break;
             case 270:
-                //Landscape con parte a sinistra sopra: origine bottom-right: inverto xy
-                xFloat = 1.0f - xFloat;
-                yFloat = 1.0f - yFloat;
+                //Inverto x
+                xSign = -1.0f;
                 break;
         }
 
-        return new float[]{xFloat, yFloat};
+        //Da [-1.0,1.0] a [0,width-1] e [0,height-1]: p = n * s * (size-1)/2 + (size-1)/2
+        float halfWidth = (width - 1) * 0.5f;
+        float halfHeight = (height - 1) * 0.5f;
+
+        for (int column = 0; column < 4; column++) {
+            float w = viewProjectionMatrix[column * 4 + 3];
+
+            pixelMatrix[column * 3] = xSign * halfWidth * viewProjectionMatrix[column * 4 + xRow] + halfWidth * w;
+            pixelMatrix[column * 3 + 1] = ySign * halfHeight * viewProjectionMatrix[column * 4 + yRow] + halfHeight * w;
+            pixelMatrix[column * 3 + 2] = w;
+        }
+
+        pixelMatrixValid = true;
     }
 
-    public float getDistance(ITraslation point){
-        float dx = cameraPose.getTx() - point.getTx();
-        float dy = cameraPose.getTy() - point.getTy();
-        float dz = cameraPose.getTz() - point.getTz();
+    /**
+     * Proietta un punto world-space sullo schermo.
+     * @return indice del pixel (width * y + x), -1 nel caso di punto fuori schermo
+     */
+    public int projectPoint(float tx, float ty, float tz){
+        updatePixelMatrix();
 
-        return (float) Math.sqrt(dx*dx + dy*dy + dz*dz);
+        float[] m = pixelMatrix;
+
+        float w = m[2] * tx + m[5] * ty + m[8] * tz + m[11];
+        float xFloat = (m[0] * tx + m[3] * ty + m[6] * tz + m[9]) / w;
+        float yFloat = (m[1] * tx + m[4] * ty + m[7] * tz + m[10]) / w;
+
+        //Clipping: se il punto è fuori dallo schermo non lo considero (anche NaN).
+        if(!(xFloat >= 0.0f && xFloat <= width - 1) || !(yFloat >= 0.0f && yFloat <= height - 1))
+            return -1;
+
+        return width * Math.round(yFloat) + Math.round(xFloat);
+    }
+
+    /**
+     * Proietta un'intera point cloud con una sola matrice per frame, senza arrotondare le coordinate.
+     *
+     * @param tx coordinate x world-space
+     * @param ty coordinate y world-space
+     * @param tz coordinate z world-space
+     * @param count numero di punti
+     * @param pixelX coordinata x di ogni punto, NaN se fuori schermo
+     * @param pixelY coordinata y di ogni punto, NaN se fuori schermo
+     * @return numero di punti sullo schermo
+     */
+    public int projectPoints(float[] tx, float[] ty, float[] tz, int count, float[] pixelX, float[] pixelY){
+        updatePixelMatrix();
+
+        float[] m = pixelMatrix;
+        int maxX = width - 1;
+        int maxY = height - 1;
+        int visible = 0;
+
+        for (int i = 0; i < count; i++) {
+            float x = tx[i], y = ty[i], z = tz[i];
+
+            float w = m[2] * x + m[5] * y + m[8] * z + m[11];
+            float xFloat = (m[0] * x + m[3] * y + m[6] * z + m[9]) / w;
+            float yFloat = (m[1] * x + m[4] * y + m[7] * z + m[10]) / w;
+
+            if(!(xFloat >= 0.0f && xFloat <= maxX) || !(yFloat >= 0.0f && yFloat <= maxY)){
+                pixelX[i] = Float.NaN;
+                pixelY[i] = Float.NaN;
+            }else{
+                pixelX[i] = xFloat;
+                pixelY[i] = yFloat;
+                visible++;
+            }
+        }
+
+        return visible;
     }
 
     /**
@@ -169,102 +320,113 @@ public class Calibrator {
      * @return int[] array con le coordinate XY (X:0, Y:1), NULL nel caso di punto fuori schermo
      */
     public int[] getXYFromPoint(ITraslation point){
-        //Matrice usata per la trasformazione delle coordinate: world->view
-        float[] viewProjectionMatrix = new float[16];
-        Matrix.multiplyMM(viewProjectionMatrix, 0, cameraPerspective, 0, cameraView, 0);
+        int pixel = projectPoint(point.getTx(), point.getTy(), point.getTz());
 
-        float[] coords = new float[4];
-        float[] projCoords = new float[4];
+        if(pixel < 0) return null;
 
-        //Estrazione coordinate dal punto
-        coords[0] = point.getTx();
-        coords[1] = point.getTy();
-        coords[2] = point.getTz();
-        coords[3] = 1.0f;
+        return new int[]{pixel % width, pixel / width};
+    }
 
-        //Passaggio fondamentale: trasformazione delle coordinate.
-        Matrix.multiplyMV(projCoords, 0, viewProjectionMatrix,0, coords,0);
+    /**
+     * Campiona la stima di profondità nella proiezione sub-pixel del punto,
+     * con la stessa modalità usata per la calibrazione.
+     * @return distanza predetta, NaN nel caso di punto fuori schermo
+     */
+    public float getPredictedDistanceFromPoint(DepthSampler sampler, ITraslation point){
+        updatePixelMatrix();
 
-        //Passaggio alle cordinate normali
-        projCoords[0] /= projCoords[3];
-        projCoords[1] /= projCoords[3];
+        float[] m = pixelMatrix;
+        float tx = point.getTx(), ty = point.getTy(), tz = point.getTz();
 
-        //Clipping: se il punto è fuori dallo schermo non lo considero.
-        if(projCoords[0] > 1.0f || projCoords[0] < -1.0f){
-            //Log.log(Level.WARNING, "Il punto di calibrazione è fuori schermo: "+projCoords[0]);
-            return null;
-        }
+        float w = m[2] * tx + m[5] * ty + m[8] * tz + m[11];
+        float xFloat = (m[0] * tx + m[3] * ty + m[6] * tz + m[9]) / w;
+        float yFloat = (m[1] * tx + m[4] * ty + m[7] * tz + m[10]) / w;
 
-        if(projCoords[1] > 1.0f || projCoords[1] < -1.0f){
-            //Log.log(Level.WARNING, "Il punto di calibrazione è fuori schermo: "+projCoords[1]);
-            return null;
-        }
+        return sampler.sample(xFloat, yFloat, samplingMode, samplingKernel);
+    }
 
-        //Viewport Transform
-        //Coordinate iniziali: [-1.0,1.0], [-1.0,1.0]
-        //Coordinate normalizzate(uv): [0.0,1.0]
-        //Origine in bottom-left.
-        //Seguo i fragment per la conversione.
-        float xFloat = (projCoords[0] * 0.5f) + 0.5f;
-        float yFloat = (projCoords[1] * 0.5f) + 0.5f;
+    /**
+     * @return campionatore della stima dell'ultimo prepare, null se non è stato preparato nessun frame
+     */
+    public DepthSampler getSampler() {
+        return sampler;
+    }
 
-        //Trasformo le coordinate da origine bottom-left, in modo che seguano la rotazione dello schermo
-        float[] finalCoords = transformCoordBottomLeft(xFloat, yFloat);
+    /**
+     * Prepara i punti del frame: proietta la point cloud e campiona la stima una volta sola,
+     * raccogliendo i punti visibili entro maxDepth in visibleDistance, visiblePredicted e visibleConfidence.
+     * Validazione e calibrazioni successive lavorano su questi punti finché non si prepara un altro frame.
+     * Va chiamato dopo aver impostato camera, dimensioni e maxDepth.
+     *
+     * @param inference stima di profondità
+     * @param points punti point cloud da usare come ground-truth
+     * @return numero di punti visibili
+     */
+    public int prepare(FloatBuffer inference, PointCloudBuffer points){
+        int count = points.size();
 
-        //Trasformo le coordinate normalizate in [0,width[, [0.height[
-        int x = Math.round(finalCoords[0] * (width-1));
-        int y = Math.round(finalCoords[1] * (height-1));
+        ensurePointCapacity(count);
 
-        return new int[]{x,y};
-    }
+        float[] pointTx = points.getTx();
+        float[] pointTy = points.getTy();
+        float[] pointTz = points.getTz();
+        float[] pointConfidence = points.getConfidence();
 
-    public Float getPredictedDistanceFromPoint(FloatBuffer inference, ITraslation point){
-        int[] coords = getXYFromPoint(point);
+        projectPoints(pointTx, pointTy, pointTz, count, pointX, pointY);
 
-        if(coords != null){
-            int position = (width * coords[1]) + coords[0];
+        sampler = new DepthSampler(inference, width, height);
 
-            inference.rewind();
+        float cameraX = cameraPose.getTx();
+        float cameraY = cameraPose.getTy();
+        float cameraZ = cameraPose.getTz();
 
-            if(inference.remaining() >= position) {
-                return inference.get(position);
-            }
+        numVisiblePoints = 0;
+
+        for (int i = 0; i < count; i++) {
+            if(Float.isNaN(pointX[i])) continue;
+
+            float dx = cameraX - pointTx[i];
+            float dy = cameraY - pointTy[i];
+            float dz = cameraZ - pointTz[i];
+            float distance = (float) Math.sqrt(dx*dx + dy*dy + dz*dz);
+
+            if(distance > maxDepth) continue;
+
+            visibleDistance[numVisiblePoints] = distance;
+            visiblePredicted[numVisiblePoints] = sampler.sample(pointX[i], pointY[i], samplingMode, samplingKernel);
+            visibleConfidence[numVisiblePoints] = pointConfidence[i];
+            numVisiblePoints++;
+        }
+
+        return numVisiblePoints;
+    }
+
+    private void ensurePointCapacity(int capacity){
+        if(pointX.length < capacity){
+            pointX = new float[capacity];
+            pointY = new float[capacity];
+
+            visibleDistance = new float[capacity];
+            visiblePredicted = new float[capacity];
+            visibleConfidence = new float[capacity];
         }
-        return null;
     }
 
     //https://learnopengl.com/Getting-started/Coordinate-Systems
 
     /**
-     * Calibra lo scale factor da un solo punto di osservazione.
-     * @param inference risultato della pydnet
-     * @param points lista dei punti dell'oggetto
+     * Calibra lo scale factor con la media dei rapporti pesata con la confidenza, sui punti preparati con prepare.
      */
-    public boolean calibrateScaleFactor(FloatBuffer inference, Point[] points){
+    public boolean calibrateScaleFactor(){
         double sumScaleFactor = 0.0;
         double sumWeight = 0.0;
 
-        numVisiblePoints = 0;
-
-        for(Point point : points){
-            if(point == null) continue;
-
-            double distance = getDistance(point);
-
-            if(distance > maxDepth)
-                continue;
+        int count = numVisiblePoints;
 
-            Float predictedDistance = getPredictedDistanceFromPoint(inference, point);
-
-            if(predictedDistance != null){
-                sumScaleFactor += (distance / predictedDistance) * point.getConfidence();
-                sumWeight += point.getConfidence();
-
-                numVisiblePoints++;
-            }else{
-                //Stranamente non riesco a trovare la predizione.
-                Log.log(Level.INFO, "Impossibile trovare corrispondeza punto-depth");
-            }
+        for (int i = 0; i < count; i++) {
+            double distance = visibleDistance[i];
+            sumScaleFactor += (distance / visiblePredicted[i]) * visibleConfidence[i];
+            sumWeight += visibleConfidence[i];
         }
 
         double tmpScaleFactor = sumScaleFactor / sumWeight;
@@ -316,192 +478,65 @@ public class Calibrator {
         }
     }
 
-    public boolean calibrateScaleFactorRANSAC(RansacObject[] ransacObjects, int numberOfIterations, float normalizedThreshold){
-        if(ransacObjects.length < 1) return false;
-
-        //Algoritmo RANSAC
-        //Basato sullo pseudo-codice di https://it.wikipedia.org/wiki/RANSAC
-        double migliorScaleFactor = Double.NaN;         //ScaleFactor stimato da punto iniziale
-        double migliorScaleFactorAverage = Double.NaN;  //ScaleFactor stimato da migliorConsensusSet
-        Integer[] migliorConsensusSet = new Integer[0]; //Dati che rappresentano i migliori punti
-
-        //Inizializzazione
-
-        //Punti contenuti in possibiliInlier
-        int puntiPerPossibiliInlier = 1;
-
-        //Punti per consensusSet: range [puntiPerPossibiliInlier, numVisiblePoints]
-        int puntiConensusSet;
-
-        for (int i = 0; i < numberOfIterations; i++){
-            //possibiliInlier: Punti scelti a caso dal dataset
-            Integer[] possibiliInlier = new Integer[puntiPerPossibiliInlier];
-            //Ordino possibiliInlier: mi servirà dopo per scorrere i punti non presenti più velocemente
-            //Uso un set perché il rnd potrebbe darmi indici uguali
-            SortedSet<Integer> possibiliInlierSet = new TreeSet<>();
-            while(possibiliInlierSet.size() < puntiPerPossibiliInlier){
-                possibiliInlierSet.add(rnd.nextInt(ransacObjects.length));
-            }
-            possibiliInlier = possibiliInlierSet.toArray(possibiliInlier);
-
-            //Possibile scale factor stimato da possibiliInlier
-            double possibileScaleFactor;    //Candidato a diventare migliorScaleFactor
-            double sumScaleFactors = 0.0;   //Somma degli scale factor già pesati
-            double sumConfidence = 0.0;     //Somma dei pesi
-            for (int k = 0; k < puntiPerPossibiliInlier; k++){
-                RansacObject nextObj = ransacObjects[possibiliInlier[k]];
-                sumScaleFactors += nextObj.scaleFactor * nextObj.arConfidence;
-                sumConfidence += nextObj.arConfidence;
-            }
-            possibileScaleFactor = sumScaleFactors / sumConfidence;
-
-            //Calcolo minimo e massimo per normalizzare
-
-            double minError = Double.MAX_VALUE;
-            double maxError = Double.MIN_VALUE;
-
-            for (int k = 0, j=0; k < ransacObjects.length; k++){
-                //Qui serve il sorting di possibiliInlier
-                if(j < puntiPerPossibiliInlier && k == possibiliInlier[j]){
-                    //Punto presente in possibiliInlier: skip
-                    j++;
-                    continue;
-                }
-
-                //Punto non presente: calcolo l'errore quadratico minimo
-                RansacObject foreignObj = ransacObjects[k];
-
-                double thisError = Math.pow(foreignObj.predictedDistance * possibileScaleFactor - foreignObj.distance, 2);
-
-                if(thisError > maxError) maxError = thisError;
-                if(thisError < minError) minError = thisError;
-            }
-
-            //consensusSet: Candidato a diventare migliorConsensusSet
-            //ConsensusSet inizializzato a possibiliInlier
-            Integer[] consensusSet = Arrays.copyOf(possibiliInlier, ransacObjects.length);
-            puntiConensusSet = puntiPerPossibiliInlier;
-
-            //Ricerca dei punti non assegnati ai possibili inlier che posso aggiungere al consensusSet
-            for (int k = 0, j = 0; k < ransacObjects.length; k++){
-                //Qui serve il sorting di possibiliInlier
-                if(j < puntiPerPossibiliInlier && k == possibiliInlier[j]){
-                    //Punto presente in possibiliInlier: skip
-                    j++;
-                    continue;
-                }
-
-                //Punto non presente: calcolo l'errore quadratico
-                RansacObject foreignObj = ransacObjects[k];
-
-                //Differenze tra scale factor
-                //double squareError = Math.pow(possibileScaleFactor - foreignObj.scaleFactor, 2);
-                //Differenze tra distanza predetta scalata e distanza arcore
-                double thisError = Math.pow(foreignObj.predictedDistance * possibileScaleFactor - foreignObj.distance, 2);
+    /**
+     * Calcola scale e shift tramite RANSAC/MSAC (vedi ScaleShiftRansac).
+     *
+     * @param ransacObjects coppie distanza, distanza predetta e confidenza
+     * @param numberOfIterations numero massimo di iterazioni, ridotto in base agli inlier trovati
+     * @param threshold soglia sull'errore relativo per considerare un punto inlier (es. 0.1 = 10%)
+     */
+    public boolean calibrateScaleFactorRANSAC(RansacObject[] ransacObjects, int numberOfIterations, float threshold){
+        return calibrateScaleFactorRANSAC(prepare(ransacObjects), numberOfIterations, threshold);
+    }
 
-                double normalizedError = (thisError - minError) / (maxError-minError);
+    /**
+     * Prepara come punti visibili coppie già calcolate, senza proiettare una point cloud.
+     *
+     * @param ransacObjects coppie distanza, distanza predetta e confidenza; gli elementi null vengono saltati
+     * @return numero di punti visibili
+     */
+    public int prepare(RansacObject[] ransacObjects){
+        ensurePointCapacity(ransacObjects.length);
 
-                //Se l'errore è minore del threshold aggiungo il punto
-                if(normalizedError < normalizedThreshold){
-                    consensusSet[puntiConensusSet++] = k;
+        numVisiblePoints = 0;
 
-                    //Aggiorno le somme, MA NON maxSquareError:
-                    sumScaleFactors += foreignObj.scaleFactor * foreignObj.arConfidence;
-                    sumConfidence += foreignObj.arConfidence;
-                }
-            }
+        for (RansacObject ransacObject : ransacObjects){
+            if(ransacObject == null) continue;
 
-            //Se ho un numero sufficiente di punti allora il modello è buono
-            if(puntiConensusSet >= migliorConsensusSet.length){
-                //Ricalcolo possibleScaleFactor
-                migliorScaleFactorAverage = sumScaleFactors / sumConfidence;
-                migliorScaleFactor = possibileScaleFactor;
-                migliorConsensusSet = Arrays.copyOfRange(consensusSet, 0, puntiConensusSet);
-            }
+            visibleDistance[numVisiblePoints] = (float) ransacObject.distance;
+            visiblePredicted[numVisiblePoints] = (float) ransacObject.predictedDistance;
+            visibleConfidence[numVisiblePoints] = (float) ransacObject.arConfidence;
+            numVisiblePoints++;
         }
 
-        //Salvo il nuovo valore.
-        if(!Double.isFinite(migliorScaleFactorAverage)){
-            Log.log(Level.INFO, "RANSAC calibrator failed");
-            return false;
-        }else{
-            scaleFactor = migliorScaleFactorAverage;
-            shiftFactor = 0.0;
-            numUsedPoints = migliorConsensusSet.length;
-            return true;
-        }
+        return numVisiblePoints;
     }
 
     /**
-     * Calcola il fattore di scala tramite algoritmo RANSAC.
+     * Calcola scale e shift tramite RANSAC/MSAC sui punti preparati con prepare: ogni ipotesi
+     * viene stimata da 2 punti, il numero di iterazioni si adatta alla percentuale di inlier.
      * Dovrebbe essere più robusto rispetto al calcolo tramite media
      *
-     * @param inference stima di profondità
-     * @param points punti point cloud da usare come ground-truth
-     * @param numberOfIterations numero di iterazioni dell'algoritmo RANSAC
-     * @param normalizedThreshold valore di soglia tra 0.0 e 1.0
-     * @return fattore di scala trovato tramite RANSAC
+     * @param numberOfIterations numero massimo di iterazioni dell'algoritmo RANSAC
+     * @param threshold soglia sull'errore relativo per considerare un punto inlier (es. 0.1 = 10%)
+     * @return vero se la calibrazione è riuscita
      */
-    public boolean calibrateScaleFactorRANSAC(FloatBuffer inference, Point[] points, int numberOfIterations, float normalizedThreshold){
-        numVisiblePoints = 0;
-
-        int numPoints = points.length;
-
-        //Check sul numero minimo di punti
-        if(numPoints < 1) return false;
-
-        float arConfidenceAverage = 0.0f;
-
-        RansacObject[] ransacObjects = new RansacObject[numPoints];
-
-        //Calcolo di ogni singolo scaleFactor O(N)
-        for (Point point : points){
-            if(point == null) continue;
-
-            //Ricavo la distanza.
-            double distance = getDistance(point);
-
-            if(distance > maxDepth) continue;
-
-            Float predictedDistance = getPredictedDistanceFromPoint(inference, point);
-
-            if(predictedDistance != null){
-                ransacObjects[numVisiblePoints] = new RansacObject();
-                ransacObjects[numVisiblePoints].distance = distance;
-                ransacObjects[numVisiblePoints].predictedDistance = predictedDistance;
-                ransacObjects[numVisiblePoints].arConfidence = point.getConfidence();
-                ransacObjects[numVisiblePoints].calculate();
-
-                arConfidenceAverage += point.getConfidence();
-                numVisiblePoints++;
-            }else{
-                //Stranamente non riesco a trovare la predizione.
-                Log.log(Level.INFO, "Impossibile trovare corrispondeza punto-depth");
-            }
-        }
-
-        //Sorting per confidenza, decrescente: O(N*log2(N))
-        //Non ho scelto parallel perché la lista degli elementi è limitata
-        Arrays.sort(ransacObjects, RansacObject.getComparatorByConfidenceInverse());
-
-        arConfidenceAverage /= numVisiblePoints;
-
-        int finalNumPoints = 0;
+    public boolean calibrateScaleFactorRANSAC(int numberOfIterations, float threshold){
+        return calibrateScaleFactorRANSAC(numVisiblePoints, numberOfIterations, threshold);
+    }
 
-        for (int i = 0; i < numVisiblePoints; i++) {
-            if(ransacObjects[i].arConfidence < arConfidenceAverage){
-                finalNumPoints = i+1;
-                break;
-            }
+    //RANSAC sui primi count punti visibili
+    private boolean calibrateScaleFactorRANSAC(int count, int numberOfIterations, float threshold){
+        if(!ransac.estimate(visiblePredicted, visibleDistance, visibleConfidence, count, numberOfIterations, threshold)){
+            Log.log(Level.INFO, "RANSAC calibrator failed");
+            return false;
         }
 
-        //Sorting usato solo per applicare lo sbarramento
-        //Applico sbarramento numero passimo punti
-        //if(numVisiblePoints > MAX_POINTS) numVisiblePoints = MAX_POINTS;
-
-        ransacObjects = Arrays.copyOf(ransacObjects, finalNumPoints);
+        scaleFactor = ransac.getScaleFactor();
+        shiftFactor = ransac.getShiftFactor();
+        numUsedPoints = ransac.getNumInliers();
 
-        return calibrateScaleFactorRANSAC(ransacObjects, numberOfIterations, normalizedThreshold);
+        return true;
     }
 
     public static class MinimumSquareObject {
@@ -560,6 +595,11 @@ public class Calibrator {
             b1 += objects[i].distance;
         }
 
+        return solveQuadratiMinimi(a00, a01, a11, b0, b1, objects.length);
+    }
+
+    //Risolve il sistema 2x2 delle equazioni normali per scale e shift
+    private boolean solveQuadratiMinimi(double a00, double a01, double a11, double b0, double b1, int usedPoints){
         //Calcolo il determinante di A
         double detA = a00 * a11 - a01 * a01;
 
@@ -576,7 +616,7 @@ public class Calibrator {
             }else{
                 this.scaleFactor = scaleFactor;
                 this.shiftFactor = shift;
-                this.numUsedPoints = objects.length;
+                this.numUsedPoints = usedPoints;
                 return true;
             }
         }
@@ -588,56 +628,174 @@ public class Calibrator {
     }
 
     /**
-     * Calcola il fattore di scala tramite algoritmo quadrati minimi.
-     *
-     * @param inference stima di profondità
-     * @param points punti point cloud da usare come ground-truth
+     * Calcola il fattore di scala tramite algoritmo quadrati minimi, sui punti preparati con prepare.
      *
      * @return fattore di scala trovato tramite quadrati minimi
      */
-    public boolean calibrateScaleFactorQuadratiMinimi(FloatBuffer inference, Point[] points){
-        numVisiblePoints = 0;
+    public boolean calibrateScaleFactorQuadratiMinimi(){
+        int count = numVisiblePoints;
+
+        //Numero di punti non sufficiente
+        if(count < 1)
+            return false;
 
-        int numPoints = points.length;
+        double a00 = 0.0;
+        double a01 = 0.0;
+        double b0 = 0.0;
+        double b1 = 0.0;
 
-        //Check sul numero minimo di punti
-        if(numPoints < 1) return false;
+        for (int i = 0; i < count; i++) {
+            double predictedDistance = visiblePredicted[i];
+            double distance = visibleDistance[i];
 
-        MinimumSquareObject[] minimumSquareObjects = new MinimumSquareObject[numPoints];
+            a00 += predictedDistance * predictedDistance;
+            a01 += predictedDistance;
+            b0 += predictedDistance * distance;
+            b1 += distance;
+        }
 
-        //Calcolo di ogni singolo scaleFactor O(N)
-        for (Point point : points){
-            if(point == null) continue;
+        return solveQuadratiMinimi(a00, a01, count, b0, b1, count);
+    }
 
-            //Ricavo la distanza.
-            double distance = getDistance(point);
+    /**
+     * Funzione di perdita robusta per IRLS.
+     * HUBER: pesa 1 gli errori entro la soglia, poi decresce come soglia/|errore|.
+     * TUKEY: (1 - (errore/soglia)^2)^2 entro la soglia, 0 oltre: i punti lontani vengono ignorati.
+     */
+    public enum RobustLoss {
+        HUBER,
+        TUKEY
+    }
 
-            if(distance > maxDepth)
-                continue;
+    //Soglie sull'errore relativo |scale * p + shift - d| / d
+    private static final double HUBER_THRESHOLD = 0.1;
+    private static final double TUKEY_THRESHOLD = 0.3;
+
+    private static final int IRLS_MAX_ITERATIONS = 10;
+    //Tukey non è convessa: le prime iterazioni usano Huber per partire vicino alla soluzione
+    private static final int IRLS_TUKEY_WARMUP = 2;
+    private static final double IRLS_TOLERANCE = 1e-4;
+    //Distanza stimata minima per l'errore relativo
+    private static final double IRLS_MIN_DISTANCE = 1e-6;
+    //Sotto questa frazione di punti entro la soglia della perdita la stima non è affidabile
+    private static final double IRLS_MIN_INLIER_RATIO = 0.5;
+
+    //Soglia oltre la quale la perdita tratta il punto come outlier
+    private static double getInlierThreshold(RobustLoss loss){
+        switch (loss){
+            case HUBER:
+                return HUBER_THRESHOLD;
+            case TUKEY:
+                return TUKEY_THRESHOLD;
+            default:
+                throw new IllegalArgumentException("Funzione di perdita non riconosciuta: "+loss);
+        }
+    }
 
-            Float predictedDistance = getPredictedDistanceFromPoint(inference, point);
+    private static double getRobustWeight(RobustLoss loss, double error){
+        double absError = Math.abs(error);
+
+        switch (loss){
+            case HUBER:
+                return absError <= HUBER_THRESHOLD ? 1.0 : HUBER_THRESHOLD / absError;
+            case TUKEY:
+                if(absError >= TUKEY_THRESHOLD) return 0.0;
+                double ratio = error / TUKEY_THRESHOLD;
+                double tmp = 1.0 - ratio * ratio;
+                return tmp * tmp;
+            default:
+                throw new IllegalArgumentException("Funzione di perdita non riconosciuta: "+loss);
+        }
+    }
 
-            if(predictedDistance != null){
-                minimumSquareObjects[numVisiblePoints] = new MinimumSquareObject();
-                minimumSquareObjects[numVisiblePoints].distance = distance;
-                minimumSquareObjects[numVisiblePoints].predictedDistance = predictedDistance;
-                minimumSquareObjects[numVisiblePoints].arConfidence = point.getConfidence();
-                minimumSquareObjects[numVisiblePoints].calculate();
-                numVisiblePoints++;
-            }else{
-                //Stranamente non riesco a trovare la predizione.
-                Log.log(Level.INFO, "Impossibile trovare corrispondeza punto-depth");
+    /**
+     * Calcola scale e shift con i minimi quadrati pesati iterativi (IRLS).
+     * La prima iterazione è un minimo quadrati pesato con la confidenza ARCore; le successive
+     * moltiplicano la confidenza per il peso robusto dell'errore della stima precedente.
+     * Ogni iterazione accumula le somme delle equazioni normali in un solo passaggio sui punti.
+     * Fallisce se meno di metà dei punti è entro la soglia della perdita: in quel caso conviene RANSAC.
+     * Lavora sui punti preparati con prepare.
+     *
+     * @param loss funzione di perdita robusta
+     * @return vero se la calibrazione è riuscita
+     */
+    public boolean calibrateScaleFactorIRLS(RobustLoss loss){
+        int count = numVisiblePoints;
+
+        if(count < 2) return false;
+
+        double scale = Double.NaN;
+        double shift = Double.NaN;
+
+        for (int iteration = 0; iteration <= IRLS_MAX_ITERATIONS; iteration++) {
+            RobustLoss iterationLoss = loss == RobustLoss.TUKEY && iteration <= IRLS_TUKEY_WARMUP ? RobustLoss.HUBER : loss;
+
+            double a00 = 0.0, a01 = 0.0, a11 = 0.0;
+            double b0 = 0.0, b1 = 0.0;
+
+            for (int i = 0; i < count; i++) {
+                double p = visiblePredicted[i];
+                double d = visibleDistance[i];
+                double w = visibleConfidence[i];
+
+                if(iteration > 0){
+                    //Errore relativo alla distanza stimata, non a quella misurata: con Huber ogni outlier
+                    //pesa quanto la sua distanza stimata, sia sopra che sotto la retta
+                    double fitted = scale * p + shift;
+                    w *= getRobustWeight(iterationLoss, (fitted - d) / Math.max(Math.abs(fitted), IRLS_MIN_DISTANCE));
+                }
+
+                a00 += w * p * p;
+                a01 += w * p;
+                a11 += w;
+                b0 += w * p * d;
+                b1 += w * d;
             }
+
+            double detA = a00 * a11 - a01 * a01;
+
+            if(!(detA > 0.0)){
+                Log.log(Level.INFO, "IRLS calibrator failed, invalid detA: "+detA);
+                return false;
+            }
+
+            double newScale = (a11 * b0 - a01 * b1) / detA;
+            double newShift = (-a01 * b0 + a00 * b1) / detA;
+
+            if(!Double.isFinite(newScale) || !Double.isFinite(newShift)){
+                Log.log(Level.INFO, "IRLS calibrator failed");
+                return false;
+            }
+
+            boolean converged = iteration > IRLS_TUKEY_WARMUP
+                    && Math.abs(newScale - scale) <= IRLS_TOLERANCE * Math.abs(newScale)
+                    && Math.abs(newShift - shift) <= IRLS_TOLERANCE * (Math.abs(newShift) + Math.abs(newScale));
+
+            scale = newScale;
+            shift = newShift;
+
+            if(converged) break;
         }
 
-        //Numero di punti non sufficiente
-        if(numVisiblePoints < 1)
-            return false;
+        //Inlier della stima finale, con la soglia della perdita usata
+        double threshold = getInlierThreshold(loss);
+        int inliers = 0;
 
-        minimumSquareObjects = Arrays.copyOf(minimumSquareObjects, numVisiblePoints);
+        for (int i = 0; i < count; i++) {
+            double d = visibleDistance[i];
 
-        return calibrateScaleFactorQuadratiMinimi(minimumSquareObjects);
-    }
+            if(Math.abs((scale * visiblePredicted[i] + shift - d) / d) <= threshold) inliers++;
+        }
 
+        if(!(scale > 0.0) || inliers < IRLS_MIN_INLIER_RATIO * count){
+            Log.log(Level.INFO, "IRLS calibrator failed: "+inliers+" inlier su "+count+" punti");
+            return false;
+        }
+
+        this.scaleFactor = scale;
+        this.shiftFactor = shift;
+        this.numUsedPoints = inliers;
 
+        return true;
+    }
 }
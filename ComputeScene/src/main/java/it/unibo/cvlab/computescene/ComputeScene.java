@@ -1,13 +1,22 @@
 package it.unibo.cvlab.computescene;
 
+import com.google.gson.annotations.SerializedName;
+import it.unibo.cvlab.computescene.dataset.PointCloudBuffer;
 import it.unibo.cvlab.computescene.dataset.PointCloudDataset;
 import it.unibo.cvlab.computescene.dataset.Pose;
 import it.unibo.cvlab.computescene.dataset.SceneDataset;
+import it.unibo.cvlab.computescene.loader.ConfigLoader;
 import it.unibo.cvlab.computescene.loader.DatasetLoader;
+import it.unibo.cvlab.computescene.loader.FrameImage;
 import it.unibo.cvlab.computescene.loader.ModelLoader;
 import it.unibo.cvlab.computescene.loader.ObjectLoader;
+import it.unibo.cvlab.computescene.loader.PrefetchDatasetLoader;
 import it.unibo.cvlab.computescene.model.Model;
 import it.unibo.cvlab.computescene.rendering.BackgroundRenderer;
+import it.unibo.cvlab.computescene.rendering.ColorMapPass;
+import it.unibo.cvlab.computescene.rendering.DepthPass;
+import it.unibo.cvlab.computescene.rendering.DepthTexture;
+import it.unibo.cvlab.computescene.rendering.HeadlessContext;
 import it.unibo.cvlab.computescene.rendering.ObjectRenderer;
 import it.unibo.cvlab.computescene.rendering.PointCloudRenderer;
 import it.unibo.cvlab.computescene.rendering.ScreenshotRenderer;
@@ -27,12 +36,22 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -47,6 +66,11 @@ public class ComputeScene {
     // The window handle
     private long window;
 
+    //Contesto EGL senza finestra: usato al posto di GLFW in modalità headless
+    private final boolean headless;
+    private HeadlessContext headlessContext;
+    private boolean running;
+
     private int surfaceWidth, surfaceHeight;
     private final BackgroundRenderer backgroundRenderer = new BackgroundRenderer();
     private final ScreenshotRenderer screenshotRenderer = new ScreenshotRenderer();
@@ -54,57 +78,368 @@ public class ComputeScene {
     private final ScreenshotRenderer inferenceRenderer = new ScreenshotRenderer();
     private final ObjectRenderer objectRenderer = new ObjectRenderer();
 
-    private final Calibrator calibrator = new Calibrator();
+    //Stima di profondità del frame composto, caricata una volta e letta da tutti i renderer
+    private final DepthTexture depthTexture = new DepthTexture();
 
-    private final DatasetLoader datasetLoader;
-    private final ObjectLoader.Object[] objects;
-    private final MySaver saver;
-    private final Model model;
+    //Depth metrica e maschera di occlusione calcolate sulla GPU, solo se da salvare
+    private final DepthPass depthPass = new DepthPass();
+    private boolean depthPassEnabled;
 
+    //Depth colorata con la palette plasma, esportata solo se l'uscita depth è attiva
+    private final ColorMapPass colorMapPass = new ColorMapPass();
+    private boolean colorMapEnabled;
 
-    private float[] inferenceArray;
-    private final ScreenshotRenderer.ColorType colorType;
+    private final Calibrator calibrator = new Calibrator();
 
-    private final ColorMapper colorMapper;
-    private final boolean attivaOMA;
-    private final boolean attivaRPC;
-    private final boolean attivaDepth;
+    private final ObjectLoader.Object[] objects;
+    private final int threads;
+
+    public static final int DEFAULT_PIPELINE_DEPTH = 2;
+
+    //RANSAC: iterazioni massime (si ferma prima se gli inlier bastano) e soglia sull'errore relativo
+    private static final int RANSAC_MAX_ITERATIONS = 100;
+    private static final float RANSAC_THRESHOLD = 0.1f;
+
+    //Con la stima temporale stabile il frame viene solo verificato: se almeno questa frazione
+    //di punti è entro RANSAC_THRESHOLD non viene ricalibrato
+    private static final float SKIP_MIN_INLIER_RATIO = 0.5f;
+
+    /**
+     * Stima temporale di scale e shift tra i frame.
+     */
+    public enum Temporal{
+        @SerializedName("kalman")
+        KALMAN,
+        @SerializedName("ema")
+        EMA;
+
+        public TemporalEstimator createEstimator(){
+            switch (this){
+                case EMA:
+                    return new ExponentialEstimator();
+                case KALMAN:
+                default:
+                    return new ScaleShiftKalmanFilter();
+            }
+        }
+    }
+    public static final int DEFAULT_BATCH_SIZE = 1;
+    public static final long DEFAULT_BATCH_MEMORY = 256L * 1024 * 1024;
+
+    //Frame in elaborazione nella pipeline OMA
+    private static class PipelineFrame {
+        private final int slot;
+        private final long index;
+        private final SceneDataset sceneDataset;
+        private final PointCloudDataset pointDataset;
+
+        //Completato quando inferenza e calibrazione del frame sono terminate
+        private CompletableFuture<PipelineFrame> result;
+
+        //Buffer di output dello slot, normalizzato sul posto
+        private FloatBuffer inference;
+        private double scaleFactor;
+        private double shiftFactor;
+
+        private PipelineFrame(int slot, long index, SceneDataset sceneDataset, PointCloudDataset pointDataset) {
+            this.slot = slot;
+            this.index = index;
+            this.sceneDataset = sceneDataset;
+            this.pointDataset = pointDataset;
+        }
+    }
 
-    private double lastScaleFactor = Double.NaN;
+    //Stadi della pipeline: decodifica (DatasetLoader) -> input e composizione (thread OpenGL)
+    // -> inferenza -> calibrazione e colormap -> codifica e scrittura (MySaver)
+    private int pipelineDepth = DEFAULT_PIPELINE_DEPTH;
+    private ThreadPoolExecutor inferenceExecutor;
+    private ThreadPoolExecutor calibrationExecutor;
+    private final ArrayDeque<PipelineFrame> pipeline = new ArrayDeque<>();
+    private int nextSlot;
+    private int slots;
+
+    //Frame consecutivi inviati alla rete con un solo Session.run
+    private int requestedBatchSize = DEFAULT_BATCH_SIZE;
+    private long batchMemory = DEFAULT_BATCH_MEMORY;
+    //Ridotto dal thread di inferenza se il grafo non accetta il batch
+    private volatile int batchSize = DEFAULT_BATCH_SIZE;
+    private final List<PipelineFrame> pendingBatch = new ArrayList<>();
+    private CompletableFuture<?> lastCalibration;
+
+    //Input della rete di ogni slot e buffer del batch, usato solo dal thread di inferenza
+    private ByteBuffer[] inputBuffers;
+    private int frameInputSize;
+    private ByteBuffer batchInput;
+    private FloatBuffer[] batchOutputs;
+
+    //Stato del job corrente
+    private DatasetLoader datasetLoader;
+    private MySaver saver;
+    private Model model;
+
+    //Un buffer di inferenza per ogni frame che può essere nella pipeline
+    private FloatBuffer[] outputBuffers;
+    private ScreenshotRenderer.ColorType colorType;
+
+    private boolean attivaOMA;
+    private boolean attivaRPC;
+    private boolean attivaDepth;
+
+    private TemporalEstimator temporalEstimator = Temporal.KALMAN.createEstimator();
+    private int skippedCalibrations;
 
     private final List<Double> scaleFactors = new ArrayList<>();
 
-    public ComputeScene(DatasetLoader datasetLoader, ObjectLoader.Object[] objects, MySaver saver, Model model, ScreenshotRenderer.ColorType colorType, boolean attivaOMA, boolean attivaRPC, boolean attivaDepth) {
-        this.datasetLoader = datasetLoader;
+    public ComputeScene(ObjectLoader.Object[] objects, int threads) {
+        this(objects, threads, false);
+    }
+
+    public ComputeScene(ObjectLoader.Object[] objects, int threads, boolean headless) {
+        this.headless = headless;
         this.objects = objects;
-        this.saver = saver;
-        this.model = model;
-        this.colorType = colorType;
-        this.colorMapper = new ColorMapper(model.getPlasmaFactor(), 4);
-        this.attivaOMA = attivaOMA;
-        this.attivaRPC = attivaRPC;
-        this.attivaDepth = attivaDepth;
+        this.threads = threads;
     }
 
-    public void load() throws IOException {
-        //Devo ricavare info dal primo dataset
-        SceneDataset sceneDataset = datasetLoader.parseSceneDataset();
+    /**
+     * Numero massimo di frame in elaborazione contemporaneamente: mentre il thread OpenGL
+     * prepara l'input del frame N, inferenza e calibrazione lavorano sui frame precedenti.
+     * Con 1 i frame vengono elaborati uno alla volta.
+     */
+    public void setPipelineDepth(int pipelineDepth) {
+        if(pipelineDepth <= 0)
+            throw new IllegalArgumentException("Profondità della pipeline non valida: "+pipelineDepth);
 
-        this.surfaceWidth = sceneDataset.getWidth();
-        this.surfaceHeight = sceneDataset.getHeight();
+        this.pipelineDepth = pipelineDepth;
+    }
 
-        inferenceArray = new float[model.calculateOutputBufferSize(false)];
+    /**
+     * Numero di frame consecutivi elaborati dalla rete con una sola inferenza.
+     * La dimensione effettiva viene ridotta se input e output del batch superano memoryBudget
+     * e dimezzata automaticamente se il grafo non accetta batch più grandi di 1.
+     *
+     * @param batchSize frame per inferenza
+     * @param memoryBudget memoria massima per input e output del batch in byte
+     */
+    public void setBatchSize(int batchSize, long memoryBudget) {
+        if(batchSize <= 0)
+            throw new IllegalArgumentException("Dimensione del batch non valida: "+batchSize);
+
+        if(memoryBudget <= 0)
+            throw new IllegalArgumentException("Memoria del batch non valida: "+memoryBudget);
+
+        this.requestedBatchSize = batchSize;
+        this.batchMemory = memoryBudget;
+    }
 
-        colorMapper.prepare(model.getOutputWidth(), model.getOutputHeight());
+    /**
+     * Stima temporale usata per filtrare scale e shift tra un frame e il successivo.
+     * Se la stima converge i frame successivi vengono solo verificati, senza ricalibrare.
+     */
+    public void setTemporalEstimator(TemporalEstimator temporalEstimator) {
+        if(temporalEstimator == null)
+            throw new IllegalArgumentException("Stima temporale non valida");
 
-        //Inizializzo il modello
-        model.loadGraph();
+        this.temporalEstimator = temporalEstimator;
     }
 
-    public void run()  {
+    /**
+     * Esegue i job in sequenza. Contesto OpenGL, shader, mesh degli oggetti e grafo
+     * del modello vengono creati una volta sola e riutilizzati dai job successivi:
+     * conviene quindi raggruppare i job per modello.
+     */
+    public void run(List<Job> jobs) throws IOException {
+        if(jobs.isEmpty()) return;
+
         System.out.println("Hello LWJGL " + Version.getVersion() + "!");
+
+        //La superficie viene creata con le dimensioni del primo dataset
+        SceneDataset sceneDataset = jobs.get(0).getDatasetLoader().parseSceneDataset();
+        surfaceWidth = sceneDataset.getWidth();
+        surfaceHeight = sceneDataset.getHeight();
+
         init();
-        loop();
+
+        // This line is critical for LWJGL's interoperation with GLFW's
+        // OpenGL context, or any context that is managed externally.
+        // LWJGL detects the context that is current in the current thread,
+        // creates the GLCapabilities instance and makes the OpenGL
+        // bindings available for use.
+        GL.createCapabilities();
+
+        onSurfaceCreated();
+
+        inferenceExecutor = createStageExecutor("Inference", pipelineDepth * requestedBatchSize);
+        calibrationExecutor = createStageExecutor("Calibration", pipelineDepth * requestedBatchSize);
+
+        Model loadedModel = null;
+
+        try {
+            for (int i = 0; i < jobs.size() && !isAborted(); i++) {
+                Job job = jobs.get(i);
+
+                //Il grafo precedente serve solo finché non cambia il modello
+                if(loadedModel != null && loadedModel != job.getModel())
+                    loadedModel.closeGraph();
+
+                loadedModel = job.getModel();
+
+                Log.log(Level.INFO, "Job "+(i+1)+"/"+jobs.size()+": "+job);
+
+                try {
+                    load(job);
+                } catch (IOException e) {
+                    Log.log(Level.SEVERE, "Impossibile caricare il job: "+job, e);
+                    job.releaseDatasetLoader();
+                    continue;
+                }
+
+                try {
+                    loop();
+                } finally {
+                    unload(job);
+                }
+            }
+        } finally {
+            inferenceExecutor.shutdownNow();
+            calibrationExecutor.shutdownNow();
+
+            if(loadedModel != null) loadedModel.closeGraph();
+
+            //Libero le mesh in cache prima di distruggere il contesto
+            objectRenderer.release();
+
+            destroy();
+        }
+    }
+
+    private void load(Job job) throws IOException {
+        datasetLoader = job.getDatasetLoader();
+        saver = job.getSaver();
+        model = job.getModel();
+        colorType = job.getColorType();
+        attivaOMA = job.isAttivaOMA();
+        attivaRPC = job.isAttivaRPC();
+        attivaDepth = job.isAttivaDepth();
+
+        datasetLoader.printPaths();
+        saver.printPaths();
+        saver.mkdir();
+
+        //Ricavo le dimensioni dal primo frame del dataset
+        SceneDataset sceneDataset = datasetLoader.parseSceneDataset();
+
+        resize(sceneDataset.getWidth(), sceneDataset.getHeight());
+
+        batchSize = model.fitBatchSize(requestedBatchSize, batchMemory);
+
+        if(batchSize < requestedBatchSize)
+            Log.log(Level.INFO, "Batch ridotto a "+batchSize+" per il limite di memoria");
+
+        //Ogni frame in volo ha il suo slot: sfondo, input e inferenza
+        slots = pipelineDepth * batchSize;
+        frameInputSize = model.calculateInputBufferSize(true);
+        inputBuffers = new ByteBuffer[slots];
+        outputBuffers = new FloatBuffer[slots];
+
+        for (int i = 0; i < slots; i++) {
+            inputBuffers[i] = model.allocateInputBuffer();
+            outputBuffers[i] = model.allocateOutputBuffer();
+        }
+
+        batchOutputs = new FloatBuffer[batchSize];
+        batchInput = null;
+
+        //Inizializzo il modello: se è lo stesso del job precedente la sessione è già pronta
+        model.loadGraph();
+        model.setNormalizationThreads(threads);
+
+        //I renderer che dipendono da dataset e modello vanno ricreati ad ogni job
+        backgroundRenderer.createOnGlThread(surfaceWidth, surfaceHeight, slots);
+        screenshotRenderer.createOnGlThread(ScreenshotRenderer.ColorType.RGBA8, surfaceWidth, surfaceHeight, surfaceWidth, surfaceHeight);
+        inferenceRenderer.createOnGlThread(colorType, surfaceWidth, surfaceHeight, model.getInputWidth(), model.getInputHeight());
+        depthTexture.createOnGlThread(model.getOutputWidth(), model.getOutputHeight());
+
+        backgroundRenderer.setInferenceTextureId(depthTexture.getTextureId());
+        objectRenderer.setInferenceTextureId(depthTexture.getTextureId());
+
+        depthPassEnabled = attivaOMA && (saver.isEnabled(MySaver.Output.SCALED_DEPTH) || saver.isEnabled(MySaver.Output.MASK));
+
+        if(depthPassEnabled){
+            depthPass.createOnGlThread(model.getOutputWidth(), model.getOutputHeight());
+            depthPass.setInferenceTextureId(depthTexture.getTextureId());
+        }
+
+        colorMapEnabled = attivaOMA && saver.isEnabled(MySaver.Output.DEPTH);
+
+        if(colorMapEnabled){
+            colorMapPass.createOnGlThread(model.getOutputWidth(), model.getOutputHeight());
+            colorMapPass.setInferenceTextureId(depthTexture.getTextureId());
+            colorMapPass.setPlasmaFactor(model.getPlasmaFactor());
+        }
+
+        scaleFactors.clear();
+        temporalEstimator.reset();
+        skippedCalibrations = 0;
+        calibrator.reset();
+        nextSlot = 0;
+        pendingBatch.clear();
+        lastCalibration = CompletableFuture.completedFuture(null);
+    }
+
+    private void unload(Job job) {
+        //I frame di un batch non ancora avviato vengono scartati
+        pendingBatch.clear();
+
+        //Attendo i frame ancora nella pipeline (es. interruzione con ESC)
+        while (!pipeline.isEmpty()){
+            PipelineFrame frame = pipeline.pollFirst();
+
+            if(frame.result == null) continue;
+
+            try {
+                frame.result.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                Log.log(Level.SEVERE, "Elaborazione del frame "+frame.index+" fallita.", e.getCause());
+            }
+        }
+
+        //Ferma la decodifica anticipata dei frame e rilascia il dataset (es. la mappatura del contenitore)
+        job.releaseDatasetLoader();
+        datasetLoader = null;
+
+        //Salvo i rendering ancora nei pixel buffer
+        try {
+            while (screenshotRenderer.hasPendingReadback()){
+                saveScreenshot();
+            }
+
+            while (depthPassEnabled && depthPass.hasPendingReadback()){
+                saveDepthPass();
+            }
+
+            while (colorMapEnabled && colorMapPass.hasPendingReadback()){
+                saveColorMap();
+            }
+        } catch (IOException e) {
+            Log.log(Level.SEVERE, "Impossibile salvare gli ultimi frame del job.", e);
+        }
+
+        //Attendo la scrittura delle immagini ancora in coda
+        try {
+            saver.close();
+        } catch (IOException e) {
+            Log.log(Level.SEVERE, "Impossibile salvare tutte le immagini del job.", e);
+        }
+
+        backgroundRenderer.release();
+        screenshotRenderer.release();
+        inferenceRenderer.release();
+        depthTexture.release();
+
+        if(depthPassEnabled) depthPass.release();
+        if(colorMapEnabled) colorMapPass.release();
 
         Double[] scaleFactors = this.scaleFactors.toArray(new Double[0]);
 
@@ -124,12 +459,25 @@ public class ComputeScene {
 
         varianzaScaleFactor /= scaleFactors.length;
 
-        Log.log(Level.INFO, "Media: "+mediaScaleFactor+", Varianza: "+varianzaScaleFactor);
+        Log.log(Level.INFO, "Media: "+mediaScaleFactor+", Varianza: "+varianzaScaleFactor+", Calibrazioni saltate: "+skippedCalibrations);
+    }
 
-        try {
-            colorMapper.dispose();
-        } catch (InterruptedException e) {
-            //e vabbe
+    private void resize(int width, int height) {
+        if(width != surfaceWidth || height != surfaceHeight){
+            surfaceWidth = width;
+            surfaceHeight = height;
+
+            if(headless) headlessContext.resize(width, height);
+            else GLFW.glfwSetWindowSize(window, width, height);
+        }
+
+        GL30.glViewport(0,0,surfaceWidth, surfaceHeight);
+    }
+
+    private void destroy() {
+        if(headless){
+            headlessContext.destroy();
+            return;
         }
 
         // Free the window callbacks and destroy the window
@@ -143,6 +491,11 @@ public class ComputeScene {
     }
 
     private void init() {
+        if(headless){
+            initHeadless();
+            return;
+        }
+
         // Setup an error callback. The default implementation
         // will print the error message in System.err.
         GLFWErrorCallback.createPrint(System.err).set();
@@ -200,45 +553,107 @@ public class ComputeScene {
         GLFW.glfwShowWindow(window);
     }
 
-    private void loop() {
-        // This line is critical for LWJGL's interoperation with GLFW's
-        // OpenGL context, or any context that is managed externally.
-        // LWJGL detects the context that is current in the current thread,
-        // creates the GLCapabilities instance and makes the OpenGL
-        // bindings available for use.
-        GL.createCapabilities();
+    /**
+     * Crea un contesto EGL con superficie pbuffer delle dimensioni del dataset.
+     * Non serve né una finestra né un monitor: tutto il rendering è fuori schermo.
+     */
+    private void initHeadless() {
+        headlessContext = new HeadlessContext();
+        headlessContext.create(surfaceWidth, surfaceHeight);
+    }
 
-        // Set the clear color
-        onSurfaceCreated();
+    //Con la finestra l'utente può interrompere tutti i job premendo ESC
+    private boolean isAborted() {
+        return !headless && GLFW.glfwWindowShouldClose(window);
+    }
 
-        // Run the rendering loop until the user has attempted to close
-        // the window or has pressed the ESCAPE key.
-        while ( !GLFW.glfwWindowShouldClose(window) ) {
-            GL30.glClear(GL30.GL_COLOR_BUFFER_BIT | GL30.GL_DEPTH_BUFFER_BIT); // clear the framebuffer
+    private boolean shouldClose() {
+        return !running || isAborted();
+    }
 
-            try {
-                //Carico dataset e immagine
-                BufferedImage image = datasetLoader.getImage();
-                SceneDataset sceneDataset = datasetLoader.parseSceneDataset();
-                PointCloudDataset pointCloudDataset = datasetLoader.parsePointDataset();
+    private void close() {
+        running = false;
+    }
+
+    private void loop() {
+        running = true;
+
+        boolean hasFrames = true;
+
+        // Run the rendering loop until the dataset is over, the user has attempted
+        // to close the window or has pressed the ESCAPE key.
+        while ( !shouldClose() ) {
+            //Avvio l'elaborazione di un nuovo frame se c'è posto nella pipeline
+            if(hasFrames && pipeline.size() < pipelineDepth * batchSize){
+                FrameImage image = null;
+                SceneDataset sceneDataset = null;
+                PointCloudDataset pointCloudDataset = null;
+
+                try {
+                    //Carico dataset e immagine
+                    image = datasetLoader.getImage();
+                    sceneDataset = datasetLoader.parseSceneDataset();
+                    pointCloudDataset = datasetLoader.parsePointDataset();
+
+                    if(attivaOMA){
+                        pipeline.addLast(submitOMA(image, sceneDataset, pointCloudDataset, datasetLoader.currentFrame()));
+                    }else{
+                        drawNoOMA(image, sceneDataset, pointCloudDataset, datasetLoader.currentFrame());
+                    }
+
+                } catch (IOException e) {
+                    Log.log(Level.SEVERE, "Impossibile eseguire draw.", e);
+                }
 
-                if(attivaOMA){
-                    drawOMA(image, sceneDataset, pointCloudDataset, datasetLoader.currentFrame());
+                if(datasetLoader.hasNext()){
+                    datasetLoader.next();
                 }else{
-                    drawNoOMA(image, sceneDataset, pointCloudDataset, datasetLoader.currentFrame());
+                    hasFrames = false;
                 }
 
+                //Lo sfondo è già in texture: il buffer dell'immagine torna al loader
+                datasetLoader.release(image);
 
-            } catch (IOException e) {
-                Log.log(Level.SEVERE, "Impossibile eseguire draw.", e);
+                //Senza OMA il frame è già disegnato: scena e point cloud tornano al loader
+                if(!attivaOMA) datasetLoader.release(sceneDataset, pointCloudDataset);
             }
 
-            if(datasetLoader.hasNext()){
-                datasetLoader.next();
-            }else{
-                GLFW.glfwSetWindowShouldClose(window, true);
+            //Compongo il frame più vecchio se è pronto, oppure se non posso avviarne altri
+            PipelineFrame oldest = pipeline.peekFirst();
+
+            if(oldest != null && oldest.result != null && (oldest.result.isDone()
+                    || pipeline.size() >= pipelineDepth * batchSize || !hasFrames)){
+                pipeline.pollFirst();
+
+                try {
+                    drawOMA(oldest.result.get());
+                } catch (ExecutionException e) {
+                    Log.log(Level.SEVERE, "Elaborazione del frame "+oldest.index+" fallita.", e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    close();
+                } catch (IOException e) {
+                    Log.log(Level.SEVERE, "Impossibile eseguire draw.", e);
+                }
+
+                //Frame composto: scena e point cloud possono essere riutilizzate dal loader
+                if(oldest.result.isDone()) datasetLoader.release(oldest.sceneDataset, oldest.pointDataset);
             }
 
+            //Avvio l'inferenza del batch quando è completo, oppure se non arriveranno altri frame.
+            //Viene dopo la composizione: intanto la GPU completa la lettura dell'input
+            if(!pendingBatch.isEmpty() && (pendingBatch.size() >= batchSize
+                    || pipeline.size() >= pipelineDepth * batchSize || !hasFrames)){
+                flushBatch();
+            }
+
+            if(!hasFrames && pipeline.isEmpty()){
+                close();
+            }
+
+            //Senza finestra non c'è nulla da presentare né eventi da gestire
+            if(headless) continue;
+
             GLFW.glfwSwapBuffers(window); // swap the color buffers
 
             // Poll for window events. The key callback above will only be
@@ -250,12 +665,8 @@ public class ComputeScene {
     private void onSurfaceCreated() {
         GL30.glClearColor(0.1f, 0.1f, 0.1f, 1.0f);
 
-        GL30.glViewport(0,0,surfaceWidth, surfaceHeight);
-
         try {
-            backgroundRenderer.createOnGlThread(surfaceWidth, surfaceHeight);
-            screenshotRenderer.createOnGlThread(ScreenshotRenderer.ColorType.RGBA8, surfaceWidth, surfaceHeight, surfaceWidth, surfaceHeight);
-            inferenceRenderer.createOnGlThread(colorType, surfaceWidth, surfaceHeight, model.getInputWidth(), model.getInputHeight());
+            //Renderer indipendenti dal job: restano validi per tutta l'esecuzione
             pointCloudRenderer.createOnGlThread();
             objectRenderer.createOnGlThread();
         } catch (IOException e) {
@@ -264,9 +675,11 @@ public class ComputeScene {
 
     }
 
-    private void drawNoOMA(BufferedImage backgroudImage, SceneDataset sceneDataset, PointCloudDataset pointDataset, long currentFrame) throws IOException {
+    private void drawNoOMA(FrameImage backgroudImage, SceneDataset sceneDataset, PointCloudDataset pointDataset, long currentFrame) throws IOException {
         System.out.println("Frame corrente:"+currentFrame);
 
+        GL30.glClear(GL30.GL_COLOR_BUFFER_BIT | GL30.GL_DEPTH_BUFFER_BIT); // clear the framebuffer
+
         //Imposto l'immagine di sfondo
         backgroundRenderer.loadBackgroudImage(backgroudImage);
 
@@ -276,21 +689,8 @@ public class ComputeScene {
         objectRenderer.setMaskEnabled(false);
         objectRenderer.setCameraPose(sceneDataset.getCameraPose());
 
-        Pose[] ancore = sceneDataset.getAncore();
-
-        int i = 0;
-
-        for (Pose ancora : ancore){
-            //Impostazione oggetto corrente
-            objectRenderer.setObjScaleFactor(objects[i % objects.length].getScaleFactor());
-            objectRenderer.setLowerDelta(objects[i % objects.length].getDelta());
-            //Caricamento dell'oggetto.
-            objectRenderer.loader(objects[i % objects.length]);
-
-            objectRenderer.updateModelMatrix(ancora.getModelMatrix());
-            objectRenderer.draw(sceneDataset.getViewmtx(), sceneDataset.getProjmtx());
-            i++;
-        }
+        drawAnchors(sceneDataset);
+        objectRenderer.clearInstances();
 
         //Disegno i punti del cloud se richiesti
         if(attivaRPC){
@@ -299,15 +699,22 @@ public class ComputeScene {
         }
 
         //Salvo il rendering
-        ByteBuffer pixelsBufferNoOMA = screenshotRenderer.getByteBufferScreenshot(screenshotRenderer.getDefaultFrameBuffer());
-        saver.saveNoOMA(currentFrame, pixelsBufferNoOMA, surfaceWidth, surfaceHeight, BufferedImage.TYPE_INT_RGB, screenshotRenderer.getColorType().getByteSize());
+        readScreenshot(currentFrame);
     }
 
-    private void drawOMA(BufferedImage backgroudImage, SceneDataset sceneDataset, PointCloudDataset pointDataset, long currentFrame) throws IOException {
+    /**
+     * Prepara l'input della rete per un frame e lo aggiunge al batch corrente: inferenza e calibrazione
+     * partono sui thread della pipeline con flushBatch.
+     * Sfondo e input restano nel loro slot fino alla composizione del frame.
+     */
+    private PipelineFrame submitOMA(FrameImage backgroudImage, SceneDataset sceneDataset, PointCloudDataset pointDataset, long currentFrame) {
         System.out.println("Frame corrente:"+currentFrame);
 
-        float maxDepth = sceneDataset.getFarPlane();
+        PipelineFrame frame = new PipelineFrame(nextSlot, currentFrame, sceneDataset, pointDataset);
+        nextSlot = (nextSlot + 1) % slots;
+
         backgroundRenderer.setPlasmaEnabled(false);
+        backgroundRenderer.setBackgroundSlot(frame.slot);
 
         //Binding dell'inference renderer
         inferenceRenderer.setSourceTextureId(backgroundRenderer.getScreenshotFrameBufferTextureId());
@@ -321,115 +728,366 @@ public class ComputeScene {
         //Creo uno screenshot per la rete neurale.
         inferenceRenderer.drawOnPBO();
 
-        Tensor<?> inputTensor;
+        //Con il ring pieno completo la lettura più vecchia prima di avviarne un'altra
+        if(inferenceRenderer.isReadbackRingFull())
+            completeInputReadback();
 
-        //Normalizzo se necessario
-        if(model.isNormalizationNeeded()){
-            float[] floatArrayScreenshot = inferenceRenderer.getFloatArrayScreenshot(inferenceRenderer.getScreenshotFrameBuffer());
-            inputTensor = Tensor.create(model.getInputShapeLong(), FloatBuffer.wrap(floatArrayScreenshot));
+        //Lettura asincrona dell'input: viene copiato nello slot del frame solo in flushBatch
+        int inputDataType = model.isNormalizationNeeded() ? GL30.GL_FLOAT : GL30.GL_UNSIGNED_BYTE;
+        inferenceRenderer.startReadback(inferenceRenderer.getScreenshotFrameBuffer(), inputDataType, frame.slot);
+
+        pendingBatch.add(frame);
+
+        return frame;
+    }
+
+    /**
+     * Avvia l'inferenza dei frame accumulati. La calibrazione di ogni frame attende anche
+     * quella del frame precedente, così resta in ordine anche tra batch diversi.
+     */
+    private void flushBatch() {
+        //L'input di ogni frame del batch deve essere nel suo slot prima dell'inferenza
+        while (inferenceRenderer.hasPendingReadback()){
+            completeInputReadback();
+        }
+
+        final PipelineFrame[] frames = pendingBatch.toArray(new PipelineFrame[0]);
+        pendingBatch.clear();
+
+        CompletableFuture<Void> inference = CompletableFuture.runAsync(() -> infer(frames, 0, frames.length), inferenceExecutor);
+
+        for (PipelineFrame frame : frames) {
+            CompletableFuture<Object> previous = lastCalibration.handle((result, error) -> null);
+            frame.result = inference.thenCombineAsync(previous, (a, b) -> calibrate(frame), calibrationExecutor);
+            lastCalibration = frame.result;
+        }
+    }
+
+    /**
+     * Attende la lettura dell'input più vecchia e la copia nello slot indicato dal suo tag.
+     */
+    private void completeInputReadback() {
+        int slot = (int) inferenceRenderer.getReadbackTag();
+        ByteBuffer pixels = inferenceRenderer.mapReadback();
+
+        try {
+            if(pixels.remaining() != frameInputSize)
+                throw new IllegalStateException("Input della rete di "+pixels.remaining()+" byte, attesi "+frameInputSize);
+
+            ByteBuffer input = inputBuffers[slot];
+            input.clear();
+            input.put(pixels);
+            input.flip();
+        } finally {
+            inferenceRenderer.unmapReadback();
+        }
+    }
+
+    //Stadio di inferenza: eseguito sul thread di inferenza
+    private void infer(PipelineFrame[] frames, int from, int to) {
+        int count = to - from;
+
+        try {
+            inferBatch(frames, from, count);
+        } catch (RuntimeException e) {
+            if(count == 1) throw e;
+
+            //Il grafo non accetta questo batch (dimensione fissata o memoria esaurita): lo divido
+            int half = count / 2;
+            batchSize = Math.min(batchSize, half);
+            Log.log(Level.WARNING, "Inferenza di "+count+" frame fallita, batch ridotto a "+batchSize+": "+e.getMessage());
+
+            infer(frames, from, from + half);
+            infer(frames, from + half, to);
+        }
+    }
+
+    private void inferBatch(PipelineFrame[] frames, int from, int count) {
+        ByteBuffer input;
+
+        if(count == 1){
+            input = inputBuffers[frames[from].slot];
         }else{
-            ByteBuffer byteBufferScreenshot = inferenceRenderer.getByteBufferScreenshot(inferenceRenderer.getScreenshotFrameBuffer());
-            inputTensor = Tensor.create(Byte.class, model.getInputShapeLong(), byteBufferScreenshot);
+            //Gli input dei frame devono essere contigui nel tensore [B,H,W,C]
+            int size = frameInputSize * count;
+
+            if(batchInput == null || batchInput.capacity() < size)
+                batchInput = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+
+            batchInput.clear();
+
+            for (int i = 0; i < count; i++) {
+                ByteBuffer frameInput = inputBuffers[frames[from + i].slot];
+                frameInput.rewind();
+                batchInput.put(frameInput);
+            }
+
+            input = batchInput;
         }
 
-        Tensor<?> outputTensor = model.run(inputTensor).get(0);
-        FloatBuffer inference = FloatBuffer.wrap(inferenceArray);
-        outputTensor.writeTo(inference);
-        inputTensor.close();
-        outputTensor.close();
+        input.rewind();
+        input.limit(frameInputSize * count);
+
+        for (int i = 0; i < count; i++) {
+            batchOutputs[i] = outputBuffers[frames[from + i].slot];
+        }
+
+        long[] inputShape = model.getInputShapeLong(count);
 
         //Normalizzo se necessario
-        inference = model.normalize(inference);
-        inferenceArray = inference.array();
+        try (Tensor<?> inputTensor = model.isNormalizationNeeded() ?
+                Tensor.create(inputShape, input.asFloatBuffer()) :
+                Tensor.create(Byte.class, inputShape, input)) {
+            model.run(inputTensor, batchOutputs, count);
+        }
 
-        calibrator.setMaxDepth(maxDepth);
+        for (int i = 0; i < count; i++) {
+            PipelineFrame frame = frames[from + i];
+            frame.inference = model.normalize(outputBuffers[frame.slot], outputBuffers[frame.slot]);
+        }
+    }
+
+    //Stadio di calibrazione: eseguito in ordine di frame sul thread di calibrazione
+    private PipelineFrame calibrate(PipelineFrame frame) {
+        SceneDataset sceneDataset = frame.sceneDataset;
+        FloatBuffer inference = frame.inference;
+
+        calibrator.setMaxDepth(sceneDataset.getFarPlane());
         calibrator.setCameraPose(sceneDataset.getCameraPose());
         calibrator.setWidth(model.getOutputWidth());
         calibrator.setHeight(model.getOutputHeight());
         calibrator.setCameraPerspective(sceneDataset.getProjmtx());
         calibrator.setCameraView(sceneDataset.getViewmtx());
         calibrator.setDisplayRotation(90);//Devo settarla di default perchè qui lo schermo non ruota.
+        //Seed per frame: la calibrazione non dipende dai frame elaborati prima
+        calibrator.setRandomSeed(frame.index);
+
+        //Proiezione e campionamento una sola volta: validazione e calibrazioni usano gli stessi punti
+        calibrator.prepare(inference, frame.pointDataset.getPoints());
+
+        boolean skip = temporalEstimator.isConverged() &&
+                calibrator.validateScaleFactor(temporalEstimator.getScaleFactor(),
+                        temporalEstimator.getShiftFactor(), RANSAC_THRESHOLD) >= SKIP_MIN_INLIER_RATIO;
+
+        if(skip){
+            //Stima stabile e coerente con i punti del frame: non ricalibro
+            temporalEstimator.predict();
+            calibrator.setScaleFactor(temporalEstimator.getScaleFactor());
+            calibrator.setShiftFactor(temporalEstimator.getShiftFactor());
+            skippedCalibrations++;
+        }else{
+            if(!calibrator.calibrateScaleFactorIRLS(Calibrator.RobustLoss.TUKEY)){
+                //Minimi quadrati robusti falliti (troppi outlier): uso RANSAC
+                if(!calibrator.calibrateScaleFactorRANSAC(RANSAC_MAX_ITERATIONS, RANSAC_THRESHOLD)){
+                    //Calibrazione con RANSAC fallita: provo con media ponderata
+                    calibrator.calibrateScaleFactor();
+                }
+            }
 
-        //Salvo il depth
-        BufferedImage colorMap = colorMapper.getColorMap(inference, 4);
-        saver.saveDepth(currentFrame, colorMap);
+            if(!calibrator.filterScaleFactor(temporalEstimator))
+                Log.log(Level.INFO, "Calibrazione del frame "+frame.index+" scartata dalla stima temporale");
+        }
 
-        objectRenderer.setPlasmaEnabled(attivaDepth);
-        objectRenderer.setMaxDepth(maxDepth);
-        objectRenderer.loadInference(inferenceArray, model.getOutputWidth(), model.getOutputHeight());
-        objectRenderer.setMaskEnabled(true);
-        objectRenderer.setCameraPose(sceneDataset.getCameraPose());
+        scaleFactors.add(calibrator.getScaleFactor());
 
-        //Faccio il rendering degli oggetti.
+        frame.scaleFactor = calibrator.getScaleFactor();
+        frame.shiftFactor = calibrator.getShiftFactor();
 
-        Pose[] ancore = sceneDataset.getAncore();
+        Log.log(Level.INFO, "SF: "+calibrator.getScaleFactor() + ", SHIFT:"+calibrator.getShiftFactor()+", NUP: "+calibrator.getNumUsedPoints() + ", NVP: "+calibrator.getNumVisiblePoints());
+
+        int i = 0;
+
+        DepthSampler sampler = calibrator.getSampler();
 
-        if(!calibrator.calibrateScaleFactorQuadratiMinimi(inference, pointDataset.getPoints())){
-            //Calibratore Quadrati minimi fallito: uso RANSAC
-            if(!calibrator.calibrateScaleFactorRANSAC(inference, pointDataset.getPoints(), 10, 0.1f)){
-                //Calibrazione con RANSAC fallita: provo con media ponderata
-                calibrator.calibrateScaleFactor(inference, pointDataset.getPoints());
+        for (Pose ancora : sceneDataset.getAncore()){
+            //Debug distance
+            double distance = calibrator.getDistance(ancora);
+            int[] xyFromPoint = calibrator.getXYFromPoint(ancora);
+            float predictedDistance = calibrator.getPredictedDistanceFromPoint(sampler, ancora);
+
+            if(!Float.isNaN(predictedDistance) && xyFromPoint != null){
+                double scaledPredictedDistance = predictedDistance * calibrator.getScaleFactor() + calibrator.getShiftFactor();
+                Log.log(Level.INFO, "Ancora "+i+", distance: "+distance+", predicted distance: "+predictedDistance+", scaled predicted distance: "+scaledPredictedDistance+", XY:"+xyFromPoint[0]/640.0*1024.0+", "+xyFromPoint[1]/384.0*576.0);
             }
+
+            i++;
         }
 
-        double tmpScaleFactor = calibrator.getScaleFactor();
+        return frame;
+    }
 
-        if (Double.isFinite(lastScaleFactor)) {
-            tmpScaleFactor = lastScaleFactor * 0.4 + tmpScaleFactor * 0.6;
-            calibrator.setScaleFactor(tmpScaleFactor);
-        }
+    //Stadio di composizione: eseguito sul thread OpenGL quando inferenza e calibrazione sono pronte
+    private void drawOMA(PipelineFrame frame) throws IOException {
+        SceneDataset sceneDataset = frame.sceneDataset;
+        float maxDepth = sceneDataset.getFarPlane();
 
-        lastScaleFactor = tmpScaleFactor;
+        GL30.glClear(GL30.GL_COLOR_BUFFER_BIT | GL30.GL_DEPTH_BUFFER_BIT); // clear the framebuffer
 
-        scaleFactors.add(calibrator.getScaleFactor());
+        //Un solo caricamento della stima: sfondo e oggetti usano la stessa texture
+        depthTexture.upload(frame.inference);
 
-        Log.log(Level.INFO, "SF: "+calibrator.getScaleFactor() + ", SHIFT:"+calibrator.getShiftFactor()+", NUP: "+calibrator.getNumUsedPoints() + ", NVP: "+calibrator.getNumVisiblePoints());
+        //Salvo il depth: la palette viene applicata sulla GPU e letta in modo asincrono
+        if(colorMapEnabled){
+            colorMapPass.draw();
+            readColorMap(frame.index);
+        }
+
+        //Disegno lo sfondo caricato in submitOMA, con la depth se attiva
+        backgroundRenderer.setBackgroundSlot(frame.slot);
+        backgroundRenderer.setPlasmaEnabled(attivaDepth);
 
-        //Ridisegno lo sfondo se attivo la depth
         if(attivaDepth){
             backgroundRenderer.setMaxDepth(maxDepth);
-            backgroundRenderer.setScaleFactor((float)calibrator.getScaleFactor());
-            backgroundRenderer.setShiftFactor((float)calibrator.getShiftFactor());
-            backgroundRenderer.loadInference(inferenceArray, model.getOutputWidth(), model.getOutputHeight());
-            backgroundRenderer.setPlasmaEnabled(true);
-            backgroundRenderer.draw();
+            backgroundRenderer.setScaleFactor((float)frame.scaleFactor);
+            backgroundRenderer.setShiftFactor((float)frame.shiftFactor);
         }
 
-        int i = 0;
+        backgroundRenderer.draw();
 
-        for (Pose ancora : ancore){
-            //Debug distance
-            double distance = calibrator.getDistance(ancora);
-            int[] xyFromPoint = calibrator.getXYFromPoint(ancora);
-            Float predictedDistance = calibrator.getPredictedDistanceFromPoint(inference, ancora);
+        objectRenderer.setPlasmaEnabled(attivaDepth);
+        objectRenderer.setMaxDepth(maxDepth);
+        objectRenderer.setMaskEnabled(true);
+        objectRenderer.setCameraPose(sceneDataset.getCameraPose());
 
-            if(predictedDistance != null){
-                double scaledPredictedDistance = predictedDistance * calibrator.getScaleFactor() + calibrator.getShiftFactor();
-                Log.log(Level.INFO, "Ancora "+i+", distance: "+distance+", predicted distance: "+predictedDistance+", scaled predicted distance: "+scaledPredictedDistance+", XY:"+xyFromPoint[0]/640.0*1024.0+", "+xyFromPoint[1]/384.0*576.0);
-            }
+        objectRenderer.setScaleFactor((float) frame.scaleFactor);
+        objectRenderer.setShiftFactor((float) frame.shiftFactor);
 
-            //Impostazione oggetto corrente
-            objectRenderer.setObjScaleFactor(objects[i % objects.length].getScaleFactor());
-            objectRenderer.setLowerDelta(objects[i % objects.length].getDelta());
-            //Caricamento dell'oggetto.
-            objectRenderer.loader(objects[i % objects.length]);
+        //Faccio il rendering degli oggetti.
+        drawAnchors(sceneDataset);
 
-            objectRenderer.setScaleFactor((float) calibrator.getScaleFactor());
-            objectRenderer.setShiftFactor((float) calibrator.getShiftFactor());
-            objectRenderer.updateModelMatrix(ancora.getModelMatrix());
-            objectRenderer.draw(sceneDataset.getViewmtx(), sceneDataset.getProjmtx());
-            i++;
+        //Depth metrica e maschera: gli stessi oggetti vengono ridisegnati solo nella maschera
+        if(depthPassEnabled){
+            depthPass.setMaxDepth(maxDepth);
+            depthPass.setScaleFactor((float) frame.scaleFactor);
+            depthPass.setShiftFactor((float) frame.shiftFactor);
+
+            depthPass.begin();
+            objectRenderer.setMaskOutput(true);
+            objectRenderer.drawInstances(sceneDataset.getViewmtx(), sceneDataset.getProjmtx());
+            objectRenderer.setMaskOutput(false);
+            depthPass.end();
+
+            readDepthPass(frame.index);
         }
 
+        objectRenderer.clearInstances();
+
         //Disegno i punti del cloud se richiesti
         if(attivaRPC){
-            pointCloudRenderer.update(pointDataset.getPoints());
+            pointCloudRenderer.update(frame.pointDataset.getPoints());
             pointCloudRenderer.draw(sceneDataset.getViewmtx(), sceneDataset.getProjmtx());
         }
 
         //Salvo il rendering
-        ByteBuffer pixelsBufferOMA = screenshotRenderer.getByteBufferScreenshot(screenshotRenderer.getDefaultFrameBuffer());
-        saver.saveOMA(currentFrame, pixelsBufferOMA, surfaceWidth, surfaceHeight, BufferedImage.TYPE_INT_RGB, screenshotRenderer.getColorType().getByteSize());
+        readScreenshot(frame.index);
+    }
+
+    /**
+     * Disegna un oggetto per ogni ancora, assegnati a rotazione. Le ancore con lo stesso oggetto
+     * e lo stesso frame di animazione vengono disegnate con una sola chiamata instanced.
+     */
+    private void drawAnchors(SceneDataset sceneDataset) throws IOException {
+        Pose[] ancore = sceneDataset.getAncore();
+
+        if(ancore == null) return;
+
+        for (int i = 0; i < ancore.length; i++) {
+            //Ogni ancora fa avanzare l'animazione del suo oggetto, come con un draw per ancora
+            objectRenderer.addInstance(objects[i % objects.length], ancore[i].getModelMatrix());
+        }
+
+        objectRenderer.drawInstances(sceneDataset.getViewmtx(), sceneDataset.getProjmtx());
+    }
+
+    //Un thread per stadio, coda limitata ai frame che possono essere nella pipeline
+    private ThreadPoolExecutor createStageExecutor(String name, int capacity) {
+        return new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(capacity),
+                runnable -> {
+                    Thread thread = new Thread(runnable, TAG + "-" + name);
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    /**
+     * Avvia la lettura del rendering del frame corrente. Il salvataggio avviene con un frame
+     * di ritardo, quando il pixel buffer del frame precedente è già stato riempito dalla GPU.
+     */
+    private void readScreenshot(long currentFrame) throws IOException {
+        screenshotRenderer.startReadback(screenshotRenderer.getDefaultFrameBuffer(), GL30.GL_UNSIGNED_BYTE, currentFrame);
+
+        if(screenshotRenderer.isReadbackRingFull())
+            saveScreenshot();
+    }
+
+    private void saveScreenshot() throws IOException {
+        long frame = screenshotRenderer.getReadbackTag();
+        ByteBuffer pixelsBuffer = screenshotRenderer.mapReadback();
+
+        try {
+            int width = screenshotRenderer.getScaledWidth();
+            int height = screenshotRenderer.getScaledHeight();
+            int bpp = screenshotRenderer.getColorType().getByteSize();
+
+            if(attivaOMA){
+                saver.saveOMA(frame, pixelsBuffer, width, height, BufferedImage.TYPE_INT_RGB, bpp);
+            }else{
+                saver.saveNoOMA(frame, pixelsBuffer, width, height, BufferedImage.TYPE_INT_RGB, bpp);
+            }
+        } finally {
+            screenshotRenderer.unmapReadback();
+        }
+    }
+
+    /**
+     * Avvia la lettura di depth metrica e maschera del frame. Come per gli screenshot
+     * il salvataggio avviene quando il ring di pixel buffer è pieno.
+     */
+    private void readDepthPass(long currentFrame) throws IOException {
+        depthPass.startReadback(currentFrame);
+
+        if(depthPass.isReadbackRingFull())
+            saveDepthPass();
+    }
+
+    private void saveDepthPass() throws IOException {
+        long frame = depthPass.waitReadback();
+
+        try {
+            int width = depthPass.getWidth();
+            int height = depthPass.getHeight();
+
+            if(saver.isEnabled(MySaver.Output.SCALED_DEPTH))
+                saver.saveScaledDepth(frame, depthPass.mapMetricDepth(), width, height);
+
+            if(saver.isEnabled(MySaver.Output.MASK))
+                saver.saveMask(frame, depthPass.mapOcclusionMask(), width, height);
+        } finally {
+            depthPass.unmapReadback();
+        }
+    }
+
+    /**
+     * Avvia la lettura della depth colorata del frame. Come per gli screenshot
+     * il salvataggio avviene quando il ring di pixel buffer è pieno.
+     */
+    private void readColorMap(long currentFrame) throws IOException {
+        colorMapPass.startReadback(currentFrame);
+
+        if(colorMapPass.isReadbackRingFull())
+            saveColorMap();
+    }
+
+    private void saveColorMap() throws IOException {
+        long frame = colorMapPass.getReadbackTag();
+        ByteBuffer pixelsBuffer = colorMapPass.mapReadback();
+
+        try {
+            saver.saveDepth(frame, pixelsBuffer, colorMapPass.getWidth(), colorMapPass.getHeight(), ColorMapPass.BYTES_PER_PIXEL);
+        } finally {
+            colorMapPass.unmapReadback();
+        }
     }
 
     private static <T> T requestInput(T[] objs, BufferedReader inReader) throws IOException {
@@ -456,16 +1114,94 @@ public class ComputeScene {
         return objs[scelta - 1];
     }
 
+    private static Path resolveModelPath(String model) {
+        Path modelPath = Paths.get(model);
+
+        //Accetto anche il solo nome del file nella cartella dei modelli
+        if(!Files.isRegularFile(modelPath)){
+            modelPath = Paths.get("models").resolve(model.endsWith(".json") ? model : model + ".json");
+        }
+
+        if(!Files.isRegularFile(modelPath))
+            throw new IllegalArgumentException("Modello non trovato: "+model);
+
+        return modelPath.toAbsolutePath().normalize();
+    }
+
+    /**
+     * Esecuzione non interattiva: un job per ogni coppia modello-dataset,
+     * raggruppati per modello in modo da caricare ogni grafo una volta sola.
+     */
+    private static void runBatch(String[] args) throws IOException {
+        ConfigLoader.Config config = new ConfigLoader().parseArgs(args);
+
+        ObjectLoader objectLoader = config.getObjects() != null ?
+                new ObjectLoader(Paths.get(config.getObjects()).toAbsolutePath()) : new ObjectLoader();
+
+        ObjectLoader.Object[] objects = objectLoader.parseObjectList();
+
+        if(objects.length <= 0){
+            System.out.println("Nessun oggetto presente");
+            System.exit(1);
+        }
+
+        List<Job> jobs = new ArrayList<>();
+
+        for (String modelString : config.getModels()) {
+            Path modelPath = resolveModelPath(modelString);
+            Model model = new ModelLoader(modelPath.getParent()).parseModel(modelPath);
+
+            for (String datasetString : config.getDatasets()) {
+                Path datasetPath = Paths.get(datasetString.trim());
+
+                //Il loader viene creato all'avvio del job: i job in coda non scansionano né mappano il dataset
+                Job.LoaderFactory loaderFactory = () -> {
+                    DatasetLoader datasetLoader = config.getPrefetch() > 0 ?
+                            new PrefetchDatasetLoader(datasetPath, config.getPrefetch(), config.getDecodeThreads()) :
+                            new DatasetLoader(datasetPath);
+                    datasetLoader.setFrameRange(config.getFirstFrame(), config.getLastFrame());
+                    return datasetLoader;
+                };
+
+                Path resultsBase = DatasetLoader.resolveDatasetPath(datasetPath);
+
+                MySaver saver = new MySaver(resultsBase, model.getName());
+                saver.setOutputs(config.getOutputs());
+                saver.setFormat(config.getFormat());
+                saver.setWriters(config.getWriterThreads(), config.getWriterQueue());
+
+                jobs.add(new Job(resultsBase, loaderFactory, saver, model,
+                        config.isOma(), config.isRpc(), config.isOma() && config.isDepth()));
+            }
+        }
+
+        System.out.println("Job in coda: "+jobs.size());
+
+        ComputeScene computeScene = new ComputeScene(objects, config.getThreads(), config.isHeadless());
+        computeScene.setPipelineDepth(config.getPipeline());
+        computeScene.setBatchSize(config.getBatch(), config.getBatchMemory() * 1024L * 1024L);
+        computeScene.setTemporalEstimator(config.getTemporal().createEstimator());
+        computeScene.run(jobs);
+    }
+
     public static void main(String[] args) throws IOException {
+        //Con modello e dataset passati da riga di comando o da file non chiedo nulla
+        if(ConfigLoader.isBatch(args)){
+            runBatch(args);
+            return;
+        }
+
         //prendere in input i delta
 
+        //Modalità senza finestra: contesto EGL offscreen
+        boolean headless = Arrays.asList(args).contains("--headless");
+
         BufferedReader inReader = new BufferedReader(new InputStreamReader(System.in));
 
         System.out.println("Scansione modelli e oggetti...");
 
         ModelLoader modelLoader = new ModelLoader();
         ObjectLoader objectLoader = new ObjectLoader();
-        ComputeScene computeScene;
 
         ObjectLoader.Object[] objects = objectLoader.parseObjectList();
 
@@ -499,14 +1235,11 @@ public class ComputeScene {
 
         if(datasetPathString == null) System.exit(0);
 
-        DatasetLoader datasetLoader = new DatasetLoader(datasetPathString.trim());
+        DatasetLoader datasetLoader = new PrefetchDatasetLoader(datasetPathString.trim(),
+                PrefetchDatasetLoader.DEFAULT_DEPTH, PrefetchDatasetLoader.DEFAULT_THREADS);
 
         Path datasetPath = datasetLoader.getDatasetPath();
         MySaver saver = new MySaver(datasetPath, model.getName());
-        saver.mkdir();
-
-        datasetLoader.printPaths();
-        saver.printPaths();
 
         System.out.println("Numero frames: "+datasetLoader.getFrames());
 
@@ -553,13 +1286,11 @@ public class ComputeScene {
         System.out.println("Salvo anche una versione depth (cartella depth)");
 
         //Passo all'app datasetLoader, modello, oggetto e texture
-        computeScene = new ComputeScene(datasetLoader, objects, saver, model, colorType, attivaOMA, attivaRPC, attivaDepth);
-
-        System.out.println("Precaricamento...");
-        computeScene.load();
+        Job job = new Job(datasetLoader, saver, model, attivaOMA, attivaRPC, attivaDepth);
+        ComputeScene computeScene = new ComputeScene(objects, 4, headless);
 
         System.out.println("Esecuzione...");
-        computeScene.run();
+        computeScene.run(Collections.singletonList(job));
     }
 
 }
@@ -0,0 +1,167 @@
+package it.unibo.cvlab.computescene;
+
+import java.nio.FloatBuffer;
+
+/**
+ * Campionamento in sola lettura di una stima di profondità width x height (riga per riga).
+ * Usa solo accessi assoluti al buffer: posizione e limite non vengono toccati, quindi
+ * calibrazione, debug e metriche possono campionare la stessa inferenza da più thread.
+ * Le coordinate sono in pixel, con il centro del pixel (x, y) in (x, y).
+ * MEDIAN e MIN ignorano i pixel NaN della finestra; NEAREST e BILINEAR li restituiscono.
+ */
+public class DepthSampler {
+
+    public enum Mode{
+        //Pixel più vicino
+        NEAREST,
+        //Interpolazione tra i 4 pixel vicini
+        BILINEAR,
+        //Mediana della finestra k x k: stabile sui bordi tra oggetti
+        MEDIAN,
+        //Minimo della finestra k x k
+        MIN;
+    }
+
+    public static final int MAX_KERNEL = 7;
+
+    //Finestra della mediana, una per thread
+    private static final ThreadLocal<float[]> window = ThreadLocal.withInitial(() -> new float[MAX_KERNEL * MAX_KERNEL]);
+
+    private final FloatBuffer depth;
+    private final int width;
+    private final int height;
+
+    public DepthSampler(FloatBuffer depth, int width, int height) {
+        if(width <= 0 || height <= 0 || depth.limit() < width * height)
+            throw new IllegalArgumentException("Dimensioni non valide: "+width+"x"+height+", buffer di "+depth.limit());
+
+        this.depth = depth;
+        this.width = width;
+        this.height = height;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @param index indice assoluto del pixel (y * width + x)
+     */
+    public float get(int index){
+        return depth.get(index);
+    }
+
+    public float get(int x, int y){
+        return depth.get(y * width + x);
+    }
+
+    /**
+     * Campiona la profondità nel punto.
+     *
+     * @param kernel lato della finestra per MEDIAN e MIN (dispari, al più MAX_KERNEL)
+     * @return profondità, NaN se il punto è fuori dall'immagine
+     */
+    public float sample(float x, float y, Mode mode, int kernel){
+        if(!(x >= 0.0f && x <= width - 1) || !(y >= 0.0f && y <= height - 1))
+            return Float.NaN;
+
+        switch (mode){
+            case NEAREST:
+                return get(Math.round(x), Math.round(y));
+            case BILINEAR:
+                return sampleBilinear(x, y);
+            case MEDIAN:
+                return sampleMedian(Math.round(x), Math.round(y), kernel);
+            case MIN:
+                return sampleMin(Math.round(x), Math.round(y), kernel);
+            default:
+                throw new IllegalArgumentException("Modalità non riconosciuta: "+mode);
+        }
+    }
+
+    private float sampleBilinear(float x, float y){
+        int x0 = Math.min((int) x, width - 2);
+        int y0 = Math.min((int) y, height - 2);
+
+        //Immagini larghe o alte un solo pixel
+        if(x0 < 0 || y0 < 0) return get(Math.round(x), Math.round(y));
+
+        float fx = x - x0;
+        float fy = y - y0;
+
+        int index = y0 * width + x0;
+
+        float top = depth.get(index) + (depth.get(index + 1) - depth.get(index)) * fx;
+        float bottom = depth.get(index + width) + (depth.get(index + width + 1) - depth.get(index + width)) * fx;
+
+        return top + (bottom - top) * fy;
+    }
+
+    private float sampleMedian(int x, int y, int kernel){
+        checkKernel(kernel);
+
+        float[] values = window.get();
+        int count = 0;
+        int radius = kernel / 2;
+
+        int minX = Math.max(0, x - radius), maxX = Math.min(width - 1, x + radius);
+        int minY = Math.max(0, y - radius), maxY = Math.min(height - 1, y + radius);
+
+        for (int j = minY; j <= maxY; j++) {
+            int row = j * width;
+
+            for (int i = minX; i <= maxX; i++) {
+                //Insertion sort: al più MAX_KERNEL * MAX_KERNEL valori
+                float value = depth.get(row + i);
+
+                //I confronti con NaN sono sempre falsi: romperebbero l'ordinamento
+                if(Float.isNaN(value)) continue;
+
+                int k = count++;
+
+                while (k > 0 && values[k - 1] > value){
+                    values[k] = values[k - 1];
+                    k--;
+                }
+
+                values[k] = value;
+            }
+        }
+
+        return count > 0 ? values[count / 2] : Float.NaN;
+    }
+
+    private float sampleMin(int x, int y, int kernel){
+        checkKernel(kernel);
+
+        int radius = kernel / 2;
+        float min = Float.NaN;
+
+        int minX = Math.max(0, x - radius), maxX = Math.min(width - 1, x + radius);
+        int minY = Math.max(0, y - radius), maxY = Math.min(height - 1, y + radius);
+
+        for (int j = minY; j <= maxY; j++) {
+            int row = j * width;
+
+            for (int i = minX; i <= maxX; i++) {
+                float value = depth.get(row + i);
+
+                //Math.min propaga i NaN: li salto, min resta NaN solo se lo sono tutti
+                if(Float.isNaN(value)) continue;
+
+                if(Float.isNaN(min) || value < min) min = value;
+            }
+        }
+
+        return min;
+    }
+
+    private static void checkKernel(int kernel){
+        if(kernel < 1 || kernel > MAX_KERNEL || kernel % 2 == 0)
+            throw new IllegalArgumentException("Finestra non valida: "+kernel);
+    }
+}
@@ -0,0 +1,62 @@
+package it.unibo.cvlab.computescene;
+
+/**
+ * Media mobile esponenziale del solo scale factor: lo shift è quello dell'ultima calibrazione.
+ * Non converge mai, quindi ogni frame viene calibrato.
+ */
+public class ExponentialEstimator implements TemporalEstimator {
+
+    public static final double DEFAULT_ALPHA = 0.6;
+
+    private final double alpha;
+
+    private double scaleFactor = Double.NaN;
+    private double shiftFactor;
+
+    public ExponentialEstimator() {
+        this(DEFAULT_ALPHA);
+    }
+
+    /**
+     * @param alpha peso della nuova misura, tra 0 e 1
+     */
+    public ExponentialEstimator(double alpha) {
+        if(!(alpha > 0.0 && alpha <= 1.0))
+            throw new IllegalArgumentException("Peso non valido: "+alpha);
+
+        this.alpha = alpha;
+    }
+
+    @Override
+    public void reset() {
+        scaleFactor = Double.NaN;
+    }
+
+    @Override
+    public void predict() {
+    }
+
+    @Override
+    public boolean update(double scale, double shift, float[] predicted, float[] distance, float[] weight, int count) {
+        if(!Double.isFinite(scale)) return false;
+
+        scaleFactor = Double.isFinite(scaleFactor) ? scaleFactor * (1.0 - alpha) + scale * alpha : scale;
+        shiftFactor = shift;
+        return true;
+    }
+
+    @Override
+    public boolean isConverged() {
+        return false;
+    }
+
+    @Override
+    public double getScaleFactor() {
+        return scaleFactor;
+    }
+
+    @Override
+    public double getShiftFactor() {
+        return shiftFactor;
+    }
+}
@@ -0,0 +1,105 @@
+package it.unibo.cvlab.computescene;
+
+import it.unibo.cvlab.computescene.loader.DatasetLoader;
+import it.unibo.cvlab.computescene.model.Model;
+import it.unibo.cvlab.computescene.rendering.ScreenshotRenderer;
+import it.unibo.cvlab.computescene.saver.MySaver;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Elaborazione di un dataset con un modello: più job vengono eseguiti in sequenza
+ * dalla stessa istanza di ComputeScene, riutilizzando contesto OpenGL e grafo.
+ * Il loader del dataset viene creato solo quando il job parte e rilasciato alla fine,
+ * così i job in coda non tengono aperti cartelle o contenitori.
+ */
+public class Job {
+
+    /**
+     * Crea il loader del dataset all'avvio del job.
+     */
+    public interface LoaderFactory {
+        DatasetLoader create() throws IOException;
+    }
+
+    private final Path datasetPath;
+    private final LoaderFactory loaderFactory;
+    private final MySaver saver;
+    private final Model model;
+    private final ScreenshotRenderer.ColorType colorType;
+
+    private final boolean attivaOMA;
+    private final boolean attivaRPC;
+    private final boolean attivaDepth;
+
+    private DatasetLoader datasetLoader;
+
+    public Job(Path datasetPath, LoaderFactory loaderFactory, MySaver saver, Model model, boolean attivaOMA, boolean attivaRPC, boolean attivaDepth) {
+        this.datasetPath = datasetPath;
+        this.loaderFactory = loaderFactory;
+        this.saver = saver;
+        this.model = model;
+        this.colorType = ScreenshotRenderer.ColorType.parseByteSize(model.getInputDepth());
+        this.attivaOMA = attivaOMA;
+        this.attivaRPC = attivaRPC;
+        this.attivaDepth = attivaDepth;
+    }
+
+    public Job(DatasetLoader datasetLoader, MySaver saver, Model model, boolean attivaOMA, boolean attivaRPC, boolean attivaDepth) {
+        this(datasetLoader.getDatasetPath(), () -> datasetLoader, saver, model, attivaOMA, attivaRPC, attivaDepth);
+    }
+
+    public Path getDatasetPath() {
+        return datasetPath;
+    }
+
+    /**
+     * @return il loader del job, creato alla prima richiesta
+     */
+    public DatasetLoader getDatasetLoader() throws IOException {
+        if(datasetLoader == null)
+            datasetLoader = loaderFactory.create();
+
+        return datasetLoader;
+    }
+
+    /**
+     * Chiude il loader e lo rilascia: una nuova richiesta ne crea un altro.
+     */
+    public void releaseDatasetLoader() {
+        if(datasetLoader != null){
+            datasetLoader.close();
+            datasetLoader = null;
+        }
+    }
+
+    public MySaver getSaver() {
+        return saver;
+    }
+
+    public Model getModel() {
+        return model;
+    }
+
+    public ScreenshotRenderer.ColorType getColorType() {
+        return colorType;
+    }
+
+    public boolean isAttivaOMA() {
+        return attivaOMA;
+    }
+
+    public boolean isAttivaRPC() {
+        return attivaRPC;
+    }
+
+    public boolean isAttivaDepth() {
+        return attivaDepth;
+    }
+
+    @Override
+    public String toString() {
+        return model.getName() + " @ " + datasetPath;
+    }
+}
@@ -0,0 +1,229 @@
+package it.unibo.cvlab.computescene;
+
+/**
+ * Filtro di Kalman sullo stato (scale, shift), modellato come random walk.
+ * Il rumore di misura è la covarianza dei minimi quadrati pesati: varianza dei residui dei punti
+ * per l'inversa della matrice normale, quindi cala con il numero di punti e cresce con l'errore.
+ * Il rumore di processo è relativo: ad ogni frame la distanza alla distanza predetta media
+ * può variare di circa processNoise.
+ *
+ * Le misure troppo lontane dalla stima (distanza di Mahalanobis) vengono scartate; dopo
+ * alcuni scarti consecutivi il filtro riparte dalla misura, così segue i cambi di scena.
+ */
+public class ScaleShiftKalmanFilter implements TemporalEstimator {
+
+    public static final double DEFAULT_PROCESS_NOISE = 0.01;
+    public static final double DEFAULT_MIN_MEASUREMENT_NOISE = 0.01;
+    public static final double DEFAULT_CONVERGED_STD = 0.02;
+
+    //Sopra questo errore relativo il punto è un outlier e non entra nel rumore di misura
+    private static final double OUTLIER_THRESHOLD = 0.3;
+    //Chi quadro con 2 gradi di libertà al 99.9%
+    private static final double GATE = 13.8;
+    private static final int MAX_REJECTED = 3;
+    private static final int MIN_UPDATES = 3;
+
+    private final double processNoise;
+    private final double minMeasurementNoise;
+    private final double convergedStd;
+
+    private boolean initialized;
+    private int numUpdates;
+    private int numRejected;
+
+    //NaN finché non arriva la prima misura
+    private double scaleFactor = Double.NaN;
+    private double shiftFactor = Double.NaN;
+
+    //Covarianza della stima
+    private double p00, p01, p11;
+
+    //Covarianza dell'ultima misura
+    private double r00, r01, r11;
+
+    //Distanza predetta media dell'ultima misura: lega lo shift alla scala
+    private double meanPredicted = 1.0;
+
+    public ScaleShiftKalmanFilter() {
+        this(DEFAULT_PROCESS_NOISE, DEFAULT_MIN_MEASUREMENT_NOISE, DEFAULT_CONVERGED_STD);
+    }
+
+    /**
+     * @param processNoise variazione relativa attesa della distanza tra due frame
+     * @param minMeasurementNoise errore relativo minimo di una misura, anche con molti punti
+     * @param convergedStd deviazione standard relativa sotto cui la stima è stabile
+     */
+    public ScaleShiftKalmanFilter(double processNoise, double minMeasurementNoise, double convergedStd) {
+        if(!(processNoise > 0.0) || !(minMeasurementNoise > 0.0) || !(convergedStd > 0.0))
+            throw new IllegalArgumentException("Parametri del filtro non validi: "+processNoise+", "+minMeasurementNoise+", "+convergedStd);
+
+        this.processNoise = processNoise;
+        this.minMeasurementNoise = minMeasurementNoise;
+        this.convergedStd = convergedStd;
+    }
+
+    @Override
+    public void reset() {
+        initialized = false;
+        scaleFactor = Double.NaN;
+        shiftFactor = Double.NaN;
+        numUpdates = 0;
+        numRejected = 0;
+    }
+
+    @Override
+    public void predict() {
+        if(!initialized) return;
+
+        double scaleNoise = processNoise * scaleFactor;
+        double shiftNoise = scaleNoise * meanPredicted;
+
+        p00 += scaleNoise * scaleNoise;
+        p11 += shiftNoise * shiftNoise;
+    }
+
+    @Override
+    public boolean update(double scale, double shift, float[] predicted, float[] distance, float[] weight, int count) {
+        if(!Double.isFinite(scale) || !Double.isFinite(shift) || !(scale > 0.0)) return false;
+
+        measure(scale, shift, predicted, distance, weight, count);
+
+        if(!initialized || numRejected >= MAX_REJECTED){
+            scaleFactor = scale;
+            shiftFactor = shift;
+            p00 = r00;
+            p01 = r01;
+            p11 = r11;
+
+            initialized = true;
+            numUpdates = 1;
+            numRejected = 0;
+            return true;
+        }
+
+        predict();
+
+        //Innovazione e sua covarianza S = P + R
+        double y0 = scale - scaleFactor;
+        double y1 = shift - shiftFactor;
+
+        double s00 = p00 + r00;
+        double s01 = p01 + r01;
+        double s11 = p11 + r11;
+
+        double detS = s00 * s11 - s01 * s01;
+
+        if(!(detS > 0.0)) return false;
+
+        double i00 = s11 / detS;
+        double i01 = -s01 / detS;
+        double i11 = s00 / detS;
+
+        double mahalanobis = y0 * (i00 * y0 + i01 * y1) + y1 * (i01 * y0 + i11 * y1);
+
+        if(mahalanobis > GATE){
+            numRejected++;
+            return false;
+        }
+
+        //Guadagno K = P * S^-1
+        double k00 = p00 * i00 + p01 * i01;
+        double k01 = p00 * i01 + p01 * i11;
+        double k10 = p01 * i00 + p11 * i01;
+        double k11 = p01 * i01 + p11 * i11;
+
+        scaleFactor += k00 * y0 + k01 * y1;
+        shiftFactor += k10 * y0 + k11 * y1;
+
+        //P = (I - K) * P
+        double n00 = p00 - (k00 * p00 + k01 * p01);
+        double n01 = p01 - (k00 * p01 + k01 * p11);
+        double n11 = p11 - (k10 * p01 + k11 * p11);
+
+        p00 = n00;
+        p01 = n01;
+        p11 = n11;
+
+        numUpdates++;
+        numRejected = 0;
+        return true;
+    }
+
+    //Covarianza della misura dai residui dei punti
+    private void measure(double scale, double shift, float[] predicted, float[] distance, float[] weight, int count){
+        double sw = 0.0, swp = 0.0, swpp = 0.0, swrr = 0.0;
+        int n = 0;
+
+        for (int i = 0; i < count; i++) {
+            double d = distance[i];
+            double w = weight[i];
+
+            if(!(d > 0.0) || !(w > 0.0)) continue;
+
+            double p = predicted[i];
+            double residual = scale * p + shift - d;
+
+            if(Math.abs(residual) > OUTLIER_THRESHOLD * d) continue;
+
+            sw += w;
+            swp += w * p;
+            swpp += w * p * p;
+            swrr += w * residual * residual;
+            n++;
+        }
+
+        if(sw > 0.0) meanPredicted = Math.abs(swp / sw);
+
+        r00 = r01 = r11 = Double.NaN;
+
+        if(n > 2){
+            //Pesi normalizzati a media 1: la matrice normale cresce con il numero di punti
+            double norm = n / sw;
+            double a00 = swpp * norm;
+            double a01 = swp * norm;
+            double a11 = n;
+
+            double det = a00 * a11 - a01 * a01;
+            double variance = swrr / sw * n / (n - 2);
+
+            if(det > 0.0){
+                r00 = variance * a11 / det;
+                r01 = -variance * a01 / det;
+                r11 = variance * a00 / det;
+            }
+        }
+
+        //Troppi pochi punti per stimare l'errore: misura poco affidabile
+        if(!Double.isFinite(r00) || !Double.isFinite(r01) || !Double.isFinite(r11)){
+            r00 = scale * scale;
+            r01 = 0.0;
+            r11 = r00 * meanPredicted * meanPredicted;
+        }
+
+        double scaleNoise = minMeasurementNoise * scale;
+        double shiftNoise = scaleNoise * meanPredicted;
+
+        r00 += scaleNoise * scaleNoise;
+        r11 += shiftNoise * shiftNoise;
+    }
+
+    @Override
+    public boolean isConverged() {
+        if(!initialized || numUpdates < MIN_UPDATES) return false;
+
+        double scaleStd = convergedStd * scaleFactor;
+        double shiftStd = scaleStd * meanPredicted;
+
+        return p00 <= scaleStd * scaleStd && p11 <= shiftStd * shiftStd;
+    }
+
+    @Override
+    public double getScaleFactor() {
+        return scaleFactor;
+    }
+
+    @Override
+    public double getShiftFactor() {
+        return shiftFactor;
+    }
+}
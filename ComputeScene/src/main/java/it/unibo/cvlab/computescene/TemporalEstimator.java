@@ -0,0 +1,40 @@
+package it.unibo.cvlab.computescene;
+
+/**
+ * Stima temporale di scale e shift: combina la calibrazione del frame corrente con quelle precedenti
+ * per ridurre il flickering. Le misure arrivano in ordine di frame: non è thread safe.
+ */
+public interface TemporalEstimator {
+
+    /**
+     * Dimentica le misure precedenti (es. nuova sequenza).
+     */
+    void reset();
+
+    /**
+     * Avanza di un frame senza misura: la stima resta la stessa, ma diventa meno affidabile.
+     */
+    void predict();
+
+    /**
+     * Aggiunge la calibrazione di un frame.
+     *
+     * @param scale scale factor calibrato
+     * @param shift shift factor calibrato
+     * @param predicted distanze predette dei punti usati per la calibrazione
+     * @param distance distanze ARCore dei punti
+     * @param weight confidenza di ogni punto
+     * @param count numero di punti
+     * @return falso se la misura è stata scartata e la stima non è cambiata
+     */
+    boolean update(double scale, double shift, float[] predicted, float[] distance, float[] weight, int count);
+
+    /**
+     * @return vero se la stima è abbastanza stabile da saltare la calibrazione del frame
+     */
+    boolean isConverged();
+
+    double getScaleFactor();
+
+    double getShiftFactor();
+}
@@ -0,0 +1,257 @@
+package it.unibo.cvlab.computescene.dataset;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+/**
+ * Point cloud come structure of arrays: per ogni punto x,y (window coord), tx,ty,tz (world coord),
+ * confidence e distance. Gli array possono essere più lunghi di size(): vengono riutilizzati
+ * quando il buffer viene riempito di nuovo.
+ * Gli array restituiti dai getter sono quelli interni: vanno solo letti.
+ */
+public class PointCloudBuffer {
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    private int size;
+
+    private int[] x;
+    private int[] y;
+    private float[] tx;
+    private float[] ty;
+    private float[] tz;
+    private float[] confidence;
+    private float[] distance;
+
+    public PointCloudBuffer() {
+        this(INITIAL_CAPACITY);
+    }
+
+    public PointCloudBuffer(int capacity) {
+        allocate(Math.max(capacity, 1));
+    }
+
+    private void allocate(int capacity){
+        int[] newX = new int[capacity];
+        int[] newY = new int[capacity];
+        float[] newTx = new float[capacity];
+        float[] newTy = new float[capacity];
+        float[] newTz = new float[capacity];
+        float[] newConfidence = new float[capacity];
+        float[] newDistance = new float[capacity];
+
+        if(size > 0){
+            System.arraycopy(x, 0, newX, 0, size);
+            System.arraycopy(y, 0, newY, 0, size);
+            System.arraycopy(tx, 0, newTx, 0, size);
+            System.arraycopy(ty, 0, newTy, 0, size);
+            System.arraycopy(tz, 0, newTz, 0, size);
+            System.arraycopy(confidence, 0, newConfidence, 0, size);
+            System.arraycopy(distance, 0, newDistance, 0, size);
+        }
+
+        x = newX;
+        y = newY;
+        tx = newTx;
+        ty = newTy;
+        tz = newTz;
+        confidence = newConfidence;
+        distance = newDistance;
+    }
+
+    public void ensureCapacity(int capacity){
+        if(tx.length < capacity){
+            allocate(Math.max(capacity, tx.length * 2));
+        }
+    }
+
+    /**
+     * Svuota il buffer mantenendo gli array.
+     */
+    public void clear(){
+        size = 0;
+    }
+
+    public void add(int x, int y, float tx, float ty, float tz, float confidence, float distance){
+        ensureCapacity(size + 1);
+
+        this.x[size] = x;
+        this.y[size] = y;
+        this.tx[size] = tx;
+        this.ty[size] = ty;
+        this.tz[size] = tz;
+        this.confidence[size] = confidence;
+        this.distance[size] = distance;
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int[] getX() {
+        return x;
+    }
+
+    public int[] getY() {
+        return y;
+    }
+
+    public float[] getTx() {
+        return tx;
+    }
+
+    public float[] getTy() {
+        return ty;
+    }
+
+    public float[] getTz() {
+        return tz;
+    }
+
+    public float[] getConfidence() {
+        return confidence;
+    }
+
+    public float[] getDistance() {
+        return distance;
+    }
+
+    /**
+     * Scrive i punti interleaved X,Y,Z,confidence a partire dalla posizione corrente del buffer.
+     */
+    public void writeTo(FloatBuffer target){
+        for (int i = 0; i < size; i++) {
+            target.put(tx[i]);
+            target.put(ty[i]);
+            target.put(tz[i]);
+            target.put(confidence[i]);
+        }
+    }
+
+    /**
+     * Legge count punti memorizzati per colonne (x, y, tx, ty, tz, confidence, distance),
+     * con l'ordine dei byte del buffer. Il buffer di destinazione viene sovrascritto.
+     */
+    public void read(ByteBuffer in, int count){
+        clear();
+        ensureCapacity(count);
+
+        in.asIntBuffer().get(x, 0, count);
+        in.position(in.position() + count * Integer.BYTES);
+        in.asIntBuffer().get(y, 0, count);
+        in.position(in.position() + count * Integer.BYTES);
+
+        for (float[] column : new float[][]{tx, ty, tz, confidence, distance}) {
+            in.asFloatBuffer().get(column, 0, count);
+            in.position(in.position() + count * Float.BYTES);
+        }
+
+        size = count;
+    }
+
+    /**
+     * Decodifica in streaming l'array json dei punti, senza creare un oggetto per punto.
+     * I punti null vengono saltati. Il buffer di destinazione viene svuotato.
+     */
+    public void read(JsonReader in) throws IOException {
+        clear();
+
+        in.beginArray();
+
+        while (in.hasNext()){
+            if(in.peek() == JsonToken.NULL){
+                in.nextNull();
+                continue;
+            }
+
+            int pointX = 0, pointY = 0;
+            float pointTx = 0.0f, pointTy = 0.0f, pointTz = 0.0f;
+            float pointConfidence = 0.0f, pointDistance = 0.0f;
+
+            in.beginObject();
+
+            while (in.hasNext()){
+                switch (in.nextName()){
+                    case "x":
+                        pointX = in.nextInt();
+                        break;
+                    case "y":
+                        pointY = in.nextInt();
+                        break;
+                    case "tx":
+                        pointTx = (float) in.nextDouble();
+                        break;
+                    case "ty":
+                        pointTy = (float) in.nextDouble();
+                        break;
+                    case "tz":
+                        pointTz = (float) in.nextDouble();
+                        break;
+                    case "confidence":
+                        pointConfidence = (float) in.nextDouble();
+                        break;
+                    case "distance":
+                        pointDistance = (float) in.nextDouble();
+                        break;
+                    default:
+                        in.skipValue();
+                }
+            }
+
+            in.endObject();
+
+            add(pointX, pointY, pointTx, pointTy, pointTz, pointConfidence, pointDistance);
+        }
+
+        in.endArray();
+    }
+
+    /**
+     * Adapter Gson per il campo points di PointCloudDataset: stesso formato json di un array di Point.
+     */
+    public static class Adapter extends TypeAdapter<PointCloudBuffer> {
+
+        @Override
+        public void write(JsonWriter out, PointCloudBuffer value) throws IOException {
+            if(value == null){
+                out.nullValue();
+                return;
+            }
+
+            out.beginArray();
+
+            for (int i = 0; i < value.size; i++) {
+                out.beginObject();
+                out.name("x").value(value.x[i]);
+                out.name("y").value(value.y[i]);
+                out.name("tx").value(value.tx[i]);
+                out.name("ty").value(value.ty[i]);
+                out.name("tz").value(value.tz[i]);
+                out.name("confidence").value(value.confidence[i]);
+                out.name("distance").value(value.distance[i]);
+                out.endObject();
+            }
+
+            out.endArray();
+        }
+
+        @Override
+        public PointCloudBuffer read(JsonReader in) throws IOException {
+            if(in.peek() == JsonToken.NULL){
+                in.nextNull();
+                return new PointCloudBuffer(1);
+            }
+
+            PointCloudBuffer buffer = new PointCloudBuffer();
+            buffer.read(in);
+            return buffer;
+        }
+    }
+}
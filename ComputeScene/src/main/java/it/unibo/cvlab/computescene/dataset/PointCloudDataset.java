@@ -1,9 +1,14 @@
 package it.unibo.cvlab.computescene.dataset;
 
 import com.google.gson.annotations.Expose;
+import com.google.gson.annotations.JsonAdapter;
 import com.google.gson.annotations.SerializedName;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 
-import java.nio.FloatBuffer;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 
 public class PointCloudDataset {
 
@@ -41,11 +46,16 @@ public class PointCloudDataset {
     @SerializedName("numPoints")
     private int numPoints;
 
+    //Decodificati direttamente negli array, senza un oggetto per punto
     @Expose
     @SerializedName("points")
-    private Point[] points;
+    @JsonAdapter(PointCloudBuffer.Adapter.class)
+    private PointCloudBuffer points;
 
-    public PointCloudDataset(long pointCloudTimestamp, Point[] points, float minDistance, float maxDistance, String origin, int numPoints) {
+    public PointCloudDataset() {
+    }
+
+    public PointCloudDataset(long pointCloudTimestamp, PointCloudBuffer points, float minDistance, float maxDistance, String origin, int numPoints) {
         this.pointCloudTimestamp = pointCloudTimestamp;
         this.points = points;
         this.minDistance = minDistance;
@@ -58,7 +68,8 @@ public class PointCloudDataset {
         return pointCloudTimestamp;
     }
 
-    public Point[] getPoints() {
+    public PointCloudBuffer getPoints() {
+        if(points == null) points = new PointCloudBuffer(1);
         return points;
     }
 
@@ -77,4 +88,124 @@ public class PointCloudDataset {
     public int getNumPoints() {
         return numPoints;
     }
+
+    //Parte fissa del formato binario: timestamp, distanze, numero di punti, lunghezza origin e punti
+    private static final int BINARY_FIXED_SIZE = Long.BYTES + 2 * Float.BYTES + 3 * Integer.BYTES;
+    //x, y, tx, ty, tz, confidence, distance
+    private static final int BINARY_POINT_SIZE = 2 * Integer.BYTES + 5 * Float.BYTES;
+
+    /**
+     * @return byte occupati da write
+     */
+    public int getBinarySize(){
+        int originSize = origin != null ? origin.getBytes(StandardCharsets.UTF_8).length : 0;
+        return BINARY_FIXED_SIZE + originSize + getPoints().size() * BINARY_POINT_SIZE;
+    }
+
+    /**
+     * Scrive la point cloud in formato binario, nell'ordine del buffer.
+     * I punti sono scritti per colonne (tutte le x, poi tutte le y, ...) per leggerli in blocco.
+     */
+    public void write(ByteBuffer out){
+        PointCloudBuffer buffer = getPoints();
+        int size = buffer.size();
+
+        out.putLong(pointCloudTimestamp);
+        out.putFloat(minDistance);
+        out.putFloat(maxDistance);
+        out.putInt(numPoints);
+
+        if(origin == null){
+            out.putInt(-1);
+        }else{
+            byte[] bytes = origin.getBytes(StandardCharsets.UTF_8);
+            out.putInt(bytes.length);
+            out.put(bytes);
+        }
+
+        out.putInt(size);
+
+        out.asIntBuffer().put(buffer.getX(), 0, size);
+        out.position(out.position() + size * Integer.BYTES);
+        out.asIntBuffer().put(buffer.getY(), 0, size);
+        out.position(out.position() + size * Integer.BYTES);
+
+        for (float[] column : new float[][]{buffer.getTx(), buffer.getTy(), buffer.getTz(), buffer.getConfidence(), buffer.getDistance()}) {
+            out.asFloatBuffer().put(column, 0, size);
+            out.position(out.position() + size * Float.BYTES);
+        }
+    }
+
+    /**
+     * Legge una point cloud binaria scritta da write, sovrascrivendo questa.
+     * Le colonne vengono copiate in blocco negli array del PointCloudBuffer esistente.
+     */
+    public void read(ByteBuffer in){
+        pointCloudTimestamp = in.getLong();
+        minDistance = in.getFloat();
+        maxDistance = in.getFloat();
+        numPoints = in.getInt();
+
+        int originSize = in.getInt();
+
+        if(originSize < 0){
+            origin = null;
+        }else{
+            byte[] bytes = new byte[originSize];
+            in.get(bytes);
+            origin = new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        getPoints().read(in, in.getInt());
+    }
+
+    /**
+     * Decodifica in streaming una point cloud json, sovrascrivendo questa.
+     * I punti vengono letti negli array del PointCloudBuffer esistente.
+     */
+    public void read(JsonReader in) throws IOException {
+        pointCloudTimestamp = 0;
+        minDistance = maxDistance = 0.0f;
+        origin = null;
+        numPoints = 0;
+
+        PointCloudBuffer buffer = getPoints();
+        buffer.clear();
+
+        in.beginObject();
+
+        while (in.hasNext()){
+            String name = in.nextName();
+
+            if(in.peek() == JsonToken.NULL){
+                in.nextNull();
+                continue;
+            }
+
+            switch (name){
+                case "pointCloudTimestamp":
+                    pointCloudTimestamp = in.nextLong();
+                    break;
+                case "minDistance":
+                    minDistance = (float) in.nextDouble();
+                    break;
+                case "maxDistance":
+                    maxDistance = (float) in.nextDouble();
+                    break;
+                case "origin":
+                    origin = in.nextString();
+                    break;
+                case "numPoints":
+                    numPoints = in.nextInt();
+                    break;
+                case "points":
+                    buffer.read(in);
+                    break;
+                default:
+                    in.skipValue();
+            }
+        }
+
+        in.endObject();
+    }
 }
@@ -1,6 +1,12 @@
 package it.unibo.cvlab.computescene.dataset;
 
 import com.google.gson.annotations.Expose;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 public class Pose implements ITraslation{
 
@@ -27,6 +33,9 @@ public class Pose implements ITraslation{
     @Expose
     private float[] modelViewProjectionMatrix;
 
+    public Pose() {
+    }
+
     public Pose(float tx, float ty, float tz, float qx, float qy, float qz, float qw, float[] modelMatrix, float[] modelViewMatrix, float[] modelViewProjectionMatrix) {
         this.tx = tx;
         this.ty = ty;
@@ -82,4 +91,195 @@ public class Pose implements ITraslation{
     public float[] getModelViewProjectionMatrix() {
         return modelViewProjectionMatrix;
     }
+
+    /**
+     * Decodifica in streaming una posa json, sovrascrivendo questa.
+     * Le matrici vengono lette negli array esistenti se hanno la stessa dimensione.
+     */
+    public void read(JsonReader in) throws IOException {
+        tx = ty = tz = 0.0f;
+        qx = qy = qz = qw = 0.0f;
+
+        //Come Gson, le matrici assenti restano null
+        float[] readModelMatrix = null, readModelViewMatrix = null, readModelViewProjectionMatrix = null;
+
+        in.beginObject();
+
+        while (in.hasNext()){
+            switch (in.nextName()){
+                case "tx":
+                    tx = (float) in.nextDouble();
+                    break;
+                case "ty":
+                    ty = (float) in.nextDouble();
+                    break;
+                case "tz":
+                    tz = (float) in.nextDouble();
+                    break;
+                case "qx":
+                    qx = (float) in.nextDouble();
+                    break;
+                case "qy":
+                    qy = (float) in.nextDouble();
+                    break;
+                case "qz":
+                    qz = (float) in.nextDouble();
+                    break;
+                case "qw":
+                    qw = (float) in.nextDouble();
+                    break;
+                case "modelMatrix":
+                    readModelMatrix = readFloats(in, modelMatrix);
+                    break;
+                case "modelViewMatrix":
+                    readModelViewMatrix = readFloats(in, modelViewMatrix);
+                    break;
+                case "modelViewProjectionMatrix":
+                    readModelViewProjectionMatrix = readFloats(in, modelViewProjectionMatrix);
+                    break;
+                default:
+                    in.skipValue();
+            }
+        }
+
+        in.endObject();
+
+        modelMatrix = readModelMatrix;
+        modelViewMatrix = readModelViewMatrix;
+        modelViewProjectionMatrix = readModelViewProjectionMatrix;
+    }
+
+    //Matrici 4x4 column-major
+    static final int MATRIX_SIZE = 16;
+
+    //Formato binario: flag, traslazione, quaternione e 3 matrici, anche se assenti
+    public static final int BINARY_SIZE = Integer.BYTES + 7 * Float.BYTES + 3 * MATRIX_SIZE * Float.BYTES;
+
+    private static final int FLAG_PRESENT = 1;
+    private static final int FLAG_MODEL = 1 << 1;
+    private static final int FLAG_MODEL_VIEW = 1 << 2;
+    private static final int FLAG_MODEL_VIEW_PROJECTION = 1 << 3;
+
+    /**
+     * Scrive la posa in formato binario (BINARY_SIZE byte, nell'ordine del buffer).
+     * Una posa null occupa lo stesso spazio.
+     */
+    public static void write(ByteBuffer out, Pose pose){
+        if(pose == null){
+            out.putInt(0);
+            putMatrix(out, null);
+            putMatrix(out, null);
+            putMatrix(out, null);
+            for (int i = 0; i < 7; i++) out.putFloat(0.0f);
+            return;
+        }
+
+        int flags = FLAG_PRESENT;
+        if(pose.modelMatrix != null) flags |= FLAG_MODEL;
+        if(pose.modelViewMatrix != null) flags |= FLAG_MODEL_VIEW;
+        if(pose.modelViewProjectionMatrix != null) flags |= FLAG_MODEL_VIEW_PROJECTION;
+
+        out.putInt(flags);
+        putMatrix(out, pose.modelMatrix);
+        putMatrix(out, pose.modelViewMatrix);
+        putMatrix(out, pose.modelViewProjectionMatrix);
+        out.putFloat(pose.tx).putFloat(pose.ty).putFloat(pose.tz);
+        out.putFloat(pose.qx).putFloat(pose.qy).putFloat(pose.qz).putFloat(pose.qw);
+    }
+
+    /**
+     * Legge una posa binaria scritta da write, riusando target e le sue matrici.
+     *
+     * @return la posa letta, null se era null
+     */
+    public static Pose read(ByteBuffer in, Pose target){
+        int flags = in.getInt();
+
+        if((flags & FLAG_PRESENT) == 0){
+            in.position(in.position() + BINARY_SIZE - Integer.BYTES);
+            return null;
+        }
+
+        Pose pose = target != null ? target : new Pose();
+
+        pose.modelMatrix = getMatrix(in, (flags & FLAG_MODEL) != 0, pose.modelMatrix);
+        pose.modelViewMatrix = getMatrix(in, (flags & FLAG_MODEL_VIEW) != 0, pose.modelViewMatrix);
+        pose.modelViewProjectionMatrix = getMatrix(in, (flags & FLAG_MODEL_VIEW_PROJECTION) != 0, pose.modelViewProjectionMatrix);
+        pose.tx = in.getFloat();
+        pose.ty = in.getFloat();
+        pose.tz = in.getFloat();
+        pose.qx = in.getFloat();
+        pose.qy = in.getFloat();
+        pose.qz = in.getFloat();
+        pose.qw = in.getFloat();
+
+        return pose;
+    }
+
+    /**
+     * Scrive una matrice 4x4, zeri se null.
+     */
+    static void putMatrix(ByteBuffer out, float[] matrix){
+        if(matrix != null && matrix.length != MATRIX_SIZE)
+            throw new IllegalArgumentException("Matrice non 4x4: "+matrix.length+" valori");
+
+        for (int i = 0; i < MATRIX_SIZE; i++) {
+            out.putFloat(matrix != null ? matrix[i] : 0.0f);
+        }
+    }
+
+    /**
+     * Legge una matrice 4x4 in target se possibile.
+     *
+     * @param present falso se la matrice era null: i valori vengono saltati
+     */
+    static float[] getMatrix(ByteBuffer in, boolean present, float[] target){
+        if(!present){
+            in.position(in.position() + MATRIX_SIZE * Float.BYTES);
+            return null;
+        }
+
+        float[] matrix = target != null && target.length == MATRIX_SIZE ? target : new float[MATRIX_SIZE];
+
+        for (int i = 0; i < MATRIX_SIZE; i++) {
+            matrix[i] = in.getFloat();
+        }
+
+        return matrix;
+    }
+
+    /**
+     * Legge un array json di float riusando target quando la dimensione coincide.
+     *
+     * @return l'array letto, null se il valore json è null
+     */
+    static float[] readFloats(JsonReader in, float[] target) throws IOException {
+        if(in.peek() == JsonToken.NULL){
+            in.nextNull();
+            return null;
+        }
+
+        float[] values = target;
+        int count = 0;
+
+        in.beginArray();
+
+        while (in.hasNext()){
+            float value = (float) in.nextDouble();
+
+            if(values == null){
+                values = new float[MATRIX_SIZE];
+            }else if(count == values.length){
+                values = Arrays.copyOf(values, values.length * 2);
+            }
+
+            values[count++] = value;
+        }
+
+        in.endArray();
+
+        if(values == null) return new float[0];
+
+        return values.length == count ? values : Arrays.copyOf(values, count);
+    }
 }
@@ -2,6 +2,12 @@ package it.unibo.cvlab.computescene.dataset;
 
 import com.google.gson.annotations.Expose;
 import com.google.gson.annotations.SerializedName;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 public class SceneDataset {
 
@@ -71,6 +77,12 @@ public class SceneDataset {
     @SerializedName("projmtx")
     private float[] projmtx;
 
+    //Pose delle ancore riutilizzate dalla decodifica in streaming
+    private Pose[] anchorPool = new Pose[0];
+
+    public SceneDataset() {
+    }
+
     public SceneDataset(Pose cameraPose, Pose cameraDisplayPose, Pose sensorPose, int displayRotation, long frameNumber, long timestmap, int width, int height, int numeroAncore, Pose[] ancore, float nearPlane, float farPlane, float[] viewmtx, float[] projmtx) {
         this.cameraPose = cameraPose;
         this.cameraDisplayPose = cameraDisplayPose;
@@ -147,4 +159,218 @@ public class SceneDataset {
     public void setDisplayRotation(int displayRotation) {
         this.displayRotation = displayRotation;
     }
+
+    /**
+     * Decodifica in streaming una scena json, sovrascrivendo questa.
+     * Pose, ancore e matrici già presenti vengono riutilizzate.
+     */
+    public void read(JsonReader in) throws IOException {
+        displayRotation = 0;
+        frameNumber = timestmap = 0;
+        width = height = numeroAncore = 0;
+        nearPlane = farPlane = 0.0f;
+
+        //Come Gson, i campi assenti restano null
+        Pose readCameraPose = null, readCameraDisplayPose = null, readSensorPose = null;
+        Pose[] readAncore = null;
+        float[] readViewmtx = null, readProjmtx = null;
+
+        in.beginObject();
+
+        while (in.hasNext()){
+            String name = in.nextName();
+
+            if(in.peek() == JsonToken.NULL){
+                in.nextNull();
+                continue;
+            }
+
+            switch (name){
+                case "cameraPose":
+                    readCameraPose = readPose(in, cameraPose);
+                    break;
+                case "cameraDisplayPose":
+                    readCameraDisplayPose = readPose(in, cameraDisplayPose);
+                    break;
+                case "sensorPose":
+                    readSensorPose = readPose(in, sensorPose);
+                    break;
+                case "displayRotation":
+                    displayRotation = in.nextInt();
+                    break;
+                case "frameNumber":
+                    frameNumber = in.nextLong();
+                    break;
+                case "timestamp":
+                    timestmap = in.nextLong();
+                    break;
+                case "width":
+                    width = in.nextInt();
+                    break;
+                case "height":
+                    height = in.nextInt();
+                    break;
+                case "numeroAncore":
+                    numeroAncore = in.nextInt();
+                    break;
+                case "ancore":
+                    readAncore = readAnchors(in);
+                    break;
+                case "nearPlane":
+                    nearPlane = (float) in.nextDouble();
+                    break;
+                case "farPlane":
+                    farPlane = (float) in.nextDouble();
+                    break;
+                case "viewmtx":
+                    readViewmtx = Pose.readFloats(in, viewmtx);
+                    break;
+                case "projmtx":
+                    readProjmtx = Pose.readFloats(in, projmtx);
+                    break;
+                default:
+                    in.skipValue();
+            }
+        }
+
+        in.endObject();
+
+        cameraPose = readCameraPose;
+        cameraDisplayPose = readCameraDisplayPose;
+        sensorPose = readSensorPose;
+        ancore = readAncore;
+        viewmtx = readViewmtx;
+        projmtx = readProjmtx;
+    }
+
+    //Parte fissa del formato binario: campi numerici, flag e matrici, 3 pose e numero di ancore
+    private static final int BINARY_FIXED_SIZE = 6 * Integer.BYTES + 2 * Long.BYTES + 2 * Float.BYTES
+            + 2 * Pose.MATRIX_SIZE * Float.BYTES + 3 * Pose.BINARY_SIZE;
+
+    private static final int FLAG_VIEW = 1;
+    private static final int FLAG_PROJECTION = 1 << 1;
+
+    /**
+     * @return byte occupati da write
+     */
+    public int getBinarySize(){
+        return BINARY_FIXED_SIZE + (ancore != null ? ancore.length * Pose.BINARY_SIZE : 0);
+    }
+
+    /**
+     * Scrive la scena in formato binario a dimensione fissa, nell'ordine del buffer.
+     */
+    public void write(ByteBuffer out){
+        int flags = 0;
+        if(viewmtx != null) flags |= FLAG_VIEW;
+        if(projmtx != null) flags |= FLAG_PROJECTION;
+
+        out.putInt(displayRotation);
+        out.putLong(frameNumber);
+        out.putLong(timestmap);
+        out.putInt(width);
+        out.putInt(height);
+        out.putInt(numeroAncore);
+        out.putFloat(nearPlane);
+        out.putFloat(farPlane);
+        out.putInt(flags);
+        Pose.putMatrix(out, viewmtx);
+        Pose.putMatrix(out, projmtx);
+        Pose.write(out, cameraPose);
+        Pose.write(out, cameraDisplayPose);
+        Pose.write(out, sensorPose);
+
+        if(ancore == null){
+            out.putInt(-1);
+            return;
+        }
+
+        out.putInt(ancore.length);
+
+        for (Pose ancora : ancore) {
+            Pose.write(out, ancora);
+        }
+    }
+
+    /**
+     * Legge una scena binaria scritta da write, sovrascrivendo questa.
+     * Pose, ancore e matrici già presenti vengono riutilizzate.
+     */
+    public void read(ByteBuffer in){
+        displayRotation = in.getInt();
+        frameNumber = in.getLong();
+        timestmap = in.getLong();
+        width = in.getInt();
+        height = in.getInt();
+        numeroAncore = in.getInt();
+        nearPlane = in.getFloat();
+        farPlane = in.getFloat();
+
+        int flags = in.getInt();
+        viewmtx = Pose.getMatrix(in, (flags & FLAG_VIEW) != 0, viewmtx);
+        projmtx = Pose.getMatrix(in, (flags & FLAG_PROJECTION) != 0, projmtx);
+
+        cameraPose = Pose.read(in, cameraPose);
+        cameraDisplayPose = Pose.read(in, cameraDisplayPose);
+        sensorPose = Pose.read(in, sensorPose);
+
+        int count = in.getInt();
+
+        if(count < 0){
+            ancore = null;
+            return;
+        }
+
+        if(anchorPool.length < count){
+            anchorPool = Arrays.copyOf(anchorPool, count);
+        }
+
+        Pose[] result = ancore != null && ancore.length == count ? ancore : new Pose[count];
+        int read = 0;
+
+        for (int i = 0; i < count; i++) {
+            Pose pose = Pose.read(in, anchorPool[i]);
+
+            if(pose == null) continue;
+
+            anchorPool[i] = pose;
+            result[read++] = pose;
+        }
+
+        ancore = read == count ? result : Arrays.copyOf(result, read);
+    }
+
+    private static Pose readPose(JsonReader in, Pose target) throws IOException {
+        Pose pose = target != null ? target : new Pose();
+        pose.read(in);
+        return pose;
+    }
+
+    private Pose[] readAnchors(JsonReader in) throws IOException {
+        int count = 0;
+
+        in.beginArray();
+
+        while (in.hasNext()){
+            if(in.peek() == JsonToken.NULL){
+                in.skipValue();
+                continue;
+            }
+
+            if(count == anchorPool.length){
+                anchorPool = Arrays.copyOf(anchorPool, Math.max(4, anchorPool.length * 2));
+            }
+
+            anchorPool[count] = readPose(in, anchorPool[count]);
+            count++;
+        }
+
+        in.endArray();
+
+        //L'array delle ancore deve avere la dimensione esatta: lo ricreo solo se cambia
+        Pose[] result = ancore != null && ancore.length == count ? ancore : new Pose[count];
+
+        System.arraycopy(anchorPool, 0, result, 0, count);
+        return result;
+    }
 }
@@ -0,0 +1,415 @@
+package it.unibo.cvlab.computescene.loader;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.annotations.Expose;
+import com.google.gson.annotations.SerializedName;
+import it.unibo.cvlab.computescene.ComputeScene;
+import it.unibo.cvlab.computescene.saver.MySaver;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Legge la configurazione di un'esecuzione non interattiva da file json e/o da riga di comando.
+ * I parametri passati da riga di comando sovrascrivono quelli del file.
+ *
+ * Esempio:
+ * <pre>
+ * --config nightly.json --model models/pydnet.json --dataset /data/scena1 --dataset /data/scena2
+ * --frames 0:99 --outputs oma,depth --format png --no-rpc --threads 4 --prefetch 4 --decode-threads 2
+ * --pipeline 2 --batch 4 --batch-memory 256 --temporal kalman --writer-threads 2 --writer-queue 8 --headless
+ * </pre>
+ */
+public class ConfigLoader {
+    private final static Gson gson;
+
+    static {
+        GsonBuilder builder = new GsonBuilder().excludeFieldsWithoutExposeAnnotation();
+        gson = builder.create();
+    }
+
+    public static class Config {
+        @Expose
+        @SerializedName("models")
+        private String[] models = new String[0];
+
+        @Expose
+        @SerializedName("datasets")
+        private String[] datasets = new String[0];
+
+        @Expose
+        @SerializedName("objects")
+        private String objects;
+
+        @Expose
+        @SerializedName("firstFrame")
+        private int firstFrame = 0;
+
+        @Expose
+        @SerializedName("lastFrame")
+        private int lastFrame = -1;
+
+        @Expose
+        @SerializedName("outputs")
+        private MySaver.Output[] outputs;
+
+        @Expose
+        @SerializedName("format")
+        private String format = MySaver.DEFAULT_FORMAT;
+
+        @Expose
+        @SerializedName("oma")
+        private boolean oma = true;
+
+        @Expose
+        @SerializedName("rpc")
+        private boolean rpc = false;
+
+        @Expose
+        @SerializedName("depth")
+        private boolean depth = false;
+
+        @Expose
+        @SerializedName("headless")
+        private boolean headless = false;
+
+        @Expose
+        @SerializedName("threads")
+        private int threads = 4;
+
+        //Frame decodificati in anticipo, 0 per caricare i frame in modo sincrono
+        @Expose
+        @SerializedName("prefetch")
+        private int prefetch = PrefetchDatasetLoader.DEFAULT_DEPTH;
+
+        @Expose
+        @SerializedName("decodeThreads")
+        private int decodeThreads = PrefetchDatasetLoader.DEFAULT_THREADS;
+
+        //Frame elaborati contemporaneamente da inferenza, calibrazione e composizione
+        @Expose
+        @SerializedName("pipeline")
+        private int pipeline = ComputeScene.DEFAULT_PIPELINE_DEPTH;
+
+        //Frame per inferenza, limitati da batchMemory (MB per input e output)
+        @Expose
+        @SerializedName("batch")
+        private int batch = ComputeScene.DEFAULT_BATCH_SIZE;
+
+        @Expose
+        @SerializedName("batchMemory")
+        private int batchMemory = (int) (ComputeScene.DEFAULT_BATCH_MEMORY / (1024 * 1024));
+
+        //Stima temporale di scale e shift: kalman oppure ema
+        @Expose
+        @SerializedName("temporal")
+        private ComputeScene.Temporal temporal = ComputeScene.Temporal.KALMAN;
+
+        @Expose
+        @SerializedName("writerThreads")
+        private int writerThreads = MySaver.DEFAULT_WRITER_THREADS;
+
+        @Expose
+        @SerializedName("writerQueue")
+        private int writerQueue = MySaver.DEFAULT_WRITER_QUEUE;
+
+        public String[] getModels() {
+            return models;
+        }
+
+        public String[] getDatasets() {
+            return datasets;
+        }
+
+        public String getObjects() {
+            return objects;
+        }
+
+        public int getFirstFrame() {
+            return firstFrame;
+        }
+
+        public int getLastFrame() {
+            return lastFrame;
+        }
+
+        public Set<MySaver.Output> getOutputs() {
+            if(outputs == null || outputs.length == 0)
+                return EnumSet.allOf(MySaver.Output.class);
+
+            return EnumSet.copyOf(Arrays.asList(outputs));
+        }
+
+        public String getFormat() {
+            return format;
+        }
+
+        public boolean isOma() {
+            return oma;
+        }
+
+        public boolean isRpc() {
+            return rpc;
+        }
+
+        public boolean isDepth() {
+            return depth;
+        }
+
+        public boolean isHeadless() {
+            return headless;
+        }
+
+        public int getThreads() {
+            return threads;
+        }
+
+        public int getPrefetch() {
+            return prefetch;
+        }
+
+        public int getDecodeThreads() {
+            return decodeThreads;
+        }
+
+        public int getPipeline() {
+            return pipeline;
+        }
+
+        public int getBatch() {
+            return batch;
+        }
+
+        public int getBatchMemory() {
+            return batchMemory;
+        }
+
+        public ComputeScene.Temporal getTemporal() {
+            return temporal != null ? temporal : ComputeScene.Temporal.KALMAN;
+        }
+
+        public int getWriterThreads() {
+            return writerThreads;
+        }
+
+        public int getWriterQueue() {
+            return writerQueue;
+        }
+    }
+
+    /**
+     * Verifica se gli argomenti richiedono un'esecuzione non interattiva.
+     * Il solo flag --headless non basta: senza modello e dataset si chiedono su stdin.
+     */
+    public static boolean isBatch(String[] args){
+        for(String arg : args){
+            if(!arg.equals("--headless")) return true;
+        }
+
+        return false;
+    }
+
+    public Config parseConfig(Path configPath) throws IOException {
+        if(!Files.exists(configPath)){
+            throw new IllegalStateException("Path non corretto: "+ configPath);
+        }
+
+        try (BufferedReader reader = Files.newBufferedReader(configPath)) {
+            Config config = gson.fromJson(reader, Config.class);
+
+            if(config == null)
+                throw new IllegalArgumentException("Configurazione vuota: "+configPath);
+
+            return config;
+        }
+    }
+
+    /**
+     * Costruisce la configurazione a partire dagli argomenti di riga di comando.
+     * Se è presente --config il file viene letto per primo, gli altri flag lo sovrascrivono.
+     * I flag --model e --dataset sono ripetibili.
+     */
+    public Config parseArgs(String[] args) throws IOException {
+        Config config = new Config();
+
+        for (int i = 0; i < args.length; i++) {
+            if(args[i].equals("--config")) config = parseConfig(Paths.get(requireValue(args, i)));
+        }
+
+        List<String> models = new ArrayList<>();
+        List<String> datasets = new ArrayList<>();
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+
+            switch (arg){
+                case "--config":
+                    i++;
+                    break;
+                case "--model":
+                    models.add(requireValue(args, i++));
+                    break;
+                case "--dataset":
+                    datasets.add(requireValue(args, i++));
+                    break;
+                case "--objects":
+                    config.objects = requireValue(args, i++);
+                    break;
+                case "--frames":
+                    parseFrameRange(config, requireValue(args, i++));
+                    break;
+                case "--outputs":
+                    config.outputs = parseOutputs(requireValue(args, i++));
+                    break;
+                case "--format":
+                    config.format = requireValue(args, i++);
+                    break;
+                case "--threads":
+                    config.threads = parseInt(arg, requireValue(args, i++));
+                    break;
+                case "--prefetch":
+                    config.prefetch = parseInt(arg, requireValue(args, i++));
+                    break;
+                case "--decode-threads":
+                    config.decodeThreads = parseInt(arg, requireValue(args, i++));
+                    break;
+                case "--pipeline":
+                    config.pipeline = parseInt(arg, requireValue(args, i++));
+                    break;
+                case "--batch":
+                    config.batch = parseInt(arg, requireValue(args, i++));
+                    break;
+                case "--batch-memory":
+                    config.batchMemory = parseInt(arg, requireValue(args, i++));
+                    break;
+                case "--temporal":
+                    config.temporal = parseTemporal(requireValue(args, i++));
+                    break;
+                case "--writer-threads":
+                    config.writerThreads = parseInt(arg, requireValue(args, i++));
+                    break;
+                case "--writer-queue":
+                    config.writerQueue = parseInt(arg, requireValue(args, i++));
+                    break;
+                case "--oma":
+                    config.oma = true;
+                    break;
+                case "--no-oma":
+                    config.oma = false;
+                    break;
+                case "--rpc":
+                    config.rpc = true;
+                    break;
+                case "--no-rpc":
+                    config.rpc = false;
+                    break;
+                case "--depth":
+                    config.depth = true;
+                    break;
+                case "--no-depth":
+                    config.depth = false;
+                    break;
+                case "--headless":
+                    config.headless = true;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Argomento non riconosciuto: "+arg);
+            }
+        }
+
+        if(!models.isEmpty()) config.models = models.toArray(new String[0]);
+        if(!datasets.isEmpty()) config.datasets = datasets.toArray(new String[0]);
+
+        if(config.models.length == 0)
+            throw new IllegalArgumentException("Nessun modello specificato");
+
+        if(config.datasets.length == 0)
+            throw new IllegalArgumentException("Nessun dataset specificato");
+
+        if(config.threads <= 0)
+            throw new IllegalArgumentException("Numero di thread non valido: "+config.threads);
+
+        if(config.prefetch < 0)
+            throw new IllegalArgumentException("Profondità di prefetch non valida: "+config.prefetch);
+
+        if(config.decodeThreads <= 0)
+            throw new IllegalArgumentException("Numero di thread di decodifica non valido: "+config.decodeThreads);
+
+        if(config.pipeline <= 0)
+            throw new IllegalArgumentException("Profondità della pipeline non valida: "+config.pipeline);
+
+        if(config.batch <= 0)
+            throw new IllegalArgumentException("Dimensione del batch non valida: "+config.batch);
+
+        if(config.batchMemory <= 0)
+            throw new IllegalArgumentException("Memoria del batch non valida: "+config.batchMemory);
+
+        if(config.writerThreads <= 0 || config.writerQueue <= 0)
+            throw new IllegalArgumentException("Pool di scrittura non valido: "+config.writerThreads+" thread, coda "+config.writerQueue);
+
+        return config;
+    }
+
+    private static String requireValue(String[] args, int i){
+        if(i + 1 >= args.length)
+            throw new IllegalArgumentException("Valore mancante per "+args[i]);
+
+        return args[i + 1];
+    }
+
+    private static int parseInt(String arg, String value){
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Valore non valido per "+arg+": "+value, e);
+        }
+    }
+
+    //Formato: primo:ultimo, primo: oppure un singolo frame
+    private static void parseFrameRange(Config config, String value){
+        int separator = value.indexOf(':');
+
+        if(separator < 0){
+            config.firstFrame = config.lastFrame = parseInt("--frames", value);
+            return;
+        }
+
+        String first = value.substring(0, separator);
+        String last = value.substring(separator + 1);
+
+        config.firstFrame = first.isEmpty() ? 0 : parseInt("--frames", first);
+        config.lastFrame = last.isEmpty() ? -1 : parseInt("--frames", last);
+    }
+
+    private static ComputeScene.Temporal parseTemporal(String value){
+        ComputeScene.Temporal temporal = gson.fromJson(value.trim(), ComputeScene.Temporal.class);
+
+        if(temporal == null)
+            throw new IllegalArgumentException("Stima temporale non riconosciuta: "+value);
+
+        return temporal;
+    }
+
+    private static MySaver.Output[] parseOutputs(String value){
+        String[] names = value.split(",");
+        MySaver.Output[] outputs = new MySaver.Output[names.length];
+
+        for (int i = 0; i < names.length; i++) {
+            outputs[i] = gson.fromJson(names[i].trim(), MySaver.Output.class);
+
+            if(outputs[i] == null)
+                throw new IllegalArgumentException("Uscita non riconosciuta: "+names[i]);
+        }
+
+        return outputs;
+    }
+}
@@ -1,38 +1,62 @@
 package it.unibo.cvlab.computescene.loader;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
+import com.google.gson.stream.JsonReader;
 import it.unibo.cvlab.computescene.dataset.PointCloudDataset;
 import it.unibo.cvlab.computescene.dataset.SceneDataset;
 
-import javax.imageio.ImageIO;
-import java.awt.*;
-import java.awt.image.BufferedImage;
+import org.lwjgl.stb.STBImage;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
+
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.stream.Stream;
 
+/**
+ * Carica i frame di un dataset: cartelle images, scenes e points oppure contenitore binario
+ * (FrameContainer), passato direttamente o presente nella cartella come frames.omaf.
+ */
 public class DatasetLoader {
 
-    private final static Gson gson;
+    //Immagini, scene e point cloud restituite con release: la decodifica dei frame successivi le sovrascrive
+    private static final int MAX_POOLED = 16;
 
-    static {
-        GsonBuilder builder = new GsonBuilder().excludeFieldsWithoutExposeAnnotation();
-        gson = builder.create();
-    }
+    //Cartelle del formato a cartelle
+    static final String IMAGES_FOLDER = "images";
+    static final String SCENES_FOLDER = "scenes";
+    static final String POINTS_FOLDER = "points";
+
+    //stb_image legge solo da buffer diretti: uno per thread di decodifica, riutilizzato tra i frame
+    private static final ThreadLocal<ByteBuffer> fileBuffer = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(1 << 20));
+
+    private final Queue<FrameImage> imagePool = new ConcurrentLinkedQueue<>();
+    private final Queue<SceneDataset> scenePool = new ConcurrentLinkedQueue<>();
+    private final Queue<PointCloudDataset> pointPool = new ConcurrentLinkedQueue<>();
 
     private Path datasetPath;
     private Path imagesPath;
     private Path scenesPath;
     private Path pointsPath;
 
+    //Contenitore binario, null se il dataset è a cartelle
+    private FrameContainer container;
+
     private int frameCounter = 0;
     private int frames = 0;
 
-    private BufferedImage image = null;
+    //Intervallo di frame da elaborare: [firstFrame, lastFrame]
+    private int firstFrame = 0;
+    private int lastFrame;
+
+    private FrameImage image = null;
     private SceneDataset sceneDataset = null;
     private PointCloudDataset pointDataset = null;
 
@@ -41,21 +65,95 @@ public class DatasetLoader {
     }
 
     public DatasetLoader(Path datasetPath) throws IOException {
-        this.datasetPath = datasetPath;
-        this.imagesPath = this.datasetPath.resolve("images");
-        this.scenesPath = this.datasetPath.resolve("scenes");
-        this.pointsPath = this.datasetPath.resolve("points");
+        Path containerPath = null;
+
+        if(Files.isRegularFile(datasetPath)){
+            containerPath = datasetPath;
+        }else if(Files.isRegularFile(datasetPath.resolve(FrameContainer.FILE_NAME))){
+            containerPath = datasetPath.resolve(FrameContainer.FILE_NAME);
+        }
+
+        this.datasetPath = resolveDatasetPath(datasetPath);
+        this.imagesPath = this.datasetPath.resolve(IMAGES_FOLDER);
+        this.scenesPath = this.datasetPath.resolve(SCENES_FOLDER);
+        this.pointsPath = this.datasetPath.resolve(POINTS_FOLDER);
+
+        if(containerPath != null){
+            container = FrameContainer.open(containerPath);
+            frames = container.getFrames();
+        }else{
+            frames = countFrames(imagesPath);
+        }
 
-        //Conta dei frame
+        lastFrame = frames - 1;
+    }
+
+    //I metodi statici seguenti leggono il formato a cartelle: FrameContainer.convert li usa senza aprire il dataset
+
+    /**
+     * @return numero di immagini nella cartella
+     */
+    static int countFrames(Path imagesPath) throws IOException {
         //https://stackoverflow.com/questions/1844688/how-to-read-all-files-in-a-folder-from-java
         try (Stream<Path> paths = Files.list(imagesPath)) {
-            paths
+            return (int) paths
                     .filter(Files::isRegularFile)
-                    .forEach((path)->frames++);
+                    .count();
+        }
+    }
+
+    static void readSceneFile(Path scenePath, SceneDataset target) throws IOException {
+        try (JsonReader reader = new JsonReader(Files.newBufferedReader(scenePath))) {
+            reader.setLenient(true);
+
+            target.read(reader);
         }
     }
 
+    static void readPointFile(Path pointPath, PointCloudDataset target) throws IOException {
+        try (JsonReader reader = new JsonReader(Files.newBufferedReader(pointPath))) {
+            reader.setLenient(true);
+
+            target.read(reader);
+        }
+    }
+
+    /**
+     * Cartella del dataset, senza aprirlo: se viene passato il contenitore è la cartella
+     * che lo contiene, dove vengono salvati anche i risultati.
+     */
+    public static Path resolveDatasetPath(Path datasetPath) {
+        if(Files.isRegularFile(datasetPath))
+            return datasetPath.toAbsolutePath().getParent();
+
+        return datasetPath;
+    }
+
+    /**
+     * Limita l'elaborazione ad un intervallo di frame e si posiziona sul primo.
+     *
+     * @param firstFrame primo frame (incluso)
+     * @param lastFrame ultimo frame (incluso), negativo per arrivare alla fine del dataset
+     */
+    public void setFrameRange(int firstFrame, int lastFrame){
+        if(lastFrame < 0 || lastFrame >= frames) lastFrame = frames - 1;
+        if(firstFrame < 0) firstFrame = 0;
+
+        if(firstFrame > lastFrame)
+            throw new IllegalArgumentException("Intervallo di frame non valido: "+firstFrame+"-"+lastFrame);
+
+        this.firstFrame = firstFrame;
+        this.lastFrame = lastFrame;
+
+        rewind();
+    }
+
     public void printPaths(){
+        if(container != null){
+            System.out.println("Container path: "+container.getPath());
+            return;
+        }
+
         System.out.println("Images path: "+imagesPath);
         System.out.println("Scenes path: "+scenesPath);
         System.out.println("Points path: "+pointsPath);
@@ -71,11 +169,11 @@ public class DatasetLoader {
     }
 
     public boolean hasNext(){
-        return frameCounter + 1 < frames;
+        return frameCounter + 1 <= lastFrame;
     }
 
     public void rewind(){
-        frameCounter = 0;
+        frameCounter = firstFrame;
         image = null;
         sceneDataset = null;
         pointDataset = null;
@@ -97,6 +195,10 @@ public class DatasetLoader {
         return pointsPath;
     }
 
+    public boolean isContainer(){
+        return container != null;
+    }
+
     public int currentFrame(){
         return frameCounter;
     }
@@ -105,19 +207,19 @@ public class DatasetLoader {
         return frames;
     }
 
-    public BufferedImage getImage() throws IOException {
-        if(image != null)
-            return image;
+    public int getFirstFrame() {
+        return firstFrame;
+    }
 
-        Path imagePath = imagesPath.resolve(frameCounter+".jpg");
-        image = ImageIO.read(imagePath.toFile());
+    public int getLastFrame() {
+        return lastFrame;
+    }
 
-        BufferedImage newImage = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_ARGB);
-        Graphics2D graphics = newImage.createGraphics();
-        graphics.drawImage(image, 0,0,image.getWidth(), image.getHeight(), null);
-        graphics.dispose();
-        image = newImage;
+    public FrameImage getImage() throws IOException {
+        if(image != null)
+            return image;
 
+        image = loadImage(frameCounter);
         return image;
     }
 
@@ -125,10 +227,7 @@ public class DatasetLoader {
         if(sceneDataset != null)
             return sceneDataset;
 
-        Path scenePath = scenesPath.resolve(frameCounter+".json");
-        Reader reader = Files.newBufferedReader(scenePath);
-        sceneDataset = gson.fromJson(reader, SceneDataset.class);
-        reader.close();
+        sceneDataset = loadSceneDataset(frameCounter);
         return sceneDataset;
     }
 
@@ -136,10 +235,122 @@ public class DatasetLoader {
         if(pointDataset != null)
             return pointDataset;
 
-        Path pointPath = pointsPath.resolve(frameCounter+".json");
-        Reader reader = Files.newBufferedReader(pointPath);
-        pointDataset = gson.fromJson(reader, PointCloudDataset.class);
-        reader.close();
+        pointDataset = loadPointDataset(frameCounter);
+        return pointDataset;
+    }
+
+    /**
+     * Restituisce scena e point cloud di un frame già elaborato, che verranno riutilizzate
+     * per decodificare i frame successivi: dopo la chiamata non vanno più usate.
+     * Gli oggetti del frame corrente e i null vengono ignorati.
+     */
+    public void release(SceneDataset sceneDataset, PointCloudDataset pointDataset){
+        if(sceneDataset != null && sceneDataset != this.sceneDataset && scenePool.size() < MAX_POOLED)
+            scenePool.offer(sceneDataset);
+
+        if(pointDataset != null && pointDataset != this.pointDataset && pointPool.size() < MAX_POOLED)
+            pointPool.offer(pointDataset);
+    }
+
+    /**
+     * Restituisce l'immagine di un frame già caricata in texture: il suo buffer verrà
+     * riutilizzato per decodificare i frame successivi. L'immagine del frame corrente e null vengono ignorati.
+     */
+    public void release(FrameImage image){
+        if(image != null && image != this.image && imagePool.size() < MAX_POOLED)
+            imagePool.offer(image);
+    }
+
+    /**
+     * Libera eventuali risorse del loader. Il loader sincrono non ne ha.
+     */
+    public void close(){
+    }
+
+    //I metodi seguenti non toccano lo stato del loader: possono essere chiamati da più thread
+
+    /**
+     * Decodifica il jpeg del frame con stb_image direttamente in RGBA, senza passare da AWT.
+     */
+    protected FrameImage loadImage(int frame) throws IOException {
+        ByteBuffer jpeg = container != null ? container.getImage(frame) : readImageFile(imagesPath.resolve(frame+".jpg"));
+
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            IntBuffer width = stack.mallocInt(1);
+            IntBuffer height = stack.mallocInt(1);
+            IntBuffer channels = stack.mallocInt(1);
+
+            ByteBuffer decoded = STBImage.stbi_load_from_memory(jpeg, width, height, channels, FrameImage.BYTES_PER_PIXEL);
+
+            if(decoded == null)
+                throw new IOException("Immagine del frame "+frame+" non leggibile: "+STBImage.stbi_failure_reason());
+
+            try {
+                FrameImage image = imagePool.poll();
+
+                if(image == null){
+                    image = new FrameImage(width.get(0), height.get(0));
+                }else{
+                    image.resize(width.get(0), height.get(0));
+                }
+
+                MemoryUtil.memCopy(decoded, image.getPixels());
+                return image;
+            } finally {
+                STBImage.stbi_image_free(decoded);
+            }
+        }
+    }
+
+    private static ByteBuffer readImageFile(Path imagePath) throws IOException {
+        try (FileChannel channel = FileChannel.open(imagePath)) {
+            long size = channel.size();
+
+            if(size > Integer.MAX_VALUE)
+                throw new IOException("Immagine troppo grande: "+imagePath);
+
+            ByteBuffer buffer = fileBuffer.get();
+
+            if(buffer.capacity() < size){
+                buffer = ByteBuffer.allocateDirect((int) size);
+                fileBuffer.set(buffer);
+            }
+
+            buffer.clear().limit((int) size);
+
+            while (buffer.hasRemaining()){
+                if(channel.read(buffer) < 0)
+                    throw new EOFException("Immagine troncata: "+imagePath);
+            }
+
+            buffer.flip();
+            return buffer;
+        }
+    }
+
+    protected SceneDataset loadSceneDataset(int frame) throws IOException {
+        SceneDataset sceneDataset = scenePool.poll();
+        if(sceneDataset == null) sceneDataset = new SceneDataset();
+
+        if(container != null){
+            container.readScene(frame, sceneDataset);
+            return sceneDataset;
+        }
+
+        readSceneFile(scenesPath.resolve(frame+".json"), sceneDataset);
+        return sceneDataset;
+    }
+
+    protected PointCloudDataset loadPointDataset(int frame) throws IOException{
+        PointCloudDataset pointDataset = pointPool.poll();
+        if(pointDataset == null) pointDataset = new PointCloudDataset();
+
+        if(container != null){
+            container.readPoints(frame, pointDataset);
+            return pointDataset;
+        }
+
+        readPointFile(pointsPath.resolve(frame+".json"), pointDataset);
         return pointDataset;
     }
 
@@ -0,0 +1,243 @@
+package it.unibo.cvlab.computescene.loader;
+
+import it.unibo.cvlab.computescene.dataset.PointCloudDataset;
+import it.unibo.cvlab.computescene.dataset.SceneDataset;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Dataset OMA in un solo file binario little-endian, letto tramite memory mapping.
+ *
+ * Formato:
+ * <pre>
+ * header: magic "OMAF", versione, numero di frame, riservato (4 int)
+ * indice: per ogni frame offset (long) e lunghezza (int) di immagine, scena e point cloud
+ * frame:  jpeg originale, scena (SceneDataset.write), point cloud (PointCloudDataset.write)
+ * </pre>
+ * Nessun frame attraversa il confine di un segmento da SEGMENT_SIZE byte: il file viene mappato
+ * una volta per segmento e ogni frame si legge da un solo segmento, senza aprire altri file.
+ * La lettura è thread safe: ogni accesso usa una vista indipendente del segmento.
+ */
+public class FrameContainer {
+
+    public static final String FILE_NAME = "frames.omaf";
+
+    static final int MAGIC = 0x46414D4F; //"OMAF" little-endian
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 4 * Integer.BYTES;
+    static final int INDEX_ENTRY_SIZE = 3 * (Long.BYTES + Integer.BYTES);
+
+    static final long SEGMENT_SIZE = 1L << 30;
+
+    private final Path path;
+    private final int frames;
+    private final MappedByteBuffer[] segments;
+
+    //Offset e lunghezza di immagine, scena e point cloud per ogni frame
+    private final long[] offsets;
+    private final int[] lengths;
+
+    private FrameContainer(Path path, int frames, MappedByteBuffer[] segments, long[] offsets, int[] lengths) {
+        this.path = path;
+        this.frames = frames;
+        this.segments = segments;
+        this.offsets = offsets;
+        this.lengths = lengths;
+    }
+
+    /**
+     * Mappa il file in memoria. Il canale viene chiuso subito: le mappature restano valide.
+     */
+    public static FrameContainer open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+
+            if(size < HEADER_SIZE)
+                throw new IOException("Contenitore troppo corto: "+path);
+
+            int segmentCount = (int) ((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+            MappedByteBuffer[] segments = new MappedByteBuffer[segmentCount];
+
+            for (int i = 0; i < segmentCount; i++) {
+                long start = i * SEGMENT_SIZE;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, size - start));
+            }
+
+            ByteBuffer header = segments[0].duplicate().order(ByteOrder.LITTLE_ENDIAN);
+
+            if(header.getInt() != MAGIC)
+                throw new IOException("Non è un contenitore OMA: "+path);
+
+            int version = header.getInt();
+
+            if(version != VERSION)
+                throw new IOException("Versione del contenitore non supportata: "+version);
+
+            int frames = header.getInt();
+            header.getInt();
+
+            if(frames < 0 || HEADER_SIZE + (long) frames * INDEX_ENTRY_SIZE > Math.min(size, SEGMENT_SIZE))
+                throw new IOException("Indice del contenitore non valido: "+frames+" frame");
+
+            long[] offsets = new long[frames * 3];
+            int[] lengths = new int[frames * 3];
+
+            for (int i = 0; i < offsets.length; i++) {
+                offsets[i] = header.getLong();
+                lengths[i] = header.getInt();
+
+                if(offsets[i] < 0 || lengths[i] < 0 || offsets[i] + lengths[i] > size)
+                    throw new IOException("Indice del contenitore non valido al frame "+(i / 3));
+
+                //Ogni parte si legge da un solo segmento
+                int segment = (int) (offsets[i] / SEGMENT_SIZE);
+
+                if(segment >= segmentCount || offsets[i] % SEGMENT_SIZE + lengths[i] > segments[segment].capacity())
+                    throw new IOException("Il frame "+(i / 3)+" attraversa il confine di un segmento");
+            }
+
+            return new FrameContainer(path, frames, segments, offsets, lengths);
+        }
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public int getFrames() {
+        return frames;
+    }
+
+    /**
+     * @return jpeg del frame, vista in sola lettura sulla mappatura
+     */
+    public ByteBuffer getImage(int frame) {
+        return view(frame, 0);
+    }
+
+    public void readScene(int frame, SceneDataset target) {
+        target.read(view(frame, 1));
+    }
+
+    public void readPoints(int frame, PointCloudDataset target) {
+        target.read(view(frame, 2));
+    }
+
+    private ByteBuffer view(int frame, int part){
+        if(frame < 0 || frame >= frames)
+            throw new IndexOutOfBoundsException("Frame "+frame+" non presente in "+path);
+
+        int entry = frame * 3 + part;
+        long offset = offsets[entry];
+
+        MappedByteBuffer segment = segments[(int) (offset / SEGMENT_SIZE)];
+        int start = (int) (offset % SEGMENT_SIZE);
+
+        ByteBuffer view = segment.asReadOnlyBuffer();
+        view.position(start).limit(start + lengths[entry]);
+
+        return view.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Crea il contenitore a partire da un dataset nel formato a cartelle (images, scenes, points).
+     * Le immagini jpeg vengono copiate senza ricodifica. Legge sempre le cartelle, anche se
+     * il dataset contiene già un contenitore: rieseguire la conversione lo sovrascrive.
+     */
+    public static void convert(Path datasetPath, Path output) throws IOException {
+        if(!Files.isDirectory(datasetPath))
+            throw new IllegalArgumentException("Il dataset non è una cartella: "+datasetPath);
+
+        Path imagesPath = datasetPath.resolve(DatasetLoader.IMAGES_FOLDER);
+        Path scenesPath = datasetPath.resolve(DatasetLoader.SCENES_FOLDER);
+        Path pointsPath = datasetPath.resolve(DatasetLoader.POINTS_FOLDER);
+
+        int frames = DatasetLoader.countFrames(imagesPath);
+
+        SceneDataset scene = new SceneDataset();
+        PointCloudDataset points = new PointCloudDataset();
+
+        try (FileChannel channel = FileChannel.open(output, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+
+            ByteBuffer index = ByteBuffer.allocate(HEADER_SIZE + frames * INDEX_ENTRY_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            index.putInt(MAGIC).putInt(VERSION).putInt(frames).putInt(0);
+
+            long position = index.capacity();
+            ByteBuffer record = ByteBuffer.allocate(0);
+
+            for (int frame = 0; frame < frames; frame++) {
+                byte[] image = Files.readAllBytes(imagesPath.resolve(frame+".jpg"));
+                DatasetLoader.readSceneFile(scenesPath.resolve(frame+".json"), scene);
+                DatasetLoader.readPointFile(pointsPath.resolve(frame+".json"), points);
+
+                int sceneSize = scene.getBinarySize();
+                int pointsSize = points.getBinarySize();
+                long recordSize = (long) image.length + sceneSize + pointsSize;
+
+                if(recordSize > SEGMENT_SIZE)
+                    throw new IOException("Frame "+frame+" troppo grande: "+recordSize+" byte");
+
+                //Il frame non deve attraversare il confine di un segmento
+                if(position / SEGMENT_SIZE != (position + recordSize - 1) / SEGMENT_SIZE){
+                    position = (position / SEGMENT_SIZE + 1) * SEGMENT_SIZE;
+                }
+
+                if(record.capacity() < recordSize){
+                    record = ByteBuffer.allocate((int) recordSize).order(ByteOrder.LITTLE_ENDIAN);
+                }
+
+                record.clear();
+                record.put(image);
+                scene.write(record);
+                points.write(record);
+                record.flip();
+
+                if(record.remaining() != recordSize)
+                    throw new IllegalStateException("Dimensione del frame "+frame+" non corretta");
+
+                index.putLong(position).putInt(image.length);
+                index.putLong(position + image.length).putInt(sceneSize);
+                index.putLong(position + image.length + sceneSize).putInt(pointsSize);
+
+                while (record.hasRemaining()){
+                    position += channel.write(record, position);
+                }
+            }
+
+            index.flip();
+
+            long indexPosition = 0;
+
+            while (index.hasRemaining()){
+                indexPosition += channel.write(index, indexPosition);
+            }
+        }
+    }
+
+    /**
+     * Converte un dataset a cartelle nel contenitore binario.
+     * Argomenti: cartella del dataset e, opzionalmente, file di uscita (default: cartella/frames.omaf).
+     */
+    public static void main(String[] args) throws IOException {
+        if(args.length < 1 || args.length > 2){
+            System.out.println("Uso: FrameContainer <dataset> [uscita]");
+            System.exit(1);
+        }
+
+        Path datasetPath = java.nio.file.Paths.get(args[0]);
+        Path output = args.length > 1 ? java.nio.file.Paths.get(args[1]) : datasetPath.resolve(FILE_NAME);
+
+        long start = System.currentTimeMillis();
+        convert(datasetPath, output);
+
+        System.out.println("Contenitore creato: "+output+" ("+Files.size(output)+" byte, "+(System.currentTimeMillis() - start)+" ms)");
+    }
+}
@@ -0,0 +1,54 @@
+package it.unibo.cvlab.computescene.loader;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Immagine di un frame decodificata in RGBA, 4 byte per pixel riga per riga a partire dall'alto,
+ * in un buffer diretto che può essere passato così com'è a glTexSubImage2D.
+ * Il buffer viene riutilizzato dal DatasetLoader dopo release: va solo letto.
+ */
+public class FrameImage {
+
+    public static final int BYTES_PER_PIXEL = 4;
+
+    private ByteBuffer pixels;
+    private int width;
+    private int height;
+
+    FrameImage(int width, int height) {
+        pixels = ByteBuffer.allocateDirect(width * height * BYTES_PER_PIXEL).order(ByteOrder.nativeOrder());
+        resize(width, height);
+    }
+
+    /**
+     * Prepara il buffer per un'immagine width x height, riallocandolo solo se è troppo piccolo.
+     */
+    void resize(int width, int height){
+        int size = width * height * BYTES_PER_PIXEL;
+
+        if(pixels.capacity() < size)
+            pixels = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+
+        pixels.clear().limit(size);
+
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * @return pixel RGBA, dalla posizione 0 al limite
+     */
+    public ByteBuffer getPixels() {
+        pixels.rewind();
+        return pixels;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+}
@@ -0,0 +1,211 @@
+package it.unibo.cvlab.computescene.loader;
+
+import it.unibo.cvlab.computescene.dataset.PointCloudDataset;
+import it.unibo.cvlab.computescene.dataset.SceneDataset;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * DatasetLoader che decodifica in anticipo i frame successivi a quello corrente
+ * (immagine, scena e point cloud) su un pool di thread.
+ * Al più depth frame vengono decodificati in anticipo: un nuovo frame viene messo in coda
+ * solo quando il thread OpenGL ne consuma uno, così la memoria resta limitata.
+ * L'ordine dei frame è preservato anche con più thread di decodifica.
+ */
+public class PrefetchDatasetLoader extends DatasetLoader {
+
+    public static final int DEFAULT_DEPTH = 4;
+    public static final int DEFAULT_THREADS = 2;
+
+    private static class Frame {
+        private FrameImage image;
+        private SceneDataset sceneDataset;
+        private PointCloudDataset pointDataset;
+    }
+
+    private static class Pending {
+        private final int index;
+        private final Future<Frame> future;
+
+        private Pending(int index, Future<Frame> future) {
+            this.index = index;
+            this.future = future;
+        }
+    }
+
+    private final int depth;
+    private final int threads;
+
+    private ExecutorService executor;
+    private final ArrayDeque<Pending> pending = new ArrayDeque<>();
+    private int nextFrame;
+
+    private Frame current;
+
+    public PrefetchDatasetLoader(String datasetPath, int depth, int threads) throws IOException {
+        this(Paths.get(datasetPath), depth, threads);
+    }
+
+    public PrefetchDatasetLoader(Path datasetPath, int depth, int threads) throws IOException {
+        super(datasetPath);
+
+        if(depth <= 0)
+            throw new IllegalArgumentException("Profondità di prefetch non valida: "+depth);
+
+        if(threads <= 0)
+            throw new IllegalArgumentException("Numero di thread non valido: "+threads);
+
+        this.depth = depth;
+        this.threads = threads;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    @Override
+    public void next() {
+        if(hasNext()){
+            super.next();
+            current = null;
+        }
+    }
+
+    @Override
+    public void rewind() {
+        super.rewind();
+        current = null;
+        cancelPending();
+    }
+
+    @Override
+    public FrameImage getImage() throws IOException {
+        return getCurrent().image;
+    }
+
+    @Override
+    public SceneDataset parseSceneDataset() throws IOException {
+        return getCurrent().sceneDataset;
+    }
+
+    @Override
+    public PointCloudDataset parsePointDataset() throws IOException {
+        return getCurrent().pointDataset;
+    }
+
+    @Override
+    public void release(SceneDataset sceneDataset, PointCloudDataset pointDataset) {
+        //Il frame corrente può ancora essere richiesto
+        if(current != null){
+            if(sceneDataset == current.sceneDataset) sceneDataset = null;
+            if(pointDataset == current.pointDataset) pointDataset = null;
+        }
+
+        super.release(sceneDataset, pointDataset);
+    }
+
+    @Override
+    public void release(FrameImage image) {
+        if(current != null && image == current.image) return;
+
+        super.release(image);
+    }
+
+    /**
+     * Interrompe la decodifica e termina i thread. Il loader può essere riutilizzato:
+     * il pool viene ricreato alla prima richiesta.
+     */
+    @Override
+    public void close() {
+        cancelPending();
+
+        if(executor != null){
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    private Frame getCurrent() throws IOException {
+        if(current != null)
+            return current;
+
+        int frame = currentFrame();
+
+        //Scarto i frame rimasti indietro (es. un frame il cui caricamento è fallito)
+        while (!pending.isEmpty() && pending.peekFirst().index < frame){
+            pending.pollFirst().future.cancel(true);
+        }
+
+        //Dopo un rewind o un cambio di intervallo la coda non è più valida
+        if(pending.isEmpty() || pending.peekFirst().index != frame){
+            cancelPending();
+            nextFrame = frame;
+        }
+
+        schedule();
+
+        Pending head = pending.pollFirst();
+
+        //Il frame corrente è stato tolto dalla coda: c'è posto per uno nuovo
+        schedule();
+
+        try {
+            current = head.future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrotto durante il caricamento del frame "+frame);
+        } catch (ExecutionException e) {
+            if(e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+
+            throw new IOException("Impossibile caricare il frame "+frame, e.getCause());
+        }
+
+        return current;
+    }
+
+    private void schedule() {
+        if(executor == null){
+            AtomicInteger counter = new AtomicInteger();
+
+            executor = Executors.newFixedThreadPool(threads, runnable -> {
+                Thread thread = new Thread(runnable, "DatasetLoader-" + counter.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        while (pending.size() < depth && nextFrame <= getLastFrame()){
+            final int frame = nextFrame++;
+
+            pending.addLast(new Pending(frame, executor.submit(() -> {
+                Frame result = new Frame();
+                result.image = loadImage(frame);
+                result.sceneDataset = loadSceneDataset(frame);
+                result.pointDataset = loadPointDataset(frame);
+                return result;
+            })));
+        }
+    }
+
+    private void cancelPending() {
+        for(Pending item : pending){
+            item.future.cancel(true);
+        }
+
+        pending.clear();
+    }
+}
@@ -7,11 +7,18 @@ import org.tensorflow.Session;
 import org.tensorflow.Tensor;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Model {
 
@@ -85,16 +92,17 @@ public class Model {
     }
 
     public static FloatBuffer inverse(FloatBuffer in, float min, float max){
-        FloatBuffer out = FloatBuffer.allocate(in.capacity());
-
-        in.rewind();
+        return inverse(in, FloatBuffer.allocate(in.capacity()), min, max);
+    }
 
+    //out può coincidere con in: la normalizzazione avviene sul posto
+    public static FloatBuffer inverse(FloatBuffer in, FloatBuffer out, float min, float max){
+        int length = in.limit();
         float range = max-min;
 
-        while(in.hasRemaining()){
-            float pred = in.get();
-            pred = (pred-min) / range;
-            out.put(1.0f/pred);
+        for (int i = 0; i < length; i++) {
+            float pred = (in.get(i)-min) / range;
+            out.put(i, 1.0f/pred);
         }
 
         in.rewind();
@@ -109,18 +117,19 @@ public class Model {
     }
 
     public static FloatBuffer negate(FloatBuffer in, float min, float max){
-        FloatBuffer out = FloatBuffer.allocate(in.capacity());
+        return negate(in, FloatBuffer.allocate(in.capacity()), min, max);
+    }
 
+    public static FloatBuffer negate(FloatBuffer in, FloatBuffer out, float min, float max){
+        int length = in.limit();
         float range = max - min;
 
 //        float divisor = range / 8;
 
-        in.rewind();
-
-        while(in.hasRemaining()){
-            float pred = in.get();
-//            out.put((int)((range * (1f-((pred-min)/range)))/divisor)*divisor);
-            out.put(range * (1f-((pred-min)/range)));
+        for (int i = 0; i < length; i++) {
+            float pred = in.get(i);
+//            out.put(i, (int)((range * (1f-((pred-min)/range)))/divisor)*divisor);
+            out.put(i, range * (1f-((pred-min)/range)));
         }
 
         in.rewind();
@@ -135,13 +144,15 @@ public class Model {
     }
 
     public static FloatBuffer linearNormalization(FloatBuffer in, float min, float max){
-        FloatBuffer out = FloatBuffer.allocate(in.capacity());
+        return linearNormalization(in, FloatBuffer.allocate(in.capacity()), min, max);
+    }
 
+    public static FloatBuffer linearNormalization(FloatBuffer in, FloatBuffer out, float min, float max){
+        int length = in.limit();
         float range = max - min;
 
-        while(in.hasRemaining()){
-            float pred = in.get();
-            out.put((pred-min)/range);
+        for (int i = 0; i < length; i++) {
+            out.put(i, (in.get(i)-min)/range);
         }
 
         in.rewind();
@@ -156,15 +167,15 @@ public class Model {
     }
 
     public static FloatBuffer negateLinearNormalization(FloatBuffer in, float min, float max){
-        FloatBuffer out = FloatBuffer.allocate(in.capacity());
+        return negateLinearNormalization(in, FloatBuffer.allocate(in.capacity()), min, max);
+    }
 
+    public static FloatBuffer negateLinearNormalization(FloatBuffer in, FloatBuffer out, float min, float max){
+        int length = in.limit();
         float range = max - min;
 
-        in.rewind();
-
-        while(in.hasRemaining()){
-            float pred = in.get();
-            out.put(1f-((pred-min)/range));
+        for (int i = 0; i < length; i++) {
+            out.put(i, 1f-((in.get(i)-min)/range));
         }
 
         in.rewind();
@@ -174,28 +185,26 @@ public class Model {
     }
 
     public static FloatBuffer expNormalization(FloatBuffer in){
-        FloatBuffer out = FloatBuffer.allocate(in.capacity());
+        return expNormalization(in, FloatBuffer.allocate(in.capacity()));
+    }
 
-        in.rewind();
+    public static FloatBuffer expNormalization(FloatBuffer in, FloatBuffer out){
+        int length = in.limit();
 
         float maxPred = Float.MIN_VALUE;
         float minPred = Float.MAX_VALUE;
 
-        while(in.hasRemaining()){
-            float pred = in.get();
-            pred = (float) Math.exp(pred);
+        for (int i = 0; i < length; i++) {
+            float pred = (float) Math.exp(in.get(i));
             if(maxPred < pred) maxPred = pred;
             if(minPred > pred) minPred = pred;
         }
 
         float range = maxPred - minPred;
 
-        in.rewind();
-
-        while(in.hasRemaining()){
-            float pred = in.get();
-            pred = (float) Math.exp(pred);
-            out.put((pred-minPred)/range);
+        for (int i = 0; i < length; i++) {
+            float pred = (float) Math.exp(in.get(i));
+            out.put(i, (pred-minPred)/range);
         }
 
         in.rewind();
@@ -205,28 +214,26 @@ public class Model {
     }
 
     public static FloatBuffer negateExpNormalization(FloatBuffer in){
-        FloatBuffer out = FloatBuffer.allocate(in.capacity());
+        return negateExpNormalization(in, FloatBuffer.allocate(in.capacity()));
+    }
 
-        in.rewind();
+    public static FloatBuffer negateExpNormalization(FloatBuffer in, FloatBuffer out){
+        int length = in.limit();
 
         float maxPred = Float.MIN_VALUE;
         float minPred = Float.MAX_VALUE;
 
-        while(in.hasRemaining()){
-            float pred = in.get();
-            pred = (float) Math.exp(-pred);
+        for (int i = 0; i < length; i++) {
+            float pred = (float) Math.exp(-in.get(i));
             if(maxPred < pred) maxPred = pred;
             if(minPred > pred) minPred = pred;
         }
 
         float range = maxPred - minPred;
 
-        in.rewind();
-
-        while(in.hasRemaining()){
-            float pred = in.get();
-            pred = (float) Math.exp(-pred);
-            out.put((pred-minPred)/range);
+        for (int i = 0; i < length; i++) {
+            float pred = (float) Math.exp(-in.get(i));
+            out.put(i, (pred-minPred)/range);
         }
 
         in.rewind();
@@ -311,6 +318,7 @@ public class Model {
         this.modelsPath = modelsPath;
     }
 
+    private Graph graph;
     private Session session;
 
 
@@ -335,9 +343,31 @@ public class Model {
         this.outputMax = outputMax;
     }
 
+    /**
+     * Carica il grafo e crea la sessione. Se la sessione è già presente viene riutilizzata.
+     */
     public void loadGraph() throws IOException {
-        Graph graphDef = getGraphDef(getModelsPath());
-        session = new Session(graphDef);
+        if(session != null) return;
+
+        graph = getGraphDef(getModelsPath());
+        session = new Session(graph);
+    }
+
+    /**
+     * Chiude la sessione e libera il grafo.
+     */
+    public void closeGraph() {
+        if(session != null){
+            session.close();
+            session = null;
+        }
+
+        if(graph != null){
+            graph.close();
+            graph = null;
+        }
+
+        shutdownNormalizationPool();
     }
 
     public List<Tensor<?>> run(Tensor<?> inputTensor){
@@ -347,6 +377,96 @@ public class Model {
         return runner.run();
     }
 
+    //Output di un batch, riutilizzato tra le chiamate
+    private FloatBuffer batchOutput;
+
+    /**
+     * Esegue l'inferenza su più frame con un solo Session.run.
+     * Il tensore di input deve avere forma getInputShapeLong(count), l'output di ogni frame
+     * viene scritto nel rispettivo buffer (vedi allocateOutputBuffer).
+     * Fallisce se il grafo ha la dimensione del batch fissata a 1.
+     */
+    public void run(Tensor<?> inputTensor, FloatBuffer[] outputs, int count){
+        int frameSize = calculateOutputBufferSize(false);
+
+        try (Tensor<?> outputTensor = run(inputTensor).get(0)) {
+            //Con un solo frame il tensore viene copiato direttamente nel buffer di output
+            if(count == 1){
+                outputs[0].clear();
+                outputTensor.writeTo(outputs[0]);
+                outputs[0].rewind();
+                return;
+            }
+
+            int batchSize = frameSize * count;
+
+            if(batchOutput == null || batchOutput.capacity() < batchSize)
+                batchOutput = allocateFloatBuffer(batchSize);
+
+            batchOutput.clear();
+            batchOutput.limit(batchSize);
+            outputTensor.writeTo(batchOutput);
+        }
+
+        for (int i = 0; i < count; i++) {
+            batchOutput.limit((i + 1) * frameSize);
+            batchOutput.position(i * frameSize);
+
+            outputs[i].clear();
+            outputs[i].put(batchOutput);
+            outputs[i].rewind();
+        }
+    }
+
+    /**
+     * Buffer diretto per l'input di un frame, nel formato letto da glReadPixels
+     * (calculateInputBufferSize(true) byte).
+     */
+    public ByteBuffer allocateInputBuffer(){
+        return ByteBuffer.allocateDirect(calculateInputBufferSize(true)).order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Buffer diretto per l'output di un frame: lo stesso buffer viene normalizzato sul posto,
+     * caricato come texture e usato dalla calibrazione.
+     */
+    public FloatBuffer allocateOutputBuffer(){
+        return allocateFloatBuffer(calculateOutputBufferSize(false));
+    }
+
+    private static FloatBuffer allocateFloatBuffer(int size){
+        return ByteBuffer.allocateDirect(size * Float.BYTES).order(ByteOrder.nativeOrder()).asFloatBuffer();
+    }
+
+    /**
+     * Forma dell'input con la dimensione del batch indicata al posto di quella del json.
+     */
+    public long[] getInputShapeLong(int batchSize){
+        long[] shape = getInputShapeLong().clone();
+        shape[0] = batchSize;
+        return shape;
+    }
+
+    /**
+     * Memoria usata da un frame durante l'inferenza a batch: input e output,
+     * contati due volte perché TensorFlow copia i buffer nei suoi tensori.
+     */
+    public long calculateBatchFrameSize(){
+        return 2L * (calculateInputBufferSize(true) + calculateOutputBufferSize(false) * (long) Float.BYTES);
+    }
+
+    /**
+     * Riduce la dimensione del batch richiesta in modo che input e output stiano nel budget di memoria.
+     *
+     * @param requested dimensione del batch richiesta
+     * @param memoryBudget memoria a disposizione in byte
+     * @return dimensione del batch, almeno 1
+     */
+    public int fitBatchSize(int requested, long memoryBudget){
+        long fit = memoryBudget / calculateBatchFrameSize();
+        return (int) Math.max(1, Math.min(requested, fit));
+    }
+
     public void addOutputNodes(String node){
         this.outputNodes.add(node);
     }
@@ -496,34 +616,227 @@ public class Model {
     public FloatBuffer normalize(FloatBuffer in){
         Normalization type = getOutputNormalization();
 
+        if(type == null || type == Normalization.NONE) return in;
+
+        return normalize(in, FloatBuffer.allocate(in.capacity()));
+    }
+
+    /**
+     * Normalizza l'output della rete in un buffer già allocato.
+     * Con out == in la normalizzazione avviene sul posto, senza allocazioni.
+     * Riduzione min/max e trasformazione sono divise tra i thread di normalizzazione;
+     * per le normalizzazioni esponenziali exp viene calcolato una volta sola per pixel.
+     * Non è thread safe: va chiamato da un solo thread alla volta.
+     */
+    public FloatBuffer normalize(FloatBuffer in, FloatBuffer out){
+        Normalization type = getOutputNormalization();
+
         if(type == null) type = Normalization.NONE;
 
+        if(out != in){
+            in.rewind();
+            out.clear();
+            out.put(in);
+            in.rewind();
+            out.flip();
+        }
+
+        final FloatBuffer buffer = out;
+        final int length = buffer.limit();
+
         switch (type){
             case NONE:
-                return in;
+                break;
             case INVERSE:
-                if(isOutputMinMaxValid())
-                    return inverse(in, getOutputMin(), getOutputMax());
-                return inverse(in);
             case NEGATE:
-                if(isOutputMinMaxValid())
-                    return negate(in, getOutputMin(), getOutputMax());
-                return negate(in);
             case LINEAR:
-                if(isOutputMinMaxValid())
-                    return linearNormalization(in, getOutputMin(), getOutputMax());
-                return linearNormalization(in);
             case LINEAR_NEGATE:
-                if(isOutputMinMaxValid())
-                    return negateLinearNormalization(in, getOutputMin(), getOutputMax());
-                return negateLinearNormalization(in);
+                if(isOutputMinMaxValid()){
+                    transform(buffer, length, type, getOutputMin(), getOutputMax());
+                }else{
+                    float min = reduceMinMax(buffer, length, 0f);
+                    transform(buffer, length, type, min, reducedMax);
+                }
+                break;
             case EXPONENTIAL:
-                return  expNormalization(in);
             case EXPONENTIAL_NEGATE:
-                return negateExpNormalization(in);
+                //Gli esponenziali restano nel buffer: la trasformazione li normalizza linearmente
+                float expMin = reduceMinMax(buffer, length, type == Normalization.EXPONENTIAL ? 1f : -1f);
+                transform(buffer, length, Normalization.LINEAR, expMin, reducedMax);
+                break;
             default:
                 throw new IllegalArgumentException("Normalizzazione non riconosciuta");
         }
+
+        buffer.rewind();
+
+        return buffer;
+    }
+
+    //Sotto questa dimensione dividere il lavoro tra i thread non conviene
+    private static final int MIN_PARALLEL_LENGTH = 1 << 14;
+
+    @FunctionalInterface
+    private interface RangeTask {
+        void run(int chunk, int start, int end);
+    }
+
+    //Non serializzati: Gson crea il modello senza costruttore, i campi vengono inizializzati al primo utilizzo
+    private int normalizationThreads;
+    private ExecutorService normalizationPool;
+    private Future<?>[] chunkFutures;
+    private float[] partialMin;
+    private float[] partialMax;
+    private float reducedMax;
+
+    /**
+     * Numero di thread usati dalla normalizzazione, di default il numero di core.
+     */
+    public void setNormalizationThreads(int threads){
+        if(threads <= 0)
+            throw new IllegalArgumentException("Numero di thread non valido: "+threads);
+
+        if(threads != getNormalizationThreads()) shutdownNormalizationPool();
+
+        normalizationThreads = threads;
+    }
+
+    public int getNormalizationThreads(){
+        return normalizationThreads > 0 ? normalizationThreads : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Calcola min e max del buffer in parallelo. Con expSign diverso da 0 ogni valore v viene
+     * sostituito da exp(expSign * v) prima della riduzione.
+     *
+     * @return il minimo, il massimo resta in reducedMax
+     */
+    private float reduceMinMax(final FloatBuffer buffer, int length, final float expSign){
+        int chunks = parallelFor(length, (chunk, start, end) -> {
+            float min = Float.POSITIVE_INFINITY;
+            float max = Float.NEGATIVE_INFINITY;
+
+            for (int i = start; i < end; i++) {
+                float pred = buffer.get(i);
+
+                if(expSign != 0f){
+                    pred = (float) Math.exp(expSign * pred);
+                    buffer.put(i, pred);
+                }
+
+                if(max < pred) max = pred;
+                if(min > pred) min = pred;
+            }
+
+            partialMin[chunk] = min;
+            partialMax[chunk] = max;
+        });
+
+        float min = Float.POSITIVE_INFINITY;
+        float max = Float.NEGATIVE_INFINITY;
+
+        for (int i = 0; i < chunks; i++) {
+            min = Math.min(min, partialMin[i]);
+            max = Math.max(max, partialMax[i]);
+        }
+
+        reducedMax = max;
+
+        return min;
+    }
+
+    //Trasformazione sul posto, equivalente a inverse, negate, linearNormalization e negateLinearNormalization
+    private void transform(final FloatBuffer buffer, int length, Normalization type, final float min, final float max){
+        final float range = max - min;
+        final float scale = 1f / range;
+
+        switch (type){
+            case INVERSE:
+                parallelFor(length, (chunk, start, end) -> {
+                    for (int i = start; i < end; i++) buffer.put(i, range / (buffer.get(i) - min));
+                });
+                break;
+            case NEGATE:
+                parallelFor(length, (chunk, start, end) -> {
+                    for (int i = start; i < end; i++) buffer.put(i, range - (buffer.get(i) - min));
+                });
+                break;
+            case LINEAR:
+                parallelFor(length, (chunk, start, end) -> {
+                    for (int i = start; i < end; i++) buffer.put(i, (buffer.get(i) - min) * scale);
+                });
+                break;
+            case LINEAR_NEGATE:
+                parallelFor(length, (chunk, start, end) -> {
+                    for (int i = start; i < end; i++) buffer.put(i, 1f - (buffer.get(i) - min) * scale);
+                });
+                break;
+            default:
+                throw new IllegalArgumentException("Normalizzazione non supportata: "+type);
+        }
+    }
+
+    /**
+     * Divide [0, length) in un blocco per thread: il primo blocco viene eseguito dal thread chiamante.
+     *
+     * @return il numero di blocchi
+     */
+    private int parallelFor(int length, RangeTask task){
+        int chunks = length < MIN_PARALLEL_LENGTH ? 1 : getNormalizationThreads();
+
+        if(partialMin == null || partialMin.length < chunks){
+            partialMin = new float[chunks];
+            partialMax = new float[chunks];
+            chunkFutures = new Future<?>[chunks];
+        }
+
+        if(chunks == 1){
+            task.run(0, 0, length);
+            return 1;
+        }
+
+        if(normalizationPool == null){
+            AtomicInteger counter = new AtomicInteger();
+
+            normalizationPool = Executors.newFixedThreadPool(chunks - 1, runnable -> {
+                Thread thread = new Thread(runnable, "Normalization-" + counter.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        int chunkLength = (length + chunks - 1) / chunks;
+
+        for (int chunk = 1; chunk < chunks; chunk++) {
+            final int index = chunk;
+            final int start = Math.min(length, chunk * chunkLength);
+            final int end = Math.min(length, start + chunkLength);
+
+            chunkFutures[chunk] = normalizationPool.submit(() -> task.run(index, start, end));
+        }
+
+        task.run(0, 0, Math.min(length, chunkLength));
+
+        try {
+            for (int chunk = 1; chunk < chunks; chunk++) {
+                chunkFutures[chunk].get();
+                chunkFutures[chunk] = null;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Normalizzazione interrotta", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Normalizzazione fallita", e.getCause());
+        }
+
+        return chunks;
+    }
+
+    private void shutdownNormalizationPool(){
+        if(normalizationPool != null){
+            normalizationPool.shutdownNow();
+            normalizationPool = null;
+        }
     }
 
 }
@@ -1,9 +1,9 @@
 package it.unibo.cvlab.computescene.rendering;
 
 import it.unibo.cvlab.computescene.Utils;
+import it.unibo.cvlab.computescene.loader.FrameImage;
 import org.lwjgl.opengl.GL30;
 
-import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
@@ -56,10 +56,33 @@ public class BackgroundRenderer {
     //Riferimento alle coordinate delle texture.
     private int backgroundTexCoordAttribute;
 
-    private int[] textures = new int[4];
+    private int[] textures = new int[3];
+
+    //Texture di sfondo, una per ogni frame che può essere in elaborazione: textures[0] è la prima
+    private int[] backgroundTextures = new int[1];
+    private int backgroundSlot = 0;
+
+    //Dimensioni allocate per ogni texture di sfondo: se non cambiano si aggiornano solo i pixel
+    private int[] backgroundWidths = new int[1];
+    private int[] backgroundHeights = new int[1];
 
     private int getBackgroundTextureId() {
-        return textures[0];
+        return backgroundTextures[backgroundSlot];
+    }
+
+    /**
+     * Seleziona la texture di sfondo usata da loadBackgroudImage e draw.
+     * Permette di caricare lo sfondo di un frame senza perdere quello dei frame precedenti.
+     */
+    public void setBackgroundSlot(int backgroundSlot) {
+        if(backgroundSlot < 0 || backgroundSlot >= backgroundTextures.length)
+            throw new IllegalArgumentException("Slot di sfondo non valido: "+backgroundSlot);
+
+        this.backgroundSlot = backgroundSlot;
+    }
+
+    public int getBackgroundSlots() {
+        return backgroundTextures.length;
     }
 
     public int getScreenshotFrameBufferTextureId(){
@@ -70,8 +93,19 @@ public class BackgroundRenderer {
         return textures[2];
     }
 
+    //Stima di profondità condivisa, vedi DepthTexture
+    private int inferenceTextureId;
+
     private int getInferenceTextureId(){
-        return textures[3];
+        return inferenceTextureId;
+    }
+
+    /**
+     * Imposta la texture con la stima di profondità usata quando il plasma è attivo.
+     * La texture non appartiene al renderer.
+     */
+    public void setInferenceTextureId(int inferenceTextureId) {
+        this.inferenceTextureId = inferenceTextureId;
     }
 
     private int inferenceTextureUniform;
@@ -114,17 +148,42 @@ public class BackgroundRenderer {
      * the OpenGL thread.
      */
     public void createOnGlThread(int surfaceWidth, int surfaceHeight) throws IOException {
+        createOnGlThread(surfaceWidth, surfaceHeight, 1);
+    }
+
+    /**
+     * @param backgroundSlots numero di texture di sfondo, vedi setBackgroundSlot
+     */
+    public void createOnGlThread(int surfaceWidth, int surfaceHeight, int backgroundSlots) throws IOException {
+        if(backgroundSlots <= 0)
+            throw new IllegalArgumentException("Numero di slot di sfondo non valido: "+backgroundSlots);
+
         // Generate the textures.
         GL30.glGenTextures(textures);
 
+        backgroundTextures = new int[backgroundSlots];
+        backgroundTextures[0] = textures[0];
+        backgroundWidths = new int[backgroundSlots];
+        backgroundHeights = new int[backgroundSlots];
+        backgroundSlot = 0;
+
+        if(backgroundSlots > 1){
+            int[] extraTextures = new int[backgroundSlots - 1];
+            GL30.glGenTextures(extraTextures);
+            System.arraycopy(extraTextures, 0, backgroundTextures, 1, extraTextures.length);
+        }
+
         GL30.glActiveTexture(GL30.GL_TEXTURE0);
-        GL30.glBindTexture(GL30.GL_TEXTURE_2D, getBackgroundTextureId());
 
-        GL30.glTexParameteri(GL30.GL_TEXTURE_2D, GL30.GL_TEXTURE_WRAP_S, GL30.GL_CLAMP_TO_EDGE);
-        GL30.glTexParameteri(GL30.GL_TEXTURE_2D, GL30.GL_TEXTURE_WRAP_T, GL30.GL_CLAMP_TO_EDGE);
+        for (int backgroundTexture : backgroundTextures) {
+            GL30.glBindTexture(GL30.GL_TEXTURE_2D, backgroundTexture);
 
-        GL30.glTexParameteri(GL30.GL_TEXTURE_2D, GL30.GL_TEXTURE_MIN_FILTER, GL30.GL_LINEAR);
-        GL30.glTexParameteri(GL30.GL_TEXTURE_2D, GL30.GL_TEXTURE_MAG_FILTER, GL30.GL_LINEAR);
+            GL30.glTexParameteri(GL30.GL_TEXTURE_2D, GL30.GL_TEXTURE_WRAP_S, GL30.GL_CLAMP_TO_EDGE);
+            GL30.glTexParameteri(GL30.GL_TEXTURE_2D, GL30.GL_TEXTURE_WRAP_T, GL30.GL_CLAMP_TO_EDGE);
+
+            GL30.glTexParameteri(GL30.GL_TEXTURE_2D, GL30.GL_TEXTURE_MIN_FILTER, GL30.GL_LINEAR);
+            GL30.glTexParameteri(GL30.GL_TEXTURE_2D, GL30.GL_TEXTURE_MAG_FILTER, GL30.GL_LINEAR);
+        }
 
         GL30.glBindTexture(GL30.GL_TEXTURE_2D, 0);
 
@@ -142,17 +201,6 @@ public class BackgroundRenderer {
 
         GL30.glBindTexture(GL30.GL_TEXTURE_2D, 0);
 
-        GL30.glActiveTexture(GL30.GL_TEXTURE3);
-        GL30.glBindTexture(GL30.GL_TEXTURE_2D, getInferenceTextureId());
-
-        GL30.glTexParameteri(GL30.GL_TEXTURE_2D, GL30.GL_TEXTURE_WRAP_S, GL30.GL_CLAMP_TO_EDGE);
-        GL30.glTexParameteri(GL30.GL_TEXTURE_2D, GL30.GL_TEXTURE_WRAP_T, GL30.GL_CLAMP_TO_EDGE);
-
-        GL30.glTexParameteri(GL30.GL_TEXTURE_2D, GL30.GL_TEXTURE_MIN_FILTER, GL30.GL_LINEAR);
-        GL30.glTexParameteri(GL30.GL_TEXTURE_2D, GL30.GL_TEXTURE_MAG_FILTER, GL30.GL_LINEAR);
-
-        GL30.glBindTexture(GL30.GL_TEXTURE_2D, 0);
-
         ShaderUtil.checkGLError(TAG, "Texture loading");
 
         //Creazione del framebuffer per il rendering alternativo alla finestra.
@@ -318,49 +366,45 @@ public class BackgroundRenderer {
         ShaderUtil.checkGLError(TAG, "BackgroundRendererDraw");
     }
 
-    //https://community.khronos.org/t/loading-and-reading-a-floating-point-texture/63360
-    //http://www.anandmuralidhar.com/blog/android/load-read-texture/
-    //https://github.com/anandmuralidhar24/FloatTextureAndroid
-    //Metodo per caricare la maschera
-    public void loadInference(float[] inferenceArray, int width, int height){
-        GL30.glActiveTexture(GL30.GL_TEXTURE3);
-        GL30.glBindTexture(GL30.GL_TEXTURE_2D, getInferenceTextureId());
+    /**
+     * Libera le risorse OpenGL del renderer. Deve essere chiamato nel thread OpenGL.
+     */
+    public void release() {
+        GL30.glDeleteFramebuffers(frameBuffers);
+        GL30.glDeleteTextures(textures);
 
-        GL30.glTexImage2D(GL30.GL_TEXTURE_2D, 0, GL30.GL_R32F, width, height, 0, GL30.GL_RED, GL30.GL_FLOAT, inferenceArray);
+        //La prima texture di sfondo è già in textures
+        for (int i = 1; i < backgroundTextures.length; i++) {
+            GL30.glDeleteTextures(backgroundTextures[i]);
+        }
 
-        GL30.glBindTexture(GL30.GL_TEXTURE_2D, 0);
-    }
+        GL30.glDeleteProgram(program);
 
-    /**
-     * Carica l'immagine di background.
-     * @param image immagine di sfondo.
-     */
-    public void loadBackgroudImage(BufferedImage image){
-        loadTexture(image, getBackgroundTextureId(), GL30.GL_TEXTURE0);
+        ShaderUtil.checkGLError(TAG, "Release");
     }
 
     /**
-     * Carica un immagine in una texture openGL.
-     *
-     * @param image immagine da caricare
-     * @param textureId bind della texture openGL
-     * @param activeTexture bind della texture attiva openGL
+     * Carica l'immagine di background.
+     * @param image immagine di sfondo RGBA.
      */
-    private void loadTexture(BufferedImage image, int textureId, int activeTexture){
-        int textureTarget = GL30.GL_TEXTURE_2D;
+    public void loadBackgroudImage(FrameImage image){
+        GL30.glActiveTexture(GL30.GL_TEXTURE0);
+        GL30.glBindTexture(GL30.GL_TEXTURE_2D, getBackgroundTextureId());
 
-        GL30.glActiveTexture(activeTexture);
-        GL30.glBindTexture(textureTarget, textureId);
+        int width = image.getWidth();
+        int height = image.getHeight();
 
-        //non si capisce se RGBA o ARGB
-        //Lo caccio così
-        //Altrimenti nello shader inverto i colori.
-        int[] rgb = image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
-        GL30.glTexImage2D(GL30.GL_TEXTURE_2D, 0, GL30.GL_RGBA, image.getWidth(), image.getHeight(), 0, GL30.GL_RGBA, GL30.GL_UNSIGNED_BYTE, rgb);
+        if(backgroundWidths[backgroundSlot] == width && backgroundHeights[backgroundSlot] == height){
+            GL30.glTexSubImage2D(GL30.GL_TEXTURE_2D, 0, 0, 0, width, height, GL30.GL_RGBA, GL30.GL_UNSIGNED_BYTE, image.getPixels());
+        }else{
+            GL30.glTexImage2D(GL30.GL_TEXTURE_2D, 0, GL30.GL_RGBA8, width, height, 0, GL30.GL_RGBA, GL30.GL_UNSIGNED_BYTE, image.getPixels());
+            backgroundWidths[backgroundSlot] = width;
+            backgroundHeights[backgroundSlot] = height;
+        }
 
-        GL30.glBindTexture(textureTarget, 0);
+        GL30.glBindTexture(GL30.GL_TEXTURE_2D, 0);
 
-        ShaderUtil.checkGLError(TAG, "mask loading");
+        ShaderUtil.checkGLError(TAG, "background loading");
     }
 
 }
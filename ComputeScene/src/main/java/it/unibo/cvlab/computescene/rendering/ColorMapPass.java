@@ -0,0 +1,284 @@
+package it.unibo.cvlab.computescene.rendering;
+
+import it.unibo.cvlab.computescene.Utils;
+import org.lwjgl.opengl.GL30;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.logging.Logger;
+
+/**
+ * Pass fuori schermo alla risoluzione della stima che la colora con la palette plasma (GL_RGBA8),
+ * come la vecchia mappatura su CPU: colore = plasma[int(stima * plasmaFactor)].
+ * Il risultato si esporta con la lettura asincrona: 4 byte per pixel, righe dal basso verso l'alto.
+ */
+public class ColorMapPass {
+    private static final String TAG = ColorMapPass.class.getSimpleName();
+    private final static Logger Log = Logger.getLogger(ColorMapPass.class.getSimpleName());
+
+    private static final String VERTEX_SHADER_NAME = "screenquad.vert";
+    private static final String FRAGMENT_SHADER_NAME = "colormap.frag";
+
+    public static final int BYTES_PER_PIXEL = 4;
+
+    private static final int PIXEL_BUFFER_COUNT = 2;
+
+    private final ScreenQuad quad = new ScreenQuad();
+
+    private int program;
+    private int positionAttribute;
+    private int texCoordAttribute;
+    private int inferenceTextureUniform;
+    private int plasmaTextureUniform;
+    private int plasmaFactorUniform;
+    private int plasmaSizeUniform;
+
+    //textures[0]: colori, textures[1]: palette plasma
+    private final int[] textures = new int[2];
+    private final int[] frameBuffers = new int[1];
+
+    private int inferenceTextureId;
+    private float plasmaFactor;
+
+    private int width, height;
+    private final int[] savedViewport = new int[4];
+
+    //Ring di letture: un pixel buffer viene riletto solo dopo il suo fence
+    private final PixelBufferRing readbackRing = new PixelBufferRing(PIXEL_BUFFER_COUNT, 1);
+
+    public int getColorMapTextureId() {
+        return textures[0];
+    }
+
+    private int getPlasmaTextureId() {
+        return textures[1];
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Imposta la texture con la stima di profondità, vedi DepthTexture. La texture non appartiene al pass.
+     */
+    public void setInferenceTextureId(int inferenceTextureId) {
+        this.inferenceTextureId = inferenceTextureId;
+    }
+
+    public void setPlasmaFactor(float plasmaFactor) {
+        this.plasmaFactor = plasmaFactor;
+    }
+
+    /**
+     * Alloca framebuffer, texture e pixel buffer. Deve essere chiamato nel thread OpenGL.
+     *
+     * @param width larghezza della stima
+     * @param height altezza della stima
+     */
+    public void createOnGlThread(int width, int height) throws IOException {
+        if(width <= 0 || height <= 0)
+            throw new IllegalArgumentException("Dimensioni non valide: "+width+"x"+height);
+
+        this.width = width;
+        this.height = height;
+
+        GL30.glGenTextures(textures);
+
+        GL30.glBindTexture(GL30.GL_TEXTURE_2D, getColorMapTextureId());
+
+        GL30.glTexParameteri(GL30.GL_TEXTURE_2D, GL30.GL_TEXTURE_WRAP_S, GL30.GL_CLAMP_TO_EDGE);
+        GL30.glTexParameteri(GL30.GL_TEXTURE_2D, GL30.GL_TEXTURE_WRAP_T, GL30.GL_CLAMP_TO_EDGE);
+        GL30.glTexParameteri(GL30.GL_TEXTURE_2D, GL30.GL_TEXTURE_MIN_FILTER, GL30.GL_NEAREST);
+        GL30.glTexParameteri(GL30.GL_TEXTURE_2D, GL30.GL_TEXTURE_MAG_FILTER, GL30.GL_NEAREST);
+
+        GL30.glTexImage2D(GL30.GL_TEXTURE_2D, 0, GL30.GL_RGBA8, width, height, 0, GL30.GL_RGBA, GL30.GL_UNSIGNED_BYTE, (ByteBuffer) null);
+
+        //Palette senza interpolazione: ogni indice ha esattamente il colore della tabella
+        GL30.glBindTexture(GL30.GL_TEXTURE_2D, getPlasmaTextureId());
+
+        GL30.glTexParameteri(GL30.GL_TEXTURE_2D, GL30.GL_TEXTURE_WRAP_S, GL30.GL_CLAMP_TO_EDGE);
+        GL30.glTexParameteri(GL30.GL_TEXTURE_2D, GL30.GL_TEXTURE_WRAP_T, GL30.GL_CLAMP_TO_EDGE);
+        GL30.glTexParameteri(GL30.GL_TEXTURE_2D, GL30.GL_TEXTURE_MIN_FILTER, GL30.GL_NEAREST);
+        GL30.glTexParameteri(GL30.GL_TEXTURE_2D, GL30.GL_TEXTURE_MAG_FILTER, GL30.GL_NEAREST);
+
+        GL30.glTexImage2D(GL30.GL_TEXTURE_2D, 0, GL30.GL_RGB32F, Utils.PLASMA.length / 3, 1, 0, GL30.GL_RGB, GL30.GL_FLOAT, Utils.PLASMA);
+
+        GL30.glBindTexture(GL30.GL_TEXTURE_2D, 0);
+
+        GL30.glGenFramebuffers(frameBuffers);
+        GL30.glBindFramebuffer(GL30.GL_FRAMEBUFFER, frameBuffers[0]);
+
+        GL30.glFramebufferTexture2D(GL30.GL_FRAMEBUFFER, GL30.GL_COLOR_ATTACHMENT0, GL30.GL_TEXTURE_2D, getColorMapTextureId(), 0);
+
+        if (GL30.glCheckFramebufferStatus(GL30.GL_FRAMEBUFFER) == GL30.GL_FRAMEBUFFER_COMPLETE) {
+            Log.info("Framebuffer caricato correttamente");
+        }else{
+            Log.severe("Framebuffer della colormap non completo");
+        }
+
+        GL30.glBindFramebuffer(GL30.GL_FRAMEBUFFER, 0);
+
+        ShaderUtil.checkGLError(TAG, "Framebuffer loading");
+
+        readbackRing.create();
+
+        for (int i = 0; i < PIXEL_BUFFER_COUNT; i++) {
+            GL30.glBindBuffer(GL30.GL_PIXEL_PACK_BUFFER, readbackRing.getPixelBuffer(i, 0));
+            GL30.glBufferData(GL30.GL_PIXEL_PACK_BUFFER, (long) width * height * BYTES_PER_PIXEL, GL30.GL_STREAM_READ);
+        }
+
+        GL30.glBindBuffer(GL30.GL_PIXEL_PACK_BUFFER, 0);
+
+        int vertexShader = ShaderUtil.loadGLShader(TAG, GL30.GL_VERTEX_SHADER, VERTEX_SHADER_NAME);
+        int fragmentShader = ShaderUtil.loadGLShader(TAG, GL30.GL_FRAGMENT_SHADER, FRAGMENT_SHADER_NAME);
+
+        program = GL30.glCreateProgram();
+        GL30.glAttachShader(program, vertexShader);
+        GL30.glAttachShader(program, fragmentShader);
+        GL30.glLinkProgram(program);
+
+        ShaderUtil.checkGLError(TAG, "Program creation");
+
+        positionAttribute = GL30.glGetAttribLocation(program, "a_position");
+        texCoordAttribute = GL30.glGetAttribLocation(program, "a_backgroundTextCoord");
+        inferenceTextureUniform = GL30.glGetUniformLocation(program, "u_inferenceTexture");
+        plasmaTextureUniform = GL30.glGetUniformLocation(program, "u_plasmaTexture");
+        plasmaFactorUniform = GL30.glGetUniformLocation(program, "u_plasmaFactor");
+        plasmaSizeUniform = GL30.glGetUniformLocation(program, "u_plasmaSize");
+
+        ShaderUtil.checkGLError(TAG, "Program parameters");
+    }
+
+    /**
+     * Colora la stima nel framebuffer del pass, poi ripristina framebuffer e viewport precedenti.
+     */
+    public void draw() {
+        GL30.glGetIntegerv(GL30.GL_VIEWPORT, savedViewport);
+
+        GL30.glBindFramebuffer(GL30.GL_FRAMEBUFFER, frameBuffers[0]);
+        GL30.glViewport(0, 0, width, height);
+
+        GL30.glDisable(GL30.GL_DEPTH_TEST);
+        GL30.glDepthMask(false);
+
+        GL30.glUseProgram(program);
+
+        GL30.glUniform1f(plasmaFactorUniform, plasmaFactor);
+        GL30.glUniform1f(plasmaSizeUniform, Utils.PLASMA.length / 3);
+
+        GL30.glActiveTexture(GL30.GL_TEXTURE3);
+        GL30.glBindTexture(GL30.GL_TEXTURE_2D, inferenceTextureId);
+        GL30.glUniform1i(inferenceTextureUniform, 3);
+
+        GL30.glActiveTexture(GL30.GL_TEXTURE4);
+        GL30.glBindTexture(GL30.GL_TEXTURE_2D, getPlasmaTextureId());
+        GL30.glUniform1i(plasmaTextureUniform, 4);
+
+        //Il quad copre tutto il framebuffer: non serve pulirlo
+        quad.draw(positionAttribute, texCoordAttribute);
+
+        GL30.glBindTexture(GL30.GL_TEXTURE_2D, 0);
+        GL30.glActiveTexture(GL30.GL_TEXTURE3);
+        GL30.glBindTexture(GL30.GL_TEXTURE_2D, 0);
+
+        GL30.glDepthMask(true);
+        GL30.glEnable(GL30.GL_DEPTH_TEST);
+
+        GL30.glBindFramebuffer(GL30.GL_FRAMEBUFFER, 0);
+        GL30.glViewport(savedViewport[0], savedViewport[1], savedViewport[2], savedViewport[3]);
+
+        ShaderUtil.checkGLError(TAG, "ColorMapDraw");
+    }
+
+    /**
+     * Avvia la lettura asincrona dei colori, senza attendere la GPU.
+     * I risultati si ottengono con mapReadback nello stesso ordine di avvio.
+     *
+     * @param tag valore associato alla lettura (es. il numero del frame)
+     */
+    public void startReadback(long tag) {
+        int index = readbackRing.nextSlot();
+
+        GL30.glBindFramebuffer(GL30.GL_READ_FRAMEBUFFER, frameBuffers[0]);
+        GL30.glBindBuffer(GL30.GL_PIXEL_PACK_BUFFER, readbackRing.getPixelBuffer(index, 0));
+
+        //Con un pixel buffer collegato glReadPixels ritorna subito
+        GL30.glReadPixels(0, 0, width, height, GL30.GL_RGBA, GL30.GL_UNSIGNED_BYTE, 0L);
+
+        readbackRing.submit(tag);
+
+        //Restoring
+        GL30.glBindBuffer(GL30.GL_PIXEL_PACK_BUFFER, 0);
+        GL30.glBindFramebuffer(GL30.GL_READ_FRAMEBUFFER, 0);
+
+        ShaderUtil.checkGLError(TAG, "StartReadback");
+    }
+
+    public boolean hasPendingReadback(){
+        return readbackRing.hasPending();
+    }
+
+    public boolean isReadbackRingFull(){
+        return readbackRing.isFull();
+    }
+
+    /**
+     * @return il tag della lettura più vecchia
+     */
+    public long getReadbackTag(){
+        return readbackRing.getOldestTag();
+    }
+
+    /**
+     * Attende il fence della lettura più vecchia e mappa il suo pixel buffer.
+     *
+     * @return pixel RGBA, righe dal basso verso l'alto. Valido fino a unmapReadback.
+     */
+    public ByteBuffer mapReadback(){
+        int index = readbackRing.waitOldest();
+
+        GL30.glBindBuffer(GL30.GL_PIXEL_PACK_BUFFER, readbackRing.getPixelBuffer(index, 0));
+        ByteBuffer mapped = GL30.glMapBufferRange(GL30.GL_PIXEL_PACK_BUFFER, 0, (long) width * height * BYTES_PER_PIXEL, GL30.GL_MAP_READ_BIT);
+        GL30.glBindBuffer(GL30.GL_PIXEL_PACK_BUFFER, 0);
+
+        if(mapped == null)
+            throw new RuntimeException("Impossibile mappare il pixel buffer");
+
+        ShaderUtil.checkGLError(TAG, "MapReadback");
+
+        return mapped;
+    }
+
+    /**
+     * Rilascia il pixel buffer della lettura più vecchia e libera lo slot per una nuova lettura.
+     */
+    public void unmapReadback(){
+        int index = readbackRing.waitOldest();
+
+        GL30.glBindBuffer(GL30.GL_PIXEL_PACK_BUFFER, readbackRing.getPixelBuffer(index, 0));
+        GL30.glUnmapBuffer(GL30.GL_PIXEL_PACK_BUFFER);
+        GL30.glBindBuffer(GL30.GL_PIXEL_PACK_BUFFER, 0);
+
+        readbackRing.releaseOldest();
+
+        ShaderUtil.checkGLError(TAG, "UnmapReadback");
+    }
+
+    /**
+     * Libera le risorse OpenGL del pass. La texture della stima non appartiene al pass.
+     * Deve essere chiamato nel thread OpenGL.
+     */
+    public void release() {
+        readbackRing.release();
+
+        GL30.glDeleteFramebuffers(frameBuffers);
+        GL30.glDeleteTextures(textures);
+        GL30.glDeleteProgram(program);
+
+        ShaderUtil.checkGLError(TAG, "Release");
+    }
+}
@@ -0,0 +1,366 @@
+package it.unibo.cvlab.computescene.rendering;
+
+import org.lwjgl.opengl.GL30;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.logging.Logger;
+
+/**
+ * Pass fuori schermo alla risoluzione della stima che produce due texture:
+ * <ul>
+ *     <li>depth metrica (GL_R32F): stima scalata con scale e shift, limitata a [0, maxDepth]</li>
+ *     <li>maschera di occlusione (GL_R8): 1.0 oggetto visibile, 0.5 oggetto occluso dalla scena, 0.0 nessun oggetto</li>
+ * </ul>
+ * La maschera viene scritta dagli oggetti disegnati tra begin ed end con ObjectRenderer.setMaskOutput.
+ * Entrambe le texture possono essere lette da altri renderer oppure esportate con la lettura asincrona.
+ */
+public class DepthPass {
+    private static final String TAG = DepthPass.class.getSimpleName();
+    private final static Logger Log = Logger.getLogger(DepthPass.class.getSimpleName());
+
+    private static final String VERTEX_SHADER_NAME = "screenquad.vert";
+    private static final String FRAGMENT_SHADER_NAME = "depth_pass.frag";
+
+    private static final int FLOAT_SIZE = 4;
+
+    private static final int PIXEL_BUFFER_COUNT = 2;
+
+    //Indici dei pixel buffer in ogni slot del ring
+    private static final int DEPTH_BUFFER = 0;
+    private static final int MASK_BUFFER = 1;
+
+    private final ScreenQuad quad = new ScreenQuad();
+
+    private int program;
+    private int positionAttribute;
+    private int texCoordAttribute;
+    private int inferenceTextureUniform;
+    private int scaleFactorUniform;
+    private int shiftFactorUniform;
+    private int maxDepthUniform;
+
+    //textures[0]: depth metrica, textures[1]: maschera di occlusione
+    private final int[] textures = new int[2];
+    private final int[] frameBuffers = new int[1];
+    private final int[] renderBuffers = new int[1];
+
+    private int inferenceTextureId;
+    private float scaleFactor;
+    private float shiftFactor;
+    private float maxDepth;
+
+    private int width, height;
+    private final int[] savedViewport = new int[4];
+
+    //Ring di letture: per ogni slot un pixel buffer per la depth e uno per la maschera
+    private final PixelBufferRing readbackRing = new PixelBufferRing(PIXEL_BUFFER_COUNT, 2);
+    private boolean depthMapped, maskMapped;
+
+    public int getMetricDepthTextureId() {
+        return textures[0];
+    }
+
+    public int getOcclusionMaskTextureId() {
+        return textures[1];
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Imposta la texture con la stima di profondità, vedi DepthTexture. La texture non appartiene al pass.
+     */
+    public void setInferenceTextureId(int inferenceTextureId) {
+        this.inferenceTextureId = inferenceTextureId;
+    }
+
+    public void setScaleFactor(float scaleFactor) {
+        this.scaleFactor = scaleFactor;
+    }
+
+    public void setShiftFactor(float shiftFactor) {
+        this.shiftFactor = shiftFactor;
+    }
+
+    public void setMaxDepth(float maxDepth) {
+        this.maxDepth = maxDepth;
+    }
+
+    /**
+     * Alloca framebuffer, texture e pixel buffer. Deve essere chiamato nel thread OpenGL.
+     *
+     * @param width larghezza della stima
+     * @param height altezza della stima
+     */
+    public void createOnGlThread(int width, int height) throws IOException {
+        if(width <= 0 || height <= 0)
+            throw new IllegalArgumentException("Dimensioni non valide: "+width+"x"+height);
+
+        this.width = width;
+        this.height = height;
+
+        GL30.glGenTextures(textures);
+
+        createTexture(getMetricDepthTextureId(), GL30.GL_R32F, GL30.GL_FLOAT);
+        createTexture(getOcclusionMaskTextureId(), GL30.GL_R8, GL30.GL_UNSIGNED_BYTE);
+
+        //Il depth buffer serve alla maschera: a parità di pixel vince l'oggetto più vicino
+        GL30.glGenRenderbuffers(renderBuffers);
+        GL30.glBindRenderbuffer(GL30.GL_RENDERBUFFER, renderBuffers[0]);
+        GL30.glRenderbufferStorage(GL30.GL_RENDERBUFFER, GL30.GL_DEPTH_COMPONENT24, width, height);
+        GL30.glBindRenderbuffer(GL30.GL_RENDERBUFFER, 0);
+
+        GL30.glGenFramebuffers(frameBuffers);
+        GL30.glBindFramebuffer(GL30.GL_FRAMEBUFFER, frameBuffers[0]);
+
+        GL30.glFramebufferTexture2D(GL30.GL_FRAMEBUFFER, GL30.GL_COLOR_ATTACHMENT0, GL30.GL_TEXTURE_2D, getMetricDepthTextureId(), 0);
+        GL30.glFramebufferTexture2D(GL30.GL_FRAMEBUFFER, GL30.GL_COLOR_ATTACHMENT1, GL30.GL_TEXTURE_2D, getOcclusionMaskTextureId(), 0);
+        GL30.glFramebufferRenderbuffer(GL30.GL_FRAMEBUFFER, GL30.GL_DEPTH_ATTACHMENT, GL30.GL_RENDERBUFFER, renderBuffers[0]);
+
+        GL30.glDrawBuffers(new int[]{GL30.GL_COLOR_ATTACHMENT0, GL30.GL_COLOR_ATTACHMENT1});
+
+        if (GL30.glCheckFramebufferStatus(GL30.GL_FRAMEBUFFER) == GL30.GL_FRAMEBUFFER_COMPLETE) {
+            Log.info("Framebuffer caricato correttamente");
+        }else{
+            Log.severe("Framebuffer della depth non completo");
+        }
+
+        GL30.glBindFramebuffer(GL30.GL_FRAMEBUFFER, 0);
+
+        ShaderUtil.checkGLError(TAG, "Framebuffer loading");
+
+        readbackRing.create();
+
+        for (int i = 0; i < PIXEL_BUFFER_COUNT; i++) {
+            GL30.glBindBuffer(GL30.GL_PIXEL_PACK_BUFFER, readbackRing.getPixelBuffer(i, DEPTH_BUFFER));
+            GL30.glBufferData(GL30.GL_PIXEL_PACK_BUFFER, (long) width * height * FLOAT_SIZE, GL30.GL_STREAM_READ);
+            GL30.glBindBuffer(GL30.GL_PIXEL_PACK_BUFFER, readbackRing.getPixelBuffer(i, MASK_BUFFER));
+            GL30.glBufferData(GL30.GL_PIXEL_PACK_BUFFER, (long) width * height, GL30.GL_STREAM_READ);
+        }
+
+        GL30.glBindBuffer(GL30.GL_PIXEL_PACK_BUFFER, 0);
+
+        int vertexShader = ShaderUtil.loadGLShader(TAG, GL30.GL_VERTEX_SHADER, VERTEX_SHADER_NAME);
+        int fragmentShader = ShaderUtil.loadGLShader(TAG, GL30.GL_FRAGMENT_SHADER, FRAGMENT_SHADER_NAME);
+
+        program = GL30.glCreateProgram();
+        GL30.glAttachShader(program, vertexShader);
+        GL30.glAttachShader(program, fragmentShader);
+        GL30.glLinkProgram(program);
+
+        ShaderUtil.checkGLError(TAG, "Program creation");
+
+        positionAttribute = GL30.glGetAttribLocation(program, "a_position");
+        texCoordAttribute = GL30.glGetAttribLocation(program, "a_backgroundTextCoord");
+        inferenceTextureUniform = GL30.glGetUniformLocation(program, "u_inferenceTexture");
+        scaleFactorUniform = GL30.glGetUniformLocation(program, "u_scaleFactor");
+        shiftFactorUniform = GL30.glGetUniformLocation(program, "u_shiftFactor");
+        maxDepthUniform = GL30.glGetUniformLocation(program, "u_maxDepth");
+
+        ShaderUtil.checkGLError(TAG, "Program parameters");
+    }
+
+    private void createTexture(int textureId, int internalFormat, int type){
+        GL30.glBindTexture(GL30.GL_TEXTURE_2D, textureId);
+
+        GL30.glTexParameteri(GL30.GL_TEXTURE_2D, GL30.GL_TEXTURE_WRAP_S, GL30.GL_CLAMP_TO_EDGE);
+        GL30.glTexParameteri(GL30.GL_TEXTURE_2D, GL30.GL_TEXTURE_WRAP_T, GL30.GL_CLAMP_TO_EDGE);
+
+        //Valori metrici e classi della maschera: niente interpolazione
+        GL30.glTexParameteri(GL30.GL_TEXTURE_2D, GL30.GL_TEXTURE_MIN_FILTER, GL30.GL_NEAREST);
+        GL30.glTexParameteri(GL30.GL_TEXTURE_2D, GL30.GL_TEXTURE_MAG_FILTER, GL30.GL_NEAREST);
+
+        GL30.glTexImage2D(GL30.GL_TEXTURE_2D, 0, internalFormat, width, height, 0, GL30.GL_RED, type, (ByteBuffer) null);
+
+        GL30.glBindTexture(GL30.GL_TEXTURE_2D, 0);
+    }
+
+    /**
+     * Disegna la depth metrica e azzera la maschera, poi lascia il framebuffer del pass collegato:
+     * gli oggetti disegnati fino a end scrivono solo nella maschera.
+     */
+    public void begin() {
+        GL30.glGetIntegerv(GL30.GL_VIEWPORT, savedViewport);
+
+        GL30.glBindFramebuffer(GL30.GL_FRAMEBUFFER, frameBuffers[0]);
+        GL30.glViewport(0, 0, width, height);
+        GL30.glClear(GL30.GL_DEPTH_BUFFER_BIT);
+
+        GL30.glDisable(GL30.GL_DEPTH_TEST);
+        GL30.glDepthMask(false);
+
+        GL30.glUseProgram(program);
+
+        GL30.glUniform1f(scaleFactorUniform, scaleFactor);
+        GL30.glUniform1f(shiftFactorUniform, shiftFactor);
+        GL30.glUniform1f(maxDepthUniform, maxDepth);
+
+        GL30.glActiveTexture(GL30.GL_TEXTURE3);
+        GL30.glBindTexture(GL30.GL_TEXTURE_2D, inferenceTextureId);
+        GL30.glUniform1i(inferenceTextureUniform, 3);
+
+        //Il quad copre tutto il framebuffer: non serve pulire le uscite colore
+        quad.draw(positionAttribute, texCoordAttribute);
+
+        GL30.glBindTexture(GL30.GL_TEXTURE_2D, 0);
+
+        GL30.glDepthMask(true);
+        GL30.glEnable(GL30.GL_DEPTH_TEST);
+
+        //La depth metrica non deve essere sovrascritta dagli oggetti
+        GL30.glColorMaski(0, false, false, false, false);
+
+        ShaderUtil.checkGLError(TAG, "DepthPassBegin");
+    }
+
+    /**
+     * Chiude il pass e ripristina framebuffer e viewport precedenti.
+     */
+    public void end() {
+        GL30.glColorMaski(0, true, true, true, true);
+
+        GL30.glBindFramebuffer(GL30.GL_FRAMEBUFFER, 0);
+        GL30.glViewport(savedViewport[0], savedViewport[1], savedViewport[2], savedViewport[3]);
+
+        ShaderUtil.checkGLError(TAG, "DepthPassEnd");
+    }
+
+    /**
+     * Avvia la lettura asincrona di depth metrica e maschera, senza attendere la GPU.
+     * I risultati si ottengono con waitReadback nello stesso ordine di avvio.
+     *
+     * @param tag valore associato alla lettura (es. il numero del frame)
+     */
+    public void startReadback(long tag) {
+        int index = readbackRing.nextSlot();
+
+        GL30.glBindFramebuffer(GL30.GL_READ_FRAMEBUFFER, frameBuffers[0]);
+        GL30.glPixelStorei(GL30.GL_PACK_ALIGNMENT, 1);
+
+        GL30.glReadBuffer(GL30.GL_COLOR_ATTACHMENT0);
+        GL30.glBindBuffer(GL30.GL_PIXEL_PACK_BUFFER, readbackRing.getPixelBuffer(index, DEPTH_BUFFER));
+        GL30.glReadPixels(0, 0, width, height, GL30.GL_RED, GL30.GL_FLOAT, 0L);
+
+        GL30.glReadBuffer(GL30.GL_COLOR_ATTACHMENT1);
+        GL30.glBindBuffer(GL30.GL_PIXEL_PACK_BUFFER, readbackRing.getPixelBuffer(index, MASK_BUFFER));
+        GL30.glReadPixels(0, 0, width, height, GL30.GL_RED, GL30.GL_UNSIGNED_BYTE, 0L);
+
+        readbackRing.submit(tag);
+
+        //Restoring
+        GL30.glReadBuffer(GL30.GL_COLOR_ATTACHMENT0);
+        GL30.glPixelStorei(GL30.GL_PACK_ALIGNMENT, 4);
+        GL30.glBindBuffer(GL30.GL_PIXEL_PACK_BUFFER, 0);
+        GL30.glBindFramebuffer(GL30.GL_READ_FRAMEBUFFER, 0);
+
+        ShaderUtil.checkGLError(TAG, "StartReadback");
+    }
+
+    public boolean hasPendingReadback(){
+        return readbackRing.hasPending();
+    }
+
+    public boolean isReadbackRingFull(){
+        return readbackRing.isFull();
+    }
+
+    /**
+     * Attende il fence della lettura più vecchia.
+     *
+     * @return il tag della lettura, i cui buffer si ottengono con mapMetricDepth e mapOcclusionMask
+     */
+    public long waitReadback(){
+        readbackRing.waitOldest();
+
+        return readbackRing.getOldestTag();
+    }
+
+    /**
+     * @return depth metrica della lettura più vecchia, righe dal basso verso l'alto.
+     * Valido fino a unmapReadback.
+     */
+    public FloatBuffer mapMetricDepth(){
+        int index = readbackRing.waitOldest();
+
+        ByteBuffer mapped = map(readbackRing.getPixelBuffer(index, DEPTH_BUFFER), width * height * FLOAT_SIZE);
+        depthMapped = true;
+
+        return mapped.order(ByteOrder.nativeOrder()).asFloatBuffer();
+    }
+
+    /**
+     * @return maschera di occlusione della lettura più vecchia (un byte per pixel), righe dal basso verso l'alto.
+     * Valido fino a unmapReadback.
+     */
+    public ByteBuffer mapOcclusionMask(){
+        int index = readbackRing.waitOldest();
+
+        ByteBuffer mapped = map(readbackRing.getPixelBuffer(index, MASK_BUFFER), width * height);
+        maskMapped = true;
+
+        return mapped;
+    }
+
+    private ByteBuffer map(int pixelBuffer, int length){
+        GL30.glBindBuffer(GL30.GL_PIXEL_PACK_BUFFER, pixelBuffer);
+        ByteBuffer mapped = GL30.glMapBufferRange(GL30.GL_PIXEL_PACK_BUFFER, 0, length, GL30.GL_MAP_READ_BIT);
+        GL30.glBindBuffer(GL30.GL_PIXEL_PACK_BUFFER, 0);
+
+        if(mapped == null)
+            throw new RuntimeException("Impossibile mappare il pixel buffer");
+
+        ShaderUtil.checkGLError(TAG, "MapReadback");
+
+        return mapped;
+    }
+
+    /**
+     * Rilascia i buffer mappati della lettura più vecchia e libera lo slot per una nuova lettura.
+     */
+    public void unmapReadback(){
+        int index = readbackRing.waitOldest();
+
+        if(depthMapped){
+            GL30.glBindBuffer(GL30.GL_PIXEL_PACK_BUFFER, readbackRing.getPixelBuffer(index, DEPTH_BUFFER));
+            GL30.glUnmapBuffer(GL30.GL_PIXEL_PACK_BUFFER);
+            depthMapped = false;
+        }
+
+        if(maskMapped){
+            GL30.glBindBuffer(GL30.GL_PIXEL_PACK_BUFFER, readbackRing.getPixelBuffer(index, MASK_BUFFER));
+            GL30.glUnmapBuffer(GL30.GL_PIXEL_PACK_BUFFER);
+            maskMapped = false;
+        }
+
+        GL30.glBindBuffer(GL30.GL_PIXEL_PACK_BUFFER, 0);
+
+        readbackRing.releaseOldest();
+
+        ShaderUtil.checkGLError(TAG, "UnmapReadback");
+    }
+
+    /**
+     * Libera le risorse OpenGL del pass. La texture della stima non appartiene al pass.
+     * Deve essere chiamato nel thread OpenGL.
+     */
+    public void release() {
+        readbackRing.release();
+        depthMapped = false;
+        maskMapped = false;
+
+        GL30.glDeleteFramebuffers(frameBuffers);
+        GL30.glDeleteRenderbuffers(renderBuffers);
+        GL30.glDeleteTextures(textures);
+        GL30.glDeleteProgram(program);
+
+        ShaderUtil.checkGLError(TAG, "Release");
+    }
+}
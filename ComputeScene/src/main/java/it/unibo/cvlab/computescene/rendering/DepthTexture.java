@@ -0,0 +1,140 @@
+package it.unibo.cvlab.computescene.rendering;
+
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GL30;
+import org.lwjgl.opengl.GL42;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.logging.Logger;
+
+/**
+ * Texture GL_R32F con la stima di profondità del frame, condivisa da tutti i renderer:
+ * viene caricata una volta per frame e ogni renderer ne fa solo il bind.
+ * Lo storage viene allocato una volta sola (glTexStorage2D se disponibile), i caricamenti
+ * passano da un ring di pixel buffer e aggiornano la texture con glTexSubImage2D.
+ */
+public class DepthTexture {
+    private static final String TAG = DepthTexture.class.getSimpleName();
+    private final static Logger Log = Logger.getLogger(DepthTexture.class.getSimpleName());
+
+    private static final int PIXEL_BUFFER_COUNT = 3;
+    private static final int FLOAT_SIZE = 4;
+
+    private final int[] textures = new int[1];
+
+    //Ring di pixel buffer: un buffer viene riscritto solo quando la GPU ha finito di leggerlo
+    private final PixelBufferRing uploadRing = new PixelBufferRing(PIXEL_BUFFER_COUNT, 1);
+
+    private int width, height;
+
+    public int getTextureId() {
+        return textures[0];
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Alloca texture e pixel buffer per stime width x height. Deve essere chiamato nel thread OpenGL.
+     */
+    public void createOnGlThread(int width, int height) {
+        if(width <= 0 || height <= 0)
+            throw new IllegalArgumentException("Dimensioni non valide: "+width+"x"+height);
+
+        this.width = width;
+        this.height = height;
+
+        GL30.glGenTextures(textures);
+        GL30.glBindTexture(GL30.GL_TEXTURE_2D, getTextureId());
+
+        GL30.glTexParameteri(GL30.GL_TEXTURE_2D, GL30.GL_TEXTURE_WRAP_S, GL30.GL_CLAMP_TO_EDGE);
+        GL30.glTexParameteri(GL30.GL_TEXTURE_2D, GL30.GL_TEXTURE_WRAP_T, GL30.GL_CLAMP_TO_EDGE);
+
+        GL30.glTexParameteri(GL30.GL_TEXTURE_2D, GL30.GL_TEXTURE_MIN_FILTER, GL30.GL_LINEAR);
+        GL30.glTexParameteri(GL30.GL_TEXTURE_2D, GL30.GL_TEXTURE_MAG_FILTER, GL30.GL_LINEAR);
+
+        //Storage immutabile con OpenGL 4.2 o ARB_texture_storage, altrimenti allocato qui una volta sola
+        if(GL.getCapabilities().glTexStorage2D != 0L){
+            GL42.glTexStorage2D(GL30.GL_TEXTURE_2D, 1, GL30.GL_R32F, width, height);
+        }else{
+            Log.info("glTexStorage2D non disponibile: uso glTexImage2D");
+            GL30.glTexImage2D(GL30.GL_TEXTURE_2D, 0, GL30.GL_R32F, width, height, 0, GL30.GL_RED, GL30.GL_FLOAT, (ByteBuffer) null);
+        }
+
+        GL30.glBindTexture(GL30.GL_TEXTURE_2D, 0);
+
+        uploadRing.create();
+
+        for (int i = 0; i < PIXEL_BUFFER_COUNT; i++) {
+            GL30.glBindBuffer(GL30.GL_PIXEL_UNPACK_BUFFER, uploadRing.getPixelBuffer(i, 0));
+            GL30.glBufferData(GL30.GL_PIXEL_UNPACK_BUFFER, (long) width * height * FLOAT_SIZE, GL30.GL_STREAM_DRAW);
+        }
+
+        GL30.glBindBuffer(GL30.GL_PIXEL_UNPACK_BUFFER, 0);
+
+        ShaderUtil.checkGLError(TAG, "Depth texture creation");
+    }
+
+    /**
+     * Copia la stima nel prossimo pixel buffer del ring e aggiorna la texture.
+     * La copia verso la texture avviene in modo asincrono sulla GPU.
+     *
+     * @param inference stima width x height, letta dalla posizione 0 senza modificarne lo stato
+     */
+    public void upload(FloatBuffer inference){
+        int length = width * height;
+
+        if(inference.capacity() < length)
+            throw new IllegalArgumentException("Stima di "+inference.capacity()+" valori, attesi "+length);
+
+        //Con il ring pieno si riusa il buffer più vecchio, dopo che la GPU l'ha letto
+        if(uploadRing.isFull()){
+            uploadRing.waitOldest();
+            uploadRing.releaseOldest();
+        }
+
+        int index = uploadRing.nextSlot();
+
+        GL30.glBindBuffer(GL30.GL_PIXEL_UNPACK_BUFFER, uploadRing.getPixelBuffer(index, 0));
+
+        //Il fence garantisce che la GPU non stia più leggendo il buffer
+        ByteBuffer mapped = GL30.glMapBufferRange(GL30.GL_PIXEL_UNPACK_BUFFER, 0, (long) length * FLOAT_SIZE,
+                GL30.GL_MAP_WRITE_BIT | GL30.GL_MAP_INVALIDATE_BUFFER_BIT | GL30.GL_MAP_UNSYNCHRONIZED_BIT);
+
+        if(mapped == null)
+            throw new RuntimeException("Impossibile mappare il pixel buffer");
+
+        FloatBuffer source = inference.duplicate();
+        source.clear().limit(length);
+        mapped.order(ByteOrder.nativeOrder()).asFloatBuffer().put(source);
+
+        GL30.glUnmapBuffer(GL30.GL_PIXEL_UNPACK_BUFFER);
+
+        GL30.glBindTexture(GL30.GL_TEXTURE_2D, getTextureId());
+        GL30.glTexSubImage2D(GL30.GL_TEXTURE_2D, 0, 0, 0, width, height, GL30.GL_RED, GL30.GL_FLOAT, 0L);
+        GL30.glBindTexture(GL30.GL_TEXTURE_2D, 0);
+
+        uploadRing.submit(0L);
+
+        GL30.glBindBuffer(GL30.GL_PIXEL_UNPACK_BUFFER, 0);
+
+        ShaderUtil.checkGLError(TAG, "Depth upload");
+    }
+
+    /**
+     * Libera texture e pixel buffer. Deve essere chiamato nel thread OpenGL.
+     */
+    public void release() {
+        uploadRing.release();
+        GL30.glDeleteTextures(textures);
+
+        ShaderUtil.checkGLError(TAG, "Release");
+    }
+}
@@ -0,0 +1,223 @@
+package it.unibo.cvlab.computescene.rendering;
+
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.egl.EGL;
+import org.lwjgl.egl.EGL10;
+import org.lwjgl.egl.EGL12;
+import org.lwjgl.egl.EGL14;
+import org.lwjgl.egl.EGLCapabilities;
+import org.lwjgl.egl.EXTDeviceEnumeration;
+import org.lwjgl.egl.EXTPlatformBase;
+import org.lwjgl.egl.EXTPlatformDevice;
+import org.lwjgl.opengl.GL;
+import org.lwjgl.system.Configuration;
+import org.lwjgl.system.FunctionProvider;
+import org.lwjgl.system.Library;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.SharedLibrary;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Contesto OpenGL senza finestra, creato tramite EGL con una superficie pbuffer.
+ * Permette di eseguire ComputeScene su macchine senza display: il rendering avviene
+ * interamente fuori schermo e non ci sono swap, vsync o compositor.
+ */
+public class HeadlessContext {
+    private static final String TAG = HeadlessContext.class.getSimpleName();
+    private final static Logger Log = Logger.getLogger(TAG);
+
+    private long display = EGL10.EGL_NO_DISPLAY;
+    private long surface = EGL10.EGL_NO_SURFACE;
+    private long context = EGL10.EGL_NO_CONTEXT;
+
+    private long config;
+    private int width, height;
+
+    private SharedLibrary glLibrary;
+
+    /**
+     * Crea il contesto e lo rende corrente nel thread chiamante.
+     * Deve essere chiamato prima di qualsiasi altra funzione OpenGL.
+     *
+     * @param width larghezza della superficie pbuffer
+     * @param height altezza della superficie pbuffer
+     */
+    public void create(int width, int height) {
+        //Le funzioni GL vanno caricate tramite EGL, non tramite GLX
+        Configuration.OPENGL_EXPLICIT_INIT.set(true);
+
+        display = getDisplay();
+
+        if(display == EGL10.EGL_NO_DISPLAY)
+            throw new IllegalStateException("Impossibile ottenere il display EGL");
+
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            IntBuffer major = stack.mallocInt(1);
+            IntBuffer minor = stack.mallocInt(1);
+
+            if(!EGL10.eglInitialize(display, major, minor))
+                throw new IllegalStateException("Impossibile inizializzare EGL: 0x" + Integer.toHexString(EGL10.eglGetError()));
+
+            Log.log(Level.INFO, "EGL " + major.get(0) + "." + minor.get(0));
+
+            EGL.createDisplayCapabilities(display, major.get(0), minor.get(0));
+
+            if(!EGL12.eglBindAPI(EGL14.EGL_OPENGL_API))
+                throw new IllegalStateException("OpenGL non supportato da EGL");
+
+            IntBuffer configAttributes = stack.ints(
+                    EGL10.EGL_SURFACE_TYPE, EGL10.EGL_PBUFFER_BIT,
+                    EGL10.EGL_RED_SIZE, 8,
+                    EGL10.EGL_GREEN_SIZE, 8,
+                    EGL10.EGL_BLUE_SIZE, 8,
+                    EGL10.EGL_ALPHA_SIZE, 8,
+                    EGL10.EGL_DEPTH_SIZE, 24,
+                    EGL12.EGL_RENDERABLE_TYPE, EGL14.EGL_OPENGL_BIT,
+                    EGL10.EGL_NONE
+            );
+
+            PointerBuffer configs = stack.mallocPointer(1);
+            IntBuffer numConfigs = stack.mallocInt(1);
+
+            if(!EGL10.eglChooseConfig(display, configAttributes, configs, numConfigs) || numConfigs.get(0) < 1)
+                throw new IllegalStateException("Nessuna configurazione EGL compatibile");
+
+            config = configs.get(0);
+
+            surface = createSurface(width, height);
+
+            context = EGL10.eglCreateContext(display, config, EGL10.EGL_NO_CONTEXT, (IntBuffer) null);
+
+            if(context == EGL10.EGL_NO_CONTEXT)
+                throw new IllegalStateException("Impossibile creare il contesto EGL: 0x" + Integer.toHexString(EGL10.eglGetError()));
+        }
+
+        if(!EGL10.eglMakeCurrent(display, surface, surface, context))
+            throw new IllegalStateException("Impossibile rendere corrente il contesto EGL");
+
+        GL.create(createFunctionProvider());
+    }
+
+    /**
+     * Cambia le dimensioni della superficie mantenendo il contesto e tutte le sue risorse.
+     *
+     * @param width nuova larghezza della superficie pbuffer
+     * @param height nuova altezza della superficie pbuffer
+     */
+    public void resize(int width, int height) {
+        if(width == this.width && height == this.height) return;
+
+        long oldSurface = surface;
+
+        surface = createSurface(width, height);
+
+        if(!EGL10.eglMakeCurrent(display, surface, surface, context))
+            throw new IllegalStateException("Impossibile rendere corrente il contesto EGL");
+
+        EGL10.eglDestroySurface(display, oldSurface);
+    }
+
+    private long createSurface(int width, int height) {
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            IntBuffer surfaceAttributes = stack.ints(
+                    EGL10.EGL_WIDTH, width,
+                    EGL10.EGL_HEIGHT, height,
+                    EGL10.EGL_NONE
+            );
+
+            long newSurface = EGL10.eglCreatePbufferSurface(display, config, surfaceAttributes);
+
+            if(newSurface == EGL10.EGL_NO_SURFACE)
+                throw new IllegalStateException("Impossibile creare la superficie pbuffer: 0x" + Integer.toHexString(EGL10.eglGetError()));
+
+            this.width = width;
+            this.height = height;
+
+            return newSurface;
+        }
+    }
+
+    /**
+     * Ricava il display EGL: se disponibile uso il primo device (EGL_EXT_platform_device),
+     * che non richiede alcun server grafico, altrimenti il display di default.
+     */
+    private long getDisplay() {
+        EGLCapabilities clientCapabilities = EGL.getCapabilities();
+
+        if(clientCapabilities.EGL_EXT_platform_base && clientCapabilities.EGL_EXT_platform_device
+                && clientCapabilities.EGL_EXT_device_enumeration){
+            try (MemoryStack stack = MemoryStack.stackPush()) {
+                PointerBuffer devices = stack.mallocPointer(1);
+                IntBuffer numDevices = stack.mallocInt(1);
+
+                if(EXTDeviceEnumeration.eglQueryDevicesEXT(devices, numDevices) && numDevices.get(0) > 0){
+                    long deviceDisplay = EXTPlatformBase.eglGetPlatformDisplayEXT(
+                            EXTPlatformDevice.EGL_PLATFORM_DEVICE_EXT, devices.get(0), (IntBuffer) null);
+
+                    if(deviceDisplay != EGL10.EGL_NO_DISPLAY)
+                        return deviceDisplay;
+                }
+            }
+
+            Log.log(Level.WARNING, "Device EGL non disponibile, uso il display di default");
+        }
+
+        return EGL10.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
+    }
+
+    /**
+     * Le funzioni core potrebbero non essere restituite da eglGetProcAddress (EGL < 1.5):
+     * in quel caso le cerco direttamente nella libreria OpenGL.
+     */
+    private FunctionProvider createFunctionProvider() {
+        try {
+            glLibrary = Library.loadNative(GL.class, "org.lwjgl.opengl", Configuration.OPENGL_LIBRARY_NAME,
+                    "libOpenGL.so.0", "libGL.so.1", "libGL.so");
+        } catch (UnsatisfiedLinkError e) {
+            Log.log(Level.WARNING, "Libreria OpenGL non trovata, uso solo eglGetProcAddress");
+        }
+
+        return (ByteBuffer functionName) -> {
+            long address = EGL10.eglGetProcAddress(functionName);
+
+            if(address == 0L && glLibrary != null)
+                address = glLibrary.getFunctionAddress(functionName);
+
+            return address;
+        };
+    }
+
+    /**
+     * Distrugge il contesto e rilascia il display EGL.
+     */
+    public void destroy() {
+        GL.setCapabilities(null);
+
+        if(display != EGL10.EGL_NO_DISPLAY){
+            EGL10.eglMakeCurrent(display, EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_CONTEXT);
+
+            if(context != EGL10.EGL_NO_CONTEXT)
+                EGL10.eglDestroyContext(display, context);
+
+            if(surface != EGL10.EGL_NO_SURFACE)
+                EGL10.eglDestroySurface(display, surface);
+
+            EGL10.eglTerminate(display);
+        }
+
+        GL.destroy();
+
+        if(glLibrary != null){
+            glLibrary.free();
+            glLibrary = null;
+        }
+
+        display = EGL10.EGL_NO_DISPLAY;
+        surface = EGL10.EGL_NO_SURFACE;
+        context = EGL10.EGL_NO_CONTEXT;
+    }
+}
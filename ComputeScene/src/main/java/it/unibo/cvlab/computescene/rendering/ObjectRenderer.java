@@ -7,9 +7,16 @@ import it.unibo.cvlab.computescene.Utils;
 import it.unibo.cvlab.computescene.dataset.Pose;
 import it.unibo.cvlab.computescene.loader.ObjectLoader;
 import org.lwjgl.opengl.GL30;
+import org.lwjgl.opengl.GL31;
+import org.lwjgl.opengl.GL33;
 
 import java.io.IOException;
 import java.nio.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
 
 /** Renders an object loaded from an OBJ file in OpenGL. */
 public class ObjectRenderer {
@@ -24,38 +31,97 @@ public class ObjectRenderer {
     private static final String FRAGMENT_SHADER_NAME = "object.frag";
 
     private static final int COORDS_PER_VERTEX = 3;
+    private static final int MATRIX_SIZE = 16;
+    private static final int FLOAT_SIZE = 4;
     private static final float[] DEFAULT_COLOR = new float[] {0.5f, 0.5f, 0.5f, 1.0f};
 
-    // Object vertex buffer variables.
-    private int vertexBufferId;
-    private int verticesBaseAddress;
-    private int texCoordsBaseAddress;
-    private int indexBufferId;
-    private int indexCount;
+    /**
+     * Mesh residente in GPU: VAO con VBO (vertici e coordinate texture) e IBO già configurati.
+     */
+    private static class Mesh {
+        private final int vertexArrayId;
+        private final int vertexBufferId;
+        private final int indexBufferId;
+        private final int indexCount;
+
+        private Mesh(int vertexArrayId, int vertexBufferId, int indexBufferId, int indexCount) {
+            this.vertexArrayId = vertexArrayId;
+            this.vertexBufferId = vertexBufferId;
+            this.indexBufferId = indexBufferId;
+            this.indexCount = indexCount;
+        }
+    }
+
+    //Cache delle risorse in GPU: ogni Obj (anche ogni frame di animazione) e ogni texture
+    //vengono caricati una sola volta, il draw si limita a fare il bind degli handle.
+    private final Map<Obj, Mesh> meshCache = new IdentityHashMap<>();
+    private final Map<ObjectLoader.Object, Integer> textureCache = new IdentityHashMap<>();
+
+    //Risorse dell'oggetto corrente, impostate da loader()
+    private Mesh currentMesh;
+    private int currentTextureId;
+
+    /**
+     * Istanze di uno stesso oggetto con lo stesso frame di animazione: vengono disegnate
+     * con un solo glDrawElementsInstanced.
+     */
+    private static class Batch {
+        private ObjectLoader.Object object;
+        private Mesh mesh;
+        private int textureId;
+        private float[] modelMatrices = new float[MATRIX_SIZE * 4];
+        private int count;
+
+        private void add(float[] modelMatrix){
+            if(modelMatrices.length < (count + 1) * MATRIX_SIZE){
+                modelMatrices = Arrays.copyOf(modelMatrices, modelMatrices.length * 2);
+            }
+
+            System.arraycopy(modelMatrix, 0, modelMatrices, count * MATRIX_SIZE, MATRIX_SIZE);
+            count++;
+        }
+    }
+
+    //Gruppi del frame corrente: i primi activeBatches sono in uso, gli altri vengono riutilizzati
+    private final List<Batch> batches = new ArrayList<>();
+    private int activeBatches;
+
+    //Buffer delle matrici model per istanza, condiviso da tutti i VAO
+    private int instanceBufferId;
+    private FloatBuffer instanceData;
+    private final float[] singleInstance = new float[MATRIX_SIZE];
 
     private int program;
-    private final int[] textures = new int[3];
+    private final int[] textures = new int[1];
 
-    private int getTextureId(){
+    private int getPlasmaTextureId(){
         return textures[0];
     }
 
+    //Stima di profondità condivisa, vedi DepthTexture
+    private int inferenceTextureId;
+
     private int getInferenceTextureId(){
-        return textures[1];
+        return inferenceTextureId;
     }
 
-    private int getPlasmaTextureId(){
-        return textures[2];
+    /**
+     * Imposta la texture con la stima di profondità usata per maschera e plasma.
+     * La texture non appartiene al renderer.
+     */
+    public void setInferenceTextureId(int inferenceTextureId) {
+        this.inferenceTextureId = inferenceTextureId;
     }
 
 
     // Shader location: model view projection matrix.
-    private int modelUniform;
-    private int modelViewProjectionUniform;
+    private int viewProjectionUniform;
 
     // Shader location: object attributes.
     private int positionAttribute;
     private int texCoordAttribute;
+    //Matrice model per istanza: occupa quattro location consecutive, una per colonna
+    private int modelAttribute;
 
     // Shader location: texture sampler.
     private int textureUniform;
@@ -65,12 +131,14 @@ public class ObjectRenderer {
 
     // Temporary matrices allocated here to reduce number of allocations for each frame.
     private final float[] modelMatrix = new float[16];
-    private final float[] modelViewMatrix = new float[16];
-    private final float[] modelViewProjectionMatrix = new float[16];
+    private final float[] viewProjectionMatrix = new float[16];
+    private final float[] scaleMatrix = new float[16];
 
 
     private boolean maskEnabled;
     private int maskEnabledUniform;
+    private boolean maskOutput;
+    private int maskOutputUniform;
     private int inferenceTextureUniform;
     private int scaleFactorUniform;
     private float scaleFactor;
@@ -104,6 +172,14 @@ public class ObjectRenderer {
         this.maskEnabled = maskEnabled;
     }
 
+    /**
+     * Con la maschera attiva i frammenti occlusi non vengono scartati ma scritti come occlusi
+     * nella seconda uscita del framebuffer, vedi DepthPass.
+     */
+    public void setMaskOutput(boolean maskOutput) {
+        this.maskOutput = maskOutput;
+    }
+
     private float objScaleFactor = DEFAULT_OBJ_SCALE_FACTOR;
 
     public void setObjScaleFactor(float objScaleFactor){
@@ -153,16 +229,17 @@ public class ObjectRenderer {
 
         ShaderUtil.checkGLError(TAG, "Program creation");
 
-        modelUniform = GL30.glGetUniformLocation(program, "u_model");
-        modelViewProjectionUniform = GL30.glGetUniformLocation(program, "u_modelViewProjection");
+        viewProjectionUniform = GL30.glGetUniformLocation(program, "u_viewProjection");
 
         positionAttribute = GL30.glGetAttribLocation(program, "a_position");
         texCoordAttribute = GL30.glGetAttribLocation(program, "a_texCoord");
+        modelAttribute = GL30.glGetAttribLocation(program, "a_model");
 
         textureUniform = GL30.glGetUniformLocation(program, "u_texture");
         inferenceTextureUniform = GL30.glGetUniformLocation(program, "u_inferenceTexture");
 
         maskEnabledUniform = GL30.glGetUniformLocation(program, "u_maskEnabled");
+        maskOutputUniform = GL30.glGetUniformLocation(program, "u_maskOutput");
 
         lowerDeltaUniform = GL30.glGetUniformLocation(program, "u_lowerDelta");
 
@@ -180,30 +257,8 @@ public class ObjectRenderer {
 
         ShaderUtil.checkGLError(TAG, "Program parameters");
 
-        // Read the texture.
-
-        GL30.glGenTextures(textures);
-
-        GL30.glActiveTexture(GL30.GL_TEXTURE0);
-        GL30.glBindTexture(GL30.GL_TEXTURE_2D, getTextureId());
-
-        GL30.glTexParameteri(
-                GL30.GL_TEXTURE_2D, GL30.GL_TEXTURE_MIN_FILTER, GL30.GL_LINEAR_MIPMAP_LINEAR);
-        GL30.glTexParameteri(GL30.GL_TEXTURE_2D, GL30.GL_TEXTURE_MAG_FILTER, GL30.GL_LINEAR);
-
-        GL30.glBindTexture(GL30.GL_TEXTURE_2D, 0);
-
         //Init custom textures
-        GL30.glActiveTexture(GL30.GL_TEXTURE1);
-        GL30.glBindTexture(GL30.GL_TEXTURE_2D, getInferenceTextureId());
-
-        GL30.glTexParameteri(GL30.GL_TEXTURE_2D, GL30.GL_TEXTURE_WRAP_S, GL30.GL_CLAMP_TO_EDGE);
-        GL30.glTexParameteri(GL30.GL_TEXTURE_2D, GL30.GL_TEXTURE_WRAP_T, GL30.GL_CLAMP_TO_EDGE);
-
-        GL30.glTexParameteri(GL30.GL_TEXTURE_2D, GL30.GL_TEXTURE_MIN_FILTER, GL30.GL_LINEAR);
-        GL30.glTexParameteri(GL30.GL_TEXTURE_2D, GL30.GL_TEXTURE_MAG_FILTER, GL30.GL_LINEAR);
-
-        GL30.glBindTexture(GL30.GL_TEXTURE_2D, 0);
+        GL30.glGenTextures(textures);
 
         GL30.glActiveTexture(GL30.GL_TEXTURE2);
         GL30.glBindTexture(GL30.GL_TEXTURE_2D, getPlasmaTextureId());
@@ -221,63 +276,152 @@ public class ObjectRenderer {
 
         ShaderUtil.checkGLError(TAG, "Texture loading");
 
-
+        instanceBufferId = GL30.glGenBuffers();
+        instanceData = ByteBuffer.allocateDirect(MATRIX_SIZE * FLOAT_SIZE * 16).order(ByteOrder.nativeOrder()).asFloatBuffer();
     }
 
+    /**
+     * Imposta l'oggetto da disegnare. Il frame corrente dell'oggetto e la sua texture vengono
+     * caricati in GPU solo al primo utilizzo, le chiamate successive usano la cache.
+     *
+     * @param object oggetto da disegnare
+     */
     public void loader(ObjectLoader.Object object) throws IOException {
         Obj obj = object.getNextObj();
 
-        ByteBuffer buffer = object.getTexture();
-        int textureWidth = object.getTextureWidth();
-        int textureHeight = object.getTextureHeight();
+        Integer textureId = textureCache.get(object);
+
+        if(textureId == null){
+            textureId = createTexture(object.getTexture(), object.getTextureWidth(), object.getTextureHeight());
+            textureCache.put(object, textureId);
+        }
+
+        Mesh mesh = meshCache.get(obj);
+
+        if(mesh == null){
+            mesh = createMesh(obj);
+            meshCache.put(obj, mesh);
+        }
 
-        loadTextureImage(buffer, textureWidth, textureHeight, true);
+        currentTextureId = textureId;
+        currentMesh = mesh;
 
+        Matrix.setIdentityM(modelMatrix, 0);
+    }
+
+    /**
+     * Carica un obj in GPU: VBO con vertici e coordinate texture, IBO con gli indici e un VAO
+     * che ricorda il layout degli attributi.
+     *
+     * @param obj obj già convertito in formato renderizzabile
+     * @return mesh residente in GPU
+     */
+    private Mesh createMesh(Obj obj) {
         // OpenGL does not use Java arrays. ByteBuffers are used instead to provide data in a format
         // that OpenGL understands.
 
         // Obtain the data from the OBJ, as direct buffers:
-        IntBuffer wideIndices = ObjData.getFaceVertexIndices(obj, 3);
+        IntBuffer indices = ObjData.getFaceVertexIndices(obj, 3);
         FloatBuffer vertices = ObjData.getVertices(obj);
         FloatBuffer texCoords = ObjData.getTexCoords(obj, 2);
 
-        // Convert int indices to shorts for GL ES 2.0 compatibility
-        ShortBuffer indices =
-                ByteBuffer.allocateDirect(2 * wideIndices.limit())
-                        .order(ByteOrder.nativeOrder())
-                        .asShortBuffer();
-
-        while (wideIndices.hasRemaining()) {
-            indices.put((short) wideIndices.get());
-        }
-
-        indices.rewind();
+        int vertexArrayId = GL30.glGenVertexArrays();
 
         int[] buffers = new int[2];
         GL30.glGenBuffers(buffers);
-        vertexBufferId = buffers[0];
-        indexBufferId = buffers[1];
+        int vertexBufferId = buffers[0];
+        int indexBufferId = buffers[1];
+
+        GL30.glBindVertexArray(vertexArrayId);
 
         // Load vertex buffer
-        verticesBaseAddress = 0;
-        texCoordsBaseAddress = verticesBaseAddress + 4 * vertices.limit();
+        int verticesBaseAddress = 0;
+        int texCoordsBaseAddress = verticesBaseAddress + 4 * vertices.limit();
         final int totalBytes = texCoordsBaseAddress + 4 * texCoords.limit();
 
         GL30.glBindBuffer(GL30.GL_ARRAY_BUFFER, vertexBufferId);
         GL30.glBufferData(GL30.GL_ARRAY_BUFFER, totalBytes, GL30.GL_STATIC_DRAW);
         GL30.glBufferSubData(GL30.GL_ARRAY_BUFFER, verticesBaseAddress, vertices);
         GL30.glBufferSubData(GL30.GL_ARRAY_BUFFER, texCoordsBaseAddress, texCoords);
-        GL30.glBindBuffer(GL30.GL_ARRAY_BUFFER, 0);
 
-        // Load index buffer
+        // Set the vertex attributes: il layout viene salvato nel VAO.
+        GL30.glVertexAttribPointer(
+                positionAttribute, COORDS_PER_VERTEX, GL30.GL_FLOAT, false, 0, verticesBaseAddress);
+        GL30.glVertexAttribPointer(texCoordAttribute, 2, GL30.GL_FLOAT, false, 0, texCoordsBaseAddress);
+
+        GL30.glEnableVertexAttribArray(positionAttribute);
+        GL30.glEnableVertexAttribArray(texCoordAttribute);
+
+        // Matrici model per istanza: una colonna per location, avanzano di una matrice ad ogni istanza.
+        GL30.glBindBuffer(GL30.GL_ARRAY_BUFFER, instanceBufferId);
+
+        for (int column = 0; column < 4; column++) {
+            GL30.glVertexAttribPointer(modelAttribute + column, 4, GL30.GL_FLOAT, false,
+                    MATRIX_SIZE * FLOAT_SIZE, column * 4 * FLOAT_SIZE);
+            GL30.glEnableVertexAttribArray(modelAttribute + column);
+            GL33.glVertexAttribDivisor(modelAttribute + column, 1);
+        }
+
+        // Load index buffer: il binding dell'IBO viene salvato nel VAO.
+        // Indici a 32 bit: non serve la conversione a short, valida solo per GL ES 2.0
         GL30.glBindBuffer(GL30.GL_ELEMENT_ARRAY_BUFFER, indexBufferId);
-        indexCount = indices.limit();
         GL30.glBufferData(GL30.GL_ELEMENT_ARRAY_BUFFER, indices, GL30.GL_STATIC_DRAW);
+
+        GL30.glBindVertexArray(0);
+
+        GL30.glBindBuffer(GL30.GL_ARRAY_BUFFER, 0);
         GL30.glBindBuffer(GL30.GL_ELEMENT_ARRAY_BUFFER, 0);
 
         ShaderUtil.checkGLError(TAG, "OBJ buffer load");
 
-        Matrix.setIdentityM(modelMatrix, 0);
+        return new Mesh(vertexArrayId, vertexBufferId, indexBufferId, indices.limit());
+    }
+
+    /**
+     * Crea una texture openGL per l'oggetto, con mipmap.
+     *
+     * @param buffer immagine RGBA
+     * @param width lunghezza immagine
+     * @param height altezza immagine
+     * @return bind della texture openGL
+     */
+    private int createTexture(ByteBuffer buffer, int width, int height) throws IOException {
+        int textureId = GL30.glGenTextures();
+
+        GL30.glActiveTexture(GL30.GL_TEXTURE0);
+        GL30.glBindTexture(GL30.GL_TEXTURE_2D, textureId);
+
+        GL30.glTexParameteri(
+                GL30.GL_TEXTURE_2D, GL30.GL_TEXTURE_MIN_FILTER, GL30.GL_LINEAR_MIPMAP_LINEAR);
+        GL30.glTexParameteri(GL30.GL_TEXTURE_2D, GL30.GL_TEXTURE_MAG_FILTER, GL30.GL_LINEAR);
+
+        GL30.glBindTexture(GL30.GL_TEXTURE_2D, 0);
+
+        loadTexture(buffer, width, height, textureId, GL30.GL_TEXTURE0, true);
+
+        return textureId;
+    }
+
+    /**
+     * Libera tutte le mesh e le texture presenti in cache. Deve essere chiamato nel thread OpenGL.
+     */
+    public void release() {
+        for (Mesh mesh : meshCache.values()) {
+            GL30.glDeleteVertexArrays(mesh.vertexArrayId);
+            GL30.glDeleteBuffers(mesh.vertexBufferId);
+            GL30.glDeleteBuffers(mesh.indexBufferId);
+        }
+
+        for (Integer textureId : textureCache.values()) {
+            GL30.glDeleteTextures(textureId);
+        }
+
+        meshCache.clear();
+        textureCache.clear();
+        currentMesh = null;
+        currentTextureId = 0;
+
+        ShaderUtil.checkGLError(TAG, "OBJ buffer release");
     }
 
     /**
@@ -298,7 +442,6 @@ public class ObjectRenderer {
      * @see android.opengl.Matrix
      */
     public void updateModelMatrix(float[] modelMatrix, float scaleFactor) {
-        float[] scaleMatrix = new float[16];
         Matrix.setIdentityM(scaleMatrix, 0);
         scaleMatrix[0] = scaleFactor;
         scaleMatrix[5] = scaleFactor;
@@ -306,6 +449,73 @@ public class ObjectRenderer {
         Matrix.multiplyMM(this.modelMatrix, 0, modelMatrix, 0, scaleMatrix, 0);
     }
 
+    /**
+     * Aggiunge un'istanza dell'oggetto al frame corrente, con scala e delta dell'oggetto.
+     * Come loader(), passa al frame di animazione successivo: chiamarlo una volta per ancora,
+     * nell'ordine delle ancore. Le istanze vengono disegnate da drawInstances fino a clearInstances.
+     *
+     * @param object oggetto da disegnare
+     * @param modelMatrix matrice model dell'ancora, in column-major order
+     */
+    public void addInstance(ObjectLoader.Object object, float[] modelMatrix) throws IOException {
+        loader(object);
+        updateModelMatrix(modelMatrix, object.getScaleFactor());
+
+        Batch batch = null;
+
+        for (int i = 0; i < activeBatches && batch == null; i++) {
+            Batch candidate = batches.get(i);
+
+            if(candidate.object == object && candidate.mesh == currentMesh)
+                batch = candidate;
+        }
+
+        if(batch == null){
+            if(activeBatches == batches.size())
+                batches.add(new Batch());
+
+            batch = batches.get(activeBatches++);
+            batch.object = object;
+            batch.mesh = currentMesh;
+            batch.textureId = currentTextureId;
+            batch.count = 0;
+        }
+
+        batch.add(this.modelMatrix);
+    }
+
+    /**
+     * Disegna le istanze aggiunte con addInstance, una chiamata per oggetto e frame di animazione.
+     * Le istanze restano valide per altri pass (es. la maschera di DepthPass) fino a clearInstances.
+     */
+    public void drawInstances(float[] cameraView, float[] cameraPerspective) {
+        if(activeBatches == 0) return;
+
+        beginDraw(cameraView, cameraPerspective, DEFAULT_COLOR);
+
+        for (int i = 0; i < activeBatches; i++) {
+            Batch batch = batches.get(i);
+
+            GL30.glUniform1f(lowerDeltaUniform, batch.object.getDelta());
+            drawMesh(batch.mesh, batch.textureId, batch.modelMatrices, batch.count);
+        }
+
+        endDraw();
+    }
+
+    /**
+     * Svuota i gruppi per il frame successivo.
+     */
+    public void clearInstances() {
+        for (int i = 0; i < activeBatches; i++) {
+            //Il gruppo non trattiene l'oggetto fino al prossimo frame
+            batches.get(i).object = null;
+            batches.get(i).mesh = null;
+        }
+
+        activeBatches = 0;
+    }
+
     /**
      * Draws the model.
      *
@@ -323,10 +533,19 @@ public class ObjectRenderer {
             float[] cameraPerspective,
             float[] objColor) {
 
-        // Build the ModelView and ModelViewProjection matrices
-        // for calculating object position and light.
-        Matrix.multiplyMM(modelViewMatrix, 0, cameraView, 0, modelMatrix, 0);
-        Matrix.multiplyMM(modelViewProjectionMatrix, 0, cameraPerspective, 0, modelViewMatrix, 0);
+        beginDraw(cameraView, cameraPerspective, objColor);
+
+        GL30.glUniform1f(lowerDeltaUniform, lowerDelta);
+
+        System.arraycopy(modelMatrix, 0, singleInstance, 0, MATRIX_SIZE);
+        drawMesh(currentMesh, currentTextureId, singleInstance, 1);
+
+        endDraw();
+    }
+
+    //Stato comune a tutte le istanze del frame: programma, matrici della camera, uniform e texture condivise
+    private void beginDraw(float[] cameraView, float[] cameraPerspective, float[] objColor) {
+        Matrix.multiplyMM(viewProjectionMatrix, 0, cameraPerspective, 0, cameraView, 0);
 
         ShaderUtil.checkGLError(TAG, "Before draw");
 
@@ -340,9 +559,6 @@ public class ObjectRenderer {
         GL30.glUniform1f(maxDepthUniform, maxDepth);
         GL30.glUniform3fv(cameraPoseUniform, cameraPose);
 
-        // Attach the object texture.
-        GL30.glActiveTexture(GL30.GL_TEXTURE0);
-        GL30.glBindTexture(GL30.GL_TEXTURE_2D, getTextureId());
         GL30.glUniform1i(textureUniform, 0);
 
         //Attach mask texture
@@ -357,38 +573,45 @@ public class ObjectRenderer {
 
         //Enabled Uniform
         GL30.glUniform1f(maskEnabledUniform, maskEnabled ? 1.0f : 0.0f);
+        GL30.glUniform1f(maskOutputUniform, maskOutput ? 1.0f : 0.0f);
         GL30.glUniform1f(plasmaEnabledUniform, plasmaEnabled ? 1.0f : 0.0f);
 
-        GL30.glUniform1f(lowerDeltaUniform, lowerDelta);
-
         GL30.glGetIntegerv(GL30.GL_VIEWPORT, screenData);
         GL30.glUniform2f(windowSizeUniform, screenData[2], screenData[3]);
 
-        // Set the vertex attributes.
-        GL30.glBindBuffer(GL30.GL_ARRAY_BUFFER, vertexBufferId);
+        // Set the ViewProjection matrix in the shader: la model arriva per istanza.
+        GL30.glUniformMatrix4fv(viewProjectionUniform, false, viewProjectionMatrix);
+    }
 
-        GL30.glVertexAttribPointer(
-                positionAttribute, COORDS_PER_VERTEX, GL30.GL_FLOAT, false, 0, verticesBaseAddress);
-        GL30.glVertexAttribPointer(texCoordAttribute, 2, GL30.GL_FLOAT, false, 0, texCoordsBaseAddress);
+    private void drawMesh(Mesh mesh, int textureId, float[] modelMatrices, int count) {
+        int length = count * MATRIX_SIZE;
 
-        GL30.glBindBuffer(GL30.GL_ARRAY_BUFFER, 0);
+        if(instanceData.capacity() < length){
+            instanceData = ByteBuffer.allocateDirect(Math.max(length, instanceData.capacity() * 2) * FLOAT_SIZE)
+                    .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        }
 
-        // Set the ModelViewProjection matrix in the shader.
-        GL30.glUniformMatrix4fv(modelUniform, false, modelMatrix);
-        GL30.glUniformMatrix4fv(modelViewProjectionUniform, false, modelViewProjectionMatrix);
+        instanceData.clear();
+        instanceData.put(modelMatrices, 0, length);
+        instanceData.flip();
 
-        // Enable vertex arrays
-        GL30.glEnableVertexAttribArray(positionAttribute);
-        GL30.glEnableVertexAttribArray(texCoordAttribute);
+        //Orphaning: il buffer usato dal draw precedente resta al driver
+        GL30.glBindBuffer(GL30.GL_ARRAY_BUFFER, instanceBufferId);
+        GL30.glBufferData(GL30.GL_ARRAY_BUFFER, (long) instanceData.capacity() * FLOAT_SIZE, GL30.GL_STREAM_DRAW);
+        GL30.glBufferSubData(GL30.GL_ARRAY_BUFFER, 0, instanceData);
+        GL30.glBindBuffer(GL30.GL_ARRAY_BUFFER, 0);
 
-        GL30.glBindBuffer(GL30.GL_ELEMENT_ARRAY_BUFFER, indexBufferId);
-        GL30.glDrawElements(GL30.GL_TRIANGLES, indexCount, GL30.GL_UNSIGNED_SHORT, 0);
-        GL30.glBindBuffer(GL30.GL_ELEMENT_ARRAY_BUFFER, 0);
-        
-        // Disable vertex arrays
-        GL30.glDisableVertexAttribArray(positionAttribute);
-        GL30.glDisableVertexAttribArray(texCoordAttribute);
+        // Attach the object texture.
+        GL30.glActiveTexture(GL30.GL_TEXTURE0);
+        GL30.glBindTexture(GL30.GL_TEXTURE_2D, textureId);
 
+        // Il VAO contiene già attributi, matrici per istanza e IBO della mesh.
+        GL30.glBindVertexArray(mesh.vertexArrayId);
+        GL31.glDrawElementsInstanced(GL30.GL_TRIANGLES, mesh.indexCount, GL30.GL_UNSIGNED_INT, 0, count);
+        GL30.glBindVertexArray(0);
+    }
+
+    private void endDraw() {
         GL30.glActiveTexture(GL30.GL_TEXTURE0);
         GL30.glBindTexture(GL30.GL_TEXTURE_2D, 0);
 
@@ -401,23 +624,6 @@ public class ObjectRenderer {
         ShaderUtil.checkGLError(TAG, "After draw");
     }
 
-    //https://community.khronos.org/t/loading-and-reading-a-floating-point-texture/63360
-    //http://www.anandmuralidhar.com/blog/android/load-read-texture/
-    //https://github.com/anandmuralidhar24/FloatTextureAndroid
-    //Metodo per caricare la maschera
-    public void loadInference(float[] inferenceArray, int width, int height){
-        GL30.glActiveTexture(GL30.GL_TEXTURE1);
-        GL30.glBindTexture(GL30.GL_TEXTURE_2D, getInferenceTextureId());
-
-        GL30.glTexImage2D(GL30.GL_TEXTURE_2D, 0, GL30.GL_R32F, width, height, 0, GL30.GL_RED, GL30.GL_FLOAT, inferenceArray);
-
-        GL30.glBindTexture(GL30.GL_TEXTURE_2D, 0);
-    }
-
-    public void loadTextureImage(ByteBuffer buffer, int width, int height, boolean genMipmap) throws IOException {
-        loadTexture(buffer, width, height, getTextureId(), GL30.GL_TEXTURE0, genMipmap);
-    }
-
     /**
      * Carica un immagine in una texture openGL.
      *
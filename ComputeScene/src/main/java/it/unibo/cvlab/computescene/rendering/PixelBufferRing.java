@@ -0,0 +1,157 @@
+package it.unibo.cvlab.computescene.rendering;
+
+import org.lwjgl.opengl.GL30;
+import org.lwjgl.opengl.GL32;
+
+/**
+ * Ring di pixel buffer con un fence per slot: uno slot viene riutilizzato solo quando la GPU ha finito di usarne i buffer.
+ * Uno slot si occupa con nextSlot e submit e si libera con waitOldest e releaseOldest, nello stesso ordine.
+ * Ogni slot può contenere più pixel buffer (es. depth e maschera letti insieme).
+ * http://www.songho.ca/opengl/gl_pbo.html
+ */
+class PixelBufferRing {
+
+    //Attesa massima per ogni chiamata a glClientWaitSync (ns)
+    private static final long FENCE_TIMEOUT = 1_000_000_000L;
+
+    private final int slotCount;
+    private final int buffersPerSlot;
+
+    //I pixel buffer dello slot i sono da i * buffersPerSlot in poi
+    private final int[] pixelBuffers;
+    private final long[] fences;
+    private final long[] tags;
+    private int oldest;
+    private int pending;
+
+    PixelBufferRing(int slotCount, int buffersPerSlot) {
+        if(slotCount <= 0 || buffersPerSlot <= 0)
+            throw new IllegalArgumentException("Ring non valido: "+slotCount+" slot da "+buffersPerSlot+" buffer");
+
+        this.slotCount = slotCount;
+        this.buffersPerSlot = buffersPerSlot;
+
+        pixelBuffers = new int[slotCount * buffersPerSlot];
+        fences = new long[slotCount];
+        tags = new long[slotCount];
+    }
+
+    /**
+     * Genera i pixel buffer senza allocarne la memoria. Deve essere chiamato nel thread OpenGL.
+     */
+    void create(){
+        GL30.glGenBuffers(pixelBuffers);
+        oldest = 0;
+        pending = 0;
+    }
+
+    int getSlotCount() {
+        return slotCount;
+    }
+
+    int getPixelBuffer(int slot, int buffer){
+        return pixelBuffers[slot * buffersPerSlot + buffer];
+    }
+
+    boolean hasPending(){
+        return pending > 0;
+    }
+
+    boolean isFull(){
+        return pending == slotCount;
+    }
+
+    /**
+     * @return lo slot da usare per la prossima operazione, occupato solo con submit
+     */
+    int nextSlot(){
+        if(isFull())
+            throw new IllegalStateException("Tutti i pixel buffer sono in uso: consumare prima una lettura");
+
+        return (oldest + pending) % slotCount;
+    }
+
+    /**
+     * Inserisce il fence dopo i comandi che usano lo slot restituito da nextSlot e lo occupa.
+     *
+     * @param tag valore associato allo slot (es. il numero del frame), vedi getOldestTag
+     */
+    void submit(long tag){
+        int slot = nextSlot();
+
+        fences[slot] = GL32.glFenceSync(GL32.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        tags[slot] = tag;
+        pending++;
+    }
+
+    /**
+     * @return il tag dello slot occupato da più tempo
+     */
+    long getOldestTag(){
+        checkPending();
+
+        return tags[oldest];
+    }
+
+    /**
+     * Attende il fence dello slot occupato da più tempo. Si può chiamare più volte prima di releaseOldest.
+     *
+     * @return lo slot, i cui buffer la GPU non usa più
+     */
+    int waitOldest(){
+        checkPending();
+
+        if(fences[oldest] != 0L){
+            int result;
+
+            do {
+                result = GL32.glClientWaitSync(fences[oldest], GL32.GL_SYNC_FLUSH_COMMANDS_BIT, FENCE_TIMEOUT);
+            } while (result == GL32.GL_TIMEOUT_EXPIRED);
+
+            GL32.glDeleteSync(fences[oldest]);
+            fences[oldest] = 0L;
+
+            if(result == GL32.GL_WAIT_FAILED)
+                throw new RuntimeException("Attesa del fence fallita");
+        }
+
+        return oldest;
+    }
+
+    /**
+     * Libera lo slot occupato da più tempo. I suoi buffer non devono essere più mappati.
+     */
+    void releaseOldest(){
+        checkPending();
+
+        if(fences[oldest] != 0L){
+            GL32.glDeleteSync(fences[oldest]);
+            fences[oldest] = 0L;
+        }
+
+        oldest = (oldest + 1) % slotCount;
+        pending--;
+    }
+
+    private void checkPending(){
+        if(pending == 0)
+            throw new IllegalStateException("Nessuna lettura in corso");
+    }
+
+    /**
+     * Elimina fence e pixel buffer. Deve essere chiamato nel thread OpenGL.
+     */
+    void release(){
+        for (int i = 0; i < slotCount; i++) {
+            if(fences[i] != 0L){
+                GL32.glDeleteSync(fences[i]);
+                fences[i] = 0L;
+            }
+        }
+
+        oldest = 0;
+        pending = 0;
+
+        GL30.glDeleteBuffers(pixelBuffers);
+    }
+}
@@ -15,7 +15,7 @@
 package it.unibo.cvlab.computescene.rendering;
 
 import android.opengl.Matrix;
-import it.unibo.cvlab.computescene.dataset.Point;
+import it.unibo.cvlab.computescene.dataset.PointCloudBuffer;
 import org.lwjgl.BufferUtils;
 import org.lwjgl.opengl.GL30;
 
@@ -88,35 +88,28 @@ public class PointCloudRenderer {
         ShaderUtil.checkGLError(TAG, "program  params");
     }
 
-    private FloatBuffer pointsToBuffer(Point[] points){
+    //Buffer di upload riutilizzato tra i frame, cresce con la point cloud
+    private FloatBuffer cloudPoints = BufferUtils.createFloatBuffer(INITIAL_BUFFER_POINTS * FLOATS_PER_POINT);
 
-        int length = 0;
+    private FloatBuffer pointsToBuffer(PointCloudBuffer points){
+        int length = points.size() * FLOATS_PER_POINT;
 
-        for (Point p:points) {
-            if(p != null) length++;
+        if(cloudPoints.capacity() < length){
+            cloudPoints = BufferUtils.createFloatBuffer(Math.max(length, cloudPoints.capacity() * 2));
         }
 
-        FloatBuffer data = BufferUtils.createFloatBuffer(length * FLOATS_PER_POINT);
+        cloudPoints.clear();
+        points.writeTo(cloudPoints);
+        cloudPoints.flip();
 
-        for (int i = 0; i < length; i++) {
-            if(points[i] == null) continue;
-
-            data.put(points[i].getTx());
-            data.put(points[i].getTy());
-            data.put(points[i].getTz());
-            data.put(points[i].getConfidence());
-        }
-
-        data.rewind();
-
-        return data;
+        return cloudPoints;
     }
 
     /**
      * Updates the OpenGL buffer contents to the provided point. Repeated calls with the same point
      * cloud will be ignored.
      */
-    public void update(Point[] cloud) {
+    public void update(PointCloudBuffer cloud) {
         ShaderUtil.checkGLError(TAG, "before update");
 
         GL30.glBindBuffer(GL30.GL_ARRAY_BUFFER, vbo);
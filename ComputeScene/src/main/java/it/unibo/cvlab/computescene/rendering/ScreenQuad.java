@@ -0,0 +1,72 @@
+package it.unibo.cvlab.computescene.rendering;
+
+import org.lwjgl.opengl.GL30;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Quad che copre tutto il framebuffer, usato dai pass fuori schermo con screenquad.vert.
+ * Le coordinate texture vanno da (0, 0) in basso a sinistra a (1, 1) in alto a destra.
+ */
+class ScreenQuad {
+
+    private static final int COORDS_PER_VERTEX = 2;
+    private static final int TEXCOORDS_PER_VERTEX = 2;
+    private static final int FLOAT_SIZE = Float.BYTES;
+
+    private static final float[] QUAD_COORDS =
+            new float[] {
+                    -1.0f, -1.0f,   //Bottom left
+                    -1.0f, +1.0f,   //Top left
+                    +1.0f, -1.0f,   //Bottom right
+                    +1.0f, +1.0f,   //Top Right
+            };
+
+    private static final float[] QUAD_TEXTURE_COORDS =
+            new float[] {
+                    0.0f, 0.0f,   //Bottom left
+                    0.0f, 1.0f,   //Top left
+                    1.0f, 0.0f,   //Bottom right
+                    1.0f, 1.0f,   //Top Right
+            };
+
+    private static final int VERTEX_COUNT = QUAD_COORDS.length / COORDS_PER_VERTEX;
+
+    private final FloatBuffer coordsBuffer = createBuffer(QUAD_COORDS);
+    private final FloatBuffer texCoordsBuffer = createBuffer(QUAD_TEXTURE_COORDS);
+
+    private static FloatBuffer createBuffer(float[] values){
+        ByteBuffer bb = ByteBuffer.allocateDirect(values.length * FLOAT_SIZE);
+        bb.order(ByteOrder.nativeOrder());
+
+        FloatBuffer buffer = bb.asFloatBuffer();
+        buffer.put(values);
+        buffer.position(0);
+
+        return buffer;
+    }
+
+    /**
+     * Disegna il quad con il programma in uso, nel framebuffer e nella viewport correnti.
+     *
+     * @param positionAttribute attributo delle coordinate del vertice
+     * @param texCoordAttribute attributo delle coordinate texture
+     */
+    void draw(int positionAttribute, int texCoordAttribute){
+        coordsBuffer.position(0);
+        texCoordsBuffer.position(0);
+
+        GL30.glVertexAttribPointer(positionAttribute, COORDS_PER_VERTEX, GL30.GL_FLOAT, false, 0, coordsBuffer);
+        GL30.glVertexAttribPointer(texCoordAttribute, TEXCOORDS_PER_VERTEX, GL30.GL_FLOAT, false, 0, texCoordsBuffer);
+
+        GL30.glEnableVertexAttribArray(positionAttribute);
+        GL30.glEnableVertexAttribArray(texCoordAttribute);
+
+        GL30.glDrawArrays(GL30.GL_TRIANGLE_STRIP, 0, VERTEX_COUNT);
+
+        GL30.glDisableVertexAttribArray(positionAttribute);
+        GL30.glDisableVertexAttribArray(texCoordAttribute);
+    }
+}
@@ -1,12 +1,12 @@
 package it.unibo.cvlab.computescene.rendering;
 
-import org.lwjgl.BufferUtils;
 import org.lwjgl.opengl.GL30;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
+import java.util.Arrays;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -39,6 +39,9 @@ public class ScreenshotRenderer {
 
     private static final int VERTEX_COUNT = QUAD_COORDS.length / COORDS_PER_VERTEX;
 
+    //Numero di pixel buffer usati per la lettura asincrona
+    private static final int PIXEL_BUFFER_COUNT = 2;
+
     public enum ColorType{
         RGBA8(GL30.GL_RGBA, GL30.GL_RGBA8, 4, 4),
         RGB8(GL30.GL_RGB, GL30.GL_RGB8, 3, 1),
@@ -127,13 +130,14 @@ public class ScreenshotRenderer {
         return renderBuffers[0];
     }
 
+    //Ring di pixel buffer: la lettura di un frame viene avviata e consumata più tardi
+    private final PixelBufferRing readbackRing = new PixelBufferRing(PIXEL_BUFFER_COUNT, 1);
+    private final int[] pixelBufferSizes = new int[PIXEL_BUFFER_COUNT];
+    private final int[] readbackLengths = new int[PIXEL_BUFFER_COUNT];
+
     private int surfaceWidth, surfaceHeight;
     private int scaledWidth, scaledHeight;
 
-    private float[] pixelDataFloatArray;
-    private int[] pixelDataIntArray;
-    private ByteBuffer pixelDataBuffer;
-
     private ColorType colorType;
 
     /**
@@ -148,12 +152,6 @@ public class ScreenshotRenderer {
         this.scaledWidth = scaledWidth;
         this.scaledHeight = scaledHeight;
 
-        int bufferLength = scaledWidth * scaledHeight * colorType.getByteSize();
-
-        pixelDataBuffer = BufferUtils.createByteBuffer(bufferLength);
-        pixelDataIntArray = new int[bufferLength];
-        pixelDataFloatArray = new float[bufferLength];
-
         //Genero il renderbuffer dove salvare lo screenshot.
         GL30.glGenRenderbuffers(renderBuffers);
 
@@ -181,6 +179,10 @@ public class ScreenshotRenderer {
 
         ShaderUtil.checkGLError(TAG, "Framebuffer loading");
 
+        //La memoria dei pixel buffer viene allocata alla prima lettura, in base al tipo letto
+        readbackRing.create();
+        Arrays.fill(pixelBufferSizes, 0);
+
         int numVertices = 4;
 
         if (numVertices != VERTEX_COUNT) {
@@ -280,61 +282,106 @@ public class ScreenshotRenderer {
         ShaderUtil.checkGLError(TAG, "ScreenshotRendererDraw");
     }
 
-    public ByteBuffer getByteBufferScreenshot(int frameBufferId){
-        GL30.glBindFramebuffer(GL30.GL_FRAMEBUFFER, frameBufferId);
+    /**
+     * Libera le risorse OpenGL del renderer. La texture sorgente non appartiene al renderer.
+     * Deve essere chiamato nel thread OpenGL.
+     */
+    public void release() {
+        //Elimina anche i fence delle letture mai consumate
+        readbackRing.release();
 
-        // Read the pixels from pixel buffer.
-        GL30.glPixelStorei(GL30.GL_PACK_ALIGNMENT, colorType.getPixelStoreAlignment());
-        GL30.glReadPixels(0, 0, scaledWidth, scaledHeight,
-                colorType.getOpenglType(), GL30.GL_UNSIGNED_BYTE, pixelDataBuffer);
-        GL30.glPixelStorei(GL30.GL_PACK_ALIGNMENT, 4);
+        GL30.glDeleteFramebuffers(frameBuffers);
+        GL30.glDeleteRenderbuffers(renderBuffers);
+        GL30.glDeleteProgram(program);
 
-        ShaderUtil.checkGLError(TAG, "ScreenshotRendererSave");
+        ShaderUtil.checkGLError(TAG, "Release");
+    }
 
-        //Restoring
-        GL30.glBindFramebuffer(GL30.GL_FRAMEBUFFER, 0);
+    /**
+     * Avvia la lettura asincrona del framebuffer in un pixel buffer, senza attendere la GPU.
+     * Il risultato si ottiene più tardi con mapReadback, nello stesso ordine di avvio.
+     *
+     * @param frameBufferId framebuffer da leggere
+     * @param dataType GL_UNSIGNED_BYTE oppure GL_FLOAT
+     * @param tag valore associato alla lettura (es. il numero del frame), vedi getReadbackTag
+     */
+    public void startReadback(int frameBufferId, int dataType, long tag){
+        int index = readbackRing.nextSlot();
+        int length = scaledWidth * scaledHeight * colorType.getByteSize();
 
-        ShaderUtil.checkGLError(TAG, "ScreenshotRendererRestore");
+        if(dataType == GL30.GL_FLOAT) length *= FLOAT_SIZE;
+        else if(dataType != GL30.GL_UNSIGNED_BYTE) throw new IllegalArgumentException("Tipo non supportato: "+dataType);
 
-        return pixelDataBuffer;
-    }
+        GL30.glBindBuffer(GL30.GL_PIXEL_PACK_BUFFER, readbackRing.getPixelBuffer(index, 0));
+
+        if(pixelBufferSizes[index] < length){
+            GL30.glBufferData(GL30.GL_PIXEL_PACK_BUFFER, length, GL30.GL_STREAM_READ);
+            pixelBufferSizes[index] = length;
+        }
 
-    public int[] getIntArrayScreenshot(int frameBufferId){
         GL30.glBindFramebuffer(GL30.GL_FRAMEBUFFER, frameBufferId);
 
-        // Read the pixels from pixel buffer.
+        //Con un pixel buffer collegato glReadPixels ritorna subito
         GL30.glPixelStorei(GL30.GL_PACK_ALIGNMENT, colorType.getPixelStoreAlignment());
-        GL30.glReadPixels(0, 0, scaledWidth, scaledHeight,
-                colorType.getOpenglType(), GL30.GL_UNSIGNED_BYTE, pixelDataIntArray);
+        GL30.glReadPixels(0, 0, scaledWidth, scaledHeight, colorType.getOpenglType(), dataType, 0L);
         GL30.glPixelStorei(GL30.GL_PACK_ALIGNMENT, 4);
 
-        ShaderUtil.checkGLError(TAG, "ScreenshotRendererSave");
+        readbackLengths[index] = length;
+        readbackRing.submit(tag);
 
         //Restoring
         GL30.glBindFramebuffer(GL30.GL_FRAMEBUFFER, 0);
+        GL30.glBindBuffer(GL30.GL_PIXEL_PACK_BUFFER, 0);
 
-        ShaderUtil.checkGLError(TAG, "ScreenshotRendererRestore");
+        ShaderUtil.checkGLError(TAG, "StartReadback");
+    }
 
-        return pixelDataIntArray;
+    public boolean hasPendingReadback(){
+        return readbackRing.hasPending();
     }
 
-    public float[] getFloatArrayScreenshot(int frameBufferId){
-        GL30.glBindFramebuffer(GL30.GL_FRAMEBUFFER, frameBufferId);
+    public boolean isReadbackRingFull(){
+        return readbackRing.isFull();
+    }
 
-        // Read the pixels from pixel buffer.
-        GL30.glPixelStorei(GL30.GL_PACK_ALIGNMENT, colorType.getPixelStoreAlignment());
-        GL30.glReadPixels(0, 0, scaledWidth, scaledHeight,
-                colorType.getOpenglType(), GL30.GL_FLOAT, pixelDataFloatArray);
-        GL30.glPixelStorei(GL30.GL_PACK_ALIGNMENT, 4);
+    /**
+     * @return il tag della lettura più vecchia, quella restituita da mapReadback
+     */
+    public long getReadbackTag(){
+        return readbackRing.getOldestTag();
+    }
+
+    /**
+     * Attende il fence della lettura più vecchia e mappa il suo pixel buffer.
+     * Il buffer restituito è valido fino alla chiamata di unmapReadback.
+     */
+    public ByteBuffer mapReadback(){
+        int index = readbackRing.waitOldest();
 
-        ShaderUtil.checkGLError(TAG, "ScreenshotRendererSave");
+        GL30.glBindBuffer(GL30.GL_PIXEL_PACK_BUFFER, readbackRing.getPixelBuffer(index, 0));
+        ByteBuffer mapped = GL30.glMapBufferRange(GL30.GL_PIXEL_PACK_BUFFER, 0, readbackLengths[index], GL30.GL_MAP_READ_BIT);
 
-        //Restoring
-        GL30.glBindFramebuffer(GL30.GL_FRAMEBUFFER, 0);
+        if(mapped == null)
+            throw new RuntimeException("Impossibile mappare il pixel buffer");
+
+        ShaderUtil.checkGLError(TAG, "MapReadback");
+
+        return mapped.order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Rilascia il buffer restituito da mapReadback e libera il pixel buffer per una nuova lettura.
+     */
+    public void unmapReadback(){
+        int index = readbackRing.waitOldest();
+
+        GL30.glBindBuffer(GL30.GL_PIXEL_PACK_BUFFER, readbackRing.getPixelBuffer(index, 0));
+        GL30.glUnmapBuffer(GL30.GL_PIXEL_PACK_BUFFER);
+        GL30.glBindBuffer(GL30.GL_PIXEL_PACK_BUFFER, 0);
 
-        ShaderUtil.checkGLError(TAG, "ScreenshotRendererRestore");
+        readbackRing.releaseOldest();
 
-        return pixelDataFloatArray;
+        ShaderUtil.checkGLError(TAG, "UnmapReadback");
     }
 
     public int getScaledWidth() {
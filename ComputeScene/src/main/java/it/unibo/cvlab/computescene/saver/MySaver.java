@@ -1,19 +1,89 @@
 package it.unibo.cvlab.computescene.saver;
 
+import com.google.gson.annotations.SerializedName;
+
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferUShort;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
-
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Salva i risultati di un dataset. La codifica e la scrittura delle immagini avvengono
+ * su un pool di thread con coda limitata: quando la coda è piena il thread chiamante
+ * attende (back-pressure). close() attende la scrittura di tutte le immagini in coda.
+ */
 public class MySaver {
+    private static final String TAG = MySaver.class.getSimpleName();
+    private final static Logger Log = Logger.getLogger(TAG);
+
+    public static final String DEFAULT_FORMAT = "jpg";
+    //Depth metrica e maschera richiedono un formato senza perdita
+    public static final String LOSSLESS_FORMAT = "png";
+
+    //Depth metrica salvata a 16 bit in millimetri
+    private static final float DEPTH_UNITS_PER_METER = 1000.0f;
+    public static final int DEFAULT_WRITER_THREADS = 2;
+    public static final int DEFAULT_WRITER_QUEUE = 8;
+
+    static {
+        //Senza cache ImageIO non passa da un file temporaneo per ogni immagine
+        ImageIO.setUseCache(false);
+    }
+
+    public enum Output{
+        @SerializedName("oma")
+        OMA,
+        @SerializedName("noOma")
+        NO_OMA,
+        @SerializedName("depth")
+        DEPTH,
+        @SerializedName("scaledDepth")
+        SCALED_DEPTH,
+        @SerializedName("mask")
+        MASK,;
+    }
+
+    //Uscite da salvare e formato delle immagini (jpg, png, bmp)
+    private final Set<Output> outputs = EnumSet.allOf(Output.class);
+    private String format = DEFAULT_FORMAT;
+
+    private int writerThreads = DEFAULT_WRITER_THREADS;
+    private int writerQueue = DEFAULT_WRITER_QUEUE;
+    private ThreadPoolExecutor writer;
+
+    //Immagini riutilizzate per screenshot e depth colorata: tornano nel pool dopo la scrittura
+    private final ImagePool screenshotImages = new ImagePool();
+    private final ImagePool depthImages = new ImagePool();
+
+    //Riga letta dal buffer OpenGL, usata solo dal thread chiamante
+    private byte[] row;
+
+    //Primo errore avvenuto in scrittura, rilanciato dal thread chiamante
+    private volatile IOException writeError;
 
     private Path datasetPath;
     private Path resultsPath;
     private Path depthPath;
     private Path scaledDepthPath;
+    private Path maskPath;
     private Path omaPath;
     private Path noOmaPath;
 
@@ -22,31 +92,73 @@ public class MySaver {
         this.resultsPath = this.datasetPath.resolve("results");
         this.depthPath = this.resultsPath.resolve(modelName).resolve("depth");
         this.scaledDepthPath = this.resultsPath.resolve(modelName).resolve("scaledDepth");
+        this.maskPath = this.resultsPath.resolve(modelName).resolve("mask");
         this.omaPath = this.resultsPath.resolve(modelName).resolve("oma");
         this.noOmaPath = this.resultsPath.resolve(modelName).resolve("noOma");
     }
 
+    public void setOutputs(Set<Output> outputs) {
+        this.outputs.clear();
+        this.outputs.addAll(outputs);
+    }
+
+    public boolean isEnabled(Output output) {
+        return outputs.contains(output);
+    }
+
+    public void setFormat(String format) {
+        if(!ImageIO.getImageWritersByFormatName(format).hasNext())
+            throw new IllegalArgumentException("Formato immagine non supportato: "+format);
+
+        this.format = format;
+    }
+
+    public String getFormat() {
+        return format;
+    }
+
+    /**
+     * Imposta il pool di scrittura. Va chiamato prima del primo salvataggio.
+     *
+     * @param threads thread di codifica e scrittura
+     * @param queue immagini in attesa di essere scritte prima che il chiamante si blocchi
+     */
+    public void setWriters(int threads, int queue) {
+        if(writer != null)
+            throw new IllegalStateException("Pool di scrittura già avviato");
+
+        if(threads <= 0 || queue <= 0)
+            throw new IllegalArgumentException("Pool di scrittura non valido: "+threads+" thread, coda "+queue);
+
+        this.writerThreads = threads;
+        this.writerQueue = queue;
+    }
+
     public void mkdir() throws IOException {
         if(!Files.isDirectory(resultsPath))
             Files.createDirectories(resultsPath);
 
-        if(!Files.isDirectory(depthPath))
+        if(isEnabled(Output.DEPTH) && !Files.isDirectory(depthPath))
             Files.createDirectories(depthPath);
 
-        if(!Files.isDirectory(scaledDepthPath))
+        if(isEnabled(Output.SCALED_DEPTH) && !Files.isDirectory(scaledDepthPath))
             Files.createDirectories(scaledDepthPath);
 
-        if(!Files.isDirectory(omaPath))
+        if(isEnabled(Output.MASK) && !Files.isDirectory(maskPath))
+            Files.createDirectories(maskPath);
+
+        if(isEnabled(Output.OMA) && !Files.isDirectory(omaPath))
             Files.createDirectories(omaPath);
 
-        if(!Files.isDirectory(noOmaPath))
+        if(isEnabled(Output.NO_OMA) && !Files.isDirectory(noOmaPath))
             Files.createDirectories(noOmaPath);
     }
 
     public void printPaths(){
         System.out.println("Results path: "+resultsPath);
         System.out.println("Depth path: " + depthPath);
-        System.out.println("ScaledDepth path: "+depthPath);
+        System.out.println("ScaledDepth path: "+scaledDepthPath);
+        System.out.println("Mask path: "+maskPath);
         System.out.println("OMA path: "+omaPath);
         System.out.println("NO OMA path: "+noOmaPath);
     }
@@ -67,6 +179,10 @@ public class MySaver {
         return scaledDepthPath;
     }
 
+    public Path getMaskPath() {
+        return maskPath;
+    }
+
     public Path getOmaPath() {
         return omaPath;
     }
@@ -76,63 +192,103 @@ public class MySaver {
     }
 
     public void saveNoOMA(String name, ByteBuffer buffer, int width, int height, int imageType, int bpp) throws IOException {
-        BufferedImage screenshot = new BufferedImage(width, height, imageType);
-
-        for(int x = 0; x < width; x++)
-        {
-            for(int y = 0; y < height; y++)
-            {
-                int i = (x + (width * y)) * bpp;
-                int r = buffer.get(i) & 0xFF;
-                int g = buffer.get(i + 1) & 0xFF;
-                int b = buffer.get(i + 2) & 0xFF;
-                screenshot.setRGB(x, height - (y + 1), (0xFF << 24) | (r << 16) | (g << 8) | b);
-            }
-        }
-
-        saveNoOMA(name, screenshot);
+        saveScreenshot(Output.NO_OMA, noOmaPath, name, buffer, width, height, imageType, bpp, screenshotImages);
     }
 
     public void saveNoOMA(long counter, ByteBuffer buffer, int width, int height, int imageType, int bpp) throws IOException {
         saveNoOMA(Long.toString(counter), buffer, width, height, imageType, bpp);
     }
 
+    /**
+     * L'immagine viene scritta in background: non deve essere modificata dopo la chiamata.
+     */
     public void saveNoOMA(String name, BufferedImage image) throws IOException {
-        save(name, noOmaPath, image);
+        if(isEnabled(Output.NO_OMA)) submit(name, noOmaPath, image);
     }
 
     public void saveOMA(String name, ByteBuffer buffer, int width, int height, int imageType, int bpp) throws IOException {
-        BufferedImage screenshot = new BufferedImage(width, height, imageType);
-
-        for(int x = 0; x < width; x++)
-        {
-            for(int y = 0; y < height; y++)
-            {
-                int i = (x + (width * y)) * bpp;
-                int r = buffer.get(i) & 0xFF;
-                int g = buffer.get(i + 1) & 0xFF;
-                int b = buffer.get(i + 2) & 0xFF;
-                screenshot.setRGB(x, height - (y + 1), (0xFF << 24) | (r << 16) | (g << 8) | b);
-            }
-        }
-
-        saveOMA(name, screenshot);
+        saveScreenshot(Output.OMA, omaPath, name, buffer, width, height, imageType, bpp, screenshotImages);
     }
 
     public void saveOMA(long counter, ByteBuffer buffer, int width, int height, int imageType, int bpp) throws IOException {
         saveOMA(Long.toString(counter), buffer, width, height, imageType, bpp);
     }
 
+    /**
+     * L'immagine viene scritta in background: non deve essere modificata dopo la chiamata.
+     */
     public void saveOMA(String name, BufferedImage image) throws IOException {
-        save(name, omaPath, image);
+        if(isEnabled(Output.OMA)) submit(name, omaPath, image);
     }
 
+    /**
+     * Salva la depth colorata letta da OpenGL, con un pool di immagini separato da quello degli screenshot.
+     *
+     * @param buffer pixel RGB o RGBA, righe dal basso verso l'alto come letti da OpenGL
+     */
+    public void saveDepth(long counter, ByteBuffer buffer, int width, int height, int bpp) throws IOException {
+        saveScreenshot(Output.DEPTH, depthPath, Long.toString(counter), buffer, width, height, BufferedImage.TYPE_INT_RGB, bpp, depthImages);
+    }
+
+    /**
+     * L'immagine viene scritta in background: non deve essere modificata dopo la chiamata.
+     */
     public void saveDepth(String name, BufferedImage image) throws IOException {
-        save(name, depthPath, image);
+        if(isEnabled(Output.DEPTH)) submit(name, depthPath, image);
     }
 
+    /**
+     * L'immagine viene scritta in background: non deve essere modificata dopo la chiamata.
+     */
     public void saveScaledDepth(String name, BufferedImage image) throws IOException {
-        save(name, scaledDepthPath, image);
+        if(isEnabled(Output.SCALED_DEPTH)) submit(name, scaledDepthPath, image);
+    }
+
+    /**
+     * Salva la depth metrica come png a 16 bit in millimetri. Il buffer viene copiato subito.
+     *
+     * @param depth depth in metri, righe dal basso verso l'alto come letta da OpenGL
+     */
+    public void saveScaledDepth(long counter, FloatBuffer depth, int width, int height) throws IOException {
+        if(!isEnabled(Output.SCALED_DEPTH)) return;
+
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_USHORT_GRAY);
+        short[] pixels = ((DataBufferUShort) image.getRaster().getDataBuffer()).getData();
+
+        for (int y = 0; y < height; y++) {
+            int source = y * width;
+            int offset = (height - (y + 1)) * width;
+
+            for (int x = 0; x < width; x++) {
+                float value = depth.get(source + x) * DEPTH_UNITS_PER_METER;
+                pixels[offset + x] = (short) Math.min(Math.max(Math.round(value), 0), 0xFFFF);
+            }
+        }
+
+        submit(Long.toString(counter), scaledDepthPath, image, null, LOSSLESS_FORMAT);
+    }
+
+    /**
+     * Salva la maschera di occlusione come png in scala di grigi. Il buffer viene copiato subito.
+     *
+     * @param mask un byte per pixel, righe dal basso verso l'alto come letta da OpenGL
+     */
+    public void saveMask(long counter, ByteBuffer mask, int width, int height) throws IOException {
+        if(!isEnabled(Output.MASK)) return;
+
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+        byte[] pixels = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+
+        int position = mask.position();
+
+        for (int y = 0; y < height; y++) {
+            mask.position(y * width);
+            mask.get(pixels, (height - (y + 1)) * width, width);
+        }
+
+        mask.position(position);
+
+        submit(Long.toString(counter), maskPath, image, null, LOSSLESS_FORMAT);
     }
 
     public void saveOMA(long counter, BufferedImage image) throws IOException {
@@ -147,9 +303,173 @@ public class MySaver {
         saveScaledDepth(Long.toString(counter), image);
     }
 
+    /**
+     * Attende la scrittura di tutte le immagini in coda e termina il pool.
+     * Il saver può essere riutilizzato: il pool viene ricreato al salvataggio successivo.
+     */
+    public void close() throws IOException {
+        if(writer != null){
+            writer.shutdown();
+
+            try {
+                while (!writer.awaitTermination(1, TimeUnit.MINUTES)){
+                    Log.log(Level.INFO, "Attendo la scrittura di "+writer.getQueue().size()+" immagini");
+                }
+            } catch (InterruptedException e) {
+                writer.shutdownNow();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrotto durante la scrittura delle immagini");
+            } finally {
+                writer = null;
+            }
+        }
+
+        checkWriteError();
+    }
+
+    private void saveScreenshot(Output output, Path path, String name, ByteBuffer buffer, int width, int height, int imageType, int bpp, ImagePool images) throws IOException {
+        if(!isEnabled(output)) return;
+
+        BufferedImage screenshot = images.acquire(width, height, imageType);
+        int[] pixels = ((DataBufferInt) screenshot.getRaster().getDataBuffer()).getData();
+
+        pack(buffer, width, height, bpp, pixels);
+
+        submit(name, path, screenshot, images.free, format);
+    }
+
+    /**
+     * Copia il buffer letto da OpenGL nel raster dell'immagine in un solo passaggio, per righe.
+     * OpenGL legge le righe dal basso verso l'alto: la prima riga del buffer è l'ultima dell'immagine.
+     */
+    private void pack(ByteBuffer buffer, int width, int height, int bpp, int[] pixels) {
+        int rowLength = width * bpp;
+
+        if(row == null || row.length < rowLength)
+            row = new byte[rowLength];
+
+        int position = buffer.position();
+
+        for(int y = 0; y < height; y++)
+        {
+            buffer.position(y * rowLength);
+            buffer.get(row, 0, rowLength);
+
+            int offset = (height - (y + 1)) * width;
+
+            for(int x = 0, i = 0; x < width; x++, i += bpp)
+            {
+                int r = row[i] & 0xFF;
+                int g = row[i + 1] & 0xFF;
+                int b = row[i + 2] & 0xFF;
+                pixels[offset + x] = (0xFF << 24) | (r << 16) | (g << 8) | b;
+            }
+        }
+
+        buffer.position(position);
+    }
+
+    private void submit(String name, Path path, BufferedImage image) throws IOException {
+        submit(name, path, image, null, format);
+    }
+
+    private void submit(String name, Path path, BufferedImage image, BlockingQueue<BufferedImage> pool, String format) throws IOException {
+        checkWriteError();
+
+        if(writer == null)
+            writer = createWriter();
+
+        writer.execute(() -> {
+            try {
+                save(name, path, image, format);
+            } catch (IOException e) {
+                Log.log(Level.SEVERE, "Impossibile salvare l'immagine "+name+" in "+path, e);
+                if(writeError == null) writeError = e;
+            } finally {
+                if(pool != null) pool.offer(image);
+            }
+        });
+    }
+
+    private ThreadPoolExecutor createWriter() {
+        AtomicInteger counter = new AtomicInteger();
+
+        //Se la coda è piena il chiamante attende che si liberi un posto
+        return new ThreadPoolExecutor(writerThreads, writerThreads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(writerQueue),
+                runnable -> {
+                    Thread thread = new Thread(runnable, TAG + "-" + counter.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                (runnable, executor) -> {
+                    if(executor.isShutdown())
+                        throw new RejectedExecutionException("Pool di scrittura terminato");
+
+                    try {
+                        executor.getQueue().put(runnable);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new RejectedExecutionException("Interrotto in attesa della coda di scrittura", e);
+                    }
+                });
+    }
+
+    private void checkWriteError() throws IOException {
+        IOException error = writeError;
+
+        if(error != null){
+            writeError = null;
+            throw error;
+        }
+    }
+
+    /**
+     * Immagini di una sola dimensione e tipo: il pool viene ricreato se cambiano.
+     */
+    private class ImagePool {
+        private BlockingQueue<BufferedImage> free;
+        private int created;
+        private int width, height, type;
+
+        private BufferedImage acquire(int width, int height, int type) throws IOException {
+            if(type != BufferedImage.TYPE_INT_RGB && type != BufferedImage.TYPE_INT_ARGB)
+                throw new IllegalArgumentException("Tipo immagine non supportato: "+type);
+
+            //Cambio di dimensioni: le immagini ancora in scrittura non tornano nel nuovo pool
+            if(free == null || width != this.width || height != this.height || type != this.type){
+                free = new ArrayBlockingQueue<>(writerThreads + writerQueue + 1);
+                created = 0;
+                this.width = width;
+                this.height = height;
+                this.type = type;
+            }
+
+            BufferedImage image = free.poll();
+
+            if(image != null) return image;
+
+            if(created < writerThreads + writerQueue + 1){
+                created++;
+                return new BufferedImage(width, height, type);
+            }
+
+            try {
+                return free.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrotto in attesa di un'immagine libera");
+            }
+        }
+    }
+
     public static void save(String name, Path myPath, BufferedImage image) throws IOException {
-        OutputStream outputStreamDepth = Files.newOutputStream(myPath.resolve(name + ".jpg"));
-        ImageIO.write(image, "jpg", outputStreamDepth);
+        save(name, myPath, image, DEFAULT_FORMAT);
+    }
+
+    public static void save(String name, Path myPath, BufferedImage image, String format) throws IOException {
+        OutputStream outputStreamDepth = Files.newOutputStream(myPath.resolve(name + "." + format));
+        ImageIO.write(image, format, outputStreamDepth);
         outputStreamDepth.close();
     }
 }
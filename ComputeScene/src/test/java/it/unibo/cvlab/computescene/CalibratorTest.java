@@ -10,8 +10,11 @@ import java.nio.ShortBuffer;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Random;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 public class CalibratorTest {
 
@@ -23,6 +26,10 @@ public class CalibratorTest {
 
     private Calibrator calibrator;
 
+    //Retta nota per i test IRLS: d = IRLS_SCALE * p + IRLS_SHIFT
+    private static final double IRLS_SCALE = 2.5;
+    private static final double IRLS_SHIFT = 0.3;
+
     private void load8bit() throws Exception {
         ArrayList<Calibrator.MinimumSquareObject> minimumSquareObjectArrayList = new ArrayList<>();
         ArrayList<Calibrator.RansacObject> ransacObjectArrayList = new ArrayList<>();
@@ -150,4 +157,64 @@ public class CalibratorTest {
         assertEquals(scaleResult, calibrator.getScaleFactor(), 0.0001);
         assertEquals(shiftResult, calibrator.getShiftFactor(), 0.0001);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void calibrateScaleFactorIRLS() {
+        for (Calibrator.RobustLoss loss : Calibrator.RobustLoss.values()) {
+            calibrator.prepare(createIRLSCloud(500, 0.3, 1));
+
+            assertTrue(loss.toString(), calibrator.calibrateScaleFactorIRLS(loss));
+
+            //Huber limita il peso degli outlier ma non lo azzera: resta un piccolo errore
+            double tolerance = loss == Calibrator.RobustLoss.HUBER ? 0.1 : 0.02;
+
+            assertEquals(loss.toString(), IRLS_SCALE, calibrator.getScaleFactor(), tolerance);
+            assertEquals(loss.toString(), IRLS_SHIFT, calibrator.getShiftFactor(), tolerance);
+        }
+    }
+
+    @Test
+    public void calibrateScaleFactorIRLSTooManyOutliers() {
+        //Meno di metà dei punti entro la soglia della perdita
+        calibrator.prepare(createIRLSCloud(500, 0.7, 2));
+
+        for (Calibrator.RobustLoss loss : Calibrator.RobustLoss.values()) {
+            assertFalse(loss.toString(), calibrator.calibrateScaleFactorIRLS(loss));
+        }
+    }
+
+    @Test
+    public void calibrateScaleFactorIRLSTooFewPoints() {
+        for (int count = 0; count < 2; count++) {
+            calibrator.prepare(createIRLSCloud(count, 0.0, 3));
+
+            assertFalse(calibrator.calibrateScaleFactorIRLS(Calibrator.RobustLoss.TUKEY));
+            assertFalse(calibrator.calibrateScaleFactorIRLS(Calibrator.RobustLoss.HUBER));
+        }
+    }
+
+    //Punti sulla retta nota con rumore dell'1% e una frazione di outlier grossolani
+    private static Calibrator.RansacObject[] createIRLSCloud(int count, double outlierRatio, long seed){
+        Random random = new Random(seed);
+        Calibrator.RansacObject[] objects = new Calibrator.RansacObject[count];
+
+        for (int i = 0; i < count; i++) {
+            double predicted = 0.2 + random.nextDouble() * 4.0;
+            double exact = IRLS_SCALE * predicted + IRLS_SHIFT;
+
+            Calibrator.RansacObject object = new Calibrator.RansacObject();
+            object.predictedDistance = predicted;
+            object.arConfidence = 0.5 + random.nextDouble() * 0.5;
+
+            if(random.nextDouble() < outlierRatio){
+                object.distance = exact * (random.nextBoolean() ? 2.0 + random.nextDouble() * 2.0 : 0.1 + random.nextDouble() * 0.3);
+            }else{
+                object.distance = exact * (1.0 + (random.nextDouble() - 0.5) * 0.02);
+            }
+
+            objects[i] = object;
+        }
+
+        return objects;
+    }
+}
@@ -0,0 +1,153 @@
+package it.unibo.cvlab.computescene;
+
+import org.junit.Test;
+
+import java.nio.FloatBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DepthSamplerTest {
+
+    private static final float DELTA = 1e-5f;
+
+    //Stima 4x4 riga per riga: un picco in (1, 1) e un minimo nell'angolo (3, 3)
+    private static final float[] DEPTH = new float[]{
+            1f,  2f,   3f,  4f,
+            5f,  100f, 7f,  8f,
+            9f,  10f,  11f, 12f,
+            13f, 14f,  15f, 0.5f
+    };
+
+    private static DepthSampler createSampler(float[] values){
+        return new DepthSampler(FloatBuffer.wrap(values.clone()), 4, 4);
+    }
+
+    @Test
+    public void nearest(){
+        DepthSampler sampler = createSampler(DEPTH);
+
+        //Interno
+        assertEquals(100f, sampler.sample(1f, 1f, DepthSampler.Mode.NEAREST, 1), DELTA);
+        assertEquals(100f, sampler.sample(1.4f, 0.6f, DepthSampler.Mode.NEAREST, 1), DELTA);
+        //Bordo
+        assertEquals(12f, sampler.sample(3f, 2.4f, DepthSampler.Mode.NEAREST, 1), DELTA);
+        //Angoli
+        assertEquals(1f, sampler.sample(0f, 0f, DepthSampler.Mode.NEAREST, 1), DELTA);
+        assertEquals(0.5f, sampler.sample(3f, 3f, DepthSampler.Mode.NEAREST, 1), DELTA);
+    }
+
+    @Test
+    public void bilinear(){
+        DepthSampler sampler = createSampler(DEPTH);
+
+        //Interno
+        assertEquals(32f, sampler.sample(1.5f, 1.5f, DepthSampler.Mode.BILINEAR, 1), DELTA);
+        assertEquals(10.5f, sampler.sample(0.5f, 2.25f, DepthSampler.Mode.BILINEAR, 1), DELTA);
+        //Bordo destro: interpola con la colonna precedente
+        assertEquals(6f, sampler.sample(3f, 0.5f, DepthSampler.Mode.BILINEAR, 1), DELTA);
+        //Angoli
+        assertEquals(1f, sampler.sample(0f, 0f, DepthSampler.Mode.BILINEAR, 1), DELTA);
+        assertEquals(0.5f, sampler.sample(3f, 3f, DepthSampler.Mode.BILINEAR, 1), DELTA);
+    }
+
+    @Test
+    public void median(){
+        DepthSampler sampler = createSampler(DEPTH);
+
+        //Interno: il picco viene scartato
+        assertEquals(7f, sampler.sample(1f, 1f, DepthSampler.Mode.MEDIAN, 3), DELTA);
+        assertEquals(11f, sampler.sample(2f, 2f, DepthSampler.Mode.MEDIAN, 3), DELTA);
+        assertEquals(100f, sampler.sample(1f, 1f, DepthSampler.Mode.MEDIAN, 1), DELTA);
+        //Bordo: finestra 2x3
+        assertEquals(8f, sampler.sample(3f, 1f, DepthSampler.Mode.MEDIAN, 3), DELTA);
+        //Angoli: finestra 2x2 e 3x3
+        assertEquals(5f, sampler.sample(0f, 0f, DepthSampler.Mode.MEDIAN, 3), DELTA);
+        assertEquals(12f, sampler.sample(3f, 3f, DepthSampler.Mode.MEDIAN, 3), DELTA);
+        assertEquals(7f, sampler.sample(0f, 0f, DepthSampler.Mode.MEDIAN, 5), DELTA);
+    }
+
+    @Test
+    public void min(){
+        DepthSampler sampler = createSampler(DEPTH);
+
+        //Interno
+        assertEquals(1f, sampler.sample(1f, 1f, DepthSampler.Mode.MIN, 3), DELTA);
+        assertEquals(0.5f, sampler.sample(2f, 2f, DepthSampler.Mode.MIN, 3), DELTA);
+        //Bordo
+        assertEquals(5f, sampler.sample(0f, 2f, DepthSampler.Mode.MIN, 3), DELTA);
+        //Angoli
+        assertEquals(3f, sampler.sample(3f, 0f, DepthSampler.Mode.MIN, 3), DELTA);
+        assertEquals(0.5f, sampler.sample(3f, 3f, DepthSampler.Mode.MIN, 1), DELTA);
+    }
+
+    @Test
+    public void outsideImage(){
+        DepthSampler sampler = createSampler(DEPTH);
+
+        for (DepthSampler.Mode mode : DepthSampler.Mode.values()) {
+            assertNaN(sampler.sample(-0.01f, 0f, mode, 3));
+            assertNaN(sampler.sample(3.01f, 0f, mode, 3));
+            assertNaN(sampler.sample(0f, 4f, mode, 3));
+            assertNaN(sampler.sample(Float.NaN, 1f, mode, 3));
+        }
+    }
+
+    @Test
+    public void nanInput(){
+        float[] values = DEPTH.clone();
+        values[5] = Float.NaN;
+
+        DepthSampler sampler = createSampler(values);
+
+        //NEAREST e BILINEAR restituiscono il NaN
+        assertNaN(sampler.sample(1f, 1f, DepthSampler.Mode.NEAREST, 1));
+        assertNaN(sampler.sample(1.5f, 1.5f, DepthSampler.Mode.BILINEAR, 1));
+        assertEquals(10.5f, sampler.sample(0.5f, 2.25f, DepthSampler.Mode.BILINEAR, 1), DELTA);
+
+        //MEDIAN e MIN lo ignorano, NaN solo se tutta la finestra è NaN
+        assertEquals(7f, sampler.sample(1f, 1f, DepthSampler.Mode.MEDIAN, 3), DELTA);
+        assertEquals(1f, sampler.sample(1f, 1f, DepthSampler.Mode.MIN, 3), DELTA);
+        assertEquals(3f, sampler.sample(1f, 0f, DepthSampler.Mode.MEDIAN, 3), DELTA);
+        assertNaN(sampler.sample(1f, 1f, DepthSampler.Mode.MEDIAN, 1));
+        assertNaN(sampler.sample(1f, 1f, DepthSampler.Mode.MIN, 1));
+    }
+
+    @Test
+    public void invalidKernel(){
+        DepthSampler sampler = createSampler(DEPTH);
+
+        for (DepthSampler.Mode mode : new DepthSampler.Mode[]{DepthSampler.Mode.MEDIAN, DepthSampler.Mode.MIN}) {
+            for (int kernel : new int[]{0, 2, DepthSampler.MAX_KERNEL + 2}) {
+                try {
+                    sampler.sample(1f, 1f, mode, kernel);
+                    fail(mode + " con finestra " + kernel);
+                } catch (IllegalArgumentException ignored) {
+                }
+            }
+        }
+    }
+
+    @Test
+    public void leavesBufferUntouched(){
+        FloatBuffer buffer = FloatBuffer.wrap(DEPTH.clone());
+        DepthSampler sampler = new DepthSampler(buffer, 4, 4);
+
+        for (DepthSampler.Mode mode : DepthSampler.Mode.values()) {
+            sampler.sample(2.5f, 1.5f, mode, 3);
+        }
+
+        assertEquals(0, buffer.position());
+        assertEquals(16, buffer.limit());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsSmallBuffer(){
+        new DepthSampler(FloatBuffer.allocate(15), 4, 4);
+    }
+
+    private static void assertNaN(float value){
+        assertTrue("Atteso NaN, trovato " + value, Float.isNaN(value));
+    }
+}
@@ -0,0 +1,137 @@
+package it.unibo.cvlab.computescene;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ScaleShiftRansacTest {
+
+    private static final double SCALE = 2.5;
+    private static final double SHIFT = 0.3;
+
+    private static final int MAX_ITERATIONS = 1000;
+    private static final double THRESHOLD = 0.05;
+
+    //Punti sulla retta d = SCALE * p + SHIFT, con un po' di rumore e una frazione di outlier
+    private static class Cloud {
+        final float[] predicted;
+        final float[] distance;
+        final float[] weight;
+        final int inliers;
+
+        Cloud(int count, double outlierRatio, long seed){
+            Random random = new Random(seed);
+
+            predicted = new float[count];
+            distance = new float[count];
+            weight = new float[count];
+
+            int numInliers = 0;
+
+            for (int i = 0; i < count; i++) {
+                predicted[i] = 0.2f + random.nextFloat() * 4f;
+                weight[i] = 0.5f + random.nextFloat() * 0.5f;
+
+                double exact = SCALE * predicted[i] + SHIFT;
+
+                if(random.nextDouble() < outlierRatio){
+                    //Errore relativo sempre oltre la soglia
+                    distance[i] = (float) (exact * (random.nextBoolean() ? 1.5 + random.nextDouble() : 0.2 + random.nextDouble() * 0.4));
+                }else{
+                    distance[i] = (float) (exact * (1.0 + (random.nextDouble() - 0.5) * 0.01));
+                    numInliers++;
+                }
+            }
+
+            inliers = numInliers;
+        }
+    }
+
+    @Test
+    public void recoversScaleAndShiftWithOutliers(){
+        Cloud cloud = new Cloud(500, 0.4, 1);
+
+        ScaleShiftRansac ransac = new ScaleShiftRansac(new Random(7));
+
+        assertTrue(ransac.estimate(cloud.predicted, cloud.distance, cloud.weight, cloud.predicted.length, MAX_ITERATIONS, THRESHOLD));
+
+        assertEquals(SCALE, ransac.getScaleFactor(), 0.02);
+        assertEquals(SHIFT, ransac.getShiftFactor(), 0.02);
+        assertEquals(cloud.inliers, ransac.getNumInliers());
+        assertTrue(ransac.getNumIterations() < MAX_ITERATIONS);
+    }
+
+    @Test
+    public void failsWithLessThanTwoPoints(){
+        ScaleShiftRansac ransac = new ScaleShiftRansac(new Random(7));
+
+        float[] one = new float[]{1f};
+
+        assertFalse(ransac.estimate(new float[0], new float[0], new float[0], 0, MAX_ITERATIONS, THRESHOLD));
+        assertEquals(0, ransac.getNumInliers());
+        assertEquals(0, ransac.getNumIterations());
+
+        assertFalse(ransac.estimate(one, one, one, 1, MAX_ITERATIONS, THRESHOLD));
+        assertEquals(0, ransac.getNumInliers());
+        assertEquals(0, ransac.getNumIterations());
+    }
+
+    @Test
+    public void sameSeedSameResult(){
+        Cloud cloud = new Cloud(300, 0.6, 2);
+        int count = cloud.predicted.length;
+
+        ScaleShiftRansac first = new ScaleShiftRansac(new Random(11));
+        ScaleShiftRansac second = new ScaleShiftRansac(new Random(11));
+
+        assertTrue(first.estimate(cloud.predicted, cloud.distance, cloud.weight, count, MAX_ITERATIONS, THRESHOLD));
+        assertTrue(second.estimate(cloud.predicted, cloud.distance, cloud.weight, count, MAX_ITERATIONS, THRESHOLD));
+        assertSameEstimate(first, second);
+
+        //setSeed riporta il generatore allo stato iniziale
+        first.setSeed(11);
+        assertTrue(first.estimate(cloud.predicted, cloud.distance, cloud.weight, count, MAX_ITERATIONS, THRESHOLD));
+        assertSameEstimate(second, first);
+    }
+
+    /**
+     * Su una nuvola densa la valutazione a blocchi in parallelo deve dare lo stesso risultato della sequenziale.
+     */
+    @Test
+    public void parallelMatchesSequential(){
+        Cloud cloud = new Cloud(4 * ScaleShiftRansac.DEFAULT_PARALLEL_THRESHOLD, 0.7, 3);
+        int count = cloud.predicted.length;
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+
+        try {
+            for (long seed = 0; seed < 5; seed++) {
+                ScaleShiftRansac sequential = new ScaleShiftRansac(new Random(seed));
+                sequential.setParallelism(pool, Integer.MAX_VALUE);
+
+                ScaleShiftRansac parallel = new ScaleShiftRansac(new Random(seed));
+                parallel.setParallelism(pool, ScaleShiftRansac.DEFAULT_PARALLEL_THRESHOLD);
+
+                assertTrue(sequential.estimate(cloud.predicted, cloud.distance, cloud.weight, count, MAX_ITERATIONS, THRESHOLD));
+                assertTrue(parallel.estimate(cloud.predicted, cloud.distance, cloud.weight, count, MAX_ITERATIONS, THRESHOLD));
+
+                assertSameEstimate(sequential, parallel);
+                assertEquals(SCALE, parallel.getScaleFactor(), 0.02);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static void assertSameEstimate(ScaleShiftRansac expected, ScaleShiftRansac actual){
+        assertEquals(expected.getScaleFactor(), actual.getScaleFactor(), 0.0);
+        assertEquals(expected.getShiftFactor(), actual.getShiftFactor(), 0.0);
+        assertEquals(expected.getNumInliers(), actual.getNumInliers());
+        assertEquals(expected.getNumIterations(), actual.getNumIterations());
+    }
+}
@@ -0,0 +1,243 @@
+package it.unibo.cvlab.computescene.loader;
+
+import it.unibo.cvlab.computescene.dataset.PointCloudBuffer;
+import it.unibo.cvlab.computescene.dataset.PointCloudDataset;
+import it.unibo.cvlab.computescene.dataset.Pose;
+import it.unibo.cvlab.computescene.dataset.SceneDataset;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FrameContainerTest {
+
+    private static final int FRAMES = 3;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Random random = new Random(9);
+
+    @Test
+    public void roundTrip() throws IOException {
+        Path dataset = createDataset();
+        Path output = dataset.resolve(FrameContainer.FILE_NAME);
+
+        FrameContainer.convert(dataset, output);
+        //Con il contenitore già nella cartella la conversione legge comunque le cartelle
+        FrameContainer.convert(dataset, output);
+
+        FrameContainer container = FrameContainer.open(output);
+        assertEquals(FRAMES, container.getFrames());
+
+        for (int frame = 0; frame < FRAMES; frame++) {
+            byte[] expectedImage = Files.readAllBytes(dataset.resolve("images").resolve(frame + ".jpg"));
+            ByteBuffer image = container.getImage(frame);
+            byte[] actualImage = new byte[image.remaining()];
+            image.get(actualImage);
+            assertArrayEquals(expectedImage, actualImage);
+
+            SceneDataset expectedScene = new SceneDataset();
+            DatasetLoader.readSceneFile(dataset.resolve("scenes").resolve(frame + ".json"), expectedScene);
+            SceneDataset actualScene = new SceneDataset();
+            container.readScene(frame, actualScene);
+            assertScene(expectedScene, actualScene);
+
+            PointCloudDataset expectedPoints = new PointCloudDataset();
+            DatasetLoader.readPointFile(dataset.resolve("points").resolve(frame + ".json"), expectedPoints);
+            PointCloudDataset actualPoints = new PointCloudDataset();
+            container.readPoints(frame, actualPoints);
+            assertPoints(expectedPoints, actualPoints);
+        }
+
+        //Il loader sceglie il contenitore presente nella cartella
+        DatasetLoader loader = new DatasetLoader(dataset);
+        assertTrue(loader.isContainer());
+        assertEquals(FRAMES, loader.getFrames());
+        loader.close();
+    }
+
+    @Test
+    public void rejectsIndexOutsideFile() throws IOException {
+        Path dataset = createDataset();
+        Path output = folder.getRoot().toPath().resolve("broken.omaf");
+
+        FrameContainer.convert(dataset, output);
+
+        //Lunghezza della point cloud dell'ultimo frame oltre la fine del file
+        byte[] bytes = Files.readAllBytes(output);
+        ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN)
+                .putInt(FrameContainer.HEADER_SIZE + FRAMES * FrameContainer.INDEX_ENTRY_SIZE - Integer.BYTES, bytes.length);
+        Files.write(output, bytes);
+
+        try {
+            FrameContainer.open(output);
+            fail("Indice non valido accettato");
+        } catch (IOException ignored) {
+        }
+    }
+
+    private Path createDataset() throws IOException {
+        Path dataset = folder.newFolder().toPath();
+        Path images = Files.createDirectory(dataset.resolve("images"));
+        Path scenes = Files.createDirectory(dataset.resolve("scenes"));
+        Path points = Files.createDirectory(dataset.resolve("points"));
+
+        for (int frame = 0; frame < FRAMES; frame++) {
+            //Il contenitore copia i jpeg senza decodificarli
+            byte[] image = new byte[100 + random.nextInt(200)];
+            random.nextBytes(image);
+            Files.write(images.resolve(frame + ".jpg"), image);
+
+            Files.write(scenes.resolve(frame + ".json"), sceneJson(frame).getBytes("UTF-8"));
+            Files.write(points.resolve(frame + ".json"), pointsJson(frame).getBytes("UTF-8"));
+        }
+
+        return dataset;
+    }
+
+    private String sceneJson(int frame){
+        StringBuilder anchors = new StringBuilder();
+
+        for (int i = 0; i < frame; i++) {
+            if(i > 0) anchors.append(',');
+            anchors.append(poseJson(true));
+        }
+
+        return String.format(Locale.ROOT,
+                "{\"cameraPose\":%s,\"cameraDisplayPose\":%s,%s\"displayRotation\":90,\"frameNumber\":%d,\"timestamp\":%d," +
+                        "\"width\":640,\"height\":480,\"numeroAncore\":%d,\"ancore\":[%s],\"nearPlane\":0.1,\"farPlane\":%s," +
+                        "\"viewmtx\":%s,\"projmtx\":%s}",
+                poseJson(true), poseJson(false), frame == 1 ? "" : "\"sensorPose\":" + poseJson(true) + ",",
+                frame, 1000L + frame, frame, anchors, 10f + frame, matrixJson(), frame == 2 ? "null" : matrixJson());
+    }
+
+    private String poseJson(boolean matrices){
+        String pose = String.format(Locale.ROOT, "\"tx\":%s,\"ty\":%s,\"tz\":%s,\"qx\":%s,\"qy\":%s,\"qz\":%s,\"qw\":%s",
+                random.nextFloat(), random.nextFloat(), random.nextFloat(),
+                random.nextFloat(), random.nextFloat(), random.nextFloat(), random.nextFloat());
+
+        if(matrices){
+            pose += ",\"modelMatrix\":" + matrixJson() + ",\"modelViewMatrix\":" + matrixJson()
+                    + ",\"modelViewProjectionMatrix\":" + matrixJson();
+        }
+
+        return "{" + pose + "}";
+    }
+
+    private String matrixJson(){
+        StringBuilder matrix = new StringBuilder("[");
+
+        for (int i = 0; i < 16; i++) {
+            if(i > 0) matrix.append(',');
+            matrix.append(random.nextFloat() * 2f - 1f);
+        }
+
+        return matrix.append(']').toString();
+    }
+
+    private String pointsJson(int frame){
+        StringBuilder points = new StringBuilder();
+        int count = frame * 50;
+
+        for (int i = 0; i < count; i++) {
+            if(i > 0) points.append(',');
+            points.append(String.format(Locale.ROOT,
+                    "{\"x\":%d,\"y\":%d,\"tx\":%s,\"ty\":%s,\"tz\":%s,\"confidence\":%s,\"distance\":%s}",
+                    random.nextInt(640), random.nextInt(480), random.nextFloat(), random.nextFloat(),
+                    random.nextFloat(), random.nextFloat(), random.nextFloat() * 5f));
+        }
+
+        return String.format(Locale.ROOT,
+                "{\"pointCloudTimestamp\":%d,\"minDistance\":0.2,\"maxDistance\":4.5,\"origin\":\"arcore\",\"numPoints\":%d,\"points\":[%s]}",
+                2000L + frame, count, points);
+    }
+
+    private static void assertScene(SceneDataset expected, SceneDataset actual){
+        assertPose(expected.getCameraPose(), actual.getCameraPose());
+        assertPose(expected.getCameraDisplayPose(), actual.getCameraDisplayPose());
+        assertPose(expected.getSensorPose(), actual.getSensorPose());
+        assertEquals(expected.getDisplayRotation(), actual.getDisplayRotation());
+        assertEquals(expected.getFrameNumber(), actual.getFrameNumber());
+        assertEquals(expected.getTimestmap(), actual.getTimestmap());
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        assertEquals(expected.getNumeroAncore(), actual.getNumeroAncore());
+        assertEquals(expected.getNearPlane(), actual.getNearPlane(), 0f);
+        assertEquals(expected.getFarPlane(), actual.getFarPlane(), 0f);
+        assertFloats(expected.getViewmtx(), actual.getViewmtx());
+        assertFloats(expected.getProjmtx(), actual.getProjmtx());
+
+        Pose[] expectedAnchors = expected.getAncore();
+        Pose[] actualAnchors = actual.getAncore();
+        assertEquals(expectedAnchors.length, actualAnchors.length);
+
+        for (int i = 0; i < expectedAnchors.length; i++) {
+            assertPose(expectedAnchors[i], actualAnchors[i]);
+        }
+    }
+
+    private static void assertPose(Pose expected, Pose actual){
+        if(expected == null){
+            assertNull(actual);
+            return;
+        }
+
+        assertEquals(expected.getTx(), actual.getTx(), 0f);
+        assertEquals(expected.getTy(), actual.getTy(), 0f);
+        assertEquals(expected.getTz(), actual.getTz(), 0f);
+        assertEquals(expected.getQx(), actual.getQx(), 0f);
+        assertEquals(expected.getQy(), actual.getQy(), 0f);
+        assertEquals(expected.getQz(), actual.getQz(), 0f);
+        assertEquals(expected.getQw(), actual.getQw(), 0f);
+        assertFloats(expected.getModelMatrix(), actual.getModelMatrix());
+        assertFloats(expected.getModelViewMatrix(), actual.getModelViewMatrix());
+        assertFloats(expected.getModelViewProjectionMatrix(), actual.getModelViewProjectionMatrix());
+    }
+
+    private static void assertPoints(PointCloudDataset expected, PointCloudDataset actual){
+        assertEquals(expected.getPointCloudTimestamp(), actual.getPointCloudTimestamp());
+        assertEquals(expected.getMinDistance(), actual.getMinDistance(), 0f);
+        assertEquals(expected.getMaxDistance(), actual.getMaxDistance(), 0f);
+        assertEquals(expected.getOrigin(), actual.getOrigin());
+        assertEquals(expected.getNumPoints(), actual.getNumPoints());
+
+        PointCloudBuffer expectedBuffer = expected.getPoints();
+        PointCloudBuffer actualBuffer = actual.getPoints();
+        int size = expectedBuffer.size();
+
+        assertEquals(size, actualBuffer.size());
+
+        for (int i = 0; i < size; i++) {
+            assertEquals(expectedBuffer.getX()[i], actualBuffer.getX()[i]);
+            assertEquals(expectedBuffer.getY()[i], actualBuffer.getY()[i]);
+            assertEquals(expectedBuffer.getTx()[i], actualBuffer.getTx()[i], 0f);
+            assertEquals(expectedBuffer.getTy()[i], actualBuffer.getTy()[i], 0f);
+            assertEquals(expectedBuffer.getTz()[i], actualBuffer.getTz()[i], 0f);
+            assertEquals(expectedBuffer.getConfidence()[i], actualBuffer.getConfidence()[i], 0f);
+            assertEquals(expectedBuffer.getDistance()[i], actualBuffer.getDistance()[i], 0f);
+        }
+    }
+
+    private static void assertFloats(float[] expected, float[] actual){
+        if(expected == null){
+            assertNull(actual);
+            return;
+        }
+
+        assertArrayEquals(expected, actual, 0f);
+    }
+}
@@ -4,12 +4,21 @@ import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import org.junit.Test;
 
+import java.nio.FloatBuffer;
 import java.util.HashSet;
+import java.util.Random;
 
 import static org.junit.Assert.assertEquals;
 
 public class ModelTest {
 
+    //Sopra e sotto MIN_PARALLEL_LENGTH: un solo blocco oppure divisione tra i thread
+    private static final int SMALL_LENGTH = 1000;
+    private static final int LARGE_LENGTH = 100_003;
+
+    //Relativa al valore, assoluta sotto 1: negate e le normalizzazioni in [0, 1] sottraggono valori vicini
+    private static final float RELATIVE_TOLERANCE = 1e-5f;
+
     @Test
     public void mainTest(){
 //        HashSet<String> inputNodes = new HashSet<>();
@@ -46,4 +55,152 @@ public class ModelTest {
 
     }
 
-}
\ No newline at end of file
+    @Test
+    public void normalizeMatchesStaticFunctions(){
+        for (Model.Normalization type : Model.Normalization.values()) {
+            for (int length : new int[]{SMALL_LENGTH, LARGE_LENGTH}) {
+                FloatBuffer in = randomBuffer(length, 0.5f, 10f, 1);
+
+                //min e max dal buffer, come le funzioni statiche senza intervallo
+                assertNormalized(type, in, expected(type, in), false);
+                assertNormalized(type, in, expected(type, in), true);
+            }
+        }
+    }
+
+    @Test
+    public void normalizeWithFixedRange(){
+        for (Model.Normalization type : new Model.Normalization[]{Model.Normalization.INVERSE, Model.Normalization.NEGATE,
+                Model.Normalization.LINEAR, Model.Normalization.LINEAR_NEGATE}) {
+            for (int length : new int[]{SMALL_LENGTH, LARGE_LENGTH}) {
+                FloatBuffer in = randomBuffer(length, 0.5f, 10f, 2);
+
+                Model model = createModel(type, 0.25f, 12f);
+                FloatBuffer actual = model.normalize(copy(in), FloatBuffer.allocate(length));
+
+                assertBuffers(type.toString(), expected(type, in, 0.25f, 12f), actual);
+            }
+        }
+    }
+
+    /**
+     * Con valori tutti negativi le funzioni statiche partono da Float.MIN_VALUE e sbagliano il massimo:
+     * normalize usa il vero intervallo del buffer.
+     */
+    @Test
+    public void normalizeAllNegative(){
+        for (Model.Normalization type : Model.Normalization.values()) {
+            for (int length : new int[]{SMALL_LENGTH, LARGE_LENGTH}) {
+                FloatBuffer in = randomBuffer(length, -10f, -0.5f, 3);
+
+                float min = Float.POSITIVE_INFINITY;
+                float max = Float.NEGATIVE_INFINITY;
+
+                for (int i = 0; i < length; i++) {
+                    min = Math.min(min, in.get(i));
+                    max = Math.max(max, in.get(i));
+                }
+
+                FloatBuffer expected;
+
+                switch (type){
+                    case EXPONENTIAL:
+                    case EXPONENTIAL_NEGATE:
+                        //Gli esponenziali sono positivi: le funzioni statiche sono già corrette
+                        expected = expected(type, in);
+                        break;
+                    default:
+                        expected = expected(type, in, min, max);
+                }
+
+                assertNormalized(type, in, expected, true);
+            }
+        }
+    }
+
+    private void assertNormalized(Model.Normalization type, FloatBuffer in, FloatBuffer expected, boolean inPlace){
+        Model model = createModel(type, 0f, 0f);
+        model.setNormalizationThreads(4);
+
+        FloatBuffer source = copy(in);
+        FloatBuffer actual = model.normalize(source, inPlace ? source : FloatBuffer.allocate(source.capacity()));
+
+        assertBuffers(type + (inPlace ? " sul posto" : ""), expected, actual);
+    }
+
+    private static void assertBuffers(String message, FloatBuffer expected, FloatBuffer actual){
+        assertEquals(message, expected.limit(), actual.limit());
+
+        for (int i = 0; i < expected.limit(); i++) {
+            float value = expected.get(i);
+            assertEquals(message + " [" + i + "]", value, actual.get(i), Math.max(Math.abs(value), 1f) * RELATIVE_TOLERANCE);
+        }
+    }
+
+    private static FloatBuffer expected(Model.Normalization type, FloatBuffer in){
+        FloatBuffer source = copy(in);
+
+        switch (type){
+            case NONE:
+                return source;
+            case INVERSE:
+                return Model.inverse(source);
+            case NEGATE:
+                return Model.negate(source);
+            case LINEAR:
+                return Model.linearNormalization(source);
+            case LINEAR_NEGATE:
+                return Model.negateLinearNormalization(source);
+            case EXPONENTIAL:
+                return Model.expNormalization(source);
+            case EXPONENTIAL_NEGATE:
+                return Model.negateExpNormalization(source);
+            default:
+                throw new IllegalArgumentException(type.toString());
+        }
+    }
+
+    private static FloatBuffer expected(Model.Normalization type, FloatBuffer in, float min, float max){
+        FloatBuffer source = copy(in);
+
+        switch (type){
+            case NONE:
+                return source;
+            case INVERSE:
+                return Model.inverse(source, min, max);
+            case NEGATE:
+                return Model.negate(source, min, max);
+            case LINEAR:
+                return Model.linearNormalization(source, min, max);
+            case LINEAR_NEGATE:
+                return Model.negateLinearNormalization(source, min, max);
+            default:
+                throw new IllegalArgumentException(type.toString());
+        }
+    }
+
+    private static Model createModel(Model.Normalization normalization, float outputMin, float outputMax){
+        HashSet<String> nodes = new HashSet<>();
+
+        return new Model("test", "test.pb", nodes, nodes, "in", "out", new int[]{1, 1, 1, 3}, Model.Type.FLOAT_32, 0f, 1f,
+                new int[]{1, 1, 1, 1}, Model.Type.FLOAT_32, normalization, outputMin, outputMax);
+    }
+
+    private static FloatBuffer randomBuffer(int length, float min, float max, long seed){
+        Random random = new Random(seed);
+        FloatBuffer buffer = FloatBuffer.allocate(length);
+
+        for (int i = 0; i < length; i++) {
+            buffer.put(i, min + random.nextFloat() * (max - min));
+        }
+
+        return buffer;
+    }
+
+    private static FloatBuffer copy(FloatBuffer in){
+        FloatBuffer copy = FloatBuffer.allocate(in.capacity());
+        copy.put(in.duplicate());
+        copy.rewind();
+        return copy;
+    }
+}